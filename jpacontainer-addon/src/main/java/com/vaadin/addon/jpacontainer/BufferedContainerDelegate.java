@@ -18,10 +18,11 @@ package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -30,6 +31,7 @@ import java.util.Set;
 import java.util.UUID;
 
 import com.vaadin.data.Buffered.SourceException;
+import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Validator.InvalidValueException;
 
 /**
@@ -83,18 +85,56 @@ final class BufferedContainerDelegate<T> implements Serializable {
 	private JPAContainer<T> container;
 	// Delta list contains all changes
 	private LinkedList<Delta> deltaList = new LinkedList<Delta>();
-	private Map<Object, T> addedEntitiesCache = new LinkedHashMap<Object, T>();
+	private Map<Object, T> addedEntitiesCache = new HashMap<Object, T>();
+	// The IDs of the added items in the order in which they were added
+	private ArrayList<Object> addedItemIds = new ArrayList<Object>();
+	private List<Object> unmodifiableAddedItemIds = Collections.unmodifiableList(addedItemIds);
+	/*
+	 * The positions of the IDs in addedItemIds, or null if they have to be
+	 * recalculated because an ID has been removed.
+	 */
+	private transient HashMap<Object, Integer> addedItemPositions;
+	/*
+	 * The database indexes of the deleted items, or null for the items whose
+	 * index has not been looked up yet
+	 */
 	private HashMap<Object, Integer> deletedItemIdsCache = new HashMap<Object, Integer>();
+	// The known values of deletedItemIdsCache in ascending order
+	private SortedIndexes deletedDbIndexes = new SortedIndexes();
+	private LinkedHashSet<Object> unresolvedDeletedItemIds = new LinkedHashSet<Object>();
 	private Map<Object, T> updatedEntitiesCache = new HashMap<Object, T>();
 
 	/**
 	 * Gets a list of IDs of added entity items. The IDs appear in the order in
 	 * which they were added.
 	 * 
-	 * @return an unmodifiable list of entity item IDs (never null).
+	 * @return an unmodifiable view of the list of entity item IDs, which
+	 *         reflects later changes (never null).
 	 */
 	public List<Object> getAddedItemIds() {
-		return Collections.unmodifiableList(new ArrayList<>(addedEntitiesCache.keySet()));
+		return unmodifiableAddedItemIds;
+	}
+
+	/**
+	 * Gets the position of <code>itemId</code> in the list of added item IDs.
+	 * 
+	 * @see #getAddedItemIds()
+	 * @param itemId
+	 *            the item ID to look for (must not be null).
+	 * @return the position of the item ID, or -1 if it is not in the list.
+	 */
+	public int indexOfAddedItemId(Object itemId) {
+		assert itemId != null : "itemId must not be null";
+		if (!addedEntitiesCache.containsKey(itemId)) {
+			return -1;
+		}
+		if (addedItemPositions == null) {
+			addedItemPositions = new HashMap<Object, Integer>(addedItemIds.size() * 2);
+			for (int i = 0; i < addedItemIds.size(); i++) {
+				addedItemPositions.put(addedItemIds.get(i), i);
+			}
+		}
+		return addedItemPositions.get(itemId);
 	}
 
 	/**
@@ -188,6 +228,68 @@ final class BufferedContainerDelegate<T> implements Serializable {
 		return !deltaList.isEmpty();
 	}
 
+	private void removeAddedItemIds() {
+		addedItemIds.retainAll(addedEntitiesCache.keySet());
+		addedItemPositions = null;
+	}
+
+	private void removeDeletedItem(Object itemId) {
+		Integer dbIndex = deletedItemIdsCache.remove(itemId);
+		if (dbIndex != null) {
+			deletedDbIndexes.remove(dbIndex);
+		} else {
+			unresolvedDeletedItemIds.remove(itemId);
+		}
+	}
+
+	/**
+	 * Looks up the database indexes of the deleted items whose index is not
+	 * known yet. If the entity provider is an {@link IndexedEntityProvider},
+	 * each index is looked up separately, which is answered from the cached
+	 * identifiers or with a count query. Otherwise, all the identifiers are
+	 * fetched once.
+	 */
+	@SuppressWarnings("unchecked")
+	private void resolveDeletedItemIndexes() {
+		if (unresolvedDeletedItemIds.isEmpty()) {
+			return;
+		}
+		EntityProvider<T> provider = container.getEntityProvider();
+		Filter filter = container.getAppliedFiltersAsConjunction();
+		List<SortBy> sortBy = container.getSortByList();
+		List<Object> allDbEntityIdentifiers = null;
+		for (Object itemId : unresolvedDeletedItemIds) {
+			int dbIndex;
+			if (provider instanceof IndexedEntityProvider) {
+				dbIndex = ((IndexedEntityProvider<T>) provider).getEntityIdentifierIndex(container, itemId, filter,
+						sortBy);
+			} else {
+				if (allDbEntityIdentifiers == null) {
+					allDbEntityIdentifiers = provider.getAllEntityIdentifiers(container, filter, sortBy);
+				}
+				dbIndex = allDbEntityIdentifiers.indexOf(itemId);
+			}
+			deletedItemIdsCache.put(itemId, dbIndex);
+			deletedDbIndexes.add(dbIndex);
+		}
+		unresolvedDeletedItemIds.clear();
+	}
+
+	/**
+	 * Forgets the database indexes of the deleted items, e.g. because the
+	 * filters or the sort order of the container have changed. The indexes are
+	 * looked up again when they are needed.
+	 */
+	public void invalidateDeletedItemIndexes() {
+		for (Map.Entry<Object, Integer> entry : deletedItemIdsCache.entrySet()) {
+			if (entry.getValue() != null) {
+				entry.setValue(null);
+				unresolvedDeletedItemIds.add(entry.getKey());
+			}
+		}
+		deletedDbIndexes = new SortedIndexes();
+	}
+
 	private void clear() {
 		assert deltaList.isEmpty();
 		assert addedEntitiesCache.isEmpty() : addedEntitiesCache;
@@ -233,7 +335,7 @@ final class BufferedContainerDelegate<T> implements Serializable {
 						} else if (delta.type == DeltaType.DELETE) {
 							batchEnabledEntityProvider
 									.removeEntity(delta.itemId);
-							deletedItemIdsCache.remove(delta.itemId);
+							removeDeletedItem(delta.itemId);
 						}
 					}
 					assert deltaList.isEmpty();
@@ -243,6 +345,10 @@ final class BufferedContainerDelegate<T> implements Serializable {
 
 				} catch (Exception e) {
 					throw new SourceException(container, e);
+				} finally {
+					// The added entities are removed from the cache one by one,
+					// so update the list of IDs once
+					removeAddedItemIds();
 				}
 			}
 		});
@@ -274,6 +380,10 @@ final class BufferedContainerDelegate<T> implements Serializable {
 		UUID uuid = UUID.randomUUID();
 		deltaList.add(new Delta(DeltaType.ADD, uuid, entity));
 		addedEntitiesCache.put(uuid, entity);
+		if (addedItemPositions != null) {
+			addedItemPositions.put(uuid, addedItemIds.size());
+		}
+		addedItemIds.add(uuid);
 		return uuid;
 	}
 
@@ -287,6 +397,8 @@ final class BufferedContainerDelegate<T> implements Serializable {
 	public void deleteItem(Object itemId) {
 		assert itemId != null : "itemId must not be null";
 		if (isAdded(itemId)) {
+			addedItemIds.remove(indexOfAddedItemId(itemId));
+			addedItemPositions = null;
 			addedEntitiesCache.remove(itemId);
 			ListIterator<Delta> it = deltaList.listIterator(deltaList.size());
 			while(it.hasPrevious()) {				
@@ -297,12 +409,9 @@ final class BufferedContainerDelegate<T> implements Serializable {
 		} else {
 			removeUpdateDelta(itemId);
 			deltaList.add(new Delta(DeltaType.DELETE, itemId, null));
-			List<Object> allDbEntityIdentifiers = container.getEntityProvider()
-					.getAllEntityIdentifiers(container,
-							container.getAppliedFiltersAsConjunction(),
-							container.getSortByList());
-			int dbIndexOfDeletedItem = allDbEntityIdentifiers.indexOf(itemId);
-			deletedItemIdsCache.put(itemId, dbIndexOfDeletedItem);
+			// The database index is looked up when it is needed
+			deletedItemIdsCache.put(itemId, null);
+			unresolvedDeletedItemIds.add(itemId);
 
 		}
 	}
@@ -340,20 +449,101 @@ final class BufferedContainerDelegate<T> implements Serializable {
 		}
 	}
 
+	/**
+	 * Converts the index of an item among the items that have not been
+	 * deleted to the index of the item in the database, where the deleted
+	 * items are still present.
+	 * 
+	 * @param index
+	 *            the index of the item without the deleted items.
+	 * @return the index of the item in the database.
+	 */
 	public int fixDbIndexWithDeletedItems(int index) {
-		Integer[] removedDbIndexes = getDbIndexesOfDeletedItems();
-		for (int i = 0; i < removedDbIndexes.length; i++) {
-			if (removedDbIndexes[i] <= index) {
-				index++;
+		resolveDeletedItemIndexes();
+		return index + deletedDbIndexes.countShifts(index);
+	}
+
+	/**
+	 * Does the reverse of {@link #fixDbIndexWithDeletedItems(int)}, i.e.
+	 * converts the index of an item in the database to its index among the
+	 * items that have not been deleted.
+	 * 
+	 * @param dbIndex
+	 *            the index of an item that has not been deleted.
+	 * @return the index of the item without the deleted items.
+	 */
+	public int fixIndexWithDeletedItems(int dbIndex) {
+		resolveDeletedItemIndexes();
+		return dbIndex - deletedDbIndexes.countLessThan(dbIndex);
+	}
+
+	/**
+	 * A sorted array of distinct non-negative database indexes that supports
+	 * index translation by binary search.
+	 */
+	static final class SortedIndexes implements Serializable {
+
+		private static final long serialVersionUID = -3100640917414306722L;
+		private int[] values = new int[8];
+		private int size;
+
+		/**
+		 * Adds <code>value</code>, unless it is negative (i.e. unknown) or
+		 * already present.
+		 */
+		void add(int value) {
+			if (value < 0) {
+				return;
+			}
+			int pos = Arrays.binarySearch(values, 0, size, value);
+			if (pos >= 0) {
+				return;
 			}
+			pos = -pos - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			System.arraycopy(values, pos, values, pos + 1, size - pos);
+			values[pos] = value;
+			size++;
+		}
+
+		void remove(int value) {
+			int pos = Arrays.binarySearch(values, 0, size, value);
+			if (pos >= 0) {
+				System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+				size--;
+			}
+		}
+
+		/**
+		 * Counts the values that are less than <code>value</code>.
+		 */
+		int countLessThan(int value) {
+			int pos = Arrays.binarySearch(values, 0, size, value);
+			return pos >= 0 ? pos : -pos - 1;
 		}
-		return index;
-	}
 
-	private Integer[] getDbIndexesOfDeletedItems() {
-		Integer[] removedDbIndexes = new Integer[deletedItemIdsCache.size()];
-		removedDbIndexes = deletedItemIdsCache.values().toArray(
-				removedDbIndexes);
-		return removedDbIndexes;
+		/**
+		 * Counts the values that have to be skipped to reach the
+		 * <code>index</code>th position that is not a value, i.e. the largest
+		 * <code>m</code> for which the <code>m</code>th smallest value is at
+		 * most <code>index + m - 1</code>. As the values are distinct,
+		 * <code>values[j] - j</code> never decreases, which allows a binary
+		 * search.
+		 */
+		int countShifts(int index) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] - mid <= index) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
 	}
 }
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * A bounded key-value cache used by {@link CachingEntityProvider}s to store
+ * entities and query results. Implementations decide which entries to evict
+ * when the cache is full, and may also decide not to store an entry at all.
+ * Implementations must be thread safe.
+ * 
+ * @see CacheFactory
+ * @since 3.2.0
+ */
+public interface Cache<K, V> extends Serializable {
+
+    /**
+     * Gets the value stored for <code>key</code>. Counts as a hit or a miss in
+     * the statistics of the cache.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return the value, or null if the key is not in the cache.
+     */
+    public V get(K key);
+
+    /**
+     * Checks whether a value is stored for <code>key</code>. Does not count in
+     * the statistics of the cache and does not affect which entries are
+     * evicted.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return true if the key is in the cache, false otherwise.
+     */
+    public boolean containsKey(K key);
+
+    /**
+     * Stores <code>value</code> for <code>key</code>, possibly evicting other
+     * entries.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @param value
+     *            the value (must not be null).
+     */
+    public void put(K key, V value);
+
+    /**
+     * Removes the value stored for <code>key</code>, if any.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return the removed value, or null if the key was not in the cache.
+     */
+    public V remove(K key);
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear();
+
+    /**
+     * Gets the number of entries currently in the cache.
+     * 
+     * @return the number of entries.
+     */
+    public int size();
+
+    /**
+     * Gets a snapshot of the values currently in the cache.
+     * 
+     * @return an unmodifiable collection of values (never null).
+     */
+    public Collection<V> values();
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+/**
+ * Creates the {@link Cache} instances used by a {@link CachingEntityProvider}.
+ * Implement this interface to plug in a custom cache implementation.
+ * 
+ * @see CachingEntityProvider#setCacheFactory(CacheFactory)
+ * @see com.vaadin.addon.jpacontainer.util.ConcurrentLruCache.Factory
+ * @since 3.2.0
+ */
+public interface CacheFactory extends Serializable {
+
+    /**
+     * Creates a new cache.
+     * 
+     * @param maxSize
+     *            the maximum number of entries to keep in the cache, or -1 for
+     *            no limit.
+     * @param statistics
+     *            the statistics that the cache should record its hits, misses
+     *            and evictions to (must not be null). Several caches may share
+     *            the same statistics instance.
+     * @return the cache (never null).
+     */
+    public <K, V> Cache<K, V> createCache(int maxSize,
+            CacheStatistics statistics);
+}
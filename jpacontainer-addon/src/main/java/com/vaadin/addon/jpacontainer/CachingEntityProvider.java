@@ -155,4 +155,72 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      */
     public void setCloneCachedEntities(boolean clone)
             throws UnsupportedOperationException;
+
+    /**
+     * Returns whether the entities are fetched together with their identifiers
+     * when a page of identifiers is loaded into the cache. If true, a page is
+     * loaded with a single query that selects whole entities and both the
+     * identifier cache and the entity cache are filled from the result. If
+     * false, only the identifiers are fetched and each entity is fetched
+     * separately the first time it is requested.
+     * <p>
+     * Full row loading is useful when most of the entities of a page are
+     * displayed, e.g. in a table. The default value of this flag is false.
+     * 
+     * @see #setFullRowLoadingEnabled(boolean)
+     * @return true if entities are fetched together with their identifiers,
+     *         false otherwise.
+     */
+    public boolean isFullRowLoadingEnabled();
+
+    /**
+     * Changes the value of the {@link #isFullRowLoadingEnabled() } flag.
+     * 
+     * @param fullRowLoadingEnabled
+     *            true to fetch entities together with their identifiers, false
+     *            to fetch only the identifiers.
+     */
+    public void setFullRowLoadingEnabled(boolean fullRowLoadingEnabled);
+
+    /**
+     * Gets the statistics of the entity cache, i.e. how often an entity was
+     * found in the cache, how often it had to be loaded from the persistence
+     * storage and how many entities have been evicted because the cache was
+     * full. The statistics are kept even when the cache is flushed.
+     * 
+     * @return the entity cache statistics (never null).
+     */
+    public CacheStatistics getEntityCacheStatistics();
+
+    /**
+     * Gets the combined statistics of the caches that store entity
+     * identifiers, entity counts and filter results.
+     * 
+     * @see #getEntityCacheStatistics()
+     * @return the identifier cache statistics (never null).
+     */
+    public CacheStatistics getIdentifierCacheStatistics();
+
+    /**
+     * Gets the factory that is used to create the caches of this entity
+     * provider. By default, least recently used caches are created.
+     * 
+     * @see com.vaadin.addon.jpacontainer.util.ConcurrentLruCache.Factory
+     * 
+     * @return the cache factory (never null).
+     */
+    public CacheFactory getCacheFactory();
+
+    /**
+     * Sets the factory that is used to create the caches of this entity
+     * provider. This method will cause any existing caches to be flushed and
+     * re-created.
+     * 
+     * @param cacheFactory
+     *            the cache factory to use (must not be null).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support pluggable caches.
+     */
+    public void setCacheFactory(CacheFactory cacheFactory)
+            throws UnsupportedOperationException;
 }
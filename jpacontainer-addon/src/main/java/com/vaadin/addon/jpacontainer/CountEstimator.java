@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+import javax.persistence.EntityManager;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Strategy for finding out the number of entities that match a filter. By
+ * default, entity providers run an exact count query every time the number of
+ * entities is needed, which can take a long time on very large tables. A
+ * count estimator can instead e.g. return a cached count, or a quick estimate,
+ * and compute the exact count in the background. When the exact count differs
+ * from what was reported, the estimator reports it with
+ * {@link Counter#entityCountChanged(Filter, int)}. The entity provider then
+ * fires an {@link EntityProviderChangeEvent.EntityCountChangedEvent} through
+ * an executor that runs its listeners in a safe thread, or, if there is no
+ * such executor, leaves it to the container to ask for the count again.
+ * <p>
+ * Count estimators must be thread safe, as they may be shared by several
+ * entity providers.
+ * 
+ * @see com.vaadin.addon.jpacontainer.provider.LocalEntityProvider#setCountEstimator(CountEstimator)
+ * @see com.vaadin.addon.jpacontainer.util.CachedCountEstimator
+ * @see com.vaadin.addon.jpacontainer.util.BoundedCountEstimator
+ * @since 3.2.0
+ */
+public interface CountEstimator extends Serializable {
+
+    /**
+     * Gets the number of entities matching <code>filter</code> that the
+     * entity provider should report.
+     * 
+     * @param counter
+     *            the counter to count the entities with (never null).
+     * @param filter
+     *            the filter, or null to count all the entities.
+     * @return the exact or estimated number of entities.
+     */
+    public int getEntityCount(Counter counter, Filter filter);
+
+    /**
+     * Informs the estimator that an entity provider has added, updated or
+     * removed entities of <code>entityClass</code>, so that any counts it has
+     * kept for the class may be wrong.
+     * 
+     * @param entityClass
+     *            the class of the changed entities (never null).
+     */
+    public void entitiesChanged(Class<?> entityClass);
+
+    /**
+     * The counting operations of an entity provider, handed to a
+     * {@link CountEstimator}. A counter may be kept and used in another
+     * thread after {@link CountEstimator#getEntityCount(Counter, Filter)} has
+     * returned, provided that an entity manager of that thread is passed to
+     * {@link #countEntities(Filter, EntityManager)}.
+     * 
+     * @since 3.2.0
+     */
+    public interface Counter {
+
+        /**
+         * Gets the class of the entities being counted.
+         * 
+         * @return the entity class (never null).
+         */
+        public Class<?> getEntityClass();
+
+        /**
+         * Counts the entities matching <code>filter</code> exactly, using the
+         * entity manager of the entity provider.
+         * 
+         * @param filter
+         *            the filter, or null to count all the entities.
+         * @return the number of entities.
+         */
+        public int countEntities(Filter filter);
+
+        /**
+         * Counts the entities matching <code>filter</code>, but stops
+         * counting at <code>max</code>. This is usually a lot faster than an
+         * exact count when there are many more than <code>max</code>
+         * entities.
+         * 
+         * @param filter
+         *            the filter, or null to count all the entities.
+         * @param max
+         *            the maximum number to count up to (must be greater than
+         *            zero).
+         * @return the number of entities, or <code>max</code> if there are at
+         *         least <code>max</code> entities.
+         */
+        public int countEntities(Filter filter, int max);
+
+        /**
+         * Counts the entities matching <code>filter</code> exactly, using
+         * <code>entityManager</code>. This is used to count in a background
+         * thread, as the entity manager of the entity provider must not be
+         * used concurrently.
+         * 
+         * @param filter
+         *            the filter, or null to count all the entities.
+         * @param entityManager
+         *            the entity manager to use (must not be null).
+         * @return the number of entities.
+         */
+        public int countEntities(Filter filter, EntityManager entityManager);
+
+        /**
+         * Informs the entity provider that the number of entities matching
+         * <code>filter</code> differs from what was reported earlier. This
+         * method may be called from any thread. The entity provider must not
+         * call its listeners directly from that thread, as e.g. Vaadin
+         * components may only be updated while holding the session lock.
+         * 
+         * @param filter
+         *            the filter, or null if all the entities were counted.
+         * @param count
+         *            the number of entities.
+         */
+        public void entityCountChanged(Filter filter, int count);
+    }
+}
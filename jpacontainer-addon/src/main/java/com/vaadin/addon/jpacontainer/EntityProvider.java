@@ -17,7 +17,9 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 
@@ -62,6 +64,20 @@ public interface EntityProvider<T> extends Serializable {
      */
     public T getEntity(EntityContainer<T> entityContainer, Object entityId);
 
+    /**
+     * Loads the entities identified by <code>entityIds</code> from the
+     * persistence storage. Implementations should load the entities with as
+     * few queries as possible.
+     * 
+     * @param entityIds
+     *            the entity identifiers (must not be null).
+     * @return a map from entity identifier to entity, in the iteration order
+     *         of <code>entityIds</code>. Identifiers for which no entity was
+     *         found are not included (never null).
+     */
+    public Map<Object, T> getEntities(EntityContainer<T> entityContainer,
+            Collection<Object> entityIds);
+
     /**
      * If this method returns true, all entities returned from this entity
      * provider are explicitly detached from the persistence context before
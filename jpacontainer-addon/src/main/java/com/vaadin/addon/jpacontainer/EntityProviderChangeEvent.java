@@ -18,6 +18,9 @@ package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Set;
+
+import com.vaadin.data.Container.Filter;
 
 /**
  * Event indicating that the contents of a {@link EntityProvider} has been
@@ -97,4 +100,66 @@ public interface EntityProviderChangeEvent<T> extends Serializable {
             EntityProviderChangeEvent<T> {
         // No additional methods
     }
+
+    /**
+     * Event indicating that several entities have been added, updated and
+     * removed at once, e.g. by a batch update. The changes are coalesced, i.e.
+     * an entity that has been added and then updated is only reported as
+     * added, and an entity that has been added and then removed is not
+     * reported at all. The affected entities are the added and updated
+     * entities in their final state.
+     * 
+     * @since 3.2.0
+     */
+    public interface EntitiesChangedEvent<T> extends
+            EntityProviderChangeEvent<T> {
+
+        /**
+         * Gets the identifiers of the added entities.
+         * 
+         * @return an unmodifiable set of identifiers (never null).
+         */
+        public Set<Object> getAddedEntityIds();
+
+        /**
+         * Gets the identifiers of the updated entities.
+         * 
+         * @return an unmodifiable set of identifiers (never null).
+         */
+        public Set<Object> getUpdatedEntityIds();
+
+        /**
+         * Gets the identifiers of the removed entities.
+         * 
+         * @return an unmodifiable set of identifiers (never null).
+         */
+        public Set<Object> getRemovedEntityIds();
+    }
+
+    /**
+     * Event indicating that the number of entities matching a filter has been
+     * computed, and that it may differ from the number the entity provider
+     * reported earlier. This happens when a {@link CountEstimator} has
+     * reported an estimate and the exact count has been computed in the
+     * background. No entities are affected.
+     * 
+     * @since 3.2.0
+     */
+    public interface EntityCountChangedEvent<T> extends
+            EntityProviderChangeEvent<T> {
+
+        /**
+         * Gets the filter that the entities were counted with.
+         * 
+         * @return the filter, or null if all the entities were counted.
+         */
+        public Filter getFilter();
+
+        /**
+         * Gets the number of entities matching the filter.
+         * 
+         * @return the entity count.
+         */
+        public int getEntityCount();
+    }
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * An extended version of {@link EntityProvider} that can fetch a range of a
+ * filtered and sorted list of entities at once, and find the position of an
+ * entity in such a list without fetching the list. This is used by
+ * {@link JPAContainer#getItemIds(int, int)} and
+ * {@link JPAContainer#indexOfId(Object)}, which otherwise have to walk
+ * through the list one identifier at a time.
+ * 
+ * @see JPAContainer#getItemIds(int, int)
+ * @see JPAContainer#indexOfId(Object)
+ * @since 3.2.0
+ */
+public interface IndexedEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Gets the identifiers of at most <code>count</code> entities, starting
+     * with the entity at position <code>startIndex</code> in the result set
+     * determined from <code>filter</code> and <code>sortBy</code>.
+     * 
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param startIndex
+     *            the index of the first entity to fetch.
+     * @param count
+     *            the maximum number of identifiers to fetch.
+     * @return a list of entity identifiers, which is shorter than
+     *         <code>count</code> if the end of the result set is reached
+     *         (never null).
+     */
+    public List<Object> getEntityIdentifiers(
+            EntityContainer<T> entityContainer, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count);
+
+    /**
+     * Gets the position of the entity identified by <code>entityId</code> in
+     * the result set determined from <code>filter</code> and
+     * <code>sortBy</code>, i.e. the index at which
+     * {@link #getEntityIdentifierAt(EntityContainer, Filter, List, int)}
+     * would return the identifier.
+     * 
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @return the index of the entity, or -1 if the entity does not exist or
+     *         does not match <code>filter</code>.
+     */
+    public int getEntityIdentifierIndex(EntityContainer<T> entityContainer,
+            Object entityId, Filter filter, List<SortBy> sortBy);
+}
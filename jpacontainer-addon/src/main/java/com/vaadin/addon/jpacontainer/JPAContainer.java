@@ -30,9 +30,11 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntitiesChangedEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertyUpdatedEvent;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport.FilterAppliedEvent;
+import com.vaadin.addon.jpacontainer.filter.util.FilterOptimizer;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
@@ -40,6 +42,7 @@ import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
+import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.Validator.InvalidValueException;
 import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Compare.Equal;
@@ -145,6 +148,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 	private PropertyList<T> propertyList;
 	private BufferedContainerDelegate<T> bufferingDelegate;
 	private boolean readOnly = false;
+	private boolean lightweightItemsEnabled = false;
 	@SuppressWarnings("serial")
 	private LinkedList<Boolean> writeThrough = new LinkedList<Boolean>() {
 		{
@@ -155,6 +159,13 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	transient private HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> itemRegistry;
 
+	/**
+	 * The value change listeners of the properties of lightweight items, by
+	 * item ID and property ID. Lightweight items are not registered with the
+	 * container, so the container keeps their listeners instead.
+	 */
+	private HashMap<Object, HashMap<String, LinkedList<ValueChangeListener>>> lightweightListeners;
+
 	private QueryModifierDelegate queryModifierDelegate;
 
 	/**
@@ -184,6 +195,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 			@Override
 			public void filtersApplied(FilterAppliedEvent event) {
+				bufferingDelegate.invalidateDeletedItemIndexes();
 				fireFiltersAppliedEvent(event);
 
 			}
@@ -197,6 +209,13 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	private Collection<String> additionalFilterablePropertyIds;
 
+	/**
+	 * The applied filters that {@link #appliedFiltersConjunction} was built
+	 * from.
+	 */
+	private List<Filter> conjunctionSourceFilters;
+	private Filter appliedFiltersConjunction;
+
 	/**
 	 * Sometimes, it may be necessary to filter by properties that do not show
 	 * up in the container. This method can be used to add additional property
@@ -387,7 +406,9 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	@Override
 	public void entityProviderChange(EntityProviderChangeEvent<T> event) {
-		if (isItemSetChangeEvent(event) && isFireItemSetChangeOnProviderChange()) {
+		if (event instanceof EntitiesChangedEvent && entityClassMetadata.hasIdentifierProperty()) {
+			entitiesChanged((EntitiesChangedEvent<T>) event);
+		} else if (isItemSetChangeEvent(event) && isFireItemSetChangeOnProviderChange()) {
 			fireContainerItemSetChange(new ProviderChangedEvent(event));
 		} else {
 			if (event instanceof EntityPropertyUpdatedEvent) {
@@ -402,6 +423,8 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 					if (entityClassMetadata.hasIdentifierProperty()) {
 						Object itemId = getIdentifierPropertyValue(t);
 						firePropertyValueChangeEvent(itemId, ((EntityPropertyUpdatedEvent<T>) event).getPropertyId());
+						fireLightweightValueChangeEvents(itemId, t,
+								Collections.singleton(((EntityPropertyUpdatedEvent<T>) event).getPropertyId()));
 					}
 				}
 			}
@@ -409,6 +432,77 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	}
 
+	/**
+	 * Handles the coalesced changes of a batch update. The registered items of
+	 * the updated entities are given the updated entities, which fires value
+	 * change events for their properties. An item set change event is only
+	 * fired if the items of the container may have changed, and if only one
+	 * entity has changed, the event concerns that single item.
+	 */
+	private void entitiesChanged(EntitiesChangedEvent<T> event) {
+		Collection<Object> updatedIds = event.getUpdatedEntityIds();
+		if (!updatedIds.isEmpty()) {
+			for (T entity : event.getAffectedEntities()) {
+				Object itemId = getIdentifierPropertyValue(entity);
+				if (updatedIds.contains(itemId)) {
+					updateRegisteredItems(itemId, entity);
+				}
+			}
+		}
+		if (!isFireItemSetChangeOnProviderChange()) {
+			return;
+		}
+		Collection<Object> addedIds = event.getAddedEntityIds();
+		Collection<Object> removedIds = event.getRemovedEntityIds();
+		if (addedIds.isEmpty() && removedIds.isEmpty() && (updatedIds.isEmpty() || !isItemSetAffectedByUpdates())) {
+			// At most the property values have changed
+			return;
+		}
+		if (addedIds.size() + removedIds.size() + updatedIds.size() > 1) {
+			fireContainerItemSetChange(new ProviderChangedEvent(event));
+		} else if (!addedIds.isEmpty()) {
+			fireContainerItemSetChange(new ItemAddedEvent(addedIds.iterator().next()));
+		} else if (!removedIds.isEmpty()) {
+			fireContainerItemSetChange(new ItemRemovedEvent(removedIds.iterator().next()));
+		} else {
+			fireContainerItemSetChange(new ItemUpdatedEvent(updatedIds.iterator().next()));
+		}
+	}
+
+	/**
+	 * Returns whether updating entities may change the items of this
+	 * container or their order, i.e. whether the container is filtered,
+	 * sorted or hierarchical.
+	 */
+	private boolean isItemSetAffectedByUpdates() {
+		return !getAppliedFilters().isEmpty() || !getSortByList().isEmpty() || getParentProperty() != null
+				|| getQueryModifierDelegate() != null;
+	}
+
+	/**
+	 * Gives <code>entity</code> to the registered items of
+	 * <code>itemId</code> that have no changes of their own, and notifies the
+	 * listeners of the lightweight items of <code>itemId</code>.
+	 */
+	private void updateRegisteredItems(Object itemId, T entity) {
+		fireLightweightValueChangeEvents(itemId, entity, null);
+		LinkedList<WeakReference<JPAContainerItem<T>>> list = null;
+		synchronized (getItemRegistry()) {
+			LinkedList<WeakReference<JPAContainerItem<T>>> origList = getItemRegistry().get(itemId);
+			if (origList != null) {
+				list = new LinkedList<WeakReference<JPAContainerItem<T>>>(origList);
+			}
+		}
+		if (list != null) {
+			for (WeakReference<JPAContainerItem<T>> weakReference : list) {
+				JPAContainerItem<T> item = weakReference.get();
+				if (item != null && !item.isDirty() && !item.isModified()) {
+					item.updateEntity(entity);
+				}
+			}
+		}
+	}
+
 	protected void firePropertyValueChangeEvent(Object itemId, String... propertyIds) {
 		LinkedList<JPAContainerItem<T>> list;
 		synchronized (getItemRegistry()) {
@@ -461,6 +555,48 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 		}
 	}
 
+	/**
+	 * Specifies whether {@link #getItem(Object)} should return lightweight
+	 * items when the container is read only. A lightweight item is not
+	 * registered with the container and creates its properties on demand,
+	 * reading the values straight from the entity. This makes iterating over
+	 * large read only containers, e.g. in a table, considerably cheaper.
+	 * <p>
+	 * The value change listeners of lightweight items and their properties
+	 * are kept by the container, which notifies them when the entity is
+	 * updated by the entity provider, so a table listening to its visible
+	 * cells does not keep the items alive. An item turns into a normal item
+	 * as soon as it is made buffered or a property value is set.
+	 * 
+	 * @param lightweightItemsEnabled
+	 *            true to enable lightweight items, false to disable them
+	 *            (default).
+	 * @since 3.2.0
+	 */
+	public void setLightweightItemsEnabled(boolean lightweightItemsEnabled) {
+		this.lightweightItemsEnabled = lightweightItemsEnabled;
+	}
+
+	/**
+	 * Returns whether {@link #getItem(Object)} returns lightweight items when
+	 * the container is read only.
+	 * 
+	 * @see #setLightweightItemsEnabled(boolean)
+	 * @return true if lightweight items are enabled, false otherwise.
+	 * @since 3.2.0
+	 */
+	public boolean isLightweightItemsEnabled() {
+		return lightweightItemsEnabled;
+	}
+
+	/**
+	 * Creates an item for an entity that is not buffered by the container.
+	 */
+	private JPAContainerItem<T> createItem(T entity) {
+		boolean lightweight = lightweightItemsEnabled && isReadOnly();
+		return new JPAContainerItem<T>(this, entity, getIdentifierPropertyValue(entity), true, lightweight);
+	}
+
 	/**
 	 * Configures a property to be sortable based on another property, normally
 	 * a sub-property of the main property to sort.
@@ -519,6 +655,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 			sortByList.add(new SortBy(sortProperty.toString(), ascending[i]));
 		}
 		sortByList = Collections.unmodifiableList(sortByList);
+		bufferingDelegate.invalidateDeletedItemIndexes();
 		fireContainerItemSetChange(new ContainerSortedEvent());
 	}
 
@@ -563,7 +700,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 		if (isWriteThrough() || bufferingDelegate.getAddedItemIds().isEmpty()) {
 			Object itemId = getNotNullEntityProvider().getFirstEntityIdentifier(this, getAppliedFiltersAsConjunction(),
 					getSortByList());
-			if (itemId != null && !isWriteThrough() && bufferingDelegate.getDeletedItemIds().contains(itemId)) {
+			if (itemId != null && !isWriteThrough() && bufferingDelegate.isDeleted(itemId)) {
 				itemId = nextItemId(itemId);
 			}
 			return itemId;
@@ -611,7 +748,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 			}
 			return id;
 		} else {
-			int ix = bufferingDelegate.getAddedItemIds().indexOf(itemId);
+			int ix = bufferingDelegate.indexOfAddedItemId(itemId);
 			if (ix == bufferingDelegate.getAddedItemIds().size() - 1) {
 				Object id = getNotNullEntityProvider().getFirstEntityIdentifier(this, getAppliedFiltersAsConjunction(),
 						getSortByList());
@@ -638,7 +775,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 			return id;
 		} else {
 			if (bufferingDelegate.isAdded(itemId)) {
-				int ix = bufferingDelegate.getAddedItemIds().indexOf(itemId);
+				int ix = bufferingDelegate.indexOfAddedItemId(itemId);
 				if (ix == 0) {
 					return null;
 				} else {
@@ -790,6 +927,11 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 	 * this method with the same <code>itemId</code> will <b>not</b> return the
 	 * same {@link EntityItem} instance. The actual entity instance may still be
 	 * the same though, depending on the implementation of the entity provider.
+	 * <p>
+	 * If the container is read only and lightweight items have been enabled,
+	 * the returned item is lightweight.
+	 * 
+	 * @see #setLightweightItemsEnabled(boolean)
 	 */
 	@Override
 	public EntityItem<T> getItem(Object itemId) {
@@ -798,7 +940,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 		}
 		if (isWriteThrough() || !bufferingDelegate.isModified()) {
 			T entity = getNotNullEntityProvider().getEntity(this, itemId);
-			return entity != null ? new JPAContainerItem<T>(this, entity) : null;
+			return entity != null ? createItem(entity) : null;
 		} else {
 			if (bufferingDelegate.isAdded(itemId)) {
 				JPAContainerItem<T> item = new JPAContainerItem<T>(this, bufferingDelegate.getAddedEntity(itemId),
@@ -819,7 +961,7 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 				}
 			} else {
 				T entity = getNotNullEntityProvider().getEntity(this, itemId);
-				return entity != null ? new JPAContainerItem<T>(this, entity) : null;
+				return entity != null ? createItem(entity) : null;
 			}
 		}
 	}
@@ -847,6 +989,101 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 		}
 	}
 
+	/**
+	 * Called by the properties of lightweight items when a value change
+	 * listener is added to them. The listener is kept by the container, so
+	 * that the item does not have to turn into a normal item, and is notified
+	 * when the property of any item of <code>itemId</code> is updated by the
+	 * entity provider.
+	 */
+	void addLightweightListener(Object itemId, String propertyId, ValueChangeListener listener) {
+		assert listener != null : "listener must not be null";
+		synchronized (getLightweightListeners()) {
+			HashMap<String, LinkedList<ValueChangeListener>> listenersOfItem = getLightweightListeners().get(itemId);
+			if (listenersOfItem == null) {
+				listenersOfItem = new HashMap<String, LinkedList<ValueChangeListener>>();
+				getLightweightListeners().put(itemId, listenersOfItem);
+			}
+			LinkedList<ValueChangeListener> listenersOfProperty = listenersOfItem.get(propertyId);
+			if (listenersOfProperty == null) {
+				listenersOfProperty = new LinkedList<ValueChangeListener>();
+				listenersOfItem.put(propertyId, listenersOfProperty);
+			}
+			listenersOfProperty.add(listener);
+		}
+	}
+
+	/**
+	 * Removes a listener added with
+	 * {@link #addLightweightListener(Object, String, ValueChangeListener)}.
+	 */
+	void removeLightweightListener(Object itemId, String propertyId, ValueChangeListener listener) {
+		synchronized (getLightweightListeners()) {
+			HashMap<String, LinkedList<ValueChangeListener>> listenersOfItem = getLightweightListeners().get(itemId);
+			if (listenersOfItem == null) {
+				return;
+			}
+			LinkedList<ValueChangeListener> listenersOfProperty = listenersOfItem.get(propertyId);
+			if (listenersOfProperty != null && listenersOfProperty.remove(listener) && listenersOfProperty.isEmpty()) {
+				listenersOfItem.remove(propertyId);
+				if (listenersOfItem.isEmpty()) {
+					getLightweightListeners().remove(itemId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the listeners added with
+	 * {@link #addLightweightListener(Object, String, ValueChangeListener)} to
+	 * the property <code>propertyId</code> of the items of <code>itemId</code>.
+	 */
+	Object[] getLightweightListeners(Object itemId, String propertyId) {
+		synchronized (getLightweightListeners()) {
+			HashMap<String, LinkedList<ValueChangeListener>> listenersOfItem = getLightweightListeners().get(itemId);
+			LinkedList<ValueChangeListener> listenersOfProperty = listenersOfItem == null ? null : listenersOfItem
+					.get(propertyId);
+			return listenersOfProperty == null ? new Object[0] : listenersOfProperty.toArray();
+		}
+	}
+
+	HashMap<Object, HashMap<String, LinkedList<ValueChangeListener>>> getLightweightListeners() {
+		if (lightweightListeners == null) {
+			lightweightListeners = new HashMap<Object, HashMap<String, LinkedList<ValueChangeListener>>>();
+		}
+		return lightweightListeners;
+	}
+
+	/**
+	 * Notifies the listeners of the lightweight items of <code>itemId</code>
+	 * that <code>entity</code> has been updated.
+	 * 
+	 * @param propertyIds
+	 *            the IDs of the updated properties, or null if all properties
+	 *            may have been updated.
+	 */
+	private void fireLightweightValueChangeEvents(Object itemId, T entity, Collection<String> propertyIds) {
+		HashMap<String, Object[]> listenersToNotify = new HashMap<String, Object[]>();
+		synchronized (getLightweightListeners()) {
+			HashMap<String, LinkedList<ValueChangeListener>> listenersOfItem = getLightweightListeners().get(itemId);
+			if (listenersOfItem == null) {
+				return;
+			}
+			for (Entry<String, LinkedList<ValueChangeListener>> entry : listenersOfItem.entrySet()) {
+				if (propertyIds == null || propertyIds.contains(entry.getKey())) {
+					listenersToNotify.put(entry.getKey(), entry.getValue().toArray());
+				}
+			}
+		}
+		if (!listenersToNotify.isEmpty()) {
+			// The events come from a lightweight item of the updated entity
+			JPAContainerItem<T> item = new JPAContainerItem<T>(this, entity, itemId, true, true);
+			for (Entry<String, Object[]> entry : listenersToNotify.entrySet()) {
+				item.fireLightweightValueChangeEvent(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
 	protected HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> getItemRegistry() {
 		if (itemRegistry == null) {
 			itemRegistry = new HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>>();
@@ -944,20 +1181,29 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	/**
 	 * Returns a conjunction (filter1 AND filter2 AND ... AND filterN) of all
-	 * the applied filters. If there are no applied filters, this method returns
-	 * null.
+	 * the applied filters, simplified with {@link FilterOptimizer}. If there
+	 * are no applied filters, or if they do not restrict anything, this method
+	 * returns null. The conjunction is only rebuilt when the applied filters
+	 * change.
 	 * 
 	 * @see #getAppliedFilters()
 	 * @return a conjunction filter or null.
 	 */
 	protected Filter getAppliedFiltersAsConjunction() {
-		if (getAppliedFilters().isEmpty()) {
-			return null;
-		} else if (getAppliedFilters().size() == 1) {
-			return getAppliedFilters().iterator().next();
-		} else {
-			return new And(CollectionUtil.toArray(Filter.class, getAppliedFilters()));
+		List<Filter> appliedFilters = getAppliedFilters();
+		if (!appliedFilters.equals(conjunctionSourceFilters)) {
+			Filter conjunction;
+			if (appliedFilters.isEmpty()) {
+				conjunction = null;
+			} else if (appliedFilters.size() == 1) {
+				conjunction = appliedFilters.iterator().next();
+			} else {
+				conjunction = new And(CollectionUtil.toArray(Filter.class, appliedFilters));
+			}
+			appliedFiltersConjunction = FilterOptimizer.optimize(conjunction);
+			conjunctionSourceFilters = new ArrayList<Filter>(appliedFilters);
 		}
+		return appliedFiltersConjunction;
 	}
 
 	@Override
@@ -1084,14 +1330,38 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 	}
 
 	/**
-	 * <strong>This implementation does not use lazy loading and performs
-	 * <b>extremely</b> bad when the number of items is large! Do not use unless
-	 * you absolutely have to!</strong>
+	 * If the entity provider is an {@link IndexedEntityProvider}, the position
+	 * of the item is looked up in the cached identifiers or counted by the
+	 * database. Otherwise, this implementation does not use lazy loading and
+	 * performs <b>extremely</b> bad when the number of items is large!
 	 * <p>
 	 * {@inheritDoc }
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public int indexOfId(Object itemId) {
+		if (!(getNotNullEntityProvider() instanceof IndexedEntityProvider)) {
+			return scanForIndexOfId(itemId);
+		}
+		IndexedEntityProvider<T> provider = (IndexedEntityProvider<T>) getNotNullEntityProvider();
+		if (isWriteThrough()) {
+			return provider.getEntityIdentifierIndex(this, itemId, getAppliedFiltersAsConjunction(), getSortByList());
+		}
+		List<Object> addedItemIds = bufferingDelegate.getAddedItemIds();
+		int index = bufferingDelegate.indexOfAddedItemId(itemId);
+		if (index != -1) {
+			return index;
+		} else if (bufferingDelegate.isDeleted(itemId)) {
+			return -1;
+		}
+		index = provider.getEntityIdentifierIndex(this, itemId, getAppliedFiltersAsConjunction(), getSortByList());
+		if (index == -1) {
+			return -1;
+		}
+		return addedItemIds.size() + bufferingDelegate.fixIndexWithDeletedItems(index);
+	}
+
+	private int scanForIndexOfId(Object itemId) {
 		/*
 		 * This is intentionally an ugly implementation! This method should not
 		 * be used!
@@ -1864,14 +2134,86 @@ public class JPAContainer<T> implements EntityContainer<T>, EntityProviderChange
 
 	@Override
 	public List<?> getItemIds(int startIndex, int numberOfItems) {
-		// FIXME this should be optimized
-		ArrayList<Object> ids = new ArrayList<Object>();
-		for (int i = 0; i < numberOfItems; i++) {
-			ids.add(getIdByIndex(startIndex + i));
+		if (isWriteThrough()) {
+			List<Object> ids = getEntityIdentifiers(startIndex, numberOfItems);
+			prefetchEntities(ids);
+			return ids;
+		}
+		ArrayList<Object> ids = new ArrayList<Object>(numberOfItems);
+		List<Object> addedItemIds = bufferingDelegate.getAddedItemIds();
+		int index = startIndex;
+		while (index < addedItemIds.size() && ids.size() < numberOfItems) {
+			ids.add(addedItemIds.get(index++));
+		}
+		int remaining = numberOfItems - ids.size();
+		if (remaining > 0) {
+			/*
+			 * Deleted items are still in the database, so fetch enough extra
+			 * identifiers to be able to skip them.
+			 */
+			int dbIndex = bufferingDelegate.fixDbIndexWithDeletedItems(index - addedItemIds.size());
+			int deletedItems = bufferingDelegate.getDeletedItemIds().size();
+			List<Object> dbIds = getEntityIdentifiers(dbIndex, remaining + deletedItems);
+			int firstDbId = ids.size();
+			for (Object id : dbIds) {
+				if (remaining == 0) {
+					break;
+				}
+				if (!bufferingDelegate.isDeleted(id)) {
+					ids.add(id);
+					remaining--;
+				}
+			}
+			prefetchEntities(ids.subList(firstDbId, ids.size()));
 		}
 		return ids;
 	}
 
+	/**
+	 * Gets the identifiers of at most <code>count</code> entities from the
+	 * entity provider, starting at <code>startIndex</code>. An
+	 * {@link IndexedEntityProvider} is asked for the whole range at once, other
+	 * entity providers for one identifier at a time.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Object> getEntityIdentifiers(int startIndex, int count) {
+		EntityProvider<T> provider = getNotNullEntityProvider();
+		Filter filter = getAppliedFiltersAsConjunction();
+		List<SortBy> sortBy = getSortByList();
+		if (provider instanceof IndexedEntityProvider) {
+			return ((IndexedEntityProvider<T>) provider).getEntityIdentifiers(this, filter, sortBy, startIndex,
+					count);
+		}
+		List<Object> ids = new ArrayList<Object>(count);
+		for (int index = startIndex; index < startIndex + count; index++) {
+			Object id = provider.getEntityIdentifierAt(this, filter, sortBy, index);
+			if (id == null) {
+				break;
+			}
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Loads the entities identified by <code>itemIds</code> into the cache of
+	 * the entity provider using as few queries as possible, so that the
+	 * {@link #getItem(Object)} calls that usually follow a range request do
+	 * not each have to query the database. Does nothing if the entity
+	 * provider does not cache entities.
+	 * 
+	 * @param itemIds
+	 *            the IDs of the items to prefetch (must not be null).
+	 */
+	@SuppressWarnings("unchecked")
+	protected void prefetchEntities(List<Object> itemIds) {
+		EntityProvider<T> provider = getNotNullEntityProvider();
+		if (!itemIds.isEmpty() && getQueryModifierDelegate() == null && provider instanceof CachingEntityProvider
+				&& ((CachingEntityProvider<T>) provider).usesCache()) {
+			provider.getEntities(this, itemIds);
+		}
+	}
+
 	@Override
 	public Collection<Filter> getContainerFilters() {
 		return getFilters();
@@ -17,8 +17,12 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EventObject;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -83,6 +87,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	private boolean readThrough = true;
 	private boolean writeThrough = true;
 	private boolean deleted = false;
+	private boolean lightweight = false;
 	private Object itemId;
 
 	/**
@@ -116,6 +121,36 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	 *            <code>itemId</code> is null, this parameter will be ignored.
 	 */
 	JPAContainerItem(JPAContainer<T> container, T entity, Object itemId, boolean persistent) {
+		this(container, entity, itemId, persistent, false);
+	}
+
+	/**
+	 * Creates a new <code>JPAContainerItem</code>.
+	 * <p>
+	 * A lightweight item is not registered with the container and does not
+	 * keep any property objects. Its properties read their values straight
+	 * from the entity through the property definitions shared by all items.
+	 * Their value change listeners are kept by the container. The item turns
+	 * into a normal item as soon as it is made buffered or a property value
+	 * is set.
+	 * 
+	 * @param container
+	 *            the container that created the item (must not be null).
+	 * @param entity
+	 *            the entity for which the item should be created (must not be
+	 *            null).
+	 * @param itemId
+	 *            the item ID, or null if the item is not yet inside the
+	 *            container that created it.
+	 * @param persistent
+	 *            true if the entity is persistent, false otherwise. If
+	 *            <code>itemId</code> is null, this parameter will be ignored.
+	 * @param lightweight
+	 *            true to create a lightweight item, false to create a normal
+	 *            item.
+	 * @since 3.2.0
+	 */
+	JPAContainerItem(JPAContainer<T> container, T entity, Object itemId, boolean persistent, boolean lightweight) {
 		assert container != null : "container must not be null";
 		assert entity != null : "entity must not be null";
 		this.entity = entity;
@@ -133,11 +168,44 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 			this.persistent = persistent;
 		}
 
-		this.propertyMap = new HashMap<>();
-		// the itemRegistry will ignore this item if the id is null
-		// FIXME: l'item viene registrato quando viene salvato (e gli viene
-		// assegnato un id)?
-		container.registerItem(this);
+		// the property map is created when the first property is requested
+		this.propertyMap = null;
+		this.lightweight = lightweight;
+		if (!lightweight) {
+			// the itemRegistry will ignore this item if the id is null
+			// FIXME: l'item viene registrato quando viene salvato (e gli viene
+			// assegnato un id)?
+			container.registerItem(this);
+		}
+	}
+
+	/**
+	 * Returns true if this item is lightweight, i.e. it has not been
+	 * registered with the container and does not keep any property objects.
+	 */
+	boolean isLightweight() {
+		return lightweight;
+	}
+
+	/**
+	 * Turns a lightweight item into a normal item that keeps its properties
+	 * and is notified of entity updates by the container.
+	 */
+	private void inflate() {
+		if (lightweight) {
+			lightweight = false;
+			container.registerItem(this);
+		}
+	}
+
+	/**
+	 * Gets the properties that have been created so far.
+	 */
+	private Collection<EntityItemProperty<T, ?>> getCreatedProperties() {
+		if (propertyMap == null) {
+			return Collections.emptyList();
+		}
+		return propertyMap.values();
 	}
 
 	@Override
@@ -200,18 +268,28 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	@Override
 	public EntityItemProperty getItemProperty(Object id) {
 		assert id != null : "id must not be null";
-		EntityItemProperty<T, ?> p = propertyMap.get(id);
+		EntityItemProperty<T, ?> p = propertyMap == null ? null : propertyMap.get(id);
 		if (p == null) {
 			PropertyDefinition<T, ?> d = getPropertyList().getProperty(id.toString());
 			if (d == null) {
 				return null;
-			} else {
-				p = d.createProperty(this);
+			} else if (lightweight) {
+				if (!Set.class.isAssignableFrom(d.getType())) {
+					@SuppressWarnings("unchecked")
+					PropertyDefinition<T, Object> definition = (PropertyDefinition<T, Object>) d;
+					return new LightweightItemProperty<T, Object>(this, definition);
+				}
+				// Changes to sets are tracked by the property
+				inflate();
 			}
+			p = d.createProperty(this);
 			// if (!getItemPropertyIds().contains(id.toString())) {
 			// return null;
 			// }
 			// p = new JPAContainerItemProperty<T>(this, id.toString());
+			if (propertyMap == null) {
+				propertyMap = new HashMap<>();
+			}
 			propertyMap.put(id, p);
 		}
 		return p;
@@ -245,6 +323,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 
 	public void setItemPropertyValue(String propertyName, Object propertyValue)
 			throws IllegalArgumentException, IllegalStateException {
+		inflate();
 		getPropertyList().setPropertyValue(entity, propertyName, propertyValue);
 		setDirty(true);
 	}
@@ -283,7 +362,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	@Override
 	public boolean isModified() {
 		if (modified == null) { // is an unknown item properties modified state
-			for (EntityItemProperty<T, ?> prop : propertyMap.values()) {
+			for (EntityItemProperty<T, ?> prop : getCreatedProperties()) {
 				if (prop.isModified()) {
 					return true;
 				}
@@ -399,12 +478,25 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 
 		this.entity = entity;
 
+		if (propertyMap == null) {
+			// No properties, no listeners to notify
+			return;
+		}
+		// Properties that have not been created yet have no listeners
+		List<EntityItemProperty<T, ?>> properties = new ArrayList<>();
 		if (changedProperties == null || changedProperties.isEmpty()) {
 			// FIXME we could fire only really changed properties
-			changedProperties = getPropertyList().getAllAvailablePropertyNames();
+			properties.addAll(propertyMap.values());
+		} else {
+			for (String id : changedProperties) {
+				EntityItemProperty<T, ?> p = propertyMap.get(id);
+				if (p != null) {
+					properties.add(p);
+				}
+			}
 		}
-		for (String id : changedProperties) {
-			getItemProperty(id).fireValueChangeEvent();
+		for (EntityItemProperty<T, ?> p : properties) {
+			p.fireValueChangeEvent();
 		}
 	}
 
@@ -418,7 +510,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 					 * if the property is read only and ignore it if that is the
 					 * case.
 					 */
-					for (EntityItemProperty<T, ?> prop : propertyMap.values()) {
+					for (EntityItemProperty<T, ?> prop : getCreatedProperties()) {
 						prop.commit();
 					}
 					modified = false;
@@ -433,7 +525,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	@Override
 	public void discard() throws SourceException {
 		if (!isWriteThrough()) {
-			for (EntityItemProperty<T, ?> prop : propertyMap.values()) {
+			for (EntityItemProperty<T, ?> prop : getCreatedProperties()) {
 				prop.discard();
 			}
 			modified = false;
@@ -453,12 +545,18 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 			if (!readThrough && writeThrough) {
 				throw new IllegalStateException("ReadThrough can only be turned off if WriteThrough is turned off");
 			}
+			if (!readThrough) {
+				inflate();
+			}
 			this.readThrough = readThrough;
 		}
 	}
 
 	public void setWriteThrough(boolean writeThrough) throws SourceException, InvalidValueException {
 		if (this.writeThrough != writeThrough) {
+			if (!writeThrough) {
+				inflate();
+			}
 			if (writeThrough) {
 				/*
 				 * According to the Buffered interface, commit must be executed
@@ -471,7 +569,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 			 * affects existing properties. Properties that are lazily created
 			 * afterwards will work automatically.
 			 */
-			for (EntityItemProperty<T, ?> prop : propertyMap.values()) {
+			for (EntityItemProperty<T, ?> prop : getCreatedProperties()) {
 				prop.setWriteThrough(writeThrough);
 			}
 			this.writeThrough = writeThrough;
@@ -485,7 +583,11 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 		 * list of ids instead of the map.
 		 */
 		for (String propertyId : getItemPropertyIds()) {
-			((Property.ValueChangeNotifier) getItemProperty(propertyId)).addValueChangeListener(listener);
+			if (lightweight) {
+				container.addLightweightListener(itemId, propertyId, listener);
+			} else {
+				((Property.ValueChangeNotifier) getItemProperty(propertyId)).addValueChangeListener(listener);
+			}
 		}
 	}
 
@@ -493,10 +595,14 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 	public void removeListener(ValueChangeListener listener) {
 		/*
 		 * This operation affects ALL properties, so we have to iterate over the
-		 * list of ids instead of the map.
+		 * list of ids instead of the map. The listener may have been added
+		 * while the item was lightweight.
 		 */
 		for (String propertyId : getItemPropertyIds()) {
-			((Property.ValueChangeNotifier) getItemProperty(propertyId)).removeValueChangeListener(listener);
+			container.removeLightweightListener(itemId, propertyId, listener);
+			if (!lightweight) {
+				((Property.ValueChangeNotifier) getItemProperty(propertyId)).removeValueChangeListener(listener);
+			}
 		}
 	}
 
@@ -545,7 +651,9 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 
 	private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
-		container.registerItem(this);
+		if (!lightweight) {
+			container.registerItem(this);
+		}
 	}
 
 	@Override
@@ -571,4 +679,194 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 		}
 	}
 
+	/**
+	 * Notifies <code>listeners</code> that the property
+	 * <code>propertyId</code> of this item has changed, without turning the
+	 * item into a normal item. Used by the container to notify the listeners
+	 * of lightweight items.
+	 */
+	void fireLightweightValueChangeEvent(String propertyId, Object[] listeners) {
+		@SuppressWarnings("unchecked")
+		PropertyDefinition<T, Object> definition = (PropertyDefinition<T, Object>) getPropertyList().getProperty(
+				propertyId);
+		if (definition == null) {
+			return;
+		}
+		Property.ValueChangeEvent event = new LightweightValueChangeEvent(new LightweightItemProperty<T, Object>(this,
+				definition));
+		for (Object listener : listeners) {
+			((ValueChangeListener) listener).valueChange(event);
+		}
+	}
+
+	private static final class LightweightValueChangeEvent extends EventObject implements Property.ValueChangeEvent {
+
+		private static final long serialVersionUID = -2637406153488424329L;
+
+		LightweightValueChangeEvent(Property<?> source) {
+			super(source);
+		}
+
+		@Override
+		public Property<?> getProperty() {
+			return (Property<?>) getSource();
+		}
+	}
+
+	/**
+	 * Property handed out by lightweight items. It reads the value straight
+	 * from the entity through the shared property definition and keeps no
+	 * state of its own besides the item and the definition. Once the item has
+	 * been turned into a normal item, all calls are delegated to the real
+	 * property of the item.
+	 * <p>
+	 * Value change listeners are kept by the container, keyed by the item ID
+	 * and property ID, so that adding them does not turn the item into a
+	 * normal item.
+	 */
+	private static final class LightweightItemProperty<T, P> implements EntityItemProperty<T, P> {
+
+		private static final long serialVersionUID = 4510377637591366264L;
+		private final JPAContainerItem<T> item;
+		private final PropertyDefinition<T, P> definition;
+
+		LightweightItemProperty(JPAContainerItem<T> item, PropertyDefinition<T, P> definition) {
+			this.item = item;
+			this.definition = definition;
+		}
+
+		@SuppressWarnings("unchecked")
+		private EntityItemProperty<T, P> getRealProperty() {
+			return item.isLightweight() ? null : item.getItemProperty(definition.getPropertyId());
+		}
+
+		@Override
+		public JPAContainerItem<T> getItem() {
+			return item;
+		}
+
+		@Override
+		public String getPropertyId() {
+			return definition.getPropertyId();
+		}
+
+		@Override
+		public Class<? extends P> getType() {
+			return definition.getType();
+		}
+
+		@Override
+		public P getValue() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				return p.getValue();
+			}
+			JPAContainerItemProperty.ensurePropertyLoaded(item, definition.getPropertyId());
+			return definition.getPropertyValue(item);
+		}
+
+		@Override
+		public void setValue(P newValue) throws ReadOnlyException {
+			item.inflate();
+			getRealProperty().setValue(newValue);
+			Object[] listeners = item.container.getLightweightListeners(item.getItemId(), getPropertyId());
+			if (listeners.length > 0) {
+				item.fireLightweightValueChangeEvent(getPropertyId(), listeners);
+			}
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			return p != null ? p.isReadOnly() : !definition.isWritable();
+		}
+
+		@Override
+		public void setReadOnly(boolean newStatus) {
+			item.setItemPropertyWriteable(definition.getPropertyId(), !newStatus);
+		}
+
+		@Override
+		public void fireValueChangeEvent() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.fireValueChangeEvent();
+			}
+		}
+
+		@Override
+		public boolean isModified() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			return p != null && p.isModified();
+		}
+
+		@Override
+		public void commit() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.commit();
+			}
+		}
+
+		@Override
+		public void discard() {
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.discard();
+			}
+		}
+
+		@Override
+		public void setWriteThrough(boolean writeThrough) {
+			if (!writeThrough) {
+				item.inflate();
+			}
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.setWriteThrough(writeThrough);
+			}
+		}
+
+		@Override
+		public void addValueChangeListener(ValueChangeListener listener) {
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.addValueChangeListener(listener);
+			} else {
+				item.container.addLightweightListener(item.getItemId(), getPropertyId(), listener);
+			}
+		}
+
+		@Override
+		public void removeValueChangeListener(ValueChangeListener listener) {
+			// The listener may have been added while the item was lightweight
+			item.container.removeLightweightListener(item.getItemId(), getPropertyId(), listener);
+			EntityItemProperty<T, P> p = getRealProperty();
+			if (p != null) {
+				p.removeValueChangeListener(listener);
+			}
+		}
+
+		@Deprecated
+		@Override
+		public void addListener(ValueChangeListener listener) {
+			addValueChangeListener(listener);
+		}
+
+		@Deprecated
+		@Override
+		public void removeListener(ValueChangeListener listener) {
+			removeValueChangeListener(listener);
+		}
+
+		@Override
+		public String toString() {
+			final Object value = getValue();
+			if (value == null) {
+				return null;
+			}
+			return value.toString();
+		}
+	}
+
 }
@@ -169,7 +169,7 @@ public class JPAContainerItemProperty<T, P> implements EntityItemProperty<T, P>,
 	 */
 	@SuppressWarnings("unchecked")
 	private P getRealValue() {
-		ensurePropertyLoaded(propertyId);
+		ensurePropertyLoaded(item, propertyId);
 		return (P) item.getItemPropertyValue(propertyId);
 	}
 
@@ -210,17 +210,19 @@ public class JPAContainerItemProperty<T, P> implements EntityItemProperty<T, P>,
 	 *            the new value to set.
 	 */
 	private void setRealValue(Object newValue) {
-		ensurePropertyLoaded(propertyId);
+		ensurePropertyLoaded(item, propertyId);
 		item.setItemPropertyValue(propertyId, newValue);
 	}
 
 	/**
 	 * Ensures that any lazy loaded properties are available.
 	 * 
+	 * @param item
+	 *            the item whose entity to check.
 	 * @param propertyId
 	 *            the id of the property to check.
 	 */
-	private void ensurePropertyLoaded(String propertyId) {
+	static <E> void ensurePropertyLoaded(JPAContainerItem<E> item, String propertyId) {
 		LazyLoadingDelegate lazyLoadingDelegate = item.getContainer().getEntityProvider().getLazyLoadingDelegate();
 		if (lazyLoadingDelegate == null || !item.isItemPropertyLazyLoaded(propertyId)) {
 			// Don't need to do anything
@@ -39,6 +39,7 @@ import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
 import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 import com.vaadin.data.util.NestedPropertyDescriptor;
 
 /**
@@ -66,6 +67,7 @@ final class PropertyList<T> implements Serializable {
 	public abstract class NestedPropertyDefinition<P> extends PropertyDefinition<T, P> {
 
 		private final PropertyDefinition<T, ?> parent;
+		private transient PropertyPath propertyPath;
 
 		protected NestedPropertyDefinition(PropertyDefinition<T, ?> parent) {
 			this.parent = parent;
@@ -75,6 +77,19 @@ final class PropertyList<T> implements Serializable {
 			return parent;
 		}
 
+		/**
+		 * Gets the property ID as a parsed path, so that reading and writing
+		 * the value does not have to build and parse the ID every time.
+		 */
+		protected PropertyPath getPropertyPath() {
+			PropertyPath path = propertyPath;
+			if (path == null) {
+				path = PropertyPath.of(getPropertyId());
+				propertyPath = path;
+			}
+			return path;
+		}
+
 		@Override
 		public String getSortablePropertyId() {
 			if (isPersistent()) {
@@ -89,13 +104,13 @@ final class PropertyList<T> implements Serializable {
 		public P getPropertyValue(EntityItem<T> entityItem) {
 			assert entityItem != null : "entityItem must not be null";
 			assert entityItem.getEntity() != null : "entity must not be null";
-			return (P) PropertyList.this.metadata.getPropertyValue(entityItem.getEntity(), getPropertyId());
+			return (P) PropertyList.this.metadata.getPropertyValue(entityItem.getEntity(), getPropertyPath());
 		}
 
 		@Override
 		public void setPropertyValue(T object, P propertyValue) {
 			assert object != null : "entity must not be null";
-			PropertyList.this.metadata.setPropertyValue(object, getPropertyId(), propertyValue);
+			PropertyList.this.metadata.setPropertyValue(object, getPropertyPath(), propertyValue);
 		}
 
 		@Override
@@ -459,10 +474,9 @@ final class PropertyList<T> implements Serializable {
 		if (createIfNotExists) {
 			if (isNestedProperty(propertyName)) {
 				// Try with the parent
-				int offset = propertyName.lastIndexOf('.');
-				String parentName = propertyName.substring(0, offset);
-				String name = propertyName.substring(offset + 1);
-				PropertyDefinition<T, ?> parentProperty = getProperty(parentName, createIfNotExists);
+				PropertyPath path = PropertyPath.of(propertyName);
+				String name = path.getLast();
+				PropertyDefinition<T, ?> parentProperty = getProperty(path.getParent().getName(), createIfNotExists);
 				NestedPropertyDefinition property;
 				if (parentProperty instanceof PropertyList.NestedPersistentProprtyDefinition) {
 					ClassMetadata<?> parentClassMetadata = ((PropertyList<T>.NestedPersistentProprtyDefinition<?>) parentProperty)
@@ -789,15 +803,23 @@ final class PropertyList<T> implements Serializable {
 	 * @return true if the property is loaded lazily
 	 */
 	public boolean isPropertyLazyLoaded(String propertyName) {
-		if (isNestedProperty(propertyName)) {
-			int dotIx = propertyName.indexOf('.');
-			if (isPropertyLazyLoaded(propertyName.substring(dotIx + 1))) {
-				return true;
-			}
-			return getPropertyFetchType(propertyName.substring(0, dotIx)) == FetchType.LAZY;
-		}
+		return isPropertyLazyLoaded(PropertyPath.of(propertyName));
+	}
 
-		return getPropertyFetchType(propertyName) == FetchType.LAZY;
+	/**
+	 * Finds out whether a given property or any property in a nested "path" is
+	 * lazy loaded.
+	 * 
+	 * @param path
+	 *            the path of the property to inspect
+	 * @return true if the property is loaded lazily
+	 * @since 3.2.0
+	 */
+	public boolean isPropertyLazyLoaded(PropertyPath path) {
+		if (path.isNested() && isPropertyLazyLoaded(path.getRest())) {
+			return true;
+		}
+		return getPropertyFetchType(path.getFirst()) == FetchType.LAZY;
 	}
 
 	/**
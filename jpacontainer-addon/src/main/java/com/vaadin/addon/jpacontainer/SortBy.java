@@ -18,6 +18,8 @@ package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
 
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
+
 /**
  * Data structure class representing a field to sort by and the direction of the
  * sort (ascending or descending). Once created, the instances of this class are
@@ -40,6 +42,11 @@ public final class SortBy implements Serializable {
      */
     private final boolean ascending;
 
+    /**
+     * The parsed property ID, created when first needed.
+     */
+    private transient PropertyPath propertyPath;
+
     /**
      * Gets the property ID to sort by.
      */
@@ -47,6 +54,20 @@ public final class SortBy implements Serializable {
         return propertyId;
     }
 
+    /**
+     * Gets the property ID to sort by as a parsed {@link PropertyPath}.
+     * 
+     * @since 3.2.0
+     */
+    public PropertyPath getPropertyPath() {
+        PropertyPath path = propertyPath;
+        if (path == null) {
+            path = PropertyPath.of(propertyId);
+            propertyPath = path;
+        }
+        return path;
+    }
+
     /**
      * Returns true to sort ascendingly, false to sort descendingly.
      */
@@ -68,6 +89,22 @@ public final class SortBy implements Serializable {
         this.ascending = ascending;
     }
 
+    /**
+     * Creates a new <code>SortBy</code> instance for a pre-parsed property
+     * path. The property ID of the instance is the name of the path, so that
+     * it is equal to an instance created using the name.
+     * 
+     * @param propertyPath
+     *            the property path to sort by (must not be null).
+     * @param ascending
+     *            true to sort ascendingly, false to sort descendingly.
+     * @since 3.2.0
+     */
+    public SortBy(PropertyPath propertyPath, boolean ascending) {
+        this(propertyPath.getName(), ascending);
+        this.propertyPath = propertyPath;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
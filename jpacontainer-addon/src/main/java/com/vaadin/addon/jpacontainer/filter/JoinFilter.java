@@ -68,4 +68,20 @@ public class JoinFilter extends AbstractJunctionFilter {
         }
         return true;
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        JoinFilter o = (JoinFilter) obj;
+        return joinProperty == null ? o.joinProperty == null : joinProperty
+                .equals(o.joinProperty);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() * 31
+                + (joinProperty == null ? 0 : joinProperty.hashCode());
+    }
 }
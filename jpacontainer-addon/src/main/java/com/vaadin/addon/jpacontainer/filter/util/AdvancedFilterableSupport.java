@@ -27,6 +27,7 @@ import javax.persistence.criteria.From;
 import javax.persistence.criteria.Path;
 
 import com.vaadin.addon.jpacontainer.AdvancedFilterable;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.AbstractJunctionFilter;
 import com.vaadin.data.util.filter.Between;
@@ -263,11 +264,19 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
 
     public static <X, Y> Path<X> getPropertyPathTyped(From<X, Y> root,
             Object propertyId) {
-        String pid = propertyId.toString();
-        String[] idStrings = pid.split("\\.");
-        Path<X> path = root.get(idStrings[0]);
-        for (int i = 1; i < idStrings.length; i++) {
-            path = path.get(idStrings[i]);
+        return getPropertyPathTyped(root, PropertyPath.of(propertyId));
+    }
+
+    /**
+     * Builds a criteria path for a pre-parsed, possibly nested, property path.
+     * 
+     * @since 3.2.0
+     */
+    public static <X, Y> Path<X> getPropertyPathTyped(From<X, Y> root,
+            PropertyPath propertyPath) {
+        Path<X> path = root.get(propertyPath.getFirst());
+        for (int i = 1; i < propertyPath.getLength(); i++) {
+            path = path.get(propertyPath.getPart(i));
         }
         return path;
     }
@@ -0,0 +1,457 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.util.CollectionUtil;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Simplifies filter trees before they are converted into queries. The
+ * optimizer
+ * <ul>
+ * <li>flattens nested {@link And} and {@link Or} filters and removes
+ * duplicate filters from them,</li>
+ * <li>replaces junctions with a single filter by the filter itself,</li>
+ * <li>replaces <code>Not(Not(filter))</code> by <code>filter</code>,</li>
+ * <li>keeps only the tightest of several numeric or temporal lower or upper
+ * bounds of a property in a conjunction, and merges an inclusive lower and
+ * upper bound into a {@link Between} filter,</li>
+ * <li>merges the equality filters of a property in a disjunction into an
+ * {@link In} filter, and</li>
+ * <li>removes conjunctions that do not restrict anything.</li>
+ * </ul>
+ * The optimized filter accepts exactly the same entities as the original
+ * filter. Filters of other types, including subclasses of the standard
+ * filters, are left as they are.
+ * 
+ * @since 3.2.0
+ */
+public final class FilterOptimizer {
+
+    /**
+     * Orders filters by type, property and contents (operation, values or
+     * nested filters) so that equivalent junctions get their filters in the
+     * same order. Unlike hash codes, the order does not change from one run
+     * to another. Filters of other types than the ones known here are only
+     * ordered by type, i.e. they keep their original order.
+     */
+    private static final Comparator<Filter> CANONICAL_ORDER = new Comparator<Filter>() {
+
+        @Override
+        public int compare(Filter f1, Filter f2) {
+            int c = f1.getClass().getName().compareTo(f2.getClass().getName());
+            if (c == 0) {
+                c = String.valueOf(getPropertyId(f1)).compareTo(
+                        String.valueOf(getPropertyId(f2)));
+            }
+            if (c == 0) {
+                c = compareLists(getContents(f1), getContents(f2));
+            }
+            return c;
+        }
+    };
+
+    /**
+     * Orders filter values: null first, then by class name and within a class
+     * by natural order if the values are comparable and by their string
+     * representation otherwise.
+     */
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+
+        @Override
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public int compare(Object v1, Object v2) {
+            if (v1 == v2) {
+                return 0;
+            } else if (v1 == null) {
+                return -1;
+            } else if (v2 == null) {
+                return 1;
+            } else if (v1 instanceof Filter && v2 instanceof Filter) {
+                return CANONICAL_ORDER.compare((Filter) v1, (Filter) v2);
+            }
+            int c = v1.getClass().getName().compareTo(v2.getClass().getName());
+            if (c != 0) {
+                return c;
+            } else if (v1 instanceof Comparable) {
+                return ((Comparable) v1).compareTo(v2);
+            }
+            return String.valueOf(v1).compareTo(String.valueOf(v2));
+        }
+    };
+
+    private FilterOptimizer() {
+        // To prevent applications from creating instances of this class.
+    }
+
+    /**
+     * Optimizes <code>filter</code>. The filters of a junction are kept in
+     * their original order.
+     * 
+     * @param filter
+     *            the filter to optimize, or null.
+     * @return the optimized filter, which may be <code>filter</code> itself,
+     *         or null if the filter does not restrict anything.
+     */
+    public static Filter optimize(Filter filter) {
+        return filter == null ? null : simplify(filter, false);
+    }
+
+    /**
+     * Optimizes <code>filter</code> and sorts the filters of every junction
+     * in a canonical order, so that filters that only differ by the order of
+     * the junction filters become equal. This is used to get keys for caching
+     * query results. The canonical form of a canonical filter is equal to the
+     * filter itself.
+     * 
+     * @param filter
+     *            the filter to canonicalize, or null.
+     * @return the canonical filter, which may be <code>filter</code> itself,
+     *         or null if the filter does not restrict anything.
+     */
+    public static Filter canonicalize(Filter filter) {
+        return filter == null ? null : simplify(filter, true);
+    }
+
+    private static Filter simplify(Filter filter, boolean sort) {
+        if (filter instanceof Not) {
+            Filter negated = ((Not) filter).getFilter();
+            if (negated instanceof Not) {
+                return simplify(((Not) negated).getFilter(), sort);
+            }
+            Filter simplified = simplify(negated, sort);
+            if (simplified == negated || simplified == null) {
+                return filter;
+            }
+            return new Not(simplified);
+        } else if (filter instanceof And || filter instanceof Or) {
+            return simplifyJunction((AbstractJunctionFilter) filter,
+                    filter instanceof And, sort);
+        } else if (filter.getClass() == JoinFilter.class) {
+            JoinFilter join = (JoinFilter) filter;
+            List<Filter> filters = simplifyFilters(join, true, sort);
+            if (isUnchanged(join, filters)) {
+                return filter;
+            }
+            // Even without any filters, the join only accepts entities that
+            // have associated entities
+            return new JoinFilter(join.getJoinProperty(),
+                    CollectionUtil.toArray(Filter.class, filters));
+        }
+        return filter;
+    }
+
+    private static Filter simplifyJunction(AbstractJunctionFilter junction,
+            boolean and, boolean sort) {
+        List<Filter> filters = simplifyFilters(junction, and, sort);
+        if (filters.size() == 1) {
+            // Also a disjunction that accepts everything, i.e. null
+            return filters.get(0);
+        }
+        if (and && filters.isEmpty()) {
+            // A conjunction of nothing accepts everything
+            return null;
+        }
+        if (isUnchanged(junction, filters)) {
+            return junction;
+        }
+        if (and) {
+            return new And(CollectionUtil.toArray(Filter.class, filters));
+        } else {
+            return new Or(CollectionUtil.toArray(Filter.class, filters));
+        }
+    }
+
+    /**
+     * Simplifies the filters of <code>junction</code>, which is treated as a
+     * conjunction if <code>and</code> is true and as a disjunction otherwise.
+     * 
+     * @return the simplified filters, or a list containing only null if the
+     *         disjunction accepts everything.
+     */
+    private static List<Filter> simplifyFilters(
+            AbstractJunctionFilter junction, boolean and, boolean sort) {
+        Collection<Filter> original = junction.getFilters();
+        LinkedHashSet<Filter> flattened = new LinkedHashSet<Filter>();
+        for (Filter f : original) {
+            Filter simplified = simplify(f, sort);
+            if (simplified == null) {
+                if (and) {
+                    continue;
+                }
+                return Collections.singletonList(null);
+            }
+            if (and ? simplified instanceof And : simplified instanceof Or) {
+                flattened.addAll(((AbstractJunctionFilter) simplified)
+                        .getFilters());
+            } else {
+                flattened.add(simplified);
+            }
+        }
+        List<Filter> filters = new ArrayList<Filter>(flattened);
+        if (and) {
+            filters = mergeBounds(filters);
+        } else {
+            filters = mergeEquals(filters);
+        }
+        if (sort) {
+            Collections.sort(filters, CANONICAL_ORDER);
+        }
+        return filters;
+    }
+
+    /**
+     * Checks whether <code>filters</code> are the very same filters as the
+     * filters of <code>junction</code>, in the same order.
+     */
+    private static boolean isUnchanged(AbstractJunctionFilter junction,
+            List<Filter> filters) {
+        Collection<Filter> original = junction.getFilters();
+        if (original.size() != filters.size()) {
+            return false;
+        }
+        int i = 0;
+        for (Filter f : original) {
+            if (f != filters.get(i++)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps only the tightest lower and upper bound of every property, and
+     * merges inclusive lower and upper bounds into {@link Between} filters.
+     * Only numeric and temporal bounds are merged, as e.g. strings may be
+     * ordered differently by the database collation than by
+     * {@link Comparable#compareTo(Object)}.
+     */
+    private static List<Filter> mergeBounds(List<Filter> filters) {
+        Map<Object, Integer> lowerBounds = new HashMap<Object, Integer>();
+        Map<Object, Integer> upperBounds = new HashMap<Object, Integer>();
+        List<Filter> result = new ArrayList<Filter>(filters.size());
+        for (Filter f : filters) {
+            if (!isBound(f)) {
+                result.add(f);
+                continue;
+            }
+            Compare bound = (Compare) f;
+            boolean lower = bound.getOperation() == Compare.Operation.GREATER
+                    || bound.getOperation() == Compare.Operation.GREATER_OR_EQUAL;
+            Map<Object, Integer> bounds = lower ? lowerBounds : upperBounds;
+            Integer index = bounds.get(bound.getPropertyId());
+            if (index == null) {
+                bounds.put(bound.getPropertyId(), result.size());
+                result.add(bound);
+                continue;
+            }
+            Compare other = (Compare) result.get(index);
+            if (other.getValue().getClass() != bound.getValue().getClass()) {
+                // Cannot tell which one is tighter
+                result.add(bound);
+                continue;
+            }
+            if (isTighter(bound, other, lower)) {
+                result.set(index, bound);
+            }
+        }
+        for (Map.Entry<Object, Integer> lower : lowerBounds.entrySet()) {
+            Integer upperIndex = upperBounds.get(lower.getKey());
+            if (upperIndex == null) {
+                continue;
+            }
+            Compare from = (Compare) result.get(lower.getValue());
+            Compare to = (Compare) result.get(upperIndex);
+            if (from.getOperation() == Compare.Operation.GREATER_OR_EQUAL
+                    && to.getOperation() == Compare.Operation.LESS_OR_EQUAL
+                    && from.getValue().getClass() == to.getValue().getClass()) {
+                result.set(lower.getValue(), new Between(lower.getKey(),
+                        (Comparable<?>) from.getValue(), (Comparable<?>) to
+                                .getValue()));
+                result.set(upperIndex, null);
+            }
+        }
+        result.removeAll(Collections.singleton(null));
+        return result;
+    }
+
+    private static boolean isBound(Filter filter) {
+        if (!(filter instanceof Compare)) {
+            return false;
+        }
+        Compare compare = (Compare) filter;
+        Object value = compare.getValue();
+        return compare.getOperation() != Compare.Operation.EQUAL
+                && value instanceof Comparable
+                && (value instanceof Number || value instanceof Date
+                        || value instanceof Calendar);
+    }
+
+    /**
+     * Checks whether <code>bound</code> restricts more than
+     * <code>other</code>.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static boolean isTighter(Compare bound, Compare other,
+            boolean lower) {
+        int c = ((Comparable) bound.getValue()).compareTo(other.getValue());
+        if (c == 0) {
+            // The exclusive bound is tighter
+            return bound.getOperation() == Compare.Operation.GREATER
+                    || bound.getOperation() == Compare.Operation.LESS;
+        }
+        return lower ? c > 0 : c < 0;
+    }
+
+    /**
+     * Merges the equality and {@link In} filters of every property that has
+     * more than one of them into a single {@link In} filter.
+     */
+    private static List<Filter> mergeEquals(List<Filter> filters) {
+        Map<Object, LinkedHashSet<Object>> values = new HashMap<Object, LinkedHashSet<Object>>();
+        Map<Object, Integer> counts = new HashMap<Object, Integer>();
+        for (Filter f : filters) {
+            Object propertyId = getEqualityPropertyId(f);
+            if (propertyId != null) {
+                LinkedHashSet<Object> propertyValues = values.get(propertyId);
+                if (propertyValues == null) {
+                    propertyValues = new LinkedHashSet<Object>();
+                    values.put(propertyId, propertyValues);
+                    counts.put(propertyId, 0);
+                }
+                if (f instanceof In) {
+                    propertyValues.addAll(((In) f).getCollection());
+                } else {
+                    propertyValues.add(((Compare) f).getValue());
+                }
+                counts.put(propertyId, counts.get(propertyId) + 1);
+            }
+        }
+        List<Filter> result = new ArrayList<Filter>(filters.size());
+        for (Filter f : filters) {
+            Object propertyId = getEqualityPropertyId(f);
+            if (propertyId == null || counts.get(propertyId) == 1) {
+                result.add(f);
+            } else if (values.containsKey(propertyId)) {
+                result.add(new In(propertyId, new ArrayList<Object>(values
+                        .remove(propertyId))));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the property of an equality or {@link In} filter that can be
+     * merged with others, or null if <code>filter</code> is something else.
+     */
+    private static Object getEqualityPropertyId(Filter filter) {
+        if (filter instanceof Compare
+                && ((Compare) filter).getOperation() == Compare.Operation.EQUAL
+                && ((Compare) filter).getValue() != null) {
+            return ((Compare) filter).getPropertyId();
+        } else if (filter.getClass() == In.class) {
+            return ((In) filter).getPropertyId();
+        }
+        return null;
+    }
+
+    /**
+     * Gets what distinguishes <code>filter</code> from other filters of the
+     * same type and property, in the order to compare it in. The filters of
+     * a junction are already in canonical order.
+     */
+    private static List<?> getContents(Filter filter) {
+        if (filter instanceof Compare) {
+            return Arrays.asList(((Compare) filter).getOperation(),
+                    ((Compare) filter).getValue());
+        } else if (filter instanceof Like) {
+            return Arrays.asList(((Like) filter).getValue(),
+                    ((Like) filter).isCaseSensitive());
+        } else if (filter instanceof SimpleStringFilter) {
+            SimpleStringFilter ssf = (SimpleStringFilter) filter;
+            return Arrays.asList(ssf.getFilterString(), ssf.isIgnoreCase(),
+                    ssf.isOnlyMatchPrefix());
+        } else if (filter instanceof Between) {
+            return Arrays.asList(((Between) filter).getStartValue(),
+                    ((Between) filter).getEndValue());
+        } else if (filter instanceof In) {
+            // The values of equal filters may be in any order
+            List<Object> values = new ArrayList<Object>(
+                    ((In) filter).getCollection());
+            Collections.sort(values, VALUE_ORDER);
+            return values;
+        } else if (filter instanceof Not) {
+            return Collections.singletonList(((Not) filter).getFilter());
+        } else if (filter instanceof AbstractJunctionFilter) {
+            return new ArrayList<Filter>(
+                    ((AbstractJunctionFilter) filter).getFilters());
+        }
+        return Collections.emptyList();
+    }
+
+    private static int compareLists(List<?> l1, List<?> l2) {
+        for (int i = 0; i < l1.size() && i < l2.size(); i++) {
+            int c = VALUE_ORDER.compare(l1.get(i), l2.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return l1.size() - l2.size();
+    }
+
+    private static Object getPropertyId(Filter filter) {
+        if (filter instanceof Compare) {
+            return ((Compare) filter).getPropertyId();
+        } else if (filter instanceof IsNull) {
+            return ((IsNull) filter).getPropertyId();
+        } else if (filter instanceof Like) {
+            return ((Like) filter).getPropertyId();
+        } else if (filter instanceof SimpleStringFilter) {
+            return ((SimpleStringFilter) filter).getPropertyId();
+        } else if (filter instanceof Between) {
+            return ((Between) filter).getPropertyId();
+        } else if (filter instanceof In) {
+            return ((In) filter).getPropertyId();
+        } else if (filter instanceof JoinFilter) {
+            return ((JoinFilter) filter).getJoinProperty();
+        }
+        return null;
+    }
+}
@@ -17,17 +17,26 @@ package com.vaadin.addon.jpacontainer.filter.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.persistence.Parameter;
+import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import com.vaadin.addon.jpacontainer.filter.JoinFilter;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
 import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Between;
 import com.vaadin.data.util.filter.Compare;
@@ -42,6 +51,20 @@ import com.vaadin.data.util.filter.SimpleStringFilter;
 
 /**
  * Converts a Vaadin 6.6 container filter into a JPA criteria predicate.
+ * <p>
+ * The filter values are normally embedded in the predicate as literals. In
+ * parameterized mode (see
+ * {@link #convertFilter(Filter, CriteriaBuilder, From, ParameterBinding)}),
+ * the values of the built-in filters are replaced by
+ * {@link ParameterExpression}s that are collected in a
+ * {@link ParameterBinding}, which makes the query text independent of the
+ * values so that the JPA implementation and the database can reuse the query
+ * plan.
+ * <p>
+ * The converters are looked up by the class of the filter, and the converter
+ * found for a class is remembered, so the lookup takes constant time.
+ * Applications can plug in converters for their own filters, or replace the
+ * built-in ones, with {@link #registerConverter(Class, JPAFilterConverter)}.
  * 
  * @param filter
  *            Vaadin 6.6 {@link Filter}
@@ -61,40 +84,177 @@ public abstract class JPAFilterConverterFactory {
 		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root);
 	}
 
+	/**
+	 * The parameters created while converting filters in parameterized mode,
+	 * together with the values to bind to them.
+	 * 
+	 * @since 3.2.0
+	 */
+	public static class ParameterBinding {
+
+		private final Map<ParameterExpression<?>, Object> values = new LinkedHashMap<ParameterExpression<?>, Object>();
+
+		/**
+		 * Creates a new parameter for <code>value</code> and remembers the
+		 * value.
+		 * 
+		 * @param cb
+		 *            the {@link CriteriaBuilder} to create the parameter with.
+		 * @param value
+		 *            the value to bind (must not be null).
+		 * @return the parameter to use in the query.
+		 */
+		@SuppressWarnings("unchecked")
+		public <V> ParameterExpression<V> bind(CriteriaBuilder cb, V value) {
+			assert value != null : "value must not be null";
+			Class<?> type = value instanceof Enum ? ((Enum<?>) value).getDeclaringClass() : value.getClass();
+			ParameterExpression<V> parameter = cb.parameter((Class<V>) type);
+			values.put(parameter, value);
+			return parameter;
+		}
+
+		/**
+		 * Gets the parameters in the order they were created.
+		 * 
+		 * @return an unmodifiable list of parameters (never null).
+		 */
+		public List<ParameterExpression<?>> getParameters() {
+			return Collections.unmodifiableList(new ArrayList<ParameterExpression<?>>(values.keySet()));
+		}
+
+		/**
+		 * Gets the values to bind, in the order the parameters were created.
+		 * 
+		 * @return an unmodifiable list of values (never null).
+		 */
+		public List<Object> getValues() {
+			return Collections.unmodifiableList(new ArrayList<Object>(values.values()));
+		}
+
+		/**
+		 * Binds the values to the parameters of <code>query</code>.
+		 * 
+		 * @param query
+		 *            a query created from the criteria query that the
+		 *            parameters were used in (must not be null).
+		 */
+		public void applyTo(Query query) {
+			applyTo(query, getParameters(), getValues());
+		}
+
+		/**
+		 * Binds <code>values</code> to <code>parameters</code> of
+		 * <code>query</code>. This is used to run a previously built query
+		 * again with the values of another filter of the same shape, see
+		 * {@link JPAFilterConverterFactory#getFilterShape(Filter, List)}.
+		 * 
+		 * @param query
+		 *            the query (must not be null).
+		 * @param parameters
+		 *            the parameters of the query (must not be null).
+		 * @param values
+		 *            the values, in the same order as the parameters (must not
+		 *            be null).
+		 */
+		@SuppressWarnings("unchecked")
+		public static void applyTo(Query query, List<ParameterExpression<?>> parameters, List<Object> values) {
+			assert query != null : "query must not be null";
+			assert parameters.size() == values.size() : "there must be a value for every parameter";
+			for (int i = 0; i < parameters.size(); i++) {
+				query.setParameter((Parameter<Object>) parameters.get(i), values.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Base class of the built-in converters, which can also convert in
+	 * parameterized mode.
+	 */
+	private static abstract class ParameterizedConverter implements JPAFilterConverter {
+
+		@Override
+		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+			return toPredicate(filter, cb, root, null);
+		}
+
+		/**
+		 * Converts <code>filter</code>, binding the values as parameters if
+		 * <code>binding</code> is not null. The parameters must be created in
+		 * the same order as {@link #addShape(Filter, List, List)} adds the
+		 * values.
+		 */
+		abstract <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root,
+				ParameterBinding binding);
+
+		/**
+		 * Adds everything but the parameter values of <code>filter</code> to
+		 * <code>shape</code>, and the parameter values to <code>values</code>.
+		 */
+		abstract void addShape(Filter filter, List<Object> shape, List<Object> values);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Expression valueOf(Object value, CriteriaBuilder cb, ParameterBinding binding) {
+		if (binding == null || value == null) {
+			return cb.literal(value);
+		}
+		return binding.bind(cb, value);
+	}
+
+	private static void addValue(Object value, List<Object> shape, List<Object> values) {
+		if (value == null) {
+			// Null values are always embedded as literals
+			shape.add(null);
+		} else {
+			shape.add(value instanceof Enum ? ((Enum<?>) value).getDeclaringClass() : value.getClass());
+			values.add(value);
+		}
+	}
+
 	/**
 	 * Converts {@link And} filters.
 	 */
-	private static class AndConverter implements JPAFilterConverter {
+	private static class AndConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof And;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
-			return cb.and(convertFiltersToArray(((And) filter).getFilters(), cb, root));
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
+			return cb.and(convertFiltersToArray(((And) filter).getFilters(), cb, root, binding));
+		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			addJunctionShape((And) filter, shape, values);
 		}
 	}
 
 	/**
 	 * Converts {@link Or} filters.
 	 */
-	private static class OrConverter implements JPAFilterConverter {
+	private static class OrConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof Or;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
-			return cb.or(convertFiltersToArray(((Or) filter).getFilters(), cb, root));
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
+			return cb.or(convertFiltersToArray(((Or) filter).getFilters(), cb, root, binding));
+		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			addJunctionShape((Or) filter, shape, values);
 		}
 	}
 
 	/**
 	 * Converts {@link Compare} filters ({@link Equal}, {@link Greater}, etc).
 	 */
-	private static class CompareConverter implements JPAFilterConverter {
+	private static class CompareConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof Compare;
@@ -102,14 +262,14 @@ public abstract class JPAFilterConverterFactory {
 
 		@Override
 		@SuppressWarnings({ "rawtypes", "unchecked" })
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			Compare compare = (Compare) filter;
 			Expression propertyExpr = AdvancedFilterableSupport.getPropertyPath(root, compare.getPropertyId());
 			if (Compare.Operation.EQUAL == compare.getOperation() && compare.getValue() == null) {
 				// Make an IS NULL instead if "= null" is passed
-				return convertFilter(new IsNull(compare.getPropertyId()), cb, root);
+				return convertFilter(new IsNull(compare.getPropertyId()), cb, root, binding);
 			}
-			Expression valueExpr = cb.literal(compare.getValue());
+			Expression valueExpr = valueOf(compare.getValue(), cb, binding);
 			switch (compare.getOperation()) {
 			case EQUAL:
 				return cb.equal(propertyExpr, valueExpr);
@@ -125,48 +285,74 @@ public abstract class JPAFilterConverterFactory {
 				return null;
 			}
 		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			Compare compare = (Compare) filter;
+			shape.add(compare.getPropertyId());
+			shape.add(compare.getOperation());
+			addValue(compare.getValue(), shape, values);
+		}
 	}
 
 	/**
 	 * Converts {@link IsNull} filters.
 	 */
-	private static class IsNullConverter implements JPAFilterConverter {
+	private static class IsNullConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof IsNull;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			return cb.isNull(AdvancedFilterableSupport.getPropertyPath(root, ((IsNull) filter).getPropertyId()));
 		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			shape.add(((IsNull) filter).getPropertyId());
+		}
 	}
 
 	/**
 	 * Converts {@link SimpleStringFilter} filters.
 	 */
-	private static class SimpleStringFilterConverter implements JPAFilterConverter {
+	private static class SimpleStringFilterConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof SimpleStringFilter;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		@SuppressWarnings("unchecked")
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
-			String filterString = stringFilter.getFilterString();
-			if (stringFilter.isOnlyMatchPrefix()) {
-				filterString = filterString + "%";
-			} else {
-				filterString = "%" + filterString + "%";
-			}
+			Expression<String> pattern = valueOf(getPattern(stringFilter), cb, binding);
 			if (stringFilter.isIgnoreCase()) {
 				return cb.like(cb.upper(
 						AdvancedFilterableSupport.getPropertyPath(root, stringFilter.getPropertyId().toString())),
-						cb.upper(cb.literal(filterString)));
+						cb.upper(pattern));
 			} else {
 				return cb.like(AdvancedFilterableSupport.getPropertyPath(root, stringFilter.getPropertyId().toString()),
-						cb.literal(filterString));
+						pattern);
+			}
+		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+			shape.add(stringFilter.getPropertyId());
+			shape.add(stringFilter.isIgnoreCase());
+			addValue(getPattern(stringFilter), shape, values);
+		}
+
+		private static String getPattern(SimpleStringFilter stringFilter) {
+			String filterString = stringFilter.getFilterString();
+			if (stringFilter.isOnlyMatchPrefix()) {
+				return filterString + "%";
+			} else {
+				return "%" + filterString + "%";
 			}
 		}
 	}
@@ -174,27 +360,37 @@ public abstract class JPAFilterConverterFactory {
 	/**
 	 * Converts {@link Like} filters.
 	 */
-	private static class LikeConverter implements JPAFilterConverter {
+	private static class LikeConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof Like;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		@SuppressWarnings("unchecked")
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			Like like = (Like) filter;
+			Expression<String> pattern = valueOf(like.getValue(), cb, binding);
 			if (like.isCaseSensitive()) {
 				return cb.like(AdvancedFilterableSupport.getPropertyPath(root, like.getPropertyId().toString()),
-						cb.literal(like.getValue()));
+						pattern);
 			} else {
 				return cb.like(
 						cb.upper(AdvancedFilterableSupport.getPropertyPath(root, like.getPropertyId().toString())),
-						cb.upper(cb.literal(like.getValue())));
+						cb.upper(pattern));
 			}
 		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			Like like = (Like) filter;
+			shape.add(like.getPropertyId());
+			shape.add(like.isCaseSensitive());
+			addValue(like.getValue(), shape, values);
+		}
 	}
 
-	private static class BetweenConverter implements JPAFilterConverter {
+	private static class BetweenConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof Between;
@@ -202,63 +398,235 @@ public abstract class JPAFilterConverterFactory {
 
 		@Override
 		@SuppressWarnings({ "unchecked", "rawtypes" })
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			Between between = (Between) filter;
 			Expression<? extends Comparable> field = AdvancedFilterableSupport.getPropertyPath(root,
 					between.getPropertyId());
-			Expression<? extends Comparable> from = cb.literal(between.getStartValue());
-			Expression<? extends Comparable> to = cb.literal(between.getEndValue());
+			Expression<? extends Comparable> from = valueOf(between.getStartValue(), cb, binding);
+			Expression<? extends Comparable> to = valueOf(between.getEndValue(), cb, binding);
 			return cb.between(field, from, to);
 		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			Between between = (Between) filter;
+			shape.add(between.getPropertyId());
+			addValue(between.getStartValue(), shape, values);
+			addValue(between.getEndValue(), shape, values);
+		}
 	}
 
-	private static class JoinFilterConverter implements JPAFilterConverter {
+	private static class JoinFilterConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof JoinFilter;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			JoinFilter hibernateJoin = (JoinFilter) filter;
 			From<X, Y> join = root.join(hibernateJoin.getJoinProperty());
-			return cb.and(convertFiltersToArray(hibernateJoin.getFilters(), cb, join));
+			return cb.and(convertFiltersToArray(hibernateJoin.getFilters(), cb, join, binding));
 		}
 
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			shape.add(((JoinFilter) filter).getJoinProperty());
+			addJunctionShape((JoinFilter) filter, shape, values);
+		}
 	}
 
-	private static class NotFilterConverter implements JPAFilterConverter {
+	private static class NotFilterConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof Not;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			Not not = (Not) filter;
-			return cb.not(convertFilter(not.getFilter(), cb, root));
+			return cb.not(convertFilter(not.getFilter(), cb, root, binding));
+		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			addShapeOf(((Not) filter).getFilter(), shape, values);
 		}
 	}
 
-	private static class InConverter implements JPAFilterConverter {
+	private static class InConverter extends ParameterizedConverter {
 		@Override
 		public boolean canConvert(Filter filter) {
 			return filter instanceof In;
 		}
 
 		@Override
-		public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root) {
+		<X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb, From<X, Y> root, ParameterBinding binding) {
 			In in = (In) filter;
 			Expression<? extends Comparable> field = AdvancedFilterableSupport.getPropertyPath(root,
 					in.getPropertyId());
-			return field.in(in.getCollection());
+			if (binding == null) {
+				return field.in(in.getCollection());
+			}
+			List<Expression<?>> parameters = new ArrayList<Expression<?>>(in.getCollection().size());
+			for (Object value : in.getCollection()) {
+				parameters.add(valueOf(value, cb, binding));
+			}
+			return field.in(parameters.toArray(new Expression<?>[parameters.size()]));
+		}
+
+		@Override
+		void addShape(Filter filter, List<Object> shape, List<Object> values) {
+			In in = (In) filter;
+			shape.add(in.getPropertyId());
+			shape.add(in.getCollection().size());
+			for (Object value : in.getCollection()) {
+				addValue(value, shape, values);
+			}
 		}
 	}
 
-	private static final JPAFilterConverter[] CONVERTERS = new JPAFilterConverter[] { new AndConverter(),
-			new OrConverter(), new CompareConverter(), new IsNullConverter(), new SimpleStringFilterConverter(),
-			new LikeConverter(), new BetweenConverter(), new JoinFilterConverter(), new NotFilterConverter(),
-			new InConverter() };
+	private static void addJunctionShape(AbstractJunctionFilter filter, List<Object> shape, List<Object> values) {
+		shape.add(filter.getFilters().size());
+		for (Filter f : filter.getFilters()) {
+			addShapeOf(f, shape, values);
+		}
+	}
+
+	/**
+	 * The registered converters by filter class, and the converters that have
+	 * been resolved for filter classes so far. A new registry is created
+	 * whenever a converter is registered, so the resolved converters never go
+	 * stale.
+	 */
+	private static final class Registry {
+		private final Map<Class<?>, JPAFilterConverter> converters;
+		private final ConcurrentMap<Class<?>, JPAFilterConverter> resolved = new ConcurrentHashMap<Class<?>, JPAFilterConverter>();
+
+		Registry(Map<Class<?>, JPAFilterConverter> converters) {
+			this.converters = converters;
+		}
+
+		JPAFilterConverter getConverter(Filter filter) {
+			JPAFilterConverter c = resolved.get(filter.getClass());
+			if (c == null) {
+				c = resolve(filter);
+				if (c != null) {
+					resolved.put(filter.getClass(), c);
+				}
+			}
+			return c;
+		}
+
+		/**
+		 * Finds the converter registered for the class of <code>filter</code>
+		 * or, failing that, for its nearest superclass or interface. As a last
+		 * resort, the first registered converter that can convert the filter
+		 * is used.
+		 */
+		private JPAFilterConverter resolve(Filter filter) {
+			for (Class<?> type = filter.getClass(); type != null; type = type.getSuperclass()) {
+				JPAFilterConverter c = converters.get(type);
+				if (c == null) {
+					c = resolveInterfaces(type);
+				}
+				if (c != null) {
+					return c;
+				}
+			}
+			for (JPAFilterConverter c : converters.values()) {
+				if (c.canConvert(filter)) {
+					return c;
+				}
+			}
+			return null;
+		}
+
+		private JPAFilterConverter resolveInterfaces(Class<?> type) {
+			for (Class<?> i : type.getInterfaces()) {
+				JPAFilterConverter c = converters.get(i);
+				if (c == null) {
+					c = resolveInterfaces(i);
+				}
+				if (c != null) {
+					return c;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static volatile Registry registry;
+
+	static {
+		Map<Class<?>, JPAFilterConverter> converters = new LinkedHashMap<Class<?>, JPAFilterConverter>();
+		converters.put(And.class, new AndConverter());
+		converters.put(Or.class, new OrConverter());
+		converters.put(Compare.class, new CompareConverter());
+		converters.put(IsNull.class, new IsNullConverter());
+		converters.put(SimpleStringFilter.class, new SimpleStringFilterConverter());
+		converters.put(Like.class, new LikeConverter());
+		converters.put(Between.class, new BetweenConverter());
+		converters.put(JoinFilter.class, new JoinFilterConverter());
+		converters.put(Not.class, new NotFilterConverter());
+		converters.put(In.class, new InConverter());
+		registry = new Registry(converters);
+	}
+
+	/**
+	 * Registers <code>converter</code> for converting filters of
+	 * <code>filterClass</code>, replacing the converter that was registered
+	 * for the class before, if any. The converter is also used for the
+	 * subclasses of <code>filterClass</code>, unless there is a converter
+	 * registered for a more specific class. Built-in converters can be
+	 * replaced the same way. The registration applies to the whole
+	 * application.
+	 * 
+	 * @param filterClass
+	 *            the class or interface of the filters to convert (must not be
+	 *            null).
+	 * @param converter
+	 *            the converter (must not be null).
+	 * @since 3.2.0
+	 */
+	public static synchronized void registerConverter(Class<? extends Filter> filterClass,
+			JPAFilterConverter converter) {
+		assert filterClass != null : "filterClass must not be null";
+		assert converter != null : "converter must not be null";
+		Map<Class<?>, JPAFilterConverter> converters = new LinkedHashMap<Class<?>, JPAFilterConverter>(
+				registry.converters);
+		converters.put(filterClass, converter);
+		registry = new Registry(converters);
+	}
+
+	/**
+	 * Removes the converter registered for <code>filterClass</code>, if any.
+	 * 
+	 * @param filterClass
+	 *            the class or interface of the filters (must not be null).
+	 * @since 3.2.0
+	 */
+	public static synchronized void unregisterConverter(Class<? extends Filter> filterClass) {
+		assert filterClass != null : "filterClass must not be null";
+		Map<Class<?>, JPAFilterConverter> converters = new LinkedHashMap<Class<?>, JPAFilterConverter>(
+				registry.converters);
+		if (converters.remove(filterClass) != null) {
+			registry = new Registry(converters);
+		}
+	}
+
+	/**
+	 * Gets the converter that is used for <code>filter</code>.
+	 * 
+	 * @param filter
+	 *            the filter (must not be null).
+	 * @return the converter, or null if there is none.
+	 * @since 3.2.0
+	 */
+	public static JPAFilterConverter getConverter(Filter filter) {
+		assert filter != null : "filter must not be null";
+		return registry.getConverter(filter);
+	}
 
 	/**
 	 * Convert a single {@link Filter} to a criteria {@link Predicate}.
@@ -275,16 +643,88 @@ public abstract class JPAFilterConverterFactory {
 	 *         conversion failed.
 	 */
 	public static <X, Y> Predicate convertFilter(Filter filter, CriteriaBuilder criteriaBuilder, From<X, Y> root) {
+		return convertFilter(filter, criteriaBuilder, root, null);
+	}
+
+	/**
+	 * Convert a single {@link Filter} to a criteria {@link Predicate},
+	 * optionally in parameterized mode. In parameterized mode, the values of
+	 * the built-in filters are replaced by parameters that are added to
+	 * <code>binding</code>, and the values must be bound to the query with
+	 * {@link ParameterBinding#applyTo(Query)} before running it. Filters that
+	 * are converted by a custom {@link JPAFilterConverter} always embed their
+	 * values.
+	 * 
+	 * @param filter
+	 *            the {@link Filter} to convert
+	 * @param criteriaBuilder
+	 *            the {@link CriteriaBuilder} to use when creating the
+	 *            {@link Predicate}
+	 * @param root
+	 *            the {@link CriteriaQuery} {@link Root} to use for finding
+	 *            fields.
+	 * @param binding
+	 *            the binding to add the parameters to, or null to embed the
+	 *            values as literals.
+	 * @return a {@link Predicate} representing the {@link Filter} or null if
+	 *         conversion failed.
+	 * @since 3.2.0
+	 */
+	public static <X, Y> Predicate convertFilter(Filter filter, CriteriaBuilder criteriaBuilder, From<X, Y> root,
+			ParameterBinding binding) {
 		assert filter != null : "filter must not be null";
 
 		if (filter instanceof JPAFilterConverter) {
 			return ((JPAFilterConverter) filter).toPredicate(filter, criteriaBuilder, root);
 		}
 
-		for (JPAFilterConverter c : CONVERTERS) {
-			if (c.canConvert(filter)) {
-				return c.toPredicate(filter, criteriaBuilder, root);
-			}
+		JPAFilterConverter c = findConverter(filter);
+		if (c instanceof ParameterizedConverter) {
+			return ((ParameterizedConverter) c).toPredicate(filter, criteriaBuilder, root, binding);
+		}
+		return c.toPredicate(filter, criteriaBuilder, root);
+	}
+
+	/**
+	 * Gets the shape of <code>filter</code>, i.e. a key that is equal for all
+	 * the filters that are converted to the same predicate in parameterized
+	 * mode, regardless of their parameter values. The parameter values are
+	 * added to <code>values</code> in the order that
+	 * {@link #convertFilter(Filter, CriteriaBuilder, From, ParameterBinding)}
+	 * creates the parameters in, so that a query built for one filter can be
+	 * run with the values of another filter of the same shape using
+	 * {@link ParameterBinding#applyTo(Query, List, List)}.
+	 * 
+	 * @param filter
+	 *            the filter (must not be null).
+	 * @param values
+	 *            the list to add the parameter values to (must not be null).
+	 * @return the shape (never null).
+	 * @since 3.2.0
+	 */
+	public static Object getFilterShape(Filter filter, List<Object> values) {
+		assert filter != null : "filter must not be null";
+		assert values != null : "values must not be null";
+		List<Object> shape = new ArrayList<Object>();
+		addShapeOf(filter, shape, values);
+		return shape;
+	}
+
+	private static void addShapeOf(Filter filter, List<Object> shape, List<Object> values) {
+		JPAFilterConverter c = filter instanceof JPAFilterConverter ? null : findConverter(filter);
+		if (c instanceof ParameterizedConverter) {
+			shape.add(filter.getClass());
+			((ParameterizedConverter) c).addShape(filter, shape, values);
+		} else {
+			// The values are embedded, so the filter itself is the shape
+			shape.add(filter);
+		}
+	}
+
+	private static JPAFilterConverter findConverter(Filter filter) {
+		JPAFilterConverter c = registry.getConverter(filter);
+		if (c != null) {
+			return c;
 		}
 
 		throw new IllegalStateException(
@@ -300,9 +740,27 @@ public abstract class JPAFilterConverterFactory {
 	 */
 	public static <X, Y> List<Predicate> convertFilters(Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
 			From<X, Y> root) {
+		return convertFilters(filters, criteriaBuilder, root, null);
+	}
+
+	/**
+	 * Converts a collection of {@link Filter} into a list of {@link Predicate},
+	 * optionally in parameterized mode.
+	 * 
+	 * @see #convertFilter(Filter, CriteriaBuilder, From, ParameterBinding)
+	 * @param filters
+	 *            Collection of {@link Filter}
+	 * @param binding
+	 *            the binding to add the parameters to, or null to embed the
+	 *            values as literals.
+	 * @return List of {@link Predicate}
+	 * @since 3.2.0
+	 */
+	public static <X, Y> List<Predicate> convertFilters(Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
+			From<X, Y> root, ParameterBinding binding) {
 		List<Predicate> result = new ArrayList<Predicate>(filters.size());
 		for (com.vaadin.data.Container.Filter filter : filters) {
-			Predicate p = convertFilter(filter, criteriaBuilder, root);
+			Predicate p = convertFilter(filter, criteriaBuilder, root, binding);
 			if (p != null) {
 				result.add(p);
 			}
@@ -311,7 +769,7 @@ public abstract class JPAFilterConverterFactory {
 	}
 
 	private static <X, Y> Predicate[] convertFiltersToArray(Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
-			From<X, Y> root) {
-		return CollectionUtil.toArray(Predicate.class, convertFilters(filters, criteriaBuilder, root));
+			From<X, Y> root, ParameterBinding binding) {
+		return CollectionUtil.toArray(Predicate.class, convertFilters(filters, criteriaBuilder, root, binding));
 	}
 }
@@ -17,13 +17,14 @@
 package com.vaadin.addon.jpacontainer.metadata;
 
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
@@ -43,6 +44,8 @@ public class ClassMetadata<E> implements Serializable {
     private final Class<E> mappedClass;
     private final Map<String, PropertyMetadata> allProperties = new LinkedHashMap<String, PropertyMetadata>();
     private final Map<String, PersistentPropertyMetadata> persistentProperties = new LinkedHashMap<String, PersistentPropertyMetadata>();
+    // Resolved property paths, not serialized
+    transient private volatile Map<PropertyPath, ResolvedPropertyPath> resolvedPaths;
 
     /**
      * Constructs a new <code>ClassMetadata</code> instance. Properties can be
@@ -78,6 +81,7 @@ public class ClassMetadata<E> implements Serializable {
                 persistentProperties.remove(pm.getName());
             }
         }
+        resolvedPaths = null;
     }
 
     /**
@@ -158,51 +162,7 @@ public class ClassMetadata<E> implements Serializable {
             throws IllegalArgumentException {
         assert object != null : "object must not be null";
         assert property != null : "property must not be null";
-        try {
-            if (property instanceof PersistentPropertyMetadata) {
-                PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                if (ppmd.field != null) {
-                    return getPropertyValueFromField(object, ppmd);
-                }
-            }
-            return property.getter.invoke(object);
-        } catch (IllegalAccessException e) {
-            throw new IllegalArgumentException(
-                    "Cannot access the property value", e);
-        } catch (InvocationTargetException e) {
-            throw new IllegalArgumentException(
-                    "Cannot access the property value", e);
-        }
-    }
-
-    private Object getPropertyValueFromField(E object,
-            PersistentPropertyMetadata ppmd) throws IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException {
-        // First we try to find a getter for the field in order to
-        // make getter-based lazy loading work.
-        Class<?> clazz = ppmd.field.getDeclaringClass();
-        Method getter = null;
-        try {
-            getter = clazz.getMethod("get" + capitalize(ppmd.fieldName));
-        } catch (Exception e) {
-            try {
-                getter = clazz.getMethod("is" + capitalize(ppmd.fieldName));
-            } catch (Exception e1) {
-            }
-        }
-        if (getter == null) {
-            try {
-                ppmd.field.setAccessible(true);
-                return ppmd.field.get(object);
-            } finally {
-                ppmd.field.setAccessible(false);
-            }
-        }
-        return getter.invoke(object);
-    }
-
-    private String capitalize(String string) {
-        return string.substring(0, 1).toUpperCase() + string.substring(1);
+        return property.getAccessor().getValue(object);
     }
 
     /**
@@ -224,31 +184,7 @@ public class ClassMetadata<E> implements Serializable {
         assert object != null : "object must not be null";
         assert property != null : "property must not be null";
         if (property != null && property.isWritable()) {
-            try {
-                if (property.setter == null
-                        && property instanceof PersistentPropertyMetadata) {
-                    // use direct field access of PersistentPropertyMetadata iff
-                    // the setter method does not exist
-                    PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                    if (ppmd.field != null) {
-                        try {
-                            ppmd.field.setAccessible(true);
-                            ppmd.field.set(object, value);
-                            return;
-                        } finally {
-                            ppmd.field.setAccessible(false);
-                        }
-                    }
-                }
-                assert property.setter != null;
-                property.setter.invoke(object, value);
-            } catch (IllegalAccessException e) {
-                throw new IllegalArgumentException(
-                        "Cannot set the property value", e);
-            } catch (InvocationTargetException e) {
-                throw new IllegalArgumentException(
-                        "Cannot set the property value", e);
-            }
+            property.getAccessor().setValue(object, value);
         } else {
             throw new IllegalArgumentException("No such writable property: "
                     + property.getName());
@@ -324,57 +260,23 @@ public class ClassMetadata<E> implements Serializable {
      *             if the property value could not be fetched, e.g. due to
      *             <code>propertyName</code> being invalid.
      */
-    @SuppressWarnings("unchecked")
     public Object getPropertyValue(E object, String propertyName)
             throws IllegalArgumentException {
-        assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
+        return getPropertyValue(object, PropertyPath.of(propertyName));
+    }
 
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
-        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
-        Class<?> type = null;
-        Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
-            if (typeMetadata != null) {
-                PropertyMetadata pmd = typeMetadata.getProperty(propName);
-                if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                currentObject = typeMetadata.getPropertyValue(currentObject,
-                        pmd);
-                if (currentObject == null) {
-                    return null;
-                }
-                if (pmd instanceof PersistentPropertyMetadata) {
-                    typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                            .getTypeMetadata();
-                } else {
-                    typeMetadata = null;
-                }
-                if (typeMetadata == null) {
-                    type = pmd.getType();
-                } else {
-                    type = null;
-                }
-            } else if (type != null) {
-                Method getter = getGetterMethod(propName, type);
-                if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                try {
-                    currentObject = getter.invoke(currentObject);
-                    if (currentObject == null) {
-                        return null;
-                    }
-                    type = getter.getReturnType();
-                } catch (Exception e) {
-                    throw new IllegalArgumentException(
-                            "Could not access a nested property", e);
-                }
-            }
-        }
-        return currentObject;
+    /**
+     * Gets the value of the property that <code>path</code> refers to.
+     * 
+     * @see #getPropertyValue(Object, String)
+     * @since 3.2.0
+     */
+    public Object getPropertyValue(E object, PropertyPath path)
+            throws IllegalArgumentException {
+        assert object != null : "object must not be null";
+        assert path != null : "path must not be null";
+        return resolve(path).getAccessor().getValue(object);
     }
 
     /**
@@ -395,79 +297,96 @@ public class ClassMetadata<E> implements Serializable {
      *             if a nested property name is used and one of the nested
      *             properties (other than the last one) is null.
      */
-    @SuppressWarnings("unchecked")
     public void setPropertyValue(E object, String propertyName, Object value)
             throws IllegalArgumentException, IllegalStateException {
-        assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
+        setPropertyValue(object, PropertyPath.of(propertyName), value);
+    }
+
+    /**
+     * Sets the value of the property that <code>path</code> refers to.
+     * 
+     * @see #setPropertyValue(Object, String, Object)
+     * @since 3.2.0
+     */
+    public void setPropertyValue(E object, PropertyPath path, Object value)
+            throws IllegalArgumentException, IllegalStateException {
+        assert object != null : "object must not be null";
+        assert path != null : "path must not be null";
+        resolve(path).getAccessor().setValue(object, value);
+    }
+
+    /**
+     * Resolves <code>path</code> against the metadata of this class and the
+     * types of its properties. Each path is resolved only once, after which
+     * the result is cached.
+     * 
+     * @param path
+     *            the path to resolve (must not be null).
+     * @return the resolved path (never null). If the path does not refer to an
+     *         existing property, {@link ResolvedPropertyPath#isValid()}
+     *         returns false and accessing the value throws an
+     *         {@link IllegalArgumentException}.
+     * @since 3.2.0
+     */
+    public ResolvedPropertyPath resolve(PropertyPath path) {
+        assert path != null : "path must not be null";
+        Map<PropertyPath, ResolvedPropertyPath> paths = resolvedPaths;
+        if (paths == null) {
+            paths = new ConcurrentHashMap<PropertyPath, ResolvedPropertyPath>();
+            resolvedPaths = paths;
+        }
+        ResolvedPropertyPath resolved = paths.get(path);
+        if (resolved == null) {
+            resolved = doResolve(path);
+            paths.put(path, resolved);
+        }
+        return resolved;
+    }
 
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
-        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
+    /**
+     * Resolves each part of <code>path</code> and chains the accessors of the
+     * parts together. The parts are resolved using the metadata of the
+     * property types, or as JavaBean properties when there is no metadata.
+     */
+    private ResolvedPropertyPath doResolve(PropertyPath path) {
+        List<PropertyAccessor> chain = new ArrayList<PropertyAccessor>();
+        List<PropertyMetadata> metadata = new ArrayList<PropertyMetadata>();
+        ClassMetadata<?> typeMetadata = this;
         Class<?> type = null;
-        Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
+        for (String propName : path.getParts()) {
             if (typeMetadata != null) {
                 PropertyMetadata pmd = typeMetadata.getProperty(propName);
                 if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
+                    type = null;
+                    break;
                 }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    typeMetadata.setPropertyValue(currentObject, pmd, value);
+                chain.add(pmd.getAccessor());
+                metadata.add(pmd);
+                type = pmd.getType();
+                if (pmd instanceof PersistentPropertyMetadata) {
+                    typeMetadata = ((PersistentPropertyMetadata) pmd)
+                            .getTypeMetadata();
                 } else {
-                    currentObject = typeMetadata.getPropertyValue(
-                            currentObject, pmd);
-                    if (currentObject == null) {
-                        throw new IllegalStateException(
-                                "A null value was found in the chain of nested properties");
-                    }
-                    if (pmd instanceof PersistentPropertyMetadata) {
-                        typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                                .getTypeMetadata();
-                    } else {
-                        typeMetadata = null;
-                    }
-                    if (typeMetadata == null) {
-                        type = pmd.getType();
-                    } else {
-                        type = null;
-                    }
+                    typeMetadata = null;
                 }
-            } else if (type != null) {
+            } else {
                 Method getter = getGetterMethod(propName, type);
                 if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    Method setter = getSetterMethod(propName, type,
-                            getter.getReturnType());
-                    if (setter == null) {
-                        throw new IllegalArgumentException(
-                                "Property is read only");
-                    }
-                    try {
-                        setter.invoke(currentObject, value);
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not set the value");
-                    }
-                } else {
-                    try {
-                        currentObject = getter.invoke(currentObject);
-                        if (currentObject == null) {
-                            throw new IllegalStateException(
-                                    "A null value was found in the chain of nested properties");
-                        }
-                        type = getter.getReturnType();
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not access a nested property", e);
-                    }
+                    type = null;
+                    break;
                 }
+                chain.add(PropertyAccessor.forMethods(propName, getter,
+                        getSetterMethod(propName, type, getter.getReturnType())));
+                metadata.add(null);
+                type = getter.getReturnType();
             }
         }
+        if (type == null) {
+            chain.add(PropertyAccessor.invalid("Invalid property name"));
+        }
+        return new ResolvedPropertyPath(path, metadata, type,
+                PropertyAccessor.chain(chain));
     }
 
     @Override
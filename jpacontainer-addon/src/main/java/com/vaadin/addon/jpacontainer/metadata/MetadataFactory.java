@@ -23,12 +23,15 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.ElementCollection;
 import javax.persistence.Embeddable;
 import javax.persistence.Embedded;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
@@ -37,20 +40,37 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Transient;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
 
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
 
 /**
  * Factory for creating and populating {@link ClassMetadata} and
  * {@link EntityClassMetadata} instances.
+ * <p>
+ * The metadata of each class is extracted only once and then cached. Cached
+ * metadata is looked up without locking. Extracting new metadata is done by
+ * one thread at a time, and the metadata is only made visible to other
+ * threads once it, and the metadata of all the classes it refers to, has been
+ * completely populated. To avoid extracting metadata while the first requests
+ * are being served, {@link #warmUp(EntityManagerFactory)} can be called when
+ * the application starts.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
 public class MetadataFactory {
 
-	private static MetadataFactory INSTANCE;
-	private Map<Class<?>, ClassMetadata<?>> metadataMap = new HashMap<Class<?>, ClassMetadata<?>>();
+	private static volatile MetadataFactory INSTANCE = new MetadataFactory();
+	private final ConcurrentMap<Class<?>, ClassMetadata<?>> metadataMap = new ConcurrentHashMap<Class<?>, ClassMetadata<?>>();
+	private final Object buildLock = new Object();
+	/*
+	 * Metadata that is being extracted by the thread holding buildLock. It is
+	 * needed to resolve references between classes before the metadata is
+	 * published in metadataMap.
+	 */
+	private Map<Class<?>, ClassMetadata<?>> metadataInProgress;
 
 	protected MetadataFactory() {
 		// NOP
@@ -62,12 +82,72 @@ public class MetadataFactory {
 	 * @return the factory instance (never null).
 	 */
 	public static MetadataFactory getInstance() {
-		if (INSTANCE == null) {
-			INSTANCE = new MetadataFactory();
-		}
 		return INSTANCE;
 	}
 
+	/**
+	 * Replaces the singleton instance of this factory, e.g. with a
+	 * {@link MetamodelMetadataFactory}. This should be done when the
+	 * application starts, before any containers or entity providers are
+	 * created, as the metadata is not shared between factories.
+	 * 
+	 * @param factory
+	 *            the factory to use (must not be null).
+	 * @since 3.2.0
+	 */
+	public static void setInstance(MetadataFactory factory) {
+		assert factory != null : "factory must not be null";
+		INSTANCE = factory;
+	}
+
+	/**
+	 * Extracts the metadata of all the entity classes of
+	 * <code>entityManagerFactory</code>, so that it is readily available when
+	 * containers are created.
+	 * 
+	 * @see #warmUp(Metamodel)
+	 * @param entityManagerFactory
+	 *            the entity manager factory (must not be null).
+	 * @since 3.2.0
+	 */
+	public void warmUp(EntityManagerFactory entityManagerFactory) {
+		assert entityManagerFactory != null : "entityManagerFactory must not be null";
+		warmUp(entityManagerFactory.getMetamodel());
+	}
+
+	/**
+	 * Extracts the metadata of all the entity classes in
+	 * <code>metamodel</code> and prepares the property accessors, so that the
+	 * first requests using the entities do not have to do it. Classes that
+	 * this factory does not consider entity classes or whose access type
+	 * cannot be determined are skipped.
+	 * 
+	 * @param metamodel
+	 *            the metamodel of the persistence unit (must not be null).
+	 * @return the number of entity classes whose metadata is available.
+	 * @since 3.2.0
+	 */
+	public int warmUp(Metamodel metamodel) {
+		assert metamodel != null : "metamodel must not be null";
+		int count = 0;
+		for (EntityType<?> entityType : metamodel.getEntities()) {
+			Class<?> javaType = entityType.getJavaType();
+			if (javaType == null || !isEntityClass(javaType)) {
+				continue;
+			}
+			try {
+				EntityClassMetadata<?> metadata = getEntityClassMetadata(javaType);
+				for (PropertyMetadata pm : metadata.getProperties()) {
+					pm.getAccessor();
+				}
+				count++;
+			} catch (IllegalArgumentException e) {
+				// Not supported by the factory, it will fail later if used
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Extracts the entity class metadata from <code>mappedClass</code>. The
 	 * access type (field or method) will be determined from the location of the
@@ -84,7 +164,7 @@ public class MetadataFactory {
 	public <T> EntityClassMetadata<T> getEntityClassMetadata(
 			Class<T> mappedClass) throws IllegalArgumentException {
 		assert mappedClass != null : "mappedClass must not be null";
-		if (mappedClass.getAnnotation(Entity.class) == null) {
+		if (!isEntityClass(mappedClass)) {
 			throw new IllegalArgumentException("The class is not an entity");
 		}
 		PersistentPropertyMetadata.AccessType accessType = determineAccessType(mappedClass);
@@ -129,17 +209,46 @@ public class MetadataFactory {
 			return metadata;
 		}
 
+		synchronized (buildLock) {
+			metadata = (ClassMetadata<T>) metadataMap.get(mappedClass);
+			if (metadata != null) {
+				// Extracted by another thread while we were waiting
+				return metadata;
+			}
+			if (metadataInProgress != null) {
+				// Called from loadProperties() of another class
+				metadata = (ClassMetadata<T>) metadataInProgress
+						.get(mappedClass);
+				if (metadata == null) {
+					metadata = createClassMetadata(mappedClass, accessType);
+				}
+				return metadata;
+			}
+			metadataInProgress = new HashMap<Class<?>, ClassMetadata<?>>();
+			try {
+				metadata = createClassMetadata(mappedClass, accessType);
+				// Publish the whole graph only once it is complete
+				metadataMap.putAll(metadataInProgress);
+			} finally {
+				metadataInProgress = null;
+			}
+			return metadata;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> ClassMetadata<T> createClassMetadata(Class<T> mappedClass,
+			PersistentPropertyMetadata.AccessType accessType)
+			throws IllegalArgumentException {
+		ClassMetadata<T> metadata;
 		// Check if we are dealing with an entity class or an embeddable class
-		Entity entity = mappedClass.getAnnotation(Entity.class);
-		Embeddable embeddable = mappedClass.getAnnotation(Embeddable.class);
-		if (entity != null) {
+		if (isEntityClass(mappedClass)) {
 			// We have an entity class
-			String entityName = entity.name().length() == 0 ? mappedClass
-					.getSimpleName() : entity.name();
-			metadata = new EntityClassMetadata<T>(mappedClass, entityName);
+			metadata = new EntityClassMetadata<T>(mappedClass,
+					getEntityName(mappedClass));
 			// Put the metadata instance in the cache in case it is referenced
 			// from loadProperties()
-			metadataMap.put(mappedClass, metadata);
+			metadataInProgress.put(mappedClass, metadata);
 			loadProperties(mappedClass, metadata, accessType);
 
 			// Locate the version and identifier properties
@@ -160,12 +269,12 @@ public class MetadataFactory {
 					break;
 				}
 			}
-		} else if (embeddable != null) {
+		} else if (isEmbeddableClass(mappedClass)) {
 			// We have an embeddable class
 			metadata = new ClassMetadata<T>(mappedClass);
 			// Put the metadata instance in the cache in case it is referenced
 			// from loadProperties()
-			metadataMap.put(mappedClass, metadata);
+			metadataInProgress.put(mappedClass, metadata);
 			loadProperties(mappedClass, metadata, accessType);
 		} else {
 			throw new IllegalArgumentException("The class "
@@ -176,6 +285,55 @@ public class MetadataFactory {
 		return metadata;
 	}
 
+	/**
+	 * Returns true if <code>type</code> is an entity class.
+	 * 
+	 * @since 3.2.0
+	 */
+	protected boolean isEntityClass(Class<?> type) {
+		return type.getAnnotation(Entity.class) != null;
+	}
+
+	/**
+	 * Returns true if <code>type</code> is an embeddable class.
+	 * 
+	 * @since 3.2.0
+	 */
+	protected boolean isEmbeddableClass(Class<?> type) {
+		return type.getAnnotation(Embeddable.class) != null;
+	}
+
+	/**
+	 * Gets the name of the entity class <code>type</code> to be used in
+	 * queries.
+	 * 
+	 * @since 3.2.0
+	 */
+	protected String getEntityName(Class<?> type) {
+		String name = type.getAnnotation(Entity.class).name();
+		return name.length() == 0 ? type.getSimpleName() : name;
+	}
+
+	/**
+	 * Gets a snapshot of all the metadata extracted so far.
+	 */
+	Map<Class<?>, ClassMetadata<?>> getCachedMetadata() {
+		return new HashMap<Class<?>, ClassMetadata<?>>(metadataMap);
+	}
+
+	/**
+	 * Adds previously extracted metadata to the cache. Metadata that is
+	 * already in the cache is not replaced.
+	 */
+	void addCachedMetadata(Map<Class<?>, ClassMetadata<?>> metadata) {
+		synchronized (buildLock) {
+			for (Map.Entry<Class<?>, ClassMetadata<?>> entry : metadata
+					.entrySet()) {
+				metadataMap.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
 	protected void loadProperties(Class<?> type, ClassMetadata<?> metadata,
 			PersistentPropertyMetadata.AccessType accessType) {
 
@@ -370,7 +528,7 @@ public class MetadataFactory {
 		return f.getType();
 	}
 
-	private Class<?> convertPrimitiveType(Class<?> type) {
+	protected Class<?> convertPrimitiveType(Class<?> type) {
 		// Vaadin fields don't work with primitive values, use wrapper types for
 		// primitives
 		if (type.isPrimitive()) {
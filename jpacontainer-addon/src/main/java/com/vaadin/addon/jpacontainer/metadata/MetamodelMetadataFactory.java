@@ -0,0 +1,428 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type.PersistenceType;
+
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
+
+/**
+ * {@link MetadataFactory} that builds the metadata of the persistent
+ * properties from the JPA metamodel of a persistence unit, instead of looking
+ * for mapping annotations in the entity classes and their superclasses. This
+ * is faster for large models and also supports mappings that are defined in
+ * <code>orm.xml</code>. Classes that are not part of the metamodel are handled
+ * like by the annotation based factory. Getters of properties that are not
+ * persistent are still added as transient properties.
+ * <p>
+ * The extracted metadata can be saved to an index with
+ * {@link #writeIndex(OutputStream)} and read back when the application is
+ * restarted with {@link #readIndex(InputStream)}, which skips the extraction
+ * altogether. The index is only used if the persistence unit still manages
+ * the same classes, so it should be deleted whenever the mapping of a class
+ * changes.
+ * <p>
+ * To make the containers use this factory, pass it to
+ * {@link MetadataFactory#setInstance(MetadataFactory)} when the application
+ * starts.
+ * 
+ * @since 3.2.0
+ */
+public class MetamodelMetadataFactory extends MetadataFactory {
+
+    private final Map<Class<?>, ManagedType<?>> managedTypes = new HashMap<Class<?>, ManagedType<?>>();
+
+    /**
+     * Creates a new <code>MetamodelMetadataFactory</code> for the persistence
+     * unit of <code>entityManagerFactory</code>.
+     * 
+     * @param entityManagerFactory
+     *            the entity manager factory (must not be null).
+     */
+    public MetamodelMetadataFactory(EntityManagerFactory entityManagerFactory) {
+        this(entityManagerFactory.getMetamodel());
+    }
+
+    /**
+     * Creates a new <code>MetamodelMetadataFactory</code> that uses
+     * <code>metamodel</code>.
+     * 
+     * @param metamodel
+     *            the metamodel of the persistence unit (must not be null).
+     */
+    public MetamodelMetadataFactory(Metamodel metamodel) {
+        assert metamodel != null : "metamodel must not be null";
+        for (ManagedType<?> managedType : metamodel.getManagedTypes()) {
+            if (managedType.getJavaType() != null) {
+                managedTypes.put(managedType.getJavaType(), managedType);
+            }
+        }
+    }
+
+    @Override
+    protected boolean isEntityClass(Class<?> type) {
+        ManagedType<?> managedType = managedTypes.get(type);
+        if (managedType == null) {
+            return super.isEntityClass(type);
+        }
+        return managedType.getPersistenceType() == PersistenceType.ENTITY;
+    }
+
+    @Override
+    protected boolean isEmbeddableClass(Class<?> type) {
+        ManagedType<?> managedType = managedTypes.get(type);
+        if (managedType == null) {
+            return super.isEmbeddableClass(type);
+        }
+        return managedType.getPersistenceType() == PersistenceType.EMBEDDABLE;
+    }
+
+    @Override
+    protected String getEntityName(Class<?> type) {
+        ManagedType<?> managedType = managedTypes.get(type);
+        if (managedType instanceof EntityType) {
+            return ((EntityType<?>) managedType).getName();
+        }
+        return super.getEntityName(type);
+    }
+
+    @Override
+    protected AccessType determineAccessType(Class<?> type) {
+        ManagedType<?> managedType = managedTypes.get(type);
+        if (managedType instanceof IdentifiableType) {
+            for (Attribute<?, ?> attribute : managedType.getAttributes()) {
+                if (attribute instanceof SingularAttribute
+                        && ((SingularAttribute<?, ?>) attribute).isId()) {
+                    Member member = attribute.getJavaMember();
+                    if (member instanceof Field) {
+                        return AccessType.FIELD;
+                    } else if (member instanceof Method) {
+                        return AccessType.METHOD;
+                    }
+                }
+            }
+        }
+        return super.determineAccessType(type);
+    }
+
+    @Override
+    protected void loadProperties(Class<?> type, ClassMetadata<?> metadata,
+            AccessType accessType) {
+        ManagedType<?> managedType = managedTypes.get(type);
+        if (managedType == null) {
+            super.loadProperties(type, metadata, accessType);
+            return;
+        }
+
+        Collection<? extends Attribute<?, ?>> attributes;
+        Class<?> superclass = type.getSuperclass();
+        if (superclass != null && managedTypes.containsKey(superclass)) {
+            loadProperties(superclass, metadata, accessType);
+            attributes = managedType.getDeclaredAttributes();
+        } else {
+            // Includes the attributes of mapped superclasses that are not
+            // part of the metamodel
+            attributes = managedType.getAttributes();
+        }
+
+        Set<Class<?>> declaringClasses = new LinkedHashSet<Class<?>>();
+        for (Attribute<?, ?> attribute : sortInDeclarationOrder(attributes)) {
+            PropertyMetadata pm = createPropertyMetadata(attribute, accessType);
+            if (pm != null) {
+                metadata.addProperties(pm);
+                declaringClasses.add(attribute.getJavaMember()
+                        .getDeclaringClass());
+            }
+        }
+        declaringClasses.add(type);
+        for (Class<?> declaringClass : declaringClasses) {
+            extractTransientProperties(declaringClass, metadata);
+        }
+
+        if (metadata instanceof EntityClassMetadata) {
+            EntityClassMetadata<?> entityMetadata = (EntityClassMetadata<?>) metadata;
+            for (Attribute<?, ?> attribute : attributes) {
+                if (attribute instanceof SingularAttribute
+                        && metadata.getProperty(attribute.getName()) instanceof PersistentPropertyMetadata) {
+                    SingularAttribute<?, ?> singular = (SingularAttribute<?, ?>) attribute;
+                    if (singular.isId()) {
+                        entityMetadata.setIdentifierPropertyName(singular
+                                .getName());
+                    } else if (singular.isVersion()) {
+                        entityMetadata.setVersionPropertyName(singular
+                                .getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the metadata of a persistent attribute.
+     * 
+     * @return the metadata, or null if the attribute is not backed by a field
+     *         or a getter method.
+     */
+    protected PropertyMetadata createPropertyMetadata(
+            Attribute<?, ?> attribute, AccessType accessType) {
+        String name = attribute.getName();
+        Class<?> javaType = attribute.getJavaType();
+        PropertyKind kind;
+        switch (attribute.getPersistentAttributeType()) {
+        case EMBEDDED:
+            kind = PropertyKind.EMBEDDED;
+            break;
+        case MANY_TO_ONE:
+            kind = PropertyKind.MANY_TO_ONE;
+            break;
+        case ONE_TO_ONE:
+            kind = PropertyKind.ONE_TO_ONE;
+            break;
+        case ONE_TO_MANY:
+            kind = PropertyKind.ONE_TO_MANY;
+            break;
+        case MANY_TO_MANY:
+            kind = PropertyKind.MANY_TO_MANY;
+            break;
+        case ELEMENT_COLLECTION:
+            kind = PropertyKind.ELEMENT_COLLECTION;
+            break;
+        default:
+            kind = PropertyKind.SIMPLE;
+        }
+        ClassMetadata<?> typeMetadata = null;
+        if (kind == PropertyKind.EMBEDDED || kind == PropertyKind.MANY_TO_ONE
+                || kind == PropertyKind.ONE_TO_ONE) {
+            AccessType typeAccessType = determineAccessType(javaType);
+            typeMetadata = getClassMetadata(javaType,
+                    typeAccessType == null ? accessType : typeAccessType);
+        }
+
+        Member member = attribute.getJavaMember();
+        if (member instanceof Field) {
+            Field f = (Field) member;
+            Method setter = null;
+            try {
+                setter = f.getDeclaringClass().getMethod(
+                        "set" + f.getName().substring(0, 1).toUpperCase()
+                                + f.getName().substring(1), f.getType());
+            } catch (Exception e) {
+                // Setter does not exist or is not accessible
+            }
+            if (typeMetadata != null) {
+                return new PersistentPropertyMetadata(name, typeMetadata,
+                        kind, f, setter);
+            }
+            return new PersistentPropertyMetadata(name,
+                    kind == PropertyKind.SIMPLE ? convertPrimitiveType(f
+                            .getType()) : f.getType(), kind, f, setter);
+        } else if (member instanceof Method) {
+            Method getter = (Method) member;
+            Method setter = null;
+            try {
+                setter = getter.getDeclaringClass().getDeclaredMethod(
+                        "set" + getPropertyNamePart(getter),
+                        getter.getReturnType());
+            } catch (NoSuchMethodException e) {
+                // No setter <=> transient property
+            }
+            if (setter == null) {
+                return new PropertyMetadata(name, getter.getReturnType(),
+                        getter, null);
+            } else if (typeMetadata != null) {
+                return new PersistentPropertyMetadata(name, typeMetadata,
+                        kind, getter, setter);
+            }
+            return new PersistentPropertyMetadata(name,
+                    getter.getReturnType(), kind, getter, setter);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the getters declared in <code>type</code> that do not belong to
+     * any persistent property as transient properties.
+     */
+    private void extractTransientProperties(Class<?> type,
+            ClassMetadata<?> metadata) {
+        for (Method m : type.getDeclaredMethods()) {
+            if (isGetter(m)) {
+                String name = Introspector.decapitalize(getPropertyNamePart(m));
+                if (metadata.getProperty(name) == null) {
+                    Method setter = null;
+                    try {
+                        setter = type.getDeclaredMethod(
+                                "set" + getPropertyNamePart(m),
+                                m.getReturnType());
+                    } catch (NoSuchMethodException ignoreit) {
+                    }
+                    metadata.addProperties(new PropertyMetadata(name, m
+                            .getReturnType(), m, setter));
+                }
+            }
+        }
+    }
+
+    private static boolean isGetter(Method m) {
+        // Synthetic methods are excluded (#4590), see MetadataFactory
+        return (m.getName().startsWith("get") || m.getName().startsWith("is"))
+                && m.getName().length() > 3
+                && !Modifier.isStatic(m.getModifiers()) && !m.isSynthetic()
+                && m.getReturnType() != Void.TYPE
+                && m.getParameterTypes().length == 0;
+    }
+
+    private static String getPropertyNamePart(Method getter) {
+        return getter.getName().substring(
+                getter.getName().startsWith("get") ? 3 : 2);
+    }
+
+    /**
+     * Sorts the attributes so that the attributes of superclasses come first,
+     * and the attributes of each class in the order their fields or getters
+     * are declared in, like in the annotation based factory.
+     */
+    private static List<Attribute<?, ?>> sortInDeclarationOrder(
+            Collection<? extends Attribute<?, ?>> attributes) {
+        final Map<Member, Integer> order = new HashMap<Member, Integer>();
+        final Map<Class<?>, Integer> depths = new HashMap<Class<?>, Integer>();
+        for (Attribute<?, ?> attribute : attributes) {
+            Member member = attribute.getJavaMember();
+            if (member == null
+                    || depths.containsKey(member.getDeclaringClass())) {
+                continue;
+            }
+            Class<?> declaringClass = member.getDeclaringClass();
+            int depth = 0;
+            for (Class<?> c = declaringClass.getSuperclass(); c != null; c = c
+                    .getSuperclass()) {
+                depth++;
+            }
+            depths.put(declaringClass, depth);
+            int i = 0;
+            for (Field f : declaringClass.getDeclaredFields()) {
+                order.put(f, i++);
+            }
+            for (Method m : declaringClass.getDeclaredMethods()) {
+                order.put(m, i++);
+            }
+        }
+        List<Attribute<?, ?>> sorted = new ArrayList<Attribute<?, ?>>(
+                attributes);
+        Collections.sort(sorted, new Comparator<Attribute<?, ?>>() {
+
+            @Override
+            public int compare(Attribute<?, ?> a1, Attribute<?, ?> a2) {
+                return position(a1) - position(a2);
+            }
+
+            private int position(Attribute<?, ?> attribute) {
+                Member member = attribute.getJavaMember();
+                if (member == null || !order.containsKey(member)) {
+                    return Integer.MAX_VALUE / 2;
+                }
+                return depths.get(member.getDeclaringClass()) * 100000
+                        + order.get(member);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Writes all the metadata extracted so far to <code>out</code>, together
+     * with the names of the classes managed by the persistence unit.
+     * 
+     * @param out
+     *            the stream to write the index to (must not be null).
+     * @throws IOException
+     *             if the index could not be written.
+     */
+    public void writeIndex(OutputStream out) throws IOException {
+        assert out != null : "out must not be null";
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(getManagedClassNames());
+        oos.writeObject(getCachedMetadata());
+        oos.flush();
+    }
+
+    /**
+     * Reads an index written by {@link #writeIndex(OutputStream)} and adds the
+     * metadata in it to this factory. The index is ignored if the persistence
+     * unit does not manage the same classes as when the index was written, or
+     * if the classes have changed so that the metadata cannot be restored.
+     * 
+     * @param in
+     *            the stream to read the index from (must not be null).
+     * @return true if the metadata was read, false if the index was ignored.
+     * @throws IOException
+     *             if the index could not be read.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean readIndex(InputStream in) throws IOException {
+        assert in != null : "in must not be null";
+        try {
+            ObjectInputStream ois = new ObjectInputStream(in);
+            if (!getManagedClassNames().equals(ois.readObject())) {
+                return false;
+            }
+            addCachedMetadata((Map<Class<?>, ClassMetadata<?>>) ois
+                    .readObject());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (ObjectStreamException e) {
+            return false;
+        }
+    }
+
+    private TreeSet<String> getManagedClassNames() {
+        TreeSet<String> names = new TreeSet<String>();
+        for (Class<?> type : managedTypes.keySet()) {
+            names.add(type.getName());
+        }
+        return names;
+    }
+}
@@ -22,6 +22,14 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
+
 /**
  * An extended version of {@link PropertyMetadata} that provides additional
  * information about persistent properties.
@@ -239,6 +247,28 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         return field != null ? AccessType.FIELD : AccessType.METHOD;
     }
 
+    @Override
+    PropertyAccessor createAccessor() {
+        if (field == null) {
+            return super.createAccessor();
+        }
+        // First we try to find a getter for the field in order to make
+        // getter-based lazy loading work.
+        Class<?> clazz = field.getDeclaringClass();
+        String capitalized = fieldName.substring(0, 1).toUpperCase()
+                + fieldName.substring(1);
+        Method fieldGetter = null;
+        try {
+            fieldGetter = clazz.getMethod("get" + capitalized);
+        } catch (NoSuchMethodException e) {
+            try {
+                fieldGetter = clazz.getMethod("is" + capitalized);
+            } catch (NoSuchMethodException e1) {
+            }
+        }
+        return PropertyAccessor.forField(getName(), field, fieldGetter, setter);
+    }
+
     @Override
     public <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
         if (field != null) {
@@ -285,6 +315,41 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         }
     }
 
+    /**
+     * {@inheritDoc }
+     * <p>
+     * A persistent property is never null if it is primitive, part of the
+     * identifier, or declared mandatory using <code>nullable = false</code> or
+     * <code>optional = false</code> in its mapping annotations.
+     */
+    @Override
+    public boolean isNullable() {
+        Class<?> declaredType = field != null ? field.getType() : getter
+                .getReturnType();
+        if (declaredType.isPrimitive() || getAnnotation(Id.class) != null
+                || getAnnotation(EmbeddedId.class) != null) {
+            return false;
+        }
+        Column column = getAnnotation(Column.class);
+        if (column != null && !column.nullable()) {
+            return false;
+        }
+        Basic basic = getAnnotation(Basic.class);
+        if (basic != null && !basic.optional()) {
+            return false;
+        }
+        JoinColumn joinColumn = getAnnotation(JoinColumn.class);
+        if (joinColumn != null && !joinColumn.nullable()) {
+            return false;
+        }
+        ManyToOne manyToOne = getAnnotation(ManyToOne.class);
+        if (manyToOne != null && !manyToOne.optional()) {
+            return false;
+        }
+        OneToOne oneToOne = getAnnotation(OneToOne.class);
+        return oneToOne == null || oneToOne.optional();
+    }
+
     /**
      * {@inheritDoc }.
      */
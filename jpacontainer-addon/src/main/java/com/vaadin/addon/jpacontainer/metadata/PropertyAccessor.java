@@ -0,0 +1,273 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Reads and writes the value of a property. The getter and setter of the
+ * property are resolved into {@link MethodHandle}s once, when the accessor is
+ * created, so that reading a value does not involve any reflective lookups.
+ * Accessors are not serializable and are created on demand by
+ * {@link PropertyMetadata} and {@link ClassMetadata}.
+ * 
+ * @since 3.2.0
+ */
+abstract class PropertyAccessor {
+
+    /**
+     * Gets the value of the property from <code>object</code>.
+     * 
+     * @param object
+     *            the object to read (must not be null).
+     * @return the property value.
+     * @throws IllegalArgumentException
+     *             if the value could not be read.
+     */
+    abstract Object getValue(Object object) throws IllegalArgumentException;
+
+    /**
+     * Sets the value of the property of <code>object</code>.
+     * 
+     * @param object
+     *            the object to write (must not be null).
+     * @param value
+     *            the value to set.
+     * @throws IllegalArgumentException
+     *             if the value could not be set, e.g. because the property is
+     *             read only.
+     * @throws IllegalStateException
+     *             if a nested property other than the last one is null.
+     */
+    abstract void setValue(Object object, Object value)
+            throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Creates an accessor that uses the specified getter and setter methods.
+     * 
+     * @param name
+     *            the name of the property (must not be null).
+     * @param getter
+     *            the getter method, or null if the property cannot be read.
+     * @param setter
+     *            the setter method, or null if the property is read only.
+     */
+    static PropertyAccessor forMethods(String name, Method getter,
+            Method setter) {
+        try {
+            return new HandleAccessor(name, unreflect(getter),
+                    unreflect(setter));
+        } catch (IllegalAccessException e) {
+            return new InaccessibleAccessor(e);
+        }
+    }
+
+    /**
+     * Creates an accessor that reads <code>field</code> directly if there is
+     * no getter method.
+     * 
+     * @param name
+     *            the name of the property (must not be null).
+     * @param field
+     *            the field (must not be null).
+     * @param getter
+     *            the getter method, or null to read the field.
+     * @param setter
+     *            the setter method, or null if the property is read only.
+     */
+    static PropertyAccessor forField(String name, Field field, Method getter,
+            Method setter) {
+        assert field != null : "field must not be null";
+        if (getter != null) {
+            return forMethods(name, getter, setter);
+        }
+        try {
+            // The handle keeps the access granted here
+            field.setAccessible(true);
+            MethodHandle getterHandle = MethodHandles.lookup().unreflectGetter(
+                    field);
+            return new HandleAccessor(name, getterHandle, unreflect(setter));
+        } catch (IllegalAccessException e) {
+            return new InaccessibleAccessor(e);
+        }
+    }
+
+    /**
+     * Creates an accessor for a nested property that applies
+     * <code>accessors</code> one after the other.
+     * 
+     * @param accessors
+     *            the accessors of the properties in the chain (must not be
+     *            empty).
+     */
+    static PropertyAccessor chain(List<PropertyAccessor> accessors) {
+        assert !accessors.isEmpty() : "accessors must not be empty";
+        if (accessors.size() == 1) {
+            return accessors.get(0);
+        }
+        return new ChainedAccessor(
+                accessors.toArray(new PropertyAccessor[accessors.size()]));
+    }
+
+    /**
+     * Creates an accessor that always fails, used for the invalid parts of a
+     * nested property name. The failure is deferred until the property is
+     * accessed, as a null value earlier in the chain ends the lookup.
+     * 
+     * @param message
+     *            the message of the exception to throw (must not be null).
+     */
+    static PropertyAccessor invalid(final String message) {
+        return new PropertyAccessor() {
+
+            @Override
+            Object getValue(Object object) {
+                throw new IllegalArgumentException(message);
+            }
+
+            @Override
+            void setValue(Object object, Object value) {
+                throw new IllegalArgumentException(message);
+            }
+        };
+    }
+
+    private static MethodHandle unreflect(Method method)
+            throws IllegalAccessException {
+        if (method == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // E.g. a public method of a class that is not public
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        }
+    }
+
+    private static final class HandleAccessor extends PropertyAccessor {
+
+        private static final MethodType GETTER_TYPE = MethodType.methodType(
+                Object.class, Object.class);
+        private static final MethodType SETTER_TYPE = MethodType.methodType(
+                void.class, Object.class, Object.class);
+
+        private final String name;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        HandleAccessor(String name, MethodHandle getter, MethodHandle setter) {
+            this.name = name;
+            this.getter = getter == null ? null : getter.asType(GETTER_TYPE);
+            this.setter = setter == null ? null : setter.asType(SETTER_TYPE);
+        }
+
+        @Override
+        Object getValue(Object object) {
+            if (getter == null) {
+                throw new IllegalArgumentException("No such readable property: "
+                        + name);
+            }
+            try {
+                return (Object) getter.invokeExact(object);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException(
+                        "Cannot access the property value", e);
+            }
+        }
+
+        @Override
+        void setValue(Object object, Object value) {
+            if (setter == null) {
+                throw new IllegalArgumentException("No such writable property: "
+                        + name);
+            }
+            try {
+                setter.invokeExact(object, value);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException(
+                        "Cannot set the property value", e);
+            }
+        }
+    }
+
+    private static final class ChainedAccessor extends PropertyAccessor {
+
+        private final PropertyAccessor[] accessors;
+
+        ChainedAccessor(PropertyAccessor[] accessors) {
+            this.accessors = accessors;
+        }
+
+        @Override
+        Object getValue(Object object) {
+            Object currentObject = object;
+            for (PropertyAccessor accessor : accessors) {
+                currentObject = accessor.getValue(currentObject);
+                if (currentObject == null) {
+                    return null;
+                }
+            }
+            return currentObject;
+        }
+
+        @Override
+        void setValue(Object object, Object value) {
+            Object currentObject = object;
+            int last = accessors.length - 1;
+            for (int i = 0; i < last; i++) {
+                currentObject = accessors[i].getValue(currentObject);
+                if (currentObject == null) {
+                    throw new IllegalStateException(
+                            "A null value was found in the chain of nested properties");
+                }
+            }
+            accessors[last].setValue(currentObject, value);
+        }
+    }
+
+    private static final class InaccessibleAccessor extends PropertyAccessor {
+
+        private final IllegalAccessException cause;
+
+        InaccessibleAccessor(IllegalAccessException cause) {
+            this.cause = cause;
+        }
+
+        @Override
+        Object getValue(Object object) {
+            throw new IllegalArgumentException(
+                    "Cannot access the property value", cause);
+        }
+
+        @Override
+        void setValue(Object object, Object value) {
+            throw new IllegalArgumentException(
+                    "Cannot set the property value", cause);
+        }
+    }
+}
@@ -40,6 +40,8 @@ public class PropertyMetadata implements Serializable {
     private final Class<?> type;
     transient final Method getter;
     transient final Method setter;
+    // Resolved on first use, not serialized
+    transient private volatile PropertyAccessor accessor;
     // Required for serialization:
     protected final String getterName;
     protected final String setterName;
@@ -108,6 +110,28 @@ public class PropertyMetadata implements Serializable {
         }
     }
 
+    /**
+     * Gets the accessor that reads and writes the value of this property. The
+     * accessor is created when it is first needed.
+     */
+    PropertyAccessor getAccessor() {
+        PropertyAccessor a = accessor;
+        if (a == null) {
+            a = createAccessor();
+            accessor = a;
+        }
+        return a;
+    }
+
+    /**
+     * Creates the accessor of this property.
+     * 
+     * @see #getAccessor()
+     */
+    PropertyAccessor createAccessor() {
+        return PropertyAccessor.forMethods(name, getter, setter);
+    }
+
     /**
      * The name of the property.
      */
@@ -154,6 +178,18 @@ public class PropertyMetadata implements Serializable {
     public boolean isWritable() {
         return setter != null;
     }
+
+    /**
+     * Returns whether the value of the property may be null. Only properties
+     * of primitive types are known to never be null.
+     * 
+     * @return true if the property value may be null, false if it is never
+     *         null.
+     * @since 3.2.0
+     */
+    public boolean isNullable() {
+        return getter == null || !getter.getReturnType().isPrimitive();
+    }
     
     public PropertyKind getPropertyKind() {
         return PropertyKind.NONPERSISTENT;
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable, pre-parsed property name that may be nested, e.g.
+ * <code>address.street</code>. The name is split into its parts only once,
+ * when the path is created, so that code building queries or reading property
+ * values does not have to split strings over and over again.
+ * <p>
+ * Property paths are interned: {@link #of(Object)} always returns the same
+ * instance for the same name, which means that paths can be compared by
+ * identity and used as cheap map keys. As all the interned paths are kept in
+ * memory, paths should only be created for the property names of the
+ * application, not for arbitrary user input.
+ * <p>
+ * Use {@link ClassMetadata#resolve(PropertyPath)} to resolve a path against
+ * the metadata of an entity class.
+ * <p>
+ * This class is thread safe.
+ * 
+ * @since 3.2.0
+ */
+public final class PropertyPath implements Serializable {
+
+    private static final long serialVersionUID = -2736093547853398021L;
+    private static final ConcurrentMap<String, PropertyPath> interned = new ConcurrentHashMap<String, PropertyPath>();
+
+    private final String name;
+    private final List<String> parts;
+
+    private PropertyPath(String name) {
+        this.name = name;
+        List<String> p = new ArrayList<String>(4);
+        int start = 0;
+        int dot;
+        while ((dot = name.indexOf('.', start)) != -1) {
+            p.add(name.substring(start, dot));
+            start = dot + 1;
+        }
+        p.add(name.substring(start));
+        this.parts = p.size() == 1 ? Collections.singletonList(p.get(0))
+                : Collections.unmodifiableList(Arrays.asList(p
+                        .toArray(new String[p.size()])));
+    }
+
+    /**
+     * Gets the interned path of <code>propertyId</code>. If
+     * <code>propertyId</code> already is a <code>PropertyPath</code>, it is
+     * returned as such. Otherwise the string representation of
+     * <code>propertyId</code> is used as the name of the path.
+     * 
+     * @param propertyId
+     *            the property ID or name (must not be null).
+     * @return the property path (never null).
+     */
+    public static PropertyPath of(Object propertyId) {
+        assert propertyId != null : "propertyId must not be null";
+        if (propertyId instanceof PropertyPath) {
+            return (PropertyPath) propertyId;
+        }
+        String name = propertyId.toString();
+        PropertyPath path = interned.get(name);
+        if (path == null) {
+            PropertyPath newPath = new PropertyPath(name);
+            path = interned.putIfAbsent(name, newPath);
+            if (path == null) {
+                path = newPath;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Gets the full name of the path, e.g. <code>address.street</code>.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of parts in the path, i.e. 1 for a property that is not
+     * nested.
+     */
+    public int getLength() {
+        return parts.size();
+    }
+
+    /**
+     * Gets the part at <code>index</code>, e.g. <code>street</code> for index
+     * 1 of <code>address.street</code>.
+     * 
+     * @param index
+     *            the index of the part (0 &lt;= index &lt; {@link #getLength()}
+     *            ).
+     */
+    public String getPart(int index) {
+        return parts.get(index);
+    }
+
+    /**
+     * Gets an unmodifiable list of all the parts of the path.
+     */
+    public List<String> getParts() {
+        return parts;
+    }
+
+    /**
+     * Gets the first part of the path, i.e. the name of the property of the
+     * entity class itself.
+     */
+    public String getFirst() {
+        return parts.get(0);
+    }
+
+    /**
+     * Gets the last part of the path, i.e. the name of the property whose
+     * value the path refers to.
+     */
+    public String getLast() {
+        return parts.get(parts.size() - 1);
+    }
+
+    /**
+     * Returns true if the path has more than one part.
+     */
+    public boolean isNested() {
+        return parts.size() > 1;
+    }
+
+    /**
+     * Gets the path without its last part, e.g. <code>address</code> for
+     * <code>address.street</code>.
+     * 
+     * @return the parent path, or null if the path is not nested.
+     */
+    public PropertyPath getParent() {
+        return isNested() ? of(name.substring(0, name.lastIndexOf('.')))
+                : null;
+    }
+
+    /**
+     * Gets the path without its first part, e.g. <code>street</code> for
+     * <code>address.street</code>.
+     * 
+     * @return the rest of the path, or null if the path is not nested.
+     */
+    public PropertyPath getRest() {
+        return isNested() ? of(name.substring(name.indexOf('.') + 1)) : null;
+    }
+
+    /**
+     * Makes sure deserialized paths are interned as well.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return of(name);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        return obj instanceof PropertyPath
+                && name.equals(((PropertyPath) obj).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    /**
+     * Returns the name of the path, so that the path can be used wherever a
+     * property ID is converted to a string.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.util.List;
+
+/**
+ * A {@link PropertyPath} resolved against the metadata of a class. Contains
+ * the metadata of each part of the path, the type of the property the path
+ * refers to, and a compiled accessor for reading and writing the value. A
+ * resolved path is created once per class and path by
+ * {@link ClassMetadata#resolve(PropertyPath)}, after which using it does not
+ * require any more lookups.
+ * <p>
+ * Instances of this class are immutable. They are not serializable, resolve
+ * the path again after deserialization instead.
+ * 
+ * @since 3.2.0
+ */
+public final class ResolvedPropertyPath {
+
+    private final PropertyPath path;
+    private final PropertyMetadata[] metadata;
+    private final Class<?> type;
+    private final PropertyAccessor accessor;
+
+    ResolvedPropertyPath(PropertyPath path, List<PropertyMetadata> metadata,
+            Class<?> type, PropertyAccessor accessor) {
+        this.path = path;
+        this.metadata = metadata.toArray(new PropertyMetadata[path
+                .getLength()]);
+        this.type = type;
+        this.accessor = accessor;
+    }
+
+    /**
+     * Gets the path that was resolved.
+     */
+    public PropertyPath getPath() {
+        return path;
+    }
+
+    /**
+     * Returns true if every part of the path refers to an existing property.
+     */
+    public boolean isValid() {
+        return type != null;
+    }
+
+    /**
+     * Gets the type of the property that the path refers to.
+     * 
+     * @return the type, or null if the path is not valid.
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * Gets the metadata of the part of the path at <code>index</code>.
+     * 
+     * @param index
+     *            the index of the part (0 &lt;= index &lt;
+     *            {@link PropertyPath#getLength()}).
+     * @return the metadata, or null if the part is a plain JavaBean property
+     *         of a class that has no metadata, or the part could not be
+     *         resolved.
+     */
+    public PropertyMetadata getPropertyMetadata(int index) {
+        return metadata[index];
+    }
+
+    /**
+     * Returns true if the part of the path at <code>index</code> is an
+     * embedded property.
+     * 
+     * @param index
+     *            the index of the part (0 &lt;= index &lt;
+     *            {@link PropertyPath#getLength()}).
+     */
+    public boolean isEmbedded(int index) {
+        return metadata[index] != null
+                && metadata[index].getPropertyKind() == PropertyKind.EMBEDDED;
+    }
+
+    /**
+     * Returns true if a query has to join the entities referred to by the
+     * path, i.e. the path is nested and its first part is not an embedded
+     * property.
+     */
+    public boolean isJoinRequired() {
+        return path.isNested() && !isEmbedded(0);
+    }
+
+    /**
+     * Gets the compiled accessor of the path.
+     */
+    PropertyAccessor getAccessor() {
+        return accessor;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+
+/**
+ * Event indicating that a batch update has been performed, with the
+ * identifiers of the entities that were added, updated and removed.
+ * 
+ * @since 3.2.0
+ */
+class BatchEntitiesChangedEvent<T> extends BatchUpdatePerformedEvent<T> implements
+        EntityProviderChangeEvent.EntitiesChangedEvent<T> {
+
+    private static final long serialVersionUID = 2816458163227614952L;
+    private final Set<Object> addedEntityIds;
+    private final Set<Object> updatedEntityIds;
+    private final Set<Object> removedEntityIds;
+    private final Collection<T> affectedEntities;
+
+    public BatchEntitiesChangedEvent(BatchableEntityProvider<T> entityProvider,
+            Map<Object, T> addedEntities, Map<Object, T> updatedEntities,
+            Set<Object> removedEntityIds) {
+        super(entityProvider);
+        this.addedEntityIds = Collections
+                .unmodifiableSet(new LinkedHashSet<Object>(addedEntities
+                        .keySet()));
+        this.updatedEntityIds = Collections
+                .unmodifiableSet(new LinkedHashSet<Object>(updatedEntities
+                        .keySet()));
+        this.removedEntityIds = Collections
+                .unmodifiableSet(new LinkedHashSet<Object>(removedEntityIds));
+        List<T> entities = new ArrayList<T>(addedEntities.size()
+                + updatedEntities.size());
+        entities.addAll(addedEntities.values());
+        entities.addAll(updatedEntities.values());
+        this.affectedEntities = Collections.unmodifiableList(entities);
+    }
+
+    @Override
+    public Collection<T> getAffectedEntities() {
+        return affectedEntities;
+    }
+
+    @Override
+    public Set<Object> getAddedEntityIds() {
+        return addedEntityIds;
+    }
+
+    @Override
+    public Set<Object> getUpdatedEntityIds() {
+        return updatedEntityIds;
+    }
+
+    @Override
+    public Set<Object> getRemovedEntityIds() {
+        return removedEntityIds;
+    }
+
+    /**
+     * Records the changes made by a batch update in the order they are made,
+     * and coalesces them into a {@link BatchEntitiesChangedEvent}. The identifiers
+     * of the added entities are read when the event is created, as they may
+     * not have been generated before the changes are flushed.
+     */
+    static class Recorder<T> {
+
+        private static final int ADDED = 0;
+        private static final int UPDATED = 1;
+        private static final int REMOVED = 2;
+
+        private final LocalEntityProvider<T> entityProvider;
+        private final List<Change> changes = new ArrayList<Change>();
+
+        Recorder(LocalEntityProvider<T> entityProvider) {
+            this.entityProvider = entityProvider;
+        }
+
+        void entityAdded(T entity) {
+            changes.add(new Change(ADDED, entity));
+        }
+
+        void entityUpdated(T entity) {
+            changes.add(new Change(UPDATED, entity));
+        }
+
+        void entityRemoved(Object entityId) {
+            changes.add(new Change(REMOVED, entityId));
+        }
+
+        @SuppressWarnings("unchecked")
+        BatchEntitiesChangedEvent<T> createEvent(
+                BatchableEntityProvider<T> batchableEntityProvider) {
+            Map<Object, T> addedEntities = new LinkedHashMap<Object, T>();
+            Map<Object, T> updatedEntities = new LinkedHashMap<Object, T>();
+            Set<Object> removedEntityIds = new LinkedHashSet<Object>();
+            for (Change change : changes) {
+                if (change.type == REMOVED) {
+                    if (addedEntities.remove(change.value) == null) {
+                        updatedEntities.remove(change.value);
+                        removedEntityIds.add(change.value);
+                    }
+                } else {
+                    T entity = (T) change.value;
+                    Object entityId = entityProvider.getIdentifier(entity);
+                    if (change.type == ADDED
+                            || addedEntities.containsKey(entityId)) {
+                        addedEntities.put(entityId, entity);
+                    } else {
+                        updatedEntities.put(entityId, entity);
+                    }
+                }
+            }
+            return new BatchEntitiesChangedEvent<T>(batchableEntityProvider,
+                    addedEntities, updatedEntities, removedEntityIds);
+        }
+
+        private static final class Change {
+
+            private final int type;
+            // The entity, or the identifier of a removed entity
+            private final Object value;
+
+            Change(int type, Object value) {
+                this.type = type;
+                this.value = value;
+            }
+        }
+    }
+}
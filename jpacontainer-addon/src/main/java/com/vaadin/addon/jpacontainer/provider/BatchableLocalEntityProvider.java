@@ -60,22 +60,62 @@ public class BatchableLocalEntityProvider<T> extends
         super(entityClass, entityManager);
     }
 
+    private int batchSize = 0;
+
+    /**
+     * Sets the number of changes after which
+     * {@link #batchUpdate(BatchUpdateCallback)} flushes and clears the
+     * persistence context. If the batch size is positive, the batch updates
+     * are run in batch mode (see {@link #runInBatch(Runnable, int)}). The JDBC
+     * batch size of the persistence provider should be set to the same value.
+     * The default is 0, which means that the changes are flushed one at a
+     * time.
+     * 
+     * @param batchSize
+     *            the batch size, or 0 to turn batch mode off.
+     * @since 3.2.0
+     */
+    public void setBatchSize(int batchSize) {
+        assert batchSize >= 0 : "batchSize must not be negative";
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets the number of changes after which batch updates flush and clear the
+     * persistence context.
+     * 
+     * @see #setBatchSize(int)
+     * @return the batch size, or 0 if batch mode is off.
+     * @since 3.2.0
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
     @Override
     public void batchUpdate(final BatchUpdateCallback<T> callback)
             throws UnsupportedOperationException {
         assert callback != null : "callback must not be null";
         setFireEntityProviderChangeEvents(false);
+        startRecordingChanges();
+        BatchEntitiesChangedEvent.Recorder<T> changes;
         try {
-            runInTransaction(new Runnable() {
+            Runnable operation = new Runnable() {
 
                 @Override
                 public void run() {
                     callback.batchUpdate(BatchableLocalEntityProvider.this);
                 }
-            });
+            };
+            if (batchSize > 0) {
+                runInBatch(operation, batchSize);
+            } else {
+                runInTransaction(operation);
+            }
         } finally {
+            changes = stopRecordingChanges();
             setFireEntityProviderChangeEvents(true);
         }
-        fireEntityProviderChangeEvent(new BatchUpdatePerformedEvent<T>(this));
+        fireEntityProviderChangeEvent(changes.createEvent(this));
     }
 }
@@ -16,12 +16,18 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.persistence.EntityManager;
 
+import com.vaadin.addon.jpacontainer.CacheFactory;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.data.Container.Filter;
 
@@ -121,6 +127,11 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         return cachingSupport.getEntity(container, entityId);
     }
 
+    @Override
+    public synchronized Map<Object, T> getEntities(EntityContainer<T> container, Collection<Object> entityIds) {
+        return cachingSupport.getEntities(container, entityIds);
+    }
+
     @Override
     public boolean isEntitiesDetached() {
         return isCacheEnabled() || super.isEntitiesDetached();
@@ -137,17 +148,299 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         cachingSupport.setCloneCachedEntities(clone);
     }
 
+    @Override
+    public boolean isFullRowLoadingEnabled() {
+        return cachingSupport.isFullRowLoadingEnabled();
+    }
+
+    @Override
+    public void setFullRowLoadingEnabled(boolean fullRowLoadingEnabled) {
+        cachingSupport.setFullRowLoadingEnabled(fullRowLoadingEnabled);
+    }
+
+    @Override
+    public CacheStatistics getEntityCacheStatistics() {
+        return cachingSupport.getEntityCacheStatistics();
+    }
+
+    @Override
+    public CacheStatistics getIdentifierCacheStatistics() {
+        return cachingSupport.getIdentifierCacheStatistics();
+    }
+
+    @Override
+    public CacheFactory getCacheFactory() {
+        return cachingSupport.getCacheFactory();
+    }
+
+    @Override
+    public void setCacheFactory(CacheFactory cacheFactory) {
+        cachingSupport.setCacheFactory(cacheFactory);
+    }
+
+    /**
+     * Gets the cache of entity counts and identifier windows that is shared
+     * with other entity providers.
+     * 
+     * @return the shared query cache, or null if none is used.
+     */
+    public SharedQueryCache getSharedQueryCache() {
+        return cachingSupport.getSharedQueryCache();
+    }
+
+    /**
+     * Sets a cache of entity counts and identifier windows that is shared with
+     * other entity providers, e.g. of other sessions. The shared cache is
+     * consulted before running count and identifier queries.
+     * <p>
+     * As this entity provider cannot change any entities, the shared cache has
+     * to be made to listen to the entity providers that do, see
+     * {@link SharedQueryCache#listenTo(com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier)}.
+     * 
+     * @param sharedQueryCache
+     *            the shared query cache, or null to not use one.
+     */
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache) {
+        cachingSupport.setSharedQueryCache(sharedQueryCache);
+    }
+
+    /**
+     * Gets the number of entity identifiers fetched with a single query.
+     * 
+     * @see #setChunkSize(int)
+     * @since 3.2.0
+     */
+    public int getChunkSize() {
+        return cachingSupport.getChunkSize();
+    }
+
+    /**
+     * Sets the number of entity identifiers to fetch with a single query. The
+     * default is 150. When adaptive chunking is enabled, this is the size that
+     * the chunks start from.
+     * 
+     * @param chunkSize
+     *            the chunk size (must be greater than zero).
+     * @since 3.2.0
+     */
+    public void setChunkSize(int chunkSize) {
+        cachingSupport.setChunkSize(chunkSize);
+    }
+
+    /**
+     * Gets the maximum number of entity identifiers that adaptive chunking may
+     * fetch with a single query.
+     * 
+     * @see #setMaxChunkSize(int)
+     * @since 3.2.0
+     */
+    public int getMaxChunkSize() {
+        return cachingSupport.getMaxChunkSize();
+    }
+
+    /**
+     * Sets the maximum number of entity identifiers that adaptive chunking may
+     * fetch with a single query. The default is 2000.
+     * 
+     * @param maxChunkSize
+     *            the maximum chunk size (must be greater than zero).
+     * @since 3.2.0
+     */
+    public void setMaxChunkSize(int maxChunkSize) {
+        cachingSupport.setMaxChunkSize(maxChunkSize);
+    }
+
+    /**
+     * Returns whether the chunk size adapts to the access pattern.
+     * 
+     * @see #setAdaptiveChunkingEnabled(boolean)
+     * @since 3.2.0
+     */
+    public boolean isAdaptiveChunkingEnabled() {
+        return cachingSupport.isAdaptiveChunkingEnabled();
+    }
+
+    /**
+     * Turns adaptive chunking on or off. When it is on, the chunk size doubles
+     * every time the user scrolls past the end (or the beginning) of the cached
+     * identifiers, up to {@link #getMaxChunkSize()}, and falls back to
+     * {@link #getChunkSize()} when the user jumps to another part of the list.
+     * Adaptive chunking is off by default.
+     * 
+     * @param adaptiveChunkingEnabled
+     *            true to turn on adaptive chunking, false to turn it off.
+     * @since 3.2.0
+     */
+    public void setAdaptiveChunkingEnabled(boolean adaptiveChunkingEnabled) {
+        cachingSupport.setAdaptiveChunkingEnabled(adaptiveChunkingEnabled);
+    }
+
+    /**
+     * Gets the maximum number of different filters that identifiers are cached
+     * for.
+     * 
+     * @see #setMaxFilterCacheSize(int)
+     * @since 3.2.0
+     */
+    public int getMaxFilterCacheSize() {
+        return cachingSupport.getMaxFilterCacheSize();
+    }
+
+    /**
+     * Sets the maximum number of different filters that identifiers are cached
+     * for. The default is 10. This method will cause any existing caches to be
+     * flushed.
+     * 
+     * @param maxFilterCacheSize
+     *            the maximum filter cache size, or -1 for no limit.
+     * @since 3.2.0
+     */
+    public void setMaxFilterCacheSize(int maxFilterCacheSize) {
+        cachingSupport.setMaxFilterCacheSize(maxFilterCacheSize);
+    }
+
+    /**
+     * Gets the maximum number of different sort orders that identifiers are
+     * cached for, for each filter.
+     * 
+     * @see #setMaxSortByCacheSize(int)
+     * @since 3.2.0
+     */
+    public int getMaxSortByCacheSize() {
+        return cachingSupport.getMaxSortByCacheSize();
+    }
+
+    /**
+     * Sets the maximum number of different sort orders that identifiers are
+     * cached for, for each filter. The default is 10. This method will cause
+     * any existing caches to be flushed.
+     * 
+     * @param maxSortByCacheSize
+     *            the maximum sort by cache size, or -1 for no limit.
+     * @since 3.2.0
+     */
+    public void setMaxSortByCacheSize(int maxSortByCacheSize) {
+        cachingSupport.setMaxSortByCacheSize(maxSortByCacheSize);
+    }
+
+    /**
+     * Gets the provider of the entity managers that the following chunks of
+     * identifiers are prefetched with.
+     * 
+     * @see #setPrefetchEntityManagerProvider(EntityManagerProvider)
+     * @since 3.2.0
+     */
+    public EntityManagerProvider getPrefetchEntityManagerProvider() {
+        return cachingSupport.getPrefetchEntityManagerProvider();
+    }
+
+    /**
+     * Turns prefetching on or off. When it is on and an identifier close to
+     * the end of the cached identifiers is requested (see
+     * {@link #setPrefetchThreshold(int)}), the next chunk of identifiers and
+     * the entities they refer to are loaded in a background thread, so that
+     * scrolling does not have to wait for the database. Prefetching is off by
+     * default.
+     * <p>
+     * The background queries are run with the entity manager that
+     * <code>prefetchEntityManagerProvider</code> returns in the background
+     * thread. It must return a new entity manager every time, as entity
+     * managers are not thread safe, and the entity manager is closed when the
+     * prefetch is done. Nothing is prefetched for containers that have a query
+     * modifier delegate, or when this entity provider has one.
+     * Turning prefetching off shuts down the default executor, see
+     * {@link #setPrefetchExecutor(Executor)}.
+     * 
+     * @param prefetchEntityManagerProvider
+     *            the provider of the entity managers to prefetch with, or null
+     *            to turn prefetching off.
+     * @since 3.2.0
+     */
+    public void setPrefetchEntityManagerProvider(
+            EntityManagerProvider prefetchEntityManagerProvider) {
+        cachingSupport
+                .setPrefetchEntityManagerProvider(prefetchEntityManagerProvider);
+    }
+
+    /**
+     * Gets how close to the end of the cached identifiers a requested
+     * identifier must be for the next chunk to be prefetched.
+     * 
+     * @see #setPrefetchThreshold(int)
+     * @since 3.2.0
+     */
+    public int getPrefetchThreshold() {
+        return cachingSupport.getPrefetchThreshold();
+    }
+
+    /**
+     * Sets how close to the end of the cached identifiers a requested
+     * identifier must be for the next chunk to be prefetched. The default is
+     * 50.
+     * 
+     * @param prefetchThreshold
+     *            the number of positions from the end of the cached
+     *            identifiers (must not be negative).
+     * @since 3.2.0
+     */
+    public void setPrefetchThreshold(int prefetchThreshold) {
+        cachingSupport.setPrefetchThreshold(prefetchThreshold);
+    }
+
+    /**
+     * Gets the executor that runs the prefetches.
+     * 
+     * @see #setPrefetchExecutor(Executor)
+     * @since 3.2.0
+     */
+    public Executor getPrefetchExecutor() {
+        return cachingSupport.getPrefetchExecutor();
+    }
+
+    /**
+     * Sets the executor that runs the prefetches. The executor should be
+     * bounded and reject new tasks when it is overloaded; rejected prefetches
+     * are skipped. The executor is not shut down or serialized by this
+     * entity provider.
+     * <p>
+     * By default, this entity provider creates its own executor that runs one
+     * prefetch at a time in a daemon thread, which stops when it has been idle
+     * for 30 seconds. It is shut down when prefetching is turned off or
+     * another executor is set.
+     * 
+     * @param prefetchExecutor
+     *            the executor, or null to use the default executor owned by
+     *            this entity provider.
+     * @since 3.2.0
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        cachingSupport.setPrefetchExecutor(prefetchExecutor);
+    }
+
     @Override
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
         return cachingSupport.getEntityCount(container, filter);
     }
 
+    @Override
+    protected void entityCountChanged(EntityContainer<T> container,
+            Filter filter, int count) {
+        cachingSupport.entityCountChanged(filter, count);
+        super.entityCountChanged(container, filter, count);
+    }
+
     @Override
     public Object getEntityIdentifierAt(EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
             int index) {
         return cachingSupport.getEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    @Override
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        return cachingSupport.getEntityIdentifiers(container, filter, sortBy, startIndex, count);
+    }
+
     @Override
     public Object getFirstEntityIdentifier(EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         return cachingSupport.getFirstEntityIdentifier(container, filter, sortBy);
@@ -171,6 +464,12 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
                 sortBy);
     }
 
+    @Override
+    public int getEntityIdentifierIndex(EntityContainer<T> container, Object entityId, Filter filter,
+            List<SortBy> sortBy) {
+        return cachingSupport.getEntityIdentifierIndex(container, entityId, filter, sortBy);
+    }
+
     /*
      * (non-Javadoc)
      * 
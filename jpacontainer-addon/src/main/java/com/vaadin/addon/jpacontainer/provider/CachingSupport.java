@@ -20,23 +20,51 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheFactory;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
 import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.IndexedEntityProvider;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.filter.util.FilterOptimizer;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
+import com.vaadin.addon.jpacontainer.util.ConcurrentLruCache;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
 
 /**
  * Delegate class that implements caching for {@link LocalEntityProvider}s and
@@ -52,10 +80,20 @@ class CachingSupport<T> implements Serializable {
     private int maxCacheSize = 1000;
     private boolean cacheEnabled = true;
     private boolean cloneCachedEntities = false;
+    private boolean fullRowLoadingEnabled = false;
     /**
-     * The number of entity IDs to fetch every time a query is made.
+     * The default number of entity IDs to fetch every time a query is made.
+     * 
+     * @see #setChunkSize(int)
      */
     protected static final int CHUNK_SIZE = 150;
+    /**
+     * The default maximum number of entity IDs to fetch with a single query
+     * when adaptive chunking is enabled.
+     * 
+     * @see #setMaxChunkSize(int)
+     */
+    protected static final int MAX_CHUNK_SIZE = 2000;
     /**
      * A {@link Filter}-instance representing the null-filter (i.e. no filter
      * applied).
@@ -76,21 +114,35 @@ class CachingSupport<T> implements Serializable {
         }
     };
     /**
-     * The max size of the filter cache (i.e. how many different filters to
-     * cache).
+     * The default max size of the filter cache (i.e. how many different
+     * filters to cache).
      * 
      * @see #getFilterCache()
+     * @see #setMaxFilterCacheSize(int)
      */
     public static final int MAX_FILTER_CACHE_SIZE = 10;
     /**
-     * The max size of the sort by cache for each filter. Thus, the maximum
-     * number of cached filter-sortBy combinations is
+     * The default max size of the sort by cache for each filter. Thus, the
+     * maximum number of cached filter-sortBy combinations is
      * <code>MAX_FILTER_CACHE_SIZE * MAX_SORTBY_CACHE_SIZE</code>.
+     * 
+     * @see #setMaxSortByCacheSize(int)
      */
     public static final int MAX_SORTBY_CACHE_SIZE = 10;
 
-    // TODO Make chunk size, filter cache size and sortBy cache size user
-    // configurable.
+    private int chunkSize = CHUNK_SIZE;
+    private int maxChunkSize = MAX_CHUNK_SIZE;
+    private boolean adaptiveChunkingEnabled = false;
+    private int maxFilterCacheSize = MAX_FILTER_CACHE_SIZE;
+    private int maxSortByCacheSize = MAX_SORTBY_CACHE_SIZE;
+    private EntityManagerProvider prefetchEntityManagerProvider;
+    private int prefetchThreshold = CHUNK_SIZE / 3;
+    private transient Executor prefetchExecutor;
+    /**
+     * The executor that is created when no executor has been set, owned by
+     * this object.
+     */
+    private transient ThreadPoolExecutor defaultPrefetchExecutor;
 
     /**
      * Creates a new <code>CachingSupport</code> for the specified entity
@@ -104,6 +156,60 @@ class CachingSupport<T> implements Serializable {
         this.entityProvider = entityProvider;
     }
 
+    /**
+     * List of identifiers that keeps a reverse index from identifier to
+     * position, so that {@link #indexOf(Object)} and
+     * {@link #contains(Object)} do not have to scan the list. The index is
+     * built on demand and rebuilt after the list has been modified.
+     *
+     * @since 3.2.0
+     */
+    static class IdList extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 4427021931426001741L;
+        /**
+         * Lists shorter than this are scanned instead of indexed.
+         */
+        private static final int MIN_INDEXED_SIZE = 16;
+        private transient HashMap<Object, Integer> positions;
+        private transient int positionsModCount;
+
+        public IdList() {
+        }
+
+        public IdList(int initialCapacity) {
+            super(initialCapacity);
+        }
+
+        public IdList(Collection<?> ids) {
+            super(ids);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (size() < MIN_INDEXED_SIZE) {
+                return super.indexOf(o);
+            }
+            if (positions == null || positionsModCount != modCount) {
+                positions = new HashMap<Object, Integer>(size() * 2);
+                // Backwards, so that the first occurrence wins
+                for (int i = size() - 1; i >= 0; i--) {
+                    positions.put(get(i), i);
+                }
+                positionsModCount = modCount;
+            }
+            Integer position = positions.get(o);
+            return position == null ? -1 : position;
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            // Not a structural modification, i.e. modCount is not changed
+            positions = null;
+            return super.set(index, element);
+        }
+    }
+
     /**
      * Data structure used by {@link FilterCacheEntry} to store entityId lists
      * sorted in different ways.
@@ -114,9 +220,195 @@ class CachingSupport<T> implements Serializable {
     static class IdListEntry implements Serializable {
 
         private static final long serialVersionUID = -3552793234160831297L;
-        public ArrayList<Object> idList;
+        public final List<SortBy> sortBy;
+        public IdList idList;
         public int listOffset = 0;
         public boolean containsAll = false;
+        /**
+         * The sort key values of the last identifier in <code>idList</code>,
+         * or null if unknown. Only maintained when keyset pagination is
+         * enabled.
+         */
+        public Object[] lastSortKeys;
+        /**
+         * The sort key values of the identifiers in <code>idList</code> that
+         * were fetched together with their sort keys. They are used to fetch
+         * the siblings of an identifier without loading its entity first.
+         */
+        public HashMap<Object, Object[]> sortKeys = new HashMap<Object, Object[]>();
+        /**
+         * The number of identifiers fetched by the latest query, or 0 if
+         * nothing has been fetched yet. Only used when adaptive chunking is
+         * enabled.
+         */
+        public int chunkSize = 0;
+        /**
+         * The chunk of identifiers following <code>idList</code> that is
+         * being loaded in the background, or null if none.
+         */
+        public transient Prefetch prefetch;
+
+        /**
+         * Creates a new <code>IdListEntry</code>.
+         * 
+         * @param sortBy
+         *            the ordering of the identifiers in the list (must not be
+         *            null).
+         */
+        public IdListEntry(List<SortBy> sortBy) {
+            this.sortBy = sortBy;
+        }
+
+        /**
+         * Discards the chunk of identifiers being loaded in the background,
+         * if any.
+         */
+        public void cancelPrefetch() {
+            if (prefetch != null) {
+                prefetch.cancel();
+                prefetch = null;
+            }
+        }
+
+        /**
+         * Records the sort key values of <code>entityId</code>, or forgets
+         * them if <code>keys</code> is null.
+         */
+        public void putSortKeys(Object entityId, Object[] keys) {
+            if (keys == null) {
+                sortKeys.remove(entityId);
+            } else {
+                sortKeys.put(entityId, keys);
+            }
+        }
+
+        /**
+         * Forgets the sort key values of the identifiers that are no longer in
+         * <code>idList</code>, once there are considerably more of them than
+         * there are identifiers.
+         */
+        public void pruneSortKeys() {
+            if (idList == null) {
+                sortKeys.clear();
+            } else if (sortKeys.size() > 2 * idList.size()) {
+                sortKeys.keySet().retainAll(new HashSet<Object>(idList));
+            }
+        }
+    }
+
+    /**
+     * A chunk of identifiers, and the entities they refer to, that is loaded
+     * in a background thread before it is needed. The identifiers start at
+     * position <code>startFrom</code> of an identifier list.
+     * 
+     * @since 3.2.0
+     */
+    abstract static class Prefetch implements Runnable {
+
+        public final int startFrom;
+        public final int fetchMax;
+        public final boolean keyset;
+        public List<Object> ids;
+        public Map<Object, Object> entities;
+        /**
+         * The sort key values of the last identifier in <code>ids</code>, or
+         * null if unknown. Only set when <code>keyset</code> is true.
+         */
+        public Object[] lastSortKeys;
+        private boolean started = false;
+        private boolean done = false;
+        private boolean cancelled = false;
+        private RuntimeException failure;
+
+        /**
+         * Creates a new <code>Prefetch</code>.
+         * 
+         * @param startFrom
+         *            the index of the first identifier to load.
+         * @param fetchMax
+         *            the maximum number of identifiers to load.
+         * @param keyset
+         *            true if keyset pagination is used.
+         */
+        public Prefetch(int startFrom, int fetchMax, boolean keyset) {
+            this.startFrom = startFrom;
+            this.fetchMax = fetchMax;
+            this.keyset = keyset;
+        }
+
+        /**
+         * Loads the identifiers and entities. Called in the background
+         * thread.
+         */
+        protected abstract void load();
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                started = true;
+            }
+            try {
+                load();
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the prefetch to finish, unless it has not been started
+         * yet, in which case it is cancelled.
+         * 
+         * @return true if the identifiers and entities were loaded, false
+         *         otherwise.
+         */
+        public synchronized boolean await() {
+            if (!started) {
+                cancelled = true;
+                return false;
+            }
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return failure == null;
+        }
+
+        /**
+         * Makes sure that the prefetch is not started. A prefetch that is
+         * already running runs to completion, but its result is never used.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Creates the threads of the default prefetch executors. The threads are
+     * daemon threads, so that they never keep the JVM running.
+     */
+    private static class PrefetchThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "JPAContainer-prefetch-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     /**
@@ -133,9 +425,11 @@ class CachingSupport<T> implements Serializable {
         private static final long serialVersionUID = -2978864194978758736L;
         private Filter filter;
         private Integer entityCount;
-        public Map<List<SortBy>, IdListEntry> idListMap = new CacheMap<List<SortBy>, IdListEntry>(
-                MAX_SORTBY_CACHE_SIZE);
-        public Set<Object> idSet = new CacheSet<Object>(getMaxCacheSize());
+        public Cache<List<SortBy>, IdListEntry> idListMap = getCacheFactory()
+                .createCache(getMaxSortByCacheSize(),
+                        getIdentifierCacheStatistics());
+        public Cache<Object, Boolean> idSet = getCacheFactory().createCache(
+                getMaxCacheSize(), getIdentifierCacheStatistics());
 
         /**
          * Creates a new <code>FilterCacheEntry</code>.
@@ -157,21 +451,35 @@ class CachingSupport<T> implements Serializable {
                 return entityProvider.doGetEntityCount(container, getFilter());
             }
             if (entityCount == null) {
-                entityCount = entityProvider.doGetEntityCount(container, getFilter());
+                int count = loadEntityCount(container, getFilter());
+                if (entityCount == null) {
+                    // The exact count may have been reported while counting
+                    entityCount = count;
+                }
             }
             return entityCount;
         }
 
+        /**
+         * Replaces the cached number of entities that match this filter.
+         * 
+         * @param count
+         *            the number of entities.
+         */
+        public synchronized void setEntityCount(int count) {
+            entityCount = count;
+        }
+
         /**
          * @see EntityProvider#containsEntity(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter)
          */
         public synchronized boolean containsId(EntityContainer<T> container,
                 Object entityId) {
-            if (!idSet.contains(entityId)) {
+            if (idSet.get(entityId) == null) {
                 if (entityProvider.doContainsEntity(container, entityId,
                         getFilter())) {
-                    idSet.add(entityId);
+                    idSet.put(entityId, Boolean.TRUE);
                     return true;
                 } else {
                     return false;
@@ -198,15 +506,18 @@ class CachingSupport<T> implements Serializable {
                 Object entityId, List<SortBy> sortBy) {
             IdListEntry entry = idListMap.get(sortBy);
             if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
+                entry = new IdListEntry(sortBy);
+                entry.idList = new IdList();
                 entry.listOffset = -1;
                 idListMap.put(sortBy, entry);
             }
+            entry.lastSortKeys = null;
+            entry.cancelPrefetch();
             int index = entry.idList.indexOf(entityId);
             if (index == -1) {
-                entry.idList = new ArrayList<Object>(getNextIds(container,
-                        getFilter(), sortBy, entityId, CHUNK_SIZE));
+                entry.idList = new IdList(loadSiblingIds(
+                        container, entry, sortBy, entityId, nextChunkSize(
+                                entry, false), false));
                 if (entry.idList.isEmpty()) {
                     return null;
                 } else {
@@ -214,19 +525,20 @@ class CachingSupport<T> implements Serializable {
                 }
             } else {
                 if (index == entry.idList.size() - 1) {
+                    int chunk = nextChunkSize(entry, true);
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunk > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunk) {
                             entry.idList.clear();
                             index = -1;
                         } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            index -= CHUNK_SIZE;
+                            entry.idList.subList(0, chunk).clear();
+                            index -= chunk;
                         }
                     }
-                    entry.idList.addAll(getNextIds(container, getFilter(),
-                            sortBy, entityId, CHUNK_SIZE));
+                    entry.idList.addAll(loadSiblingIds(container, entry,
+                            sortBy, entityId, chunk, false));
                 }
                 if (index + 1 == entry.idList.size()) {
                     return null;
@@ -244,17 +556,19 @@ class CachingSupport<T> implements Serializable {
                 Object entityId, List<SortBy> sortBy) {
             IdListEntry entry = idListMap.get(sortBy);
             if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
+                entry = new IdListEntry(sortBy);
+                entry.idList = new IdList();
                 entry.listOffset = -1;
                 idListMap.put(sortBy, entry);
             }
+            entry.lastSortKeys = null;
+            entry.cancelPrefetch();
             int index = entry.idList.indexOf(entityId);
             if (index == -1) {
-                List<Object> objects = getPreviousIds(container, getFilter(),
-                        sortBy, entityId, CHUNK_SIZE);
+                List<Object> objects = loadSiblingIds(container, entry,
+                        sortBy, entityId, nextChunkSize(entry, false), true);
                 // We have to reverse the list
-                entry.idList = new ArrayList<Object>(objects.size());
+                entry.idList = new IdList(objects.size());
                 for (int i = objects.size() - 1; i >= 0; i--) {
                     entry.idList.add(objects.get(i));
                 }
@@ -265,24 +579,25 @@ class CachingSupport<T> implements Serializable {
                 }
             } else {
                 if (index == 0) {
-                    List<Object> objects = getPreviousIds(container,
-                            getFilter(), sortBy, entityId, CHUNK_SIZE);
+                    int chunk = nextChunkSize(entry, true);
+                    List<Object> objects = loadSiblingIds(container, entry,
+                            sortBy, entityId, chunk, true);
                     if (objects.isEmpty()) {
                         return null;
                     }
                     // Store the ID we are looking for
                     Object theId = objects.get(0);
                     // Save the rest of the IDs in the cache for future use
-                    ArrayList<Object> l = new ArrayList<Object>();
+                    IdList l = new IdList();
                     for (int i = objects.size() - 1; i >= 0; i--) {
                         l.add(objects.get(i));
                     }
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunk > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() > CHUNK_SIZE) {
+                        if (entry.idList.size() > chunk) {
                             l.addAll(entry.idList.subList(0,
-                                    entry.idList.size() - CHUNK_SIZE));
+                                    entry.idList.size() - chunk));
                         }
                     } else {
                         l.addAll(entry.idList);
@@ -305,21 +620,248 @@ class CachingSupport<T> implements Serializable {
         }
 
         /**
-         * Informs the cache that <code>entityId</code> has been invalidated
-         * (changed or removed). If the entityId is currently in cache, the
-         * cache is flushed, forcing the data to be fetched from the database
-         * when requested the next time.
+         * Gets at most <code>fetchMax</code> identifiers following (or
+         * preceding, if <code>backwards</code> is true) <code>entityId</code>,
+         * starting with its closest sibling. The sort key values of
+         * <code>entityId</code> are taken from <code>entry</code> or from the
+         * cached entity if possible, in which case the siblings are fetched
+         * with a single query. The sort key values of the fetched identifiers
+         * are recorded in <code>entry</code>.
+         */
+        private List<Object> loadSiblingIds(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy, Object entityId,
+                int fetchMax, boolean backwards) {
+            Object[] keys = findSortKeys(container, entry, sortBy, entityId);
+            entry.pruneSortKeys();
+            List<Object[]> rows = entityProvider.doGetKeyedSiblingIdentifiers(
+                    container, keys, getFilter(), sortBy, backwards, fetchMax);
+            List<Object> ids = new ArrayList<Object>(rows.size());
+            for (Object[] row : rows) {
+                ids.add(row[0]);
+                entry.putSortKeys(row[0], entityProvider.getSortKeys(row));
+            }
+            return ids;
+        }
+
+        /**
+         * Gets the sort key values of <code>entityId</code> from
+         * <code>entry</code> (which may be null), from the cached entity, or
+         * as a last resort from the database.
+         */
+        private Object[] findSortKeys(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy, Object entityId) {
+            List<SortBy> fullSortBy = entityProvider
+                    .addPrimaryKeyToSortList(sortBy);
+            Object[] keys = entry == null ? null : entry.sortKeys
+                    .get(entityId);
+            if (keys == null) {
+                T entity = getEntityCache().get(entityId);
+                if (entity != null) {
+                    keys = getSortKeys(entity, fullSortBy);
+                }
+            }
+            if (keys == null) {
+                keys = entityProvider.loadSortKeys(container, entityId,
+                        fullSortBy);
+            }
+            return keys;
+        }
+
+        /**
+         * Gets the position of <code>entityId</code> in the list sorted by
+         * <code>sortBy</code>. If the identifier is in the cached part of the
+         * list, its position is known right away. Otherwise, the position is
+         * found by counting the preceding entities in the database.
+         * 
+         * @return the position, or -1 if the entity does not match the filter.
+         */
+        public synchronized int getIndexOfId(EntityContainer<T> container,
+                Object entityId, List<SortBy> sortBy) {
+            IdListEntry entry = idListMap.get(sortBy);
+            if (entry != null && entry.idList != null
+                    && entry.listOffset >= 0) {
+                int index = entry.idList.indexOf(entityId);
+                if (index != -1) {
+                    return entry.listOffset + index;
+                } else if (entry.containsAll) {
+                    return -1;
+                }
+            }
+            if (!containsId(container, entityId)) {
+                return -1;
+            }
+            return entityProvider.doGetEntityRank(container,
+                    findSortKeys(container, entry, sortBy, entityId),
+                    getFilter(), sortBy, entityId);
+        }
+
+        /**
+         * Informs the cache that <code>entityId</code> has been added, updated
+         * or removed. The entity count, the identifier set and the identifier
+         * lists are updated in memory where possible. Whatever cannot be
+         * updated reliably is discarded, forcing the data to be fetched from
+         * the database when requested the next time.
          * 
          * @param entityId
-         *            the entityId to invalidate.
+         *            the identifier of the changed entity (must not be null).
+         * @param passedBefore
+         *            whether the entity matched the filter before the change,
+         *            or null if unknown.
+         * @param before
+         *            the state of the entity before the change, or null if
+         *            unknown or if the entity did not exist.
+         * @param after
+         *            the state of the entity after the change, or null if the
+         *            entity was removed.
+         */
+        public synchronized void entityChanged(Object entityId,
+                Boolean passedBefore, T before, T after) {
+            Boolean passesAfter = after == null ? Boolean.FALSE
+                    : passesFilter(entityId, after);
+            if (passedBefore == null) {
+                for (IdListEntry entry : idListMap.values()) {
+                    if (entry.idList != null
+                            && entry.idList.contains(entityId)) {
+                        passedBefore = Boolean.TRUE;
+                        break;
+                    }
+                }
+            }
+            if (passedBefore == null || passesAfter == null) {
+                // We cannot tell how the change affects this filter
+                entityCount = null;
+                idListMap.clear();
+                idSet.remove(entityId);
+                return;
+            }
+            if (entityCount != null) {
+                entityCount += (passesAfter ? 1 : 0) - (passedBefore ? 1 : 0);
+            }
+            if (passesAfter) {
+                idSet.put(entityId, Boolean.TRUE);
+            } else {
+                idSet.remove(entityId);
+            }
+            if (!passedBefore && !passesAfter) {
+                return;
+            }
+            for (IdListEntry entry : idListMap.values()) {
+                // The prefetched identifiers may no longer be correct
+                entry.cancelPrefetch();
+                if (!updateIdList(entry, entityId, passedBefore ? before
+                        : null, passedBefore, passesAfter ? after : null)) {
+                    idListMap.remove(entry.sortBy);
+                }
+            }
+        }
+
+        /**
+         * Evaluates the filter of this cache entry in memory against
+         * <code>entity</code>.
+         * 
+         * @see CachingSupport#evaluate(Filter, Object)
+         * @return true if the entity passes the filter, false if it does not,
+         *         or null if the filter cannot be evaluated reliably in
+         *         memory.
          */
-        public synchronized void invalidate(Object entityId) {
-            // Clear the caches to force the data to be re-fetched from the
-            // database
-            // in case the ordering has changed
-            idListMap.clear();
-            // Removing the entity Id from the Id cache should be enough
-            idSet.remove(entityId);
+        public Boolean passesFilter(Object entityId, T entity) {
+            if (filter == NULL_FILTER) {
+                return Boolean.TRUE;
+            }
+            return evaluate(filter, entity);
+        }
+
+        /**
+         * Removes <code>entityId</code> from its old position in
+         * <code>entry</code> and inserts it at its new position.
+         * 
+         * @return true if the list could be updated, false if it has to be
+         *         discarded.
+         */
+        private boolean updateIdList(IdListEntry entry, Object entityId,
+                T before, boolean passedBefore, T after) {
+            if (entry.idList == null) {
+                return false;
+            }
+            // A negative offset means that the list is a run of siblings at an
+            // unknown position, in which case there is no offset to maintain
+            boolean positional = entry.listOffset >= 0;
+            entry.sortKeys.remove(entityId);
+            int index = entry.idList.indexOf(entityId);
+            if (index != -1) {
+                entry.idList.remove(index);
+            } else if (passedBefore && positional) {
+                if (entry.containsAll || before == null) {
+                    return false;
+                }
+                int pos = locate(entry, before);
+                if (pos == 0 && entry.listOffset > 0) {
+                    entry.listOffset--;
+                } else if (pos != entry.idList.size() || pos == 0) {
+                    // Unknown, or inside the list although it was not found
+                    return false;
+                }
+            }
+            if (after != null) {
+                int pos = locate(entry, after);
+                if (pos == -1) {
+                    return false;
+                } else if (pos == 0 && entry.listOffset != 0) {
+                    if (positional) {
+                        entry.listOffset++;
+                    }
+                } else if (pos < entry.idList.size() || entry.containsAll) {
+                    entry.idList.add(pos, entityId);
+                    if (pos == entry.idList.size() - 1) {
+                        entry.lastSortKeys = null;
+                    }
+                }
+                // Otherwise the entity is beyond the end of the list and will
+                // be fetched from the database when needed
+            }
+            return true;
+        }
+
+        /**
+         * Finds the position at which <code>entity</code> should be inserted
+         * into <code>entry</code> using binary search. The sort keys of the
+         * listed identifiers are read from the entity cache.
+         * 
+         * @return the position, or -1 if it cannot be determined, e.g.
+         *         because some entity is not in the cache or because some
+         *         sort key may be ordered differently by the database.
+         */
+        private int locate(IdListEntry entry, T entity) {
+            if (entry.idList.isEmpty() && !entry.containsAll) {
+                return -1;
+            }
+            List<SortBy> sortBy = entityProvider
+                    .addPrimaryKeyToSortList(entry.sortBy);
+            Object[] keys = getSortKeys(entity, sortBy);
+            if (keys == null) {
+                return -1;
+            }
+            int low = 0;
+            int high = entry.idList.size();
+            try {
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    T e = getEntityCache().get(entry.idList.get(mid));
+                    Object[] midKeys = e == null ? null : getSortKeys(e,
+                            sortBy);
+                    if (midKeys == null || !haveSameClasses(keys, midKeys)) {
+                        return -1;
+                    }
+                    if (compareSortKeys(keys, midKeys, sortBy) < 0) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+            } catch (ClassCastException e) {
+                return -1;
+            }
+            return low;
         }
 
         /**
@@ -330,8 +872,8 @@ class CachingSupport<T> implements Serializable {
                 List<SortBy> sortBy, int index) {
             IdListEntry entry = idListMap.get(sortBy);
             if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>(CHUNK_SIZE * 2);
+                entry = new IdListEntry(sortBy);
+                entry.idList = new IdList(getChunkSize() * 2);
                 idListMap.put(sortBy, entry);
             }
 
@@ -343,50 +885,64 @@ class CachingSupport<T> implements Serializable {
 
                 // Check if we can concatenate the index lists
                 if (entry.listOffset > -1 && index == entry.listOffset - 1) {
+                    entry.cancelPrefetch();
+                    int chunk = nextChunkSize(entry, true);
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunk > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunk) {
                             entry.idList.clear();
                         } else {
                             entry.idList.subList(
-                                    entry.idList.size() - CHUNK_SIZE,
+                                    entry.idList.size() - chunk,
                                     entry.idList.size()).clear();
                         }
+                        // The last identifier is no longer the one the sort
+                        // keys were recorded for
+                        entry.lastSortKeys = null;
                     }
-                    ArrayList<Object> l = new ArrayList<Object>(CHUNK_SIZE
+                    IdList l = new IdList(chunk
                             + entry.idList.size());
-                    int startFrom = index - CHUNK_SIZE;
+                    int startFrom = index - chunk;
                     if (startFrom < 0) {
                         startFrom = 0;
                     }
-                    l.addAll(getIds(container, getFilter(), sortBy, startFrom, index
-                            - startFrom + 1));
+                    l.addAll(loadIds(container, entry, sortBy, startFrom,
+                            index - startFrom + 1, false,
+                            entry.idList.isEmpty()));
                     l.addAll(entry.idList);
                     entry.idList = l;
                     entry.listOffset = startFrom;
                 } else if (entry.listOffset > -1
                         && index == entry.listOffset + entry.idList.size()) {
-                    // It is possible that maxCacheSize < CHUNK_SIZE => we have
+                    Prefetch prefetch = takePrefetch(entry, index);
+                    int chunk = prefetch == null ? nextChunkSize(entry, true)
+                            : prefetch.fetchMax;
+                    // It is possible that maxCacheSize < chunk => we have
                     // to make sure that the list is at least as big as
-                    // CHUNK_SIZE
+                    // chunk
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunk > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunk) {
                             entry.listOffset += entry.idList.size();
                             entry.idList.clear();
                         } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            entry.listOffset += CHUNK_SIZE;
+                            entry.idList.subList(0, chunk).clear();
+                            entry.listOffset += chunk;
                         }
                     }
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
+                    if (prefetch == null) {
+                        entry.idList.addAll(loadIds(container, entry, sortBy,
+                                index, chunk, true, true));
+                    } else {
+                        entry.idList.addAll(prefetch.ids);
+                    }
                 } else {
+                    entry.cancelPrefetch();
                     entry.idList.clear();
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
+                    entry.idList.addAll(loadIds(container, entry, sortBy,
+                            index, nextChunkSize(entry, false), false, true));
                     entry.listOffset = index;
                 }
             }
@@ -394,9 +950,273 @@ class CachingSupport<T> implements Serializable {
             if (entry.idList.size() <= i) {
                 return null;
             }
+            schedulePrefetch(container, entry, sortBy, index);
             return entry.idList.get(i);
         }
 
+        /**
+         * Starts loading the chunk of identifiers following the ones in
+         * <code>entry</code> in the background, if prefetching is enabled and
+         * <code>index</code> is close enough to the end of the list.
+         */
+        private void schedulePrefetch(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy, int index) {
+            final EntityManagerProvider prefetchEntityManagerProvider = getPrefetchEntityManagerProvider();
+            if (prefetchEntityManagerProvider == null || entry.containsAll
+                    || entry.prefetch != null || entry.listOffset < 0) {
+                return;
+            }
+            int end = entry.listOffset + entry.idList.size();
+            if (index < end - getPrefetchThreshold() || entityCount != null
+                    && end >= entityCount) {
+                return;
+            }
+            // The background thread must not touch the container, which is
+            // not thread safe, so query modifier delegates rule out
+            // prefetching
+            if (entityProvider.getQueryModifierDelegate() != null
+                    || container != null
+                    && container.getQueryModifierDelegate() != null) {
+                return;
+            }
+            final Filter filter = getFilter();
+            final List<SortBy> prefetchSortBy = sortBy == null ? null
+                    : new ArrayList<SortBy>(sortBy);
+            final boolean keyset = entityProvider.canSeek(container, sortBy);
+            final Object[] afterKeys = keyset ? entry.lastSortKeys : null;
+            final boolean fullRowLoading = isFullRowLoadingEnabled();
+            Prefetch prefetch = new Prefetch(end, nextChunkSize(entry, true),
+                    keyset) {
+
+                @Override
+                protected void load() {
+                    EntityManager em = prefetchEntityManagerProvider
+                            .getEntityManager();
+                    if (em == null) {
+                        throw new IllegalStateException(
+                                "No entity manager specified for prefetching");
+                    }
+                    entityProvider.bindEntityManager(em);
+                    try {
+                        List<Object[]> rows = null;
+                        entities = new HashMap<Object, Object>();
+                        if (fullRowLoading) {
+                            rows = entityProvider.doGetKeyedEntities(null,
+                                    filter, prefetchSortBy, afterKeys,
+                                    startFrom, fetchMax);
+                            ids = new ArrayList<Object>(rows.size());
+                            for (Object[] row : rows) {
+                                Object entityId = entityProvider
+                                        .getIdentifier(entityProvider
+                                                .getEntityClassMetadata()
+                                                .getMappedClass().cast(row[0]));
+                                entities.put(entityId, row[0]);
+                                ids.add(entityId);
+                            }
+                        } else {
+                            if (keyset) {
+                                rows = entityProvider
+                                        .doGetKeyedEntityIdentifiers(null,
+                                                filter, prefetchSortBy,
+                                                afterKeys, startFrom, fetchMax);
+                                ids = new ArrayList<Object>(rows.size());
+                                for (Object[] row : rows) {
+                                    ids.add(row[0]);
+                                }
+                            } else {
+                                ids = queryIds(null, filter,
+                                        prefetchSortBy, startFrom, fetchMax);
+                            }
+                            entities.putAll(entityProvider.doGetEntities(ids));
+                        }
+                        if (keyset && !rows.isEmpty()) {
+                            lastSortKeys = entityProvider.getSortKeys(rows
+                                    .get(rows.size() - 1));
+                        }
+                    } finally {
+                        entityProvider.unbindEntityManager();
+                        em.close();
+                    }
+                }
+            };
+            try {
+                getPrefetchExecutor().execute(prefetch);
+                entry.prefetch = prefetch;
+            } catch (RejectedExecutionException e) {
+                // The executor is busy, the chunk will be loaded when it is
+                // needed
+            }
+        }
+
+        /**
+         * Takes the prefetched chunk of identifiers of <code>entry</code> if
+         * it starts at <code>startFrom</code>, waiting for it to be loaded if
+         * the prefetch is already running, and puts the prefetched entities
+         * into the entity cache.
+         * 
+         * @return the prefetch, or null if no identifiers were prefetched.
+         */
+        private Prefetch takePrefetch(IdListEntry entry, int startFrom) {
+            Prefetch prefetch = entry.prefetch;
+            entry.prefetch = null;
+            if (prefetch == null) {
+                return null;
+            }
+            if (prefetch.startFrom != startFrom || !prefetch.await()) {
+                prefetch.cancel();
+                return null;
+            }
+            Class<T> entityClass = entityProvider.getEntityClassMetadata()
+                    .getMappedClass();
+            for (Map.Entry<Object, Object> e : prefetch.entities.entrySet()) {
+                if (!getEntityCache().containsKey(e.getKey())) {
+                    getEntityCache().put(e.getKey(),
+                            entityClass.cast(e.getValue()));
+                }
+            }
+            if (!prefetch.keyset) {
+                entry.lastSortKeys = null;
+            } else if (!prefetch.ids.isEmpty()) {
+                entry.lastSortKeys = prefetch.lastSortKeys;
+            }
+            return prefetch;
+        }
+
+        /**
+         * @see IndexedEntityProvider#getEntityIdentifiers(EntityContainer, Filter,
+         *      List, int, int)
+         */
+        public synchronized List<Object> getIdsAt(
+                EntityContainer<T> container, List<SortBy> sortBy,
+                int startIndex, int count) {
+            IdListEntry entry = idListMap.get(sortBy);
+            boolean cached = entry != null
+                    && (entry.containsAll || entry.listOffset > -1
+                            && startIndex >= entry.listOffset
+                            && startIndex + count <= entry.listOffset
+                                    + entry.idList.size());
+            if (!cached && count > getChunkSize()) {
+                // Fetch windows larger than a chunk with a single query
+                // instead of loading them into the cache chunk by chunk
+                return getIds(container, getFilter(), sortBy, startIndex,
+                        count);
+            }
+            List<Object> ids = new ArrayList<Object>(count);
+            for (int i = startIndex; i < startIndex + count; i++) {
+                Object id = getIdAt(container, sortBy, i);
+                if (id == null) {
+                    break;
+                }
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        /**
+         * Gets the number of identifiers to fetch for <code>entry</code>.
+         * 
+         * @param entry
+         *            the identifier list to fetch identifiers for.
+         * @param sequential
+         *            true if the identifiers directly follow or precede the
+         *            cached ones, false if the cached ones will be discarded.
+         * @return the chunk size.
+         */
+        private int nextChunkSize(IdListEntry entry, boolean sequential) {
+            if (!isAdaptiveChunkingEnabled()) {
+                return getChunkSize();
+            }
+            int chunk = getChunkSize();
+            if (sequential && entry.chunkSize > 0) {
+                chunk = Math.max(chunk, Math.min(getMaxChunkSize(),
+                        entry.chunkSize * 2));
+                if (getMaxCacheSize() > -1) {
+                    chunk = Math.max(getChunkSize(), Math.min(chunk,
+                            getMaxCacheSize()));
+                }
+            }
+            entry.chunkSize = chunk;
+            return chunk;
+        }
+
+        /**
+         * Gets a chunk of identifiers for <code>entry</code>, starting with
+         * the identifier at position <code>startFrom</code>. If full row
+         * loading is enabled, the entities are fetched by the same query and
+         * put into the entity cache. If keyset pagination is enabled in the
+         * entity provider, the sort key values of the last identifier are
+         * recorded in the entry and, if <code>append</code> is true and such
+         * values are known, used to seek to the chunk instead of skipping
+         * <code>startFrom</code> rows.
+         * 
+         * @param entry
+         *            the entry the identifiers will be stored in (must not be
+         *            null).
+         * @param sortBy
+         *            the ordering information (may not be null).
+         * @param startFrom
+         *            the index of the first identifier to retrieve.
+         * @param fetchMax
+         *            the maximum number of identifiers to retrieve.
+         * @param append
+         *            true if the chunk directly follows the identifiers
+         *            already in <code>entry</code>.
+         * @param tail
+         *            true if the chunk will be the last part of the list of
+         *            identifiers in <code>entry</code>.
+         * @return a list of at most <code>fetchMax</code> identifiers.
+         */
+        private List<Object> loadIds(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy, int startFrom,
+                int fetchMax, boolean append, boolean tail) {
+            boolean keyset = entityProvider.canSeek(container, sortBy);
+            List<Object> ids;
+            List<Object[]> rows;
+            if (isFullRowLoadingEnabled()) {
+                rows = entityProvider.doGetKeyedEntities(container,
+                        getFilter(), sortBy, keyset && append ? entry.lastSortKeys
+                                : null, startFrom, fetchMax);
+                ids = new ArrayList<Object>(rows.size());
+                Class<T> entityClass = entityProvider.getEntityClassMetadata()
+                        .getMappedClass();
+                entry.pruneSortKeys();
+                for (Object[] row : rows) {
+                    T entity = entityClass.cast(row[0]);
+                    Object entityId = entityProvider.getIdentifier(entity);
+                    if (!getEntityCache().containsKey(entityId)) {
+                        getEntityCache().put(entityId, entity);
+                    }
+                    ids.add(entityId);
+                    entry.putSortKeys(entityId, entityProvider.getSortKeys(row));
+                }
+            } else if (keyset) {
+                rows = entityProvider.doGetKeyedEntityIdentifiers(container,
+                        getFilter(), sortBy, append ? entry.lastSortKeys : null,
+                        startFrom, fetchMax);
+                ids = new ArrayList<Object>(rows.size());
+                entry.pruneSortKeys();
+                for (Object[] row : rows) {
+                    ids.add(row[0]);
+                    entry.putSortKeys(row[0], entityProvider.getSortKeys(row));
+                }
+            } else {
+                if (tail) {
+                    entry.lastSortKeys = null;
+                }
+                return getIds(container, getFilter(), sortBy, startFrom,
+                        fetchMax);
+            }
+            if (tail) {
+                if (keyset && !rows.isEmpty()) {
+                    entry.lastSortKeys = entityProvider.getSortKeys(rows
+                            .get(rows.size() - 1));
+                } else if (!keyset || !append) {
+                    entry.lastSortKeys = null;
+                }
+            }
+            return ids;
+        }
+
         /**
          * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
          *      java.util.List)
@@ -404,58 +1224,299 @@ class CachingSupport<T> implements Serializable {
         public synchronized List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
             IdListEntry entry = idListMap.get(sortBy);
             if (entry == null) {
-                entry = new IdListEntry();
+                entry = new IdListEntry(sortBy);
                 idListMap.put(sortBy, entry);
             }
-            if (!entry.containsAll) {
-                entry.idList = new ArrayList<Object>(getIds(container, getFilter(),
-                        sortBy, 0, -1));
-                entry.listOffset = 0;
-                entry.containsAll = true;
+            if (!entry.containsAll) {
+                entry.idList = new IdList(getIds(container, getFilter(),
+                        sortBy, 0, -1));
+                entry.listOffset = 0;
+                entry.containsAll = true;
+                entry.lastSortKeys = null;
+            }
+            return Collections.unmodifiableList(entry.idList);
+        }
+
+        /**
+         * Gets the filter for which this cache has been created.
+         * 
+         * @return the filter (may be null).
+         */
+        public Filter getFilter() {
+            return filter == NULL_FILTER ? null : filter;
+        }
+    }
+
+    /**
+     * Informs the caches that <code>entity</code> has been added. The entity
+     * counts and identifier lists of the cached filters are updated in
+     * memory, as described in {@link #entityUpdated(Object, Object)}.
+     * 
+     * @param entity
+     *            the added entity (must not be null).
+     */
+    public synchronized void entityAdded(T entity) {
+        Object entityId = getIdentifier(entity);
+        getEntityCache().remove(entityId);
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            fce.entityChanged(entityId, Boolean.FALSE, null, entity);
+        }
+    }
+
+    /**
+     * Informs the caches that the entity identified by <code>entityId</code>
+     * has been updated. Instead of flushing the caches, every cached filter is
+     * evaluated in memory against the old and new state of the entity to
+     * adjust its entity count, and the identifier is moved to its new sorted
+     * position in the cached identifier lists. Caches that cannot be updated
+     * this way are discarded.
+     * <p>
+     * The old state of the entity is only known if it is in the entity cache
+     * and cached entities are cloned, as otherwise the cached instance may
+     * already contain the changes. Only filters and sort keys that give the
+     * same result in memory as in the database are evaluated, see
+     * {@link #evaluate(Filter, Object)}. The cached lists sorted by, and the
+     * counts filtered by, anything else, e.g. strings, are discarded.
+     * 
+     * @param entityId
+     *            the identifier of the updated entity (must not be null).
+     * @param entity
+     *            the updated entity, or null if it cannot be found any more.
+     */
+    public synchronized void entityUpdated(Object entityId, T entity) {
+        entityChanged(entityId, entity);
+    }
+
+    private void entityChanged(Object entityId, T after) {
+        T before = getEntityCache().remove(entityId);
+        if (!isCloneCachedEntities()) {
+            before = null;
+        }
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            Boolean passedBefore = before == null ? null : fce.passesFilter(
+                    entityId, before);
+            fce.entityChanged(entityId, passedBefore, before, after);
+        }
+    }
+
+    private Object getIdentifier(T entity) {
+        return entityProvider.getEntityClassMetadata().getPropertyValue(
+                entity,
+                entityProvider.getEntityClassMetadata().getIdentifierProperty()
+                        .getName());
+    }
+
+    /**
+     * Evaluates <code>filter</code> in memory against <code>entity</code>,
+     * but only where the result is known to be the same as in the database.
+     * Strings are compared according to the collation of the database and
+     * other objects, e.g. referenced entities, are compared by identity, so
+     * only numeric and temporal values, and the equality of booleans and
+     * enums, are evaluated, and only against values of the same class. A null
+     * property value makes a comparison unknown, as the database treats it
+     * according to three-valued logic. Filters on joined collections, string
+     * filters and filters of other types are evaluated by the database only.
+     * 
+     * @return true if the entity passes the filter, false if it does not, or
+     *         null if the result cannot be determined reliably in memory.
+     */
+    private Boolean evaluate(Filter filter, T entity) {
+        if (filter instanceof And || filter instanceof Or) {
+            boolean and = filter instanceof And;
+            Boolean result = Boolean.valueOf(and);
+            for (Filter f : ((AbstractJunctionFilter) filter).getFilters()) {
+                Boolean r = evaluate(f, entity);
+                if (r == null) {
+                    result = null;
+                } else if (r.booleanValue() != and) {
+                    return r;
+                }
+            }
+            return result;
+        } else if (filter instanceof Not) {
+            Boolean r = evaluate(((Not) filter).getFilter(), entity);
+            return r == null ? null : Boolean.valueOf(!r);
+        } else if (filter instanceof IsNull) {
+            String propertyId = ((IsNull) filter).getPropertyId().toString();
+            if (PropertyPath.of(propertyId).isNested()) {
+                // The join of a nested property may exclude the entity
+                return null;
+            }
+            Object[] value = getPropertyValue(entity, propertyId);
+            return value == null ? null : Boolean.valueOf(value[0] == null);
+        } else if (filter instanceof Compare) {
+            Compare compare = (Compare) filter;
+            Object[] value = getPropertyValue(entity, compare.getPropertyId()
+                    .toString());
+            if (value == null) {
+                return null;
+            }
+            return compare(value[0], compare.getValue(),
+                    compare.getOperation());
+        } else if (filter instanceof Between) {
+            Between between = (Between) filter;
+            Object[] value = getPropertyValue(entity, between.getPropertyId()
+                    .toString());
+            if (value == null) {
+                return null;
+            }
+            Boolean lower = compare(value[0], between.getStartValue(),
+                    Compare.Operation.GREATER_OR_EQUAL);
+            Boolean upper = compare(value[0], between.getEndValue(),
+                    Compare.Operation.LESS_OR_EQUAL);
+            return lower == null || upper == null ? null : Boolean
+                    .valueOf(lower && upper);
+        } else if (filter instanceof In) {
+            In in = (In) filter;
+            Object[] value = getPropertyValue(entity, in.getPropertyId()
+                    .toString());
+            if (value == null) {
+                return null;
+            }
+            Boolean result = Boolean.FALSE;
+            for (Object v : in.getCollection()) {
+                Boolean r = compare(value[0], v, Compare.Operation.EQUAL);
+                if (r == null) {
+                    result = null;
+                } else if (r) {
+                    return r;
+                }
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value of the property <code>propertyId</code> of
+     * <code>entity</code>, wrapped in an array to tell a null value from an
+     * invalid property.
+     * 
+     * @return an array containing the value, or null if the property cannot
+     *         be read.
+     */
+    private Object[] getPropertyValue(T entity, String propertyId) {
+        try {
+            return new Object[] { entityProvider.getEntityClassMetadata()
+                    .getPropertyValue(entity, propertyId) };
+        } catch (RuntimeException e) {
+            // E.g. an invalid property name
+            return null;
+        }
+    }
+
+    /**
+     * Compares <code>value</code> to <code>filterValue</code> as the database
+     * would.
+     * 
+     * @return the result of the comparison, or null if it cannot be
+     *         determined reliably in memory.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Boolean compare(Object value, Object filterValue,
+            Compare.Operation operation) {
+        if (value == null || filterValue == null
+                || value.getClass() != filterValue.getClass()) {
+            return null;
+        }
+        if (!isOrderedInMemory(value)) {
+            if (operation == Compare.Operation.EQUAL
+                    && (value instanceof Boolean || value instanceof Enum)) {
+                return Boolean.valueOf(value.equals(filterValue));
+            }
+            return null;
+        }
+        int c = ((Comparable) value).compareTo(filterValue);
+        switch (operation) {
+        case EQUAL:
+            return Boolean.valueOf(c == 0);
+        case GREATER:
+            return Boolean.valueOf(c > 0);
+        case GREATER_OR_EQUAL:
+            return Boolean.valueOf(c >= 0);
+        case LESS:
+            return Boolean.valueOf(c < 0);
+        case LESS_OR_EQUAL:
+            return Boolean.valueOf(c <= 0);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if <code>value</code> is ordered the same way in memory as
+     * in the database, i.e. it is a number or a date.
+     */
+    private static boolean isOrderedInMemory(Object value) {
+        return value instanceof Comparable
+                && (value instanceof Number || value instanceof Date
+                        || value instanceof Calendar);
+    }
+
+    /**
+     * Gets the values of the <code>sortBy</code> properties of
+     * <code>entity</code>.
+     * 
+     * @see #isOrderedInMemory(Object)
+     * @return the values, or null if some value is null or may be ordered
+     *         differently by the database.
+     */
+    private Object[] getSortKeys(T entity, List<SortBy> sortBy) {
+        Object[] keys = new Object[sortBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                keys[i] = entityProvider.getEntityClassMetadata()
+                        .getPropertyValue(entity,
+                                sortBy.get(i).getPropertyId().toString());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (!isOrderedInMemory(keys[i])) {
+                return null;
             }
-            return Collections.unmodifiableList(entry.idList);
         }
+        return keys;
+    }
 
-        /**
-         * Gets the filter for which this cache has been created.
-         * 
-         * @return the filter (may be null).
-         */
-        public Filter getFilter() {
-            return filter == NULL_FILTER ? null : filter;
+    private static boolean haveSameClasses(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].getClass() != b[i].getClass()) {
+                return false;
+            }
         }
+        return true;
     }
 
-    /**
-     * TODO Document me!
-     * 
-     * @param entityId
-     * @param updated
-     */
-    public synchronized void invalidate(Object entityId, boolean updated) {
-        getEntityCache().remove(entityId);
-        if (updated) {
-            // TODO Do something smarter than flushing the entire cache!
-            getFilterCache().clear();
-        } else {
-            for (FilterCacheEntry fce : getFilterCache().values()) {
-                fce.invalidate(entityId);
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareSortKeys(Object[] a, Object[] b,
+            List<SortBy> sortBy) {
+        for (int i = 0; i < a.length; i++) {
+            int c = ((Comparable) a[i]).compareTo(b[i]);
+            if (c != 0) {
+                return sortBy.get(i).isAscending() ? c : -c;
             }
         }
+        return 0;
     }
 
     /**
-     * TODO Document me!
-     * 
-     * @param entity
+     * Gets the number of entities that match <code>filter</code>, consulting
+     * the shared query cache first if there is one.
      */
-    public synchronized void entityAdded(T entity) {
-        // TODO Do something smarter than flushing the entire cache!
-        flush();
-        // This is currently obsolete, but when above todo is implemented,
-        // uncomment this or somehow increment relevat filter caches.
-        // invalidateSize();
-
+    private int loadEntityCount(EntityContainer<T> container, Filter filter) {
+        SharedQueryCache shared = getUsableSharedQueryCache();
+        SharedQueryCache.Key key = shared == null ? null : shared
+                .createCountKey(entityProvider.getEntityClassMetadata()
+                        .getMappedClass(), filter);
+        if (key == null) {
+            return entityProvider.doGetEntityCount(container, filter);
+        }
+        Integer count = shared.getEntityCount(key);
+        if (count == null) {
+            count = entityProvider.doGetEntityCount(container, filter);
+            shared.putEntityCount(key, count);
+        }
+        return count;
     }
 
     /**
@@ -477,6 +1538,23 @@ class CachingSupport<T> implements Serializable {
      */
     protected List<Object> getIds(EntityContainer<T> container, Filter filter,
             List<SortBy> sortBy, int startFrom, int fetchMax) {
+        SharedQueryCache shared = getUsableSharedQueryCache();
+        SharedQueryCache.Key key = shared == null ? null : shared
+                .createIdsKey(entityProvider.getEntityClassMetadata()
+                        .getMappedClass(), filter, sortBy, startFrom, fetchMax);
+        if (key == null) {
+            return queryIds(container, filter, sortBy, startFrom, fetchMax);
+        }
+        List<Object> ids = shared.getIds(key);
+        if (ids == null) {
+            ids = queryIds(container, filter, sortBy, startFrom, fetchMax);
+            shared.putIds(key, ids);
+        }
+        return ids;
+    }
+
+    private List<Object> queryIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startFrom, int fetchMax) {
         TypedQuery<Object> query = entityProvider.createFilteredQuery(
                 container,
                 Arrays.asList(entityProvider.getEntityClassMetadata()
@@ -498,124 +1576,18 @@ class CachingSupport<T> implements Serializable {
         return resultList;
     }
 
+    private Cache<Object, T> entityCache;
+    private Cache<Filter, FilterCacheEntry> filterCache;
     /**
-     * Gets all the identifiers that match <code>filter</code>, sorted by
-     * <code>sortBy</code>, starting with the identifier next to
-     * <code>startFrom</code> and retrieving a maximum number of
-     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
-     * then item n+1 will be the first item in the returnde list, n+2 the
-     * second, etc.
-     * 
-     * @param filter
-     *            the filter to apply, if any (may be null).
-     * @param sortBy
-     *            the ordering information (may not be null).
-     * @param startFrom
-     *            the entityId prioir to the first identifier to retrieve.
-     * @param fetchMax
-     *            the maximum number of identifiers to retrieve, or 0 to
-     *            retrieve all.
-     * @return a list of identifiers.
-     */
-    protected List<Object> getNextIds(EntityContainer<T> container,
-            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
-        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
-                startFrom, filter, sortBy, false);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
-        }
-        return query.getResultList();
-    }
-
-    /**
-     * Gets all the identifiers that match <code>filter</code>, sorted backwards
-     * by <code>sortBy</code>, starting with the identifier prior to
-     * <code>startFrom</code> and retrieving a maximum number of
-     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
-     * then item n-1 will be the first item in the returned list, n-2 the
-     * second, etc.
-     * 
-     * @param filter
-     *            the filter to apply, if any (may be null).
-     * @param sortBy
-     *            the ordering information (may not be null).
-     * @param startFrom
-     *            the entityId next to the first identifier to retrieve.
-     * @param fetchMax
-     *            the maximum number of identifiers to retrieve, or 0 to
-     *            retrieve all.
-     * @return a list of identifiers.
-     */
-    protected List<Object> getPreviousIds(EntityContainer<T> container,
-            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
-        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
-                startFrom, filter, sortBy, true);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
-        }
-        return query.getResultList();
-    }
-
-    private Map<Object, T> entityCache;
-    private Map<Filter, FilterCacheEntry> filterCache;
-
-    /**
-     * A hash map that will remove the oldest items once its size reaches a
-     * specified max size.
-     * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
-     */
-    protected static class CacheMap<K, V> extends HashMap<K, V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<K> addOrder = new LinkedList<K>();
-        private int maxSize;
-
-        public CacheMap(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
-        }
-
-        @Override
-        public synchronized V put(K key, V value) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(key);
-            return super.put(key, value);
-        }
-    }
-
-    /**
-     * A hash set that will remove the oldest items once its size reaches a
-     * specified max size.
-     * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
+     * The filter last passed to {@link #getFilterCacheEntry(Filter)} and the
+     * key of its cache entry.
      */
-    protected static class CacheSet<V> extends HashSet<V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<V> addOrder = new LinkedList<V>();
-        private int maxSize;
-
-        public CacheSet(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
-        }
-
-        @Override
-        public synchronized boolean add(V e) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(e);
-            return super.add(e);
-        }
-    }
+    private transient Filter lastFilter;
+    private transient Filter lastFilterKey;
+    private CacheFactory cacheFactory = new ConcurrentLruCache.Factory(false);
+    private final CacheStatistics entityCacheStatistics = new CacheStatistics();
+    private final CacheStatistics identifierCacheStatistics = new CacheStatistics();
+    private transient SharedQueryCache sharedQueryCache;
 
     /**
      * Gets the cache for entity instances. If no cache exists, it will be
@@ -623,9 +1595,10 @@ class CachingSupport<T> implements Serializable {
      * 
      * @return the entity cache (never null).
      */
-    synchronized Map<Object, T> getEntityCache() {
+    synchronized Cache<Object, T> getEntityCache() {
         if (entityCache == null) {
-            entityCache = new CacheMap<Object, T>(getMaxCacheSize());
+            entityCache = getCacheFactory().createCache(getMaxCacheSize(),
+                    getEntityCacheStatistics());
         }
         return entityCache;
     }
@@ -636,10 +1609,10 @@ class CachingSupport<T> implements Serializable {
      * 
      * @return the filter cache (never null).
      */
-    synchronized Map<Filter, FilterCacheEntry> getFilterCache() {
+    synchronized Cache<Filter, FilterCacheEntry> getFilterCache() {
         if (filterCache == null) {
-            filterCache = new CacheMap<Filter, FilterCacheEntry>(
-                    MAX_FILTER_CACHE_SIZE);
+            filterCache = getCacheFactory().createCache(getMaxFilterCacheSize(),
+                    getIdentifierCacheStatistics());
         }
         return filterCache;
     }
@@ -653,9 +1626,7 @@ class CachingSupport<T> implements Serializable {
      * @return the filter cache entry (never null).
      */
     synchronized FilterCacheEntry getFilterCacheEntry(Filter filter) {
-        if (filter == null) {
-            filter = NULL_FILTER;
-        }
+        filter = getCacheKey(filter);
         FilterCacheEntry e = getFilterCache().get(filter);
         if (e == null) {
             e = new FilterCacheEntry(filter);
@@ -664,6 +1635,50 @@ class CachingSupport<T> implements Serializable {
         return e;
     }
 
+    /**
+     * Gets the key of the filter cache entry of <code>filter</code>, i.e. the
+     * canonical form of the filter, so that equivalent filters share the same
+     * entry. As the same filter instance is usually passed over and over
+     * again, the last key is remembered.
+     */
+    private Filter getCacheKey(Filter filter) {
+        if (filter != lastFilter || lastFilterKey == null) {
+            Filter key = FilterOptimizer.canonicalize(filter);
+            lastFilterKey = key == null ? NULL_FILTER : key;
+            lastFilter = filter;
+        }
+        return lastFilterKey;
+    }
+
+    /**
+     * Replaces the cached number of entities matching <code>filter</code>
+     * with <code>count</code>, e.g. when the exact count has been computed in
+     * the background.
+     * 
+     * @param filter
+     *            the filter, or null if all the entities were counted.
+     * @param count
+     *            the number of entities.
+     */
+    public void entityCountChanged(Filter filter, int count) {
+        // Not synchronized, as this may be called from another thread while
+        // a filter cache entry is locked
+        Cache<Filter, FilterCacheEntry> cache = filterCache;
+        Filter key = FilterOptimizer.canonicalize(filter);
+        FilterCacheEntry entry = cache == null ? null : cache
+                .get(key == null ? NULL_FILTER : key);
+        if (entry != null) {
+            entry.setEntityCount(count);
+        }
+        SharedQueryCache shared = getUsableSharedQueryCache();
+        SharedQueryCache.Key sharedKey = shared == null ? null : shared
+                .createCountKey(entityProvider.getEntityClassMetadata()
+                        .getMappedClass(), filter);
+        if (sharedKey != null) {
+            shared.putEntityCount(sharedKey, count);
+        }
+    }
+
     public synchronized void flush() {
         if (entityCache != null) {
             entityCache.clear();
@@ -677,6 +1692,67 @@ class CachingSupport<T> implements Serializable {
         return maxCacheSize;
     }
 
+    public CacheStatistics getEntityCacheStatistics() {
+        return entityCacheStatistics;
+    }
+
+    public CacheStatistics getIdentifierCacheStatistics() {
+        return identifierCacheStatistics;
+    }
+
+    public CacheFactory getCacheFactory() {
+        return cacheFactory;
+    }
+
+    public SharedQueryCache getSharedQueryCache() {
+        return sharedQueryCache;
+    }
+
+    /**
+     * Gets the shared query cache to consult, or null if there is none or if
+     * the changes made through the entity provider are committed outside of
+     * it. In the latter case, the changes are reported to the shared cache
+     * before they are visible to the other users of the cache.
+     * 
+     * @see MutableLocalEntityProvider#isTransactionsHandledByProvider()
+     */
+    private SharedQueryCache getUsableSharedQueryCache() {
+        if (entityProvider instanceof MutableLocalEntityProvider
+                && !((MutableLocalEntityProvider<T>) entityProvider)
+                        .isTransactionsHandledByProvider()) {
+            return null;
+        }
+        return sharedQueryCache;
+    }
+
+    /**
+     * Sets the shared query cache to consult before running count and
+     * identifier queries. This method will cause any existing caches to be
+     * flushed.
+     * 
+     * @param sharedQueryCache
+     *            the shared query cache, or null to not use one.
+     */
+    public synchronized void setSharedQueryCache(
+            SharedQueryCache sharedQueryCache) {
+        this.sharedQueryCache = sharedQueryCache;
+        flush();
+    }
+
+    /**
+     * Sets the factory used to create the caches. This method will cause any
+     * existing caches to be flushed and re-created.
+     * 
+     * @param cacheFactory
+     *            the cache factory to use (must not be null).
+     */
+    public synchronized void setCacheFactory(CacheFactory cacheFactory) {
+        assert cacheFactory != null : "cacheFactory must not be null";
+        this.cacheFactory = cacheFactory;
+        entityCache = null;
+        filterCache = null;
+    }
+
     /**
      * Check whether caching is possible or not. Caching is not possible if
      * there is a {@link QueryModifierDelegate}, that modifies the filters
@@ -744,6 +1820,180 @@ class CachingSupport<T> implements Serializable {
         filterCache = null;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of entity identifiers to fetch with a single query. When
+     * adaptive chunking is enabled, this is the size of the first chunk and
+     * the size that the chunks are reset to when the user jumps to another
+     * part of the list.
+     * 
+     * @param chunkSize
+     *            the chunk size to set (must be greater than zero).
+     */
+    public void setChunkSize(int chunkSize) {
+        assert chunkSize > 0 : "chunkSize must be greater than zero";
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Sets the maximum number of entity identifiers that adaptive chunking
+     * may fetch with a single query.
+     * 
+     * @param maxChunkSize
+     *            the maximum chunk size to set (must be greater than zero).
+     */
+    public void setMaxChunkSize(int maxChunkSize) {
+        assert maxChunkSize > 0 : "maxChunkSize must be greater than zero";
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public boolean isAdaptiveChunkingEnabled() {
+        return adaptiveChunkingEnabled;
+    }
+
+    /**
+     * Turns adaptive chunking on or off. When it is on, the chunk size is
+     * doubled (up to {@link #getMaxChunkSize()}) every time the cached
+     * identifiers are extended at either end, i.e. when the user scrolls
+     * through the list, and reset to {@link #getChunkSize()} when the user
+     * jumps to an identifier that is not next to the cached ones.
+     * 
+     * @param adaptiveChunkingEnabled
+     *            true to turn on adaptive chunking, false to always fetch
+     *            {@link #getChunkSize()} identifiers.
+     */
+    public void setAdaptiveChunkingEnabled(boolean adaptiveChunkingEnabled) {
+        this.adaptiveChunkingEnabled = adaptiveChunkingEnabled;
+    }
+
+    public int getMaxFilterCacheSize() {
+        return maxFilterCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of different filters to cache identifiers for.
+     * This method will cause any existing caches to be flushed and
+     * re-created.
+     * 
+     * @param maxFilterCacheSize
+     *            the maximum filter cache size to set, or -1 for no limit.
+     */
+    public synchronized void setMaxFilterCacheSize(int maxFilterCacheSize) {
+        this.maxFilterCacheSize = maxFilterCacheSize;
+        filterCache = null;
+    }
+
+    public int getMaxSortByCacheSize() {
+        return maxSortByCacheSize;
+    }
+
+    public EntityManagerProvider getPrefetchEntityManagerProvider() {
+        return prefetchEntityManagerProvider;
+    }
+
+    /**
+     * Turns prefetching on or off. When it is on, the chunk of identifiers
+     * following the cached ones, and the entities they refer to, are loaded
+     * in the background as soon as an identifier less than
+     * {@link #getPrefetchThreshold()} positions from the end of the cached
+     * identifiers is requested. The background queries use the entity manager
+     * returned by <code>prefetchEntityManagerProvider</code> in the background
+     * thread, which must be a new entity manager every time, as entity
+     * managers are not thread safe. It is closed when the prefetch is done.
+     * Turning prefetching off shuts down the default executor, see
+     * {@link #setPrefetchExecutor(Executor)}.
+     * 
+     * @param prefetchEntityManagerProvider
+     *            the provider of the entity managers to prefetch with, or null
+     *            to turn prefetching off.
+     */
+    public synchronized void setPrefetchEntityManagerProvider(
+            EntityManagerProvider prefetchEntityManagerProvider) {
+        this.prefetchEntityManagerProvider = prefetchEntityManagerProvider;
+        flush();
+        if (prefetchEntityManagerProvider == null) {
+            shutdownDefaultPrefetchExecutor();
+        }
+    }
+
+    public int getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    /**
+     * Sets how close to the end of the cached identifiers a requested
+     * identifier must be for the following chunk to be prefetched.
+     * 
+     * @param prefetchThreshold
+     *            the number of positions from the end of the cached
+     *            identifiers (must not be negative).
+     */
+    public void setPrefetchThreshold(int prefetchThreshold) {
+        assert prefetchThreshold >= 0 : "prefetchThreshold must not be negative";
+        this.prefetchThreshold = prefetchThreshold;
+    }
+
+    public synchronized Executor getPrefetchExecutor() {
+        if (prefetchExecutor != null) {
+            return prefetchExecutor;
+        }
+        if (defaultPrefetchExecutor == null) {
+            defaultPrefetchExecutor = new ThreadPoolExecutor(1, 1, 30,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(16),
+                    new PrefetchThreadFactory());
+            defaultPrefetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return defaultPrefetchExecutor;
+    }
+
+    /**
+     * Sets the executor that runs the prefetches. The executor should be
+     * bounded and reject new tasks when it is overloaded; a rejected prefetch
+     * is simply skipped. The executor is not shut down by this object.
+     * <p>
+     * If no executor is set, this object creates its own executor that runs
+     * one prefetch at a time in a daemon thread, which stops when it has been
+     * idle for 30 seconds. It is shut down when prefetching is turned off or
+     * another executor is set.
+     * 
+     * @param prefetchExecutor
+     *            the executor, or null to use the executor owned by this
+     *            object.
+     */
+    public synchronized void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+        if (prefetchExecutor != null) {
+            shutdownDefaultPrefetchExecutor();
+        }
+    }
+
+    private void shutdownDefaultPrefetchExecutor() {
+        if (defaultPrefetchExecutor != null) {
+            defaultPrefetchExecutor.shutdown();
+            defaultPrefetchExecutor = null;
+        }
+    }
+
+    /**
+     * Sets the maximum number of different sort orders to cache identifiers
+     * for, for each filter. This method will cause any existing caches to be
+     * flushed and re-created.
+     * 
+     * @param maxSortByCacheSize
+     *            the maximum sort by cache size to set, or -1 for no limit.
+     */
+    public synchronized void setMaxSortByCacheSize(int maxSortByCacheSize) {
+        this.maxSortByCacheSize = maxSortByCacheSize;
+        filterCache = null;
+    }
+
     public boolean containsEntity(EntityContainer<T> container,
             Object entityId, Filter filter) {
         if (usesCache(container)) {
@@ -771,7 +2021,6 @@ class CachingSupport<T> implements Serializable {
         if (usesCache(container)) {
             T entity = getEntityCache().get(entityId);
             if (entity == null) {
-                // TODO Should we fetch several entities at once?
                 entity = entityProvider.doGetEntity(entityId);
                 if (entity == null) {
                     return null;
@@ -784,6 +2033,38 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public synchronized Map<Object, T> getEntities(
+            EntityContainer<T> container, Collection<Object> entityIds) {
+        if (!usesCache(container)) {
+            return entityProvider.doGetEntities(entityIds);
+        }
+        Map<Object, T> cached = new HashMap<Object, T>();
+        List<Object> missingIds = new ArrayList<Object>();
+        for (Object entityId : entityIds) {
+            T entity = getEntityCache().get(entityId);
+            if (entity == null) {
+                missingIds.add(entityId);
+            } else {
+                cached.put(entityId, entity);
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            for (Map.Entry<Object, T> e : entityProvider.doGetEntities(
+                    missingIds).entrySet()) {
+                getEntityCache().put(e.getKey(), e.getValue());
+                cached.put(e.getKey(), e.getValue());
+            }
+        }
+        Map<Object, T> result = new LinkedHashMap<Object, T>();
+        for (Object entityId : entityIds) {
+            T entity = cached.get(entityId);
+            if (entity != null) {
+                result.put(entityId, cloneEntityIfNeeded(entity));
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns a clone of <code>entity</code> if
      * {@link #isCloneCachedEntities() } is true.
@@ -814,6 +2095,22 @@ class CachingSupport<T> implements Serializable {
         return usesCache(null) || entityProvider.isEntitiesDetached();
     }
 
+    public boolean isFullRowLoadingEnabled() {
+        return fullRowLoadingEnabled;
+    }
+
+    /**
+     * Specifies whether the entities should be fetched by the same query as
+     * their identifiers when a chunk of identifiers is loaded into the cache.
+     * 
+     * @param fullRowLoadingEnabled
+     *            true to fetch whole entities, false to fetch only the
+     *            identifiers.
+     */
+    public void setFullRowLoadingEnabled(boolean fullRowLoadingEnabled) {
+        this.fullRowLoadingEnabled = fullRowLoadingEnabled;
+    }
+
     public boolean isCloneCachedEntities() {
         return cloneCachedEntities;
     }
@@ -854,6 +2151,20 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).getIdsAt(container, sortBy,
+                    startIndex, count);
+        } else {
+            return entityProvider.doGetEntityIdentifiers(container, filter,
+                    sortBy, startIndex, count);
+        }
+    }
+
     public Object getFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -908,23 +2219,66 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public int getEntityIdentifierIndex(EntityContainer<T> container,
+            Object entityId, Filter filter, List<SortBy> sortBy) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).getIndexOfId(container,
+                    entityId, sortBy);
+        } else {
+            return entityProvider.doGetEntityIdentifierIndex(container,
+                    entityId, filter, sortBy);
+        }
+    }
+
     public void invalidateSize() {
-        // TODO review synchronization of this whole class
-        Object[] array = filterCache.keySet().toArray();
-        for (Object filter : array) {
-            FilterCacheEntry filterCacheEntry = filterCache.get(filter);
-            if (filterCacheEntry.entityCount != null) {
-                synchronized (filterCache) {
-                    filterCacheEntry.entityCount = null;
-                }
+        if (filterCache == null) {
+            return;
+        }
+        for (FilterCacheEntry filterCacheEntry : filterCache.values()) {
+            synchronized (filterCacheEntry) {
+                filterCacheEntry.entityCount = null;
             }
         }
+    }
 
+    public synchronized void entityRemoved(Object entityId) {
+        entityChanged(entityId, null);
     }
 
-    public void entityRemoved(Object entityId) {
-        invalidate(entityId, false);
-        invalidateSize();
+    /**
+     * Informs the caches about the entities that have been added, updated and
+     * removed by a batch update. The changes are applied one by one as
+     * described in {@link #entityUpdated(Object, Object)}, unless there are
+     * more changes than entities in the entity cache, in which case it is
+     * cheaper to flush the caches.
+     * 
+     * @param event
+     *            the coalesced changes (must not be null).
+     */
+    public synchronized void entitiesChanged(
+            EntityProviderChangeEvent.EntitiesChangedEvent<T> event) {
+        assert event != null : "event must not be null";
+        int changeCount = event.getAddedEntityIds().size()
+                + event.getUpdatedEntityIds().size()
+                + event.getRemovedEntityIds().size();
+        if (maxCacheSize >= 0 && changeCount > maxCacheSize) {
+            flush();
+            return;
+        }
+        for (T entity : event.getAffectedEntities()) {
+            Object entityId = getIdentifier(entity);
+            if (event.getAddedEntityIds().contains(entityId)) {
+                entityAdded(entity);
+            } else {
+                entityUpdated(entityId, entity);
+            }
+        }
+        for (Object entityId : event.getRemovedEntityIds()) {
+            entityRemoved(entityId);
+        }
     }
 
     /**
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+
+import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Event indicating that the exact number of entities matching a filter has
+ * been computed.
+ * 
+ * @since 3.2.0
+ */
+class EntityCountChangedEvent<T> implements
+        EntityProviderChangeEvent.EntityCountChangedEvent<T>, Serializable {
+
+    private static final long serialVersionUID = 4150712384069211183L;
+    private final EntityProvider<T> entityProvider;
+    private final Filter filter;
+    private final int entityCount;
+
+    public EntityCountChangedEvent(EntityProvider<T> entityProvider,
+            Filter filter, int entityCount) {
+        this.entityProvider = entityProvider;
+        this.filter = filter;
+        this.entityCount = entityCount;
+    }
+
+    @Override
+    public EntityProvider<T> getEntityProvider() {
+        return entityProvider;
+    }
+
+    @Override
+    public Collection<T> getAffectedEntities() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+
+    @Override
+    public int getEntityCount() {
+        return entityCount;
+    }
+}
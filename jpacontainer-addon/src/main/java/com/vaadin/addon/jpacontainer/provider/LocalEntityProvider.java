@@ -20,10 +20,14 @@ import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
@@ -37,24 +41,36 @@ import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+import com.vaadin.addon.jpacontainer.CountEstimator;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.IndexedEntityProvider;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
 import com.vaadin.addon.jpacontainer.filter.util.JPAFilterConverterFactory;
+import com.vaadin.addon.jpacontainer.filter.util.JPAFilterConverterFactory.ParameterBinding;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
-import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
+import com.vaadin.addon.jpacontainer.metadata.ResolvedPropertyPath;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Compare.Equal;
 import com.vaadin.data.util.filter.Compare.Greater;
+import com.vaadin.data.util.filter.Compare.GreaterOrEqual;
 import com.vaadin.data.util.filter.Compare.Less;
+import com.vaadin.data.util.filter.Compare.LessOrEqual;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Not;
 import com.vaadin.data.util.filter.Or;
 
 /**
@@ -83,7 +99,8 @@ import com.vaadin.data.util.filter.Or;
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
+public class LocalEntityProvider<T> implements IndexedEntityProvider<T>,
+        Serializable {
 
     private static final long serialVersionUID = 1601796410565144708L;
     private transient EntityManager entityManager;
@@ -144,6 +161,61 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     private LazyLoadingDelegate lazyLoadingDelegate;
 
+    /**
+     * The number of identifiers to fetch at a time when the position of an
+     * entity has to be found by scanning the list.
+     */
+    private static final int INDEX_SCAN_CHUNK_SIZE = 500;
+
+    private boolean keysetPaginationEnabled = false;
+    private boolean rowValueComparisonEnabled = false;
+    private int maxEntityIdsPerQuery = 500;
+    private CountEstimator countEstimator;
+    private int queryPlanCacheMaxSize = 64;
+    private transient Executor entityCountChangeExecutor;
+    private transient QueryPlanCache queryPlanCache;
+
+    /**
+     * The sort keys of the last row returned by
+     * {@link #doGetEntityIdentifiers(EntityContainer, Filter, List, int, int)}
+     * to each container when keyset pagination is enabled. The map is used
+     * from several threads and must only be accessed while holding its lock.
+     */
+    private transient Map<EntityContainer<T>, KeysetCursor> keysetCursors = new WeakHashMap<EntityContainer<T>, KeysetCursor>();
+
+    /**
+     * The entity manager to use instead of the normal one in the current
+     * thread, see {@link #bindEntityManager(EntityManager)}.
+     */
+    private transient ThreadLocal<EntityManager> boundEntityManager = new ThreadLocal<EntityManager>();
+
+    /**
+     * Immutable position marker used by keyset pagination: the identifier at
+     * <code>index</code> in the list defined by <code>filter</code> and
+     * <code>sortBy</code> has the sort key values <code>keys</code>.
+     */
+    private static final class KeysetCursor {
+
+        private final Filter filter;
+        private final List<SortBy> sortBy;
+        private final int index;
+        private final Object[] keys;
+
+        KeysetCursor(Filter filter, List<SortBy> sortBy, int index,
+                Object[] keys) {
+            this.filter = filter;
+            this.sortBy = sortBy;
+            this.index = index;
+            this.keys = keys;
+        }
+
+        boolean precedes(Filter filter, List<SortBy> sortBy, int index) {
+            return this.index == index - 1
+                    && (this.filter == null ? filter == null : this.filter
+                            .equals(filter)) && this.sortBy.equals(sortBy);
+        }
+    }
+
     // TODO Test serialization of entity manager
     protected Object writeReplace() throws ObjectStreamException {
         if (entityManager != null && entityManager instanceof Serializable) {
@@ -156,6 +228,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         if (serializableEntityManager != null) {
             this.entityManager = (EntityManager) serializableEntityManager;
         }
+        boundEntityManager = new ThreadLocal<EntityManager>();
+        keysetCursors = new WeakHashMap<EntityContainer<T>, KeysetCursor>();
         return this;
     }
 
@@ -206,19 +280,52 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
     }
 
     /**
-     * Gets the entity manager. If no entity manager has been set, the one
-     * returned by the registered entity manager provider is returned.
+     * Gets the entity manager. If an entity manager has been bound to the
+     * current thread with {@link #bindEntityManager(EntityManager)}, it is
+     * returned. If no entity manager has been set, the one returned by the
+     * registered entity manager provider is returned.
      * 
      * @return the entity manager.
      */
     @Override
     public EntityManager getEntityManager() {
+        EntityManager bound = boundEntityManager.get();
+        if (bound != null) {
+            return bound;
+        }
         if (entityManager != null) {
             return entityManager;
         }
         return entityManagerProvider.getEntityManager();
     }
 
+    /**
+     * Makes this entity provider use <code>entityManager</code> in the current
+     * thread, until {@link #unbindEntityManager()} is called. This is used to
+     * run queries in a background thread without touching the entity manager
+     * of the foreground thread, as entity managers are not thread safe.
+     * 
+     * @param entityManager
+     *            the entity manager to use in the current thread (must not be
+     *            null).
+     * @since 3.2.0
+     */
+    protected void bindEntityManager(EntityManager entityManager) {
+        assert entityManager != null : "entityManager must not be null";
+        boundEntityManager.set(entityManager);
+    }
+
+    /**
+     * Makes this entity provider go back to using its normal entity manager in
+     * the current thread.
+     * 
+     * @see #bindEntityManager(EntityManager)
+     * @since 3.2.0
+     */
+    protected void unbindEntityManager() {
+        boundEntityManager.remove();
+    }
+
     /**
      * Gets the entity manager.
      * 
@@ -227,6 +334,10 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      *             if no entity manager is set.
      */
     protected EntityManager doGetEntityManager() throws IllegalStateException {
+        EntityManager bound = boundEntityManager.get();
+        if (bound != null) {
+            return bound;
+        }
         if (getEntityManager() == null) {
             throw new IllegalStateException("No entity manager specified");
         }
@@ -302,25 +413,24 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Order translateSortBy(SortBy sortBy, boolean swapSortOrder,
             CriteriaBuilder cb, Root<T> root) {
-        String sortedPropId = sortBy.getPropertyId().toString();
-        // First split the id and build a Path.
-        String[] idStrings = sortedPropId.split("\\.");
+        PropertyPath propertyPath = sortBy.getPropertyPath();
         Path<T> path = null;
-        if (idStrings.length > 1 && !isEmbedded(idStrings[0])) {
+        if (entityClassMetadata.resolve(propertyPath).isJoinRequired()) {
             // This is a nested property, we need to LEFT JOIN
-            path = root.join(idStrings[0], JoinType.LEFT);
-            for (int i = 1; i < idStrings.length; i++) {
-                if (i < idStrings.length - 1) {
-                    path = ((Join<?, ?>) path)
-                            .join(idStrings[i], JoinType.LEFT);
+            int length = propertyPath.getLength();
+            path = root.join(propertyPath.getFirst(), JoinType.LEFT);
+            for (int i = 1; i < length; i++) {
+                if (i < length - 1) {
+                    path = ((Join<?, ?>) path).join(propertyPath.getPart(i),
+                            JoinType.LEFT);
                 } else {
-                    path = path.get(idStrings[i]);
+                    path = path.get(propertyPath.getPart(i));
                 }
             }
         } else {
             // non-nested or embedded, we can select as usual
             path = AdvancedFilterableSupport.getPropertyPathTyped(root,
-                    sortedPropId);
+                    propertyPath);
         }
 
         // Make and return the Order instances.
@@ -331,14 +441,6 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
     }
 
-    /**
-     * @param propertyId
-     * @return
-     */
-    private boolean isEmbedded(String propertyId) {
-        return entityClassMetadata.getProperty(propertyId).getPropertyKind() == PropertyKind.EMBEDDED;
-    }
-
     /**
      * Creates a filtered query that does not do any sorting.
      * 
@@ -377,18 +479,76 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
     protected TypedQuery<Object> createFilteredQuery(
             EntityContainer<T> container, List<String> fieldsToSelect,
             Filter filter, List<SortBy> sortBy, boolean swapSortOrder) {
-        assert fieldsToSelect != null : "fieldsToSelect must not be null";
+        assert fieldsToSelect != null && !fieldsToSelect.isEmpty() : "fieldsToSelect must not be null or empty";
+        return createFilteredQuery(container, false, fieldsToSelect, filter,
+                sortBy, swapSortOrder);
+    }
+
+    /**
+     * Creates a filtered, optionally sorted, query that selects the entities
+     * themselves. If <code>additionalFieldsToSelect</code> is not empty, or if
+     * the query needs joins for sorting, each result row is an array where the
+     * first element is the entity and the remaining elements are the values
+     * of the additional fields.
+     * 
+     * @param additionalFieldsToSelect
+     *            the fields to select in addition to the entity (must not be
+     *            null).
+     * @param filter
+     *            the filter to apply, or null if no filters should be applied.
+     * @param sortBy
+     *            the fields to sort by (must include at least one field), or
+     *            null if the result should not be sorted at all.
+     * @param swapSortOrder
+     *            true to swap the sort order, false to use the sort order
+     *            specified in <code>sortBy</code>. Only applies if
+     *            <code>sortBy</code> is not null.
+     * @return the query (never null).
+     */
+    protected TypedQuery<Object> createFilteredEntityQuery(
+            EntityContainer<T> container,
+            List<String> additionalFieldsToSelect, Filter filter,
+            List<SortBy> sortBy, boolean swapSortOrder) {
+        assert additionalFieldsToSelect != null : "additionalFieldsToSelect must not be null";
+        return createFilteredQuery(container, true, additionalFieldsToSelect,
+                filter, sortBy, swapSortOrder);
+    }
+
+    private TypedQuery<Object> createFilteredQuery(
+            EntityContainer<T> container, boolean selectEntity,
+            List<String> fieldsToSelect, Filter filter, List<SortBy> sortBy,
+            boolean swapSortOrder) {
         assert sortBy == null || !sortBy.isEmpty() : "sortBy must be either null or non-empty";
 
-        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        EntityManager em = doGetEntityManager();
+        QueryPlanCache planCache = getQueryPlanCache(container);
+        QueryPlanCache.Key planKey = null;
+        List<Object> values = null;
+        if (planCache != null) {
+            values = new ArrayList<Object>();
+            Object filterShape = filter == null ? null
+                    : JPAFilterConverterFactory.getFilterShape(filter, values);
+            planKey = new QueryPlanCache.Key(selectEntity, fieldsToSelect,
+                    filterShape, sortBy, swapSortOrder);
+            QueryPlanCache.Plan plan = planCache.get(em.getMetamodel(),
+                    planKey);
+            if (plan != null) {
+                TypedQuery<Object> tq = plan.createQuery(em);
+                ParameterBinding.applyTo(tq, plan.getParameters(), values);
+                return tq;
+            }
+        }
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Object> query = cb.createQuery();
         Root<T> root = query.from(entityClassMetadata.getMappedClass());
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        ParameterBinding binding = new ParameterBinding();
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-        	Predicate predicate = JPAFilterConverterFactory.convertFilter(filter, cb, root);
+        	Predicate predicate = JPAFilterConverterFactory.convertFilter(filter, cb, root, binding);
         	if(predicate != null){
         		predicates.add(predicate);
         	}
@@ -425,7 +585,19 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 			}
 		}
         
-        if (fieldsToSelect.size() > 1
+        if (selectEntity) {
+            if (fieldsToSelect.isEmpty()) {
+                query.select(root);
+            } else {
+                List<Selection<?>> selections = new ArrayList<Selection<?>>();
+                selections.add(root);
+                for (String fieldPath : fieldsToSelect) {
+                    selections.add(AdvancedFilterableSupport
+                            .getPropertyPathTyped(root, fieldPath));
+                }
+                query.multiselect(selections);
+            }
+        } else if (fieldsToSelect.size() > 1
                 || getEntityClassMetadata().hasEmbeddedIdentifier()) {
             List<Path<?>> paths = new ArrayList<Path<?>>();
             for (String fieldPath : fieldsToSelect) {
@@ -438,7 +610,37 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                     fieldsToSelect.get(0)));
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        return doGetEntityManager().createQuery(query);
+        TypedQuery<Object> tq = em.createQuery(query);
+        binding.applyTo(tq);
+        if (planCache != null) {
+            assert binding.getValues().equals(values) : "the filter shape must list the values in parameter order";
+            // Only stored now, as other threads may use the criteria query
+            // as soon as it has been stored
+            planCache.put(em.getMetamodel(), planKey, new QueryPlanCache.Plan(
+                    query, binding.getParameters()));
+        }
+        return tq;
+    }
+
+    /**
+     * Gets the query plan cache to use for queries of <code>container</code>,
+     * or null if the queries should not be cached. Queries are never cached
+     * when there is a {@link QueryModifierDelegate}, as the delegate may
+     * modify the query differently every time.
+     */
+    private QueryPlanCache getQueryPlanCache(EntityContainer<T> container) {
+        if (queryPlanCacheMaxSize == 0
+                || queryModifierDelegate != null
+                || container != null
+                && container.getQueryModifierDelegate() != null) {
+            return null;
+        }
+        QueryPlanCache planCache = queryPlanCache;
+        if (planCache == null) {
+            planCache = new QueryPlanCache(queryPlanCacheMaxSize);
+            queryPlanCache = planCache;
+        }
+        return planCache;
     }
 
     private boolean hasJoins(CriteriaQuery<Object> query) {
@@ -462,11 +664,13 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        ParameterBinding binding = new ParameterBinding();
         List<Predicate> predicates = new ArrayList<Predicate>();
         predicates.add(cb.equal(root.get(entityIdPropertyName),
                 cb.literal(entityId)));
         if (filter != null) {
-            predicates.add(JPAFilterConverterFactory.convertFilter(filter, cb, root));
+            predicates.add(JPAFilterConverterFactory.convertFilter(filter, cb,
+                    root, binding));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -491,6 +695,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
         TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        binding.applyTo(tq);
         return tq.getSingleResult() == 1;
     }
 
@@ -512,18 +717,58 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntity(entityId);
     }
 
+    protected Map<Object, T> doGetEntities(Collection<Object> entityIds) {
+        assert entityIds != null : "entityIds must not be null";
+        Map<Object, T> loaded = new HashMap<Object, T>();
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            // Embedded identifiers cannot be used in an IN expression in a
+            // portable way
+            for (Object entityId : entityIds) {
+                T entity = doGetEntity(entityId);
+                if (entity != null) {
+                    loaded.put(entityId, entity);
+                }
+            }
+        } else {
+            String entityIdPropertyName = getEntityClassMetadata()
+                    .getIdentifierProperty().getName();
+            List<Object> ids = new ArrayList<Object>(entityIds);
+            for (int i = 0; i < ids.size(); i += getMaxEntityIdsPerQuery()) {
+                List<Object> chunk = ids.subList(i,
+                        Math.min(ids.size(), i + getMaxEntityIdsPerQuery()));
+                CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+                CriteriaQuery<T> query = cb.createQuery(getEntityClassMetadata()
+                        .getMappedClass());
+                Root<T> root = query.from(getEntityClassMetadata()
+                        .getMappedClass());
+                query.select(root).where(
+                        root.get(entityIdPropertyName).in(chunk));
+                for (T entity : doGetEntityManager().createQuery(query)
+                        .getResultList()) {
+                    loaded.put(getIdentifier(entity), detachEntity(entity));
+                }
+            }
+        }
+        Map<Object, T> result = new LinkedHashMap<Object, T>();
+        for (Object entityId : entityIds) {
+            T entity = loaded.get(entityId);
+            if (entity != null) {
+                result.put(entityId, entity);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Object, T> getEntities(EntityContainer<T> container,
+            Collection<Object> entityIds) {
+        return doGetEntities(entityIds);
+    }
+
     protected Object doGetEntityIdentifierAt(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, int index) {
-        if (sortBy == null) {
-            sortBy = Collections.emptyList();
-        }
-        TypedQuery<Object> query = createFilteredQuery(container,
-                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
-                        .getName()), filter, addPrimaryKeyToSortList(sortBy),
-                false);
-        query.setMaxResults(1);
-        query.setFirstResult(index);
-        List<?> result = query.getResultList();
+        List<Object> result = doGetEntityIdentifiers(container, filter,
+                sortBy, index, 1);
         if (result.isEmpty()) {
             return null;
         } else {
@@ -537,7 +782,95 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    protected List<Object> doGetEntityIdentifiers(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        if (count < 1) {
+            return Collections.emptyList();
+        }
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        if (canSeek(container, sortBy)) {
+            KeysetCursor cursor;
+            synchronized (keysetCursors) {
+                cursor = keysetCursors.get(container);
+            }
+            List<Object[]> rows;
+            if (cursor != null && cursor.precedes(filter, sortBy, startIndex)) {
+                rows = doGetKeyedEntityIdentifiers(container, filter, sortBy,
+                        cursor.keys, 0, count);
+            } else {
+                rows = doGetKeyedEntityIdentifiers(container, filter, sortBy,
+                        null, startIndex, count);
+            }
+            if (rows.isEmpty()) {
+                synchronized (keysetCursors) {
+                    keysetCursors.remove(container);
+                }
+                return Collections.emptyList();
+            }
+            List<Object> ids = new ArrayList<Object>(rows.size());
+            for (Object[] row : rows) {
+                ids.add(row[0]);
+            }
+            Object[] keys = getSortKeys(rows.get(rows.size() - 1));
+            synchronized (keysetCursors) {
+                if (keys == null) {
+                    keysetCursors.remove(container);
+                } else {
+                    keysetCursors.put(container, new KeysetCursor(filter,
+                            sortBy, startIndex + rows.size() - 1, keys));
+                }
+            }
+            return ids;
+        }
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter, sortBy, false);
+        query.setFirstResult(startIndex);
+        query.setMaxResults(count);
+        List<Object> result = query.getResultList();
+        if (!result.isEmpty() && result.get(0).getClass().isArray()) {
+            // The sorted fields were added to the select clause because of
+            // joins, the identifier is the first column
+            List<Object> ids = new ArrayList<Object>(result.size());
+            for (Object row : result) {
+                ids.add(((Object[]) row)[0]);
+            }
+            result = ids;
+        }
+        return result;
+    }
+
+    @Override
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        return doGetEntityIdentifiers(container, filter, sortBy, startIndex,
+                count);
+    }
+
     protected int doGetEntityCount(EntityContainer<T> container, Filter filter) {
+        if (countEstimator == null
+                || getQueryModifierDelegate() != null
+                || container != null
+                && container.getQueryModifierDelegate() != null) {
+            return doGetExactEntityCount(container, filter);
+        }
+        return countEstimator.getEntityCount(new ProviderCounter(container),
+                filter);
+    }
+
+    /**
+     * Counts the entities matching <code>filter</code> with a count query,
+     * bypassing the count estimator.
+     * 
+     * @see #setCountEstimator(CountEstimator)
+     * @since 3.2.0
+     */
+    protected int doGetExactEntityCount(EntityContainer<T> container,
+            Filter filter) {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
@@ -547,9 +880,11 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        ParameterBinding binding = new ParameterBinding();
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(JPAFilterConverterFactory.convertFilter(filter, cb, root));
+            predicates.add(JPAFilterConverterFactory.convertFilter(filter, cb,
+                    root, binding));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -574,6 +909,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
         TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        binding.applyTo(tq);
         return tq.getSingleResult().intValue();
     }
 
@@ -582,6 +918,143 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityCount(container, filter);
     }
 
+    /**
+     * Counts the entities matching <code>filter</code>, but stops counting at
+     * <code>max</code> by fetching at most <code>max</code> identifiers.
+     * 
+     * @return the number of entities, or <code>max</code> if there are at
+     *         least <code>max</code> entities.
+     * @since 3.2.0
+     */
+    protected int doGetBoundedEntityCount(EntityContainer<T> container,
+            Filter filter, int max) {
+        assert max > 0 : "max must be greater than zero";
+        TypedQuery<Object> query = createUnsortedFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter);
+        query.setMaxResults(max);
+        return query.getResultList().size();
+    }
+
+    /**
+     * Called when the count estimator has computed an exact entity count that
+     * differs from the count reported earlier. This is usually called from
+     * the background thread the count was computed in, which must not call
+     * the listeners of the entity provider. This implementation hands
+     * {@link #fireEntityCountChanged(EntityContainer, Filter, int)} to the
+     * executor set with {@link #setEntityCountChangeExecutor(Executor)}, if
+     * any. Otherwise, the count is picked up the next time the container asks
+     * for it.
+     * 
+     * @param container
+     *            the container the count was requested by (may be null).
+     * @param filter
+     *            the filter, or null if all the entities were counted.
+     * @param count
+     *            the number of entities.
+     * @since 3.2.0
+     */
+    protected void entityCountChanged(final EntityContainer<T> container,
+            final Filter filter, final int count) {
+        Executor executor = entityCountChangeExecutor;
+        if (executor != null) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    fireEntityCountChanged(container, filter, count);
+                }
+            });
+        }
+    }
+
+    /**
+     * Informs the count estimator, if any, that this entity provider has
+     * added, updated or removed entities, so that it does not keep reporting
+     * counts from before the change.
+     * 
+     * @see CountEstimator#entitiesChanged(Class)
+     * @since 3.2.0
+     */
+    protected void invalidateEntityCounts() {
+        CountEstimator estimator = countEstimator;
+        if (estimator != null) {
+            estimator.entitiesChanged(getEntityClassMetadata()
+                    .getMappedClass());
+        }
+    }
+
+    /**
+     * Informs the listeners that the exact number of entities matching
+     * <code>filter</code> is <code>count</code>. This is called by the
+     * executor set with {@link #setEntityCountChangeExecutor(Executor)}. This
+     * implementation sends an
+     * {@link com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityCountChangedEvent}
+     * to <code>container</code>, if it is an
+     * {@link EntityProviderChangeListener}.
+     * 
+     * @param container
+     *            the container the count was requested by (may be null).
+     * @param filter
+     *            the filter, or null if all the entities were counted.
+     * @param count
+     *            the number of entities.
+     * @since 3.2.0
+     */
+    @SuppressWarnings("unchecked")
+    protected void fireEntityCountChanged(EntityContainer<T> container,
+            Filter filter, int count) {
+        if (container instanceof EntityProviderChangeListener) {
+            ((EntityProviderChangeListener<T>) container)
+                    .entityProviderChange(new EntityCountChangedEvent<T>(
+                            this, filter, count));
+        }
+    }
+
+    /**
+     * The counting operations of this entity provider, handed to the count
+     * estimator.
+     */
+    private class ProviderCounter implements CountEstimator.Counter {
+
+        private final EntityContainer<T> container;
+
+        ProviderCounter(EntityContainer<T> container) {
+            this.container = container;
+        }
+
+        @Override
+        public Class<?> getEntityClass() {
+            return getEntityClassMetadata().getMappedClass();
+        }
+
+        @Override
+        public int countEntities(Filter filter) {
+            return doGetExactEntityCount(container, filter);
+        }
+
+        @Override
+        public int countEntities(Filter filter, int max) {
+            return doGetBoundedEntityCount(container, filter, max);
+        }
+
+        @Override
+        public int countEntities(Filter filter, EntityManager entityManager) {
+            bindEntityManager(entityManager);
+            try {
+                return doGetExactEntityCount(container, filter);
+            } finally {
+                unbindEntityManager();
+            }
+        }
+
+        @Override
+        public void entityCountChanged(Filter filter, int count) {
+            LocalEntityProvider.this.entityCountChanged(container, filter,
+                    count);
+        }
+    }
+
     protected Object doGetFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -664,6 +1137,14 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Object getSibling(EntityContainer<T> container, Object entityId,
             Filter filter, List<SortBy> sortBy, boolean backwards) {
+        List<SortBy> fullSortBy = addPrimaryKeyToSortList(sortBy);
+        if (backwards && hasNullableSortProperty(fullSortBy)) {
+            // The previous sibling cannot be found by swapping the sort order
+            List<Object[]> rows = doGetKeyedSiblingIdentifiers(container,
+                    loadSortKeys(container, entityId, fullSortBy), filter,
+                    fullSortBy, true, 1);
+            return rows.isEmpty() ? null : rows.get(0)[0];
+        }
         TypedQuery<Object> query = createSiblingQuery(container, entityId,
                 filter, sortBy, backwards);
         query.setMaxResults(1);
@@ -713,46 +1194,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                         .getIdentifierProperty().getName(), entityId);
             }
         } else {
-            // We have to fetch the values of the sorted fields
-            T currentEntity = getEntity(container, entityId);
-            if (currentEntity == null) {
-                throw new EntityNotFoundException(
-                        "No entity found with the ID " + entityId);
-            }
-            // Collect the values into a map for easy access
-            Map<Object, Object> filterValues = new HashMap<Object, Object>();
-            for (SortBy sb : sortBy) {
-                filterValues.put(
-                        sb.getPropertyId(),
-                        getEntityClassMetadata().getPropertyValue(
-                                currentEntity, sb.getPropertyId().toString()));
-            }
-            // Now we can build a filter that limits the query to the entities
-            // below entityId
-            List<Filter> orFilters = new ArrayList<Filter>();
-            for (int i = sortBy.size() - 1; i >= 0; i--) {
-                // TODO Document this code snippet once it works
-                // TODO What happens with null values?
-                List<Filter> caseFilters = new ArrayList<Filter>();
-                SortBy sb;
-                for (int j = 0; j < i; j++) {
-                    sb = sortBy.get(j);
-                    caseFilters.add(new Equal(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                sb = sortBy.get(i);
-                if (sb.isAscending() ^ backwards) {
-                    caseFilters.add(new Greater(sb.getPropertyId(),
-                            filterValues.get(sb.getPropertyId())));
-                } else {
-                    caseFilters.add(new Less(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                orFilters.add(new And(CollectionUtil.toArray(Filter.class,
-                        caseFilters)));
-            }
-            limitingFilter = new Or(CollectionUtil.toArray(Filter.class,
-                    orFilters));
+            limitingFilter = createSiblingFilter(container, sortBy,
+                    loadSortKeys(container, entityId, sortBy), backwards);
         }
         // Now, we can create the query
         Filter queryFilter;
@@ -767,6 +1210,433 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return query;
     }
 
+    /**
+     * Gets the values of the <code>sortBy</code> properties of the entity
+     * identified by <code>entityId</code>. If the list is sorted by the
+     * primary key only, the identifier itself is the sort key and no entity
+     * is loaded.
+     * 
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param sortBy
+     *            the order in which the list is sorted, including the primary
+     *            key (must not be null or empty).
+     * @return the sort key values, in the same order as <code>sortBy</code>
+     *         (never null).
+     * @throws EntityNotFoundException
+     *             if the entity cannot be found.
+     */
+    protected Object[] loadSortKeys(EntityContainer<T> container,
+            Object entityId, List<SortBy> sortBy) {
+        assert entityId != null : "entityId must not be null";
+        assert sortBy != null && !sortBy.isEmpty() : "sortBy must not be null or empty";
+        if (sortBy.size() == 1) {
+            return new Object[] { entityId };
+        }
+        T currentEntity = getEntity(container, entityId);
+        if (currentEntity == null) {
+            throw new EntityNotFoundException("No entity found with the ID "
+                    + entityId);
+        }
+        Object[] sortKeys = new Object[sortBy.size()];
+        for (int i = 0; i < sortKeys.length; i++) {
+            sortKeys[i] = getEntityClassMetadata().getPropertyValue(
+                    currentEntity, sortBy.get(i).getPropertyId().toString());
+        }
+        return sortKeys;
+    }
+
+    /**
+     * Creates a filter that limits a list sorted by <code>sortBy</code> to the
+     * entities that come after (or before, if <code>backwards</code> is true)
+     * an entity whose sort key values are <code>sortKeys</code>.
+     * <p>
+     * A null sort key value only equals null, and null values come either
+     * before or after all other values, depending on the database. If any of
+     * the sort properties is nullable, the filter therefore compares with
+     * IS NULL and IS NOT NULL as well, in the null ordering found by
+     * {@link #isNullSortedFirst(EntityContainer, SortBy)}.
+     * 
+     * @param container
+     *            the container the list is fetched for (may be null).
+     * @param sortBy
+     *            the order in which the list is sorted, including the primary
+     *            key (must not be null or empty).
+     * @param sortKeys
+     *            the values of the properties in <code>sortBy</code>, in the
+     *            same order (must not be null).
+     * @param backwards
+     *            true to limit the list to the preceding entities, false to
+     *            limit it to the following entities.
+     * @return the limiting filter (never null).
+     */
+    protected Filter createSiblingFilter(EntityContainer<T> container,
+            List<SortBy> sortBy, Object[] sortKeys, boolean backwards) {
+        assert sortBy != null && !sortBy.isEmpty() : "sortBy must not be null or empty";
+        assert sortKeys != null && sortKeys.length == sortBy.size() : "sortKeys must match sortBy";
+        boolean nullable = hasNullableSortProperty(sortBy)
+                || Arrays.asList(sortKeys).contains(null);
+        if (isRowValueComparisonEnabled() && !nullable) {
+            return createRowValueFilter(sortBy, sortKeys, backwards, 0);
+        }
+        List<Filter> orFilters = new ArrayList<Filter>();
+        for (int i = sortBy.size() - 1; i >= 0; i--) {
+            // (k0 = v0 AND ... AND k(i-1) = v(i-1) AND ki > vi), or < if the
+            // property is sorted in the other direction
+            List<Filter> caseFilters = new ArrayList<Filter>();
+            SortBy sb;
+            for (int j = 0; j < i; j++) {
+                sb = sortBy.get(j);
+                caseFilters.add(sortKeys[j] == null ? new IsNull(sb
+                        .getPropertyId()) : new Equal(sb.getPropertyId(),
+                        sortKeys[j]));
+            }
+            sb = sortBy.get(i);
+            Filter beyond = createBeyondFilter(container, sb, sortKeys[i],
+                    backwards, sortKeys[i] == null
+                            || isNullableSortProperty(sb));
+            if (beyond == null) {
+                // Nothing comes after a null value that is sorted last
+                continue;
+            }
+            caseFilters.add(beyond);
+            orFilters.add(new And(CollectionUtil.toArray(Filter.class,
+                    caseFilters)));
+        }
+        return new Or(CollectionUtil.toArray(Filter.class, orFilters));
+    }
+
+    /**
+     * Creates a filter that matches the values of the sort property
+     * <code>sb</code> that come after <code>value</code> (or before, if
+     * <code>backwards</code> is true).
+     * 
+     * @param nullable
+     *            true if the property may be null.
+     * @return the filter, or null if no value can come after
+     *         <code>value</code>.
+     */
+    private Filter createBeyondFilter(EntityContainer<T> container,
+            SortBy sb, Object value, boolean backwards, boolean nullable) {
+        boolean nullsBeyond = nullable
+                && isNullSortedFirst(container, sb) == backwards;
+        if (value == null) {
+            // Only non-null values can come after a null value sorted first
+            return nullsBeyond ? null : new Not(new IsNull(sb.getPropertyId()));
+        }
+        Filter strict = sb.isAscending() ^ backwards ? new Greater(
+                sb.getPropertyId(), value) : new Less(sb.getPropertyId(),
+                value);
+        return nullsBeyond ? new Or(strict, new IsNull(sb.getPropertyId()))
+                : strict;
+    }
+
+    /**
+     * Returns true if the null values of the sort property <code>sb</code>
+     * come before the other values in a list sorted by <code>sb</code>. As
+     * this depends on the database and the sort direction, the first value of
+     * the sorted list is fetched.
+     * 
+     * @param container
+     *            the container the list is fetched for (may be null).
+     * @param sb
+     *            the sort property and direction (must not be null).
+     */
+    protected boolean isNullSortedFirst(EntityContainer<T> container,
+            SortBy sb) {
+        assert sb != null : "sb must not be null";
+        // Sort exactly like the lists do, as some databases (e.g. HSQLDB)
+        // order nulls differently when a single column is sorted with a limit
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(sb.getPropertyId().toString()), null,
+                addPrimaryKeyToSortList(Arrays.asList(sb)), false);
+        query.setMaxResults(1);
+        List<Object> resultList = query.getResultList();
+        if (resultList.isEmpty()) {
+            return false;
+        }
+        Object first = resultList.get(0);
+        if (first != null && first.getClass().isArray()) {
+            // A query modifier delegate has added columns to the select
+            first = ((Object[]) first)[0];
+        }
+        return first == null;
+    }
+
+    /**
+     * Creates the expanded form of the row value comparison
+     * <code>(k0, k1, ...) &gt; (v0, v1, ...)</code>, starting from the sort
+     * property at position <code>i</code>: <code>ki &gt;= vi AND (ki &gt; vi
+     * OR ...)</code>. The leading condition only involves the first sort
+     * property, which allows the database to start an index range scan at the
+     * right row.
+     */
+    private Filter createRowValueFilter(List<SortBy> sortBy,
+            Object[] sortKeys, boolean backwards, int i) {
+        SortBy sb = sortBy.get(i);
+        boolean following = sb.isAscending() ^ backwards;
+        Filter strict = following ? new Greater(sb.getPropertyId(),
+                sortKeys[i]) : new Less(sb.getPropertyId(), sortKeys[i]);
+        if (i == sortBy.size() - 1) {
+            return strict;
+        }
+        Filter bound = following ? new GreaterOrEqual(sb.getPropertyId(),
+                sortKeys[i]) : new LessOrEqual(sb.getPropertyId(), sortKeys[i]);
+        return new And(bound, new Or(strict, createRowValueFilter(sortBy,
+                sortKeys, backwards, i + 1)));
+    }
+
+    /**
+     * Fetches identifiers together with the values they are sorted by, so
+     * that the next chunk can be fetched by seeking past the last row instead
+     * of skipping <code>startFrom</code> rows in the database. If
+     * <code>afterKeys</code> is given, the returned rows are the ones
+     * following the row with those sort key values and
+     * <code>startFrom</code> is ignored.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (must not be null).
+     * @param afterKeys
+     *            the sort key values of the row prior to the first row to
+     *            fetch, as returned by {@link #getSortKeys(Object[])}, or null
+     *            to start at <code>startFrom</code>.
+     * @param startFrom
+     *            the index of the first row to fetch if <code>afterKeys</code>
+     *            is null.
+     * @param fetchMax
+     *            the maximum number of rows to fetch, or 0 to fetch all.
+     * @return a list of rows, where the first element of each row is the
+     *         identifier and the remaining elements are the sort key values
+     *         (never null).
+     */
+    protected List<Object[]> doGetKeyedEntityIdentifiers(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            Object[] afterKeys, int startFrom, int fetchMax) {
+        return doGetKeyedRows(container, false, filter, sortBy, afterKeys,
+                false, startFrom, fetchMax);
+    }
+
+    /**
+     * Fetches the identifiers of the siblings of the row whose sort key values
+     * are <code>sortKeys</code>, together with their own sort key values. As
+     * the sort key values are given, the row itself does not have to be
+     * loaded, i.e. the siblings are fetched with a single query. If
+     * <code>backwards</code> is true, the rows preceding the given row are
+     * returned in reverse order, starting with the previous sibling.
+     * 
+     * @param sortKeys
+     *            the sort key values of the row whose siblings to fetch, as
+     *            returned by {@link #getSortKeys(Object[])} or
+     *            {@link #loadSortKeys(EntityContainer, Object, List)} (must
+     *            not be null).
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (must not be null).
+     * @param backwards
+     *            true to fetch the preceding rows, false to fetch the
+     *            following rows.
+     * @param fetchMax
+     *            the maximum number of rows to fetch, or 0 to fetch all.
+     * @return a list of rows, where the first element of each row is the
+     *         identifier and the remaining elements are the sort key values
+     *         (never null).
+     */
+    protected List<Object[]> doGetKeyedSiblingIdentifiers(
+            EntityContainer<T> container, Object[] sortKeys, Filter filter,
+            List<SortBy> sortBy, boolean backwards, int fetchMax) {
+        assert sortKeys != null : "sortKeys must not be null";
+        return doGetKeyedRows(container, false, filter, sortBy, sortKeys,
+                backwards, 0, fetchMax);
+    }
+
+    /**
+     * Like
+     * {@link #doGetKeyedEntityIdentifiers(EntityContainer, Filter, List, Object[], int, int)}
+     * , but fetches the entities instead of their identifiers. The entities
+     * are detached if {@link #isEntitiesDetached()} is true.
+     * 
+     * @return a list of rows, where the first element of each row is the
+     *         entity and the remaining elements are the sort key values (never
+     *         null).
+     */
+    protected List<Object[]> doGetKeyedEntities(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object[] afterKeys,
+            int startFrom, int fetchMax) {
+        List<Object[]> rows = doGetKeyedRows(container, true, filter, sortBy,
+                afterKeys, false, startFrom, fetchMax);
+        for (Object[] row : rows) {
+            row[0] = detachEntity(getEntityClassMetadata().getMappedClass()
+                    .cast(row[0]));
+        }
+        return rows;
+    }
+
+    private List<Object[]> doGetKeyedRows(EntityContainer<T> container,
+            boolean selectEntity, Filter filter, List<SortBy> sortBy,
+            Object[] afterKeys, boolean backwards, int startFrom, int fetchMax) {
+        assert sortBy != null : "sortBy must not be null";
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        List<String> fieldsToSelect = new ArrayList<String>(sortBy.size() + 1);
+        if (!selectEntity) {
+            fieldsToSelect.add(getEntityClassMetadata().getIdentifierProperty()
+                    .getName());
+        }
+        for (SortBy sb : sortBy) {
+            fieldsToSelect.add(sb.getPropertyId().toString());
+        }
+        Filter queryFilter = filter;
+        if (afterKeys != null) {
+            Filter limitingFilter = createSiblingFilter(container, sortBy,
+                    afterKeys, backwards);
+            queryFilter = filter == null ? limitingFilter : new And(filter,
+                    limitingFilter);
+        }
+        boolean reverse = backwards && afterKeys != null
+                && hasNullableSortProperty(sortBy);
+        if (reverse) {
+            // The database may put null values first (or last) in both sort
+            // directions, in which case the swapped sort order is not the
+            // reverse of the list. Fetch the closest preceding rows in the
+            // order of the list instead.
+            int preceding = doGetExactEntityCount(container, queryFilter);
+            startFrom = fetchMax > 0 ? Math.max(0, preceding - fetchMax) : 0;
+        }
+        TypedQuery<Object> query = createFilteredQuery(container,
+                selectEntity, fieldsToSelect, queryFilter, sortBy, backwards
+                        && !reverse);
+        if (afterKeys == null || reverse) {
+            query.setFirstResult(startFrom);
+        }
+        if (fetchMax > 0) {
+            query.setMaxResults(fetchMax);
+        }
+        List<Object> resultList = query.getResultList();
+        List<Object[]> rows = new ArrayList<Object[]>(resultList.size());
+        for (Object row : resultList) {
+            rows.add((Object[]) row);
+        }
+        if (reverse) {
+            Collections.reverse(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Extracts the sort key values from a row returned by
+     * {@link #doGetKeyedEntityIdentifiers(EntityContainer, Filter, List, Object[], int, int)}
+     * . Returns null if any of the values is null, since such a row cannot be
+     * used as a seek position.
+     * 
+     * @param row
+     *            the row (must not be null).
+     * @return the sort key values, or null.
+     */
+    protected Object[] getSortKeys(Object[] row) {
+        Object[] keys = Arrays.copyOfRange(row, 1, row.length);
+        for (Object key : keys) {
+            if (key == null) {
+                return null;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns true if a row of the list sorted by <code>sortBy</code> can be
+     * found by seeking past the sort key values of the row before it, i.e.
+     * keyset pagination is enabled, none of the sort properties may be null
+     * and no {@link QueryModifierDelegate} may change the list behind the
+     * back of the provider.
+     * 
+     * @see #setKeysetPaginationEnabled(boolean)
+     * @see #hasNullableSortProperty(List)
+     * @param container
+     *            the container the list is fetched for (may be null).
+     * @param sortBy
+     *            the ordering information (must not be null).
+     */
+    protected boolean canSeek(EntityContainer<T> container,
+            List<SortBy> sortBy) {
+        return isKeysetPaginationEnabled()
+                && getQueryModifierDelegate() == null
+                && (container == null
+                        || container.getQueryModifierDelegate() == null)
+                && !hasNullableSortProperty(sortBy);
+    }
+
+    /**
+     * Returns true if the value of any of the <code>sortBy</code> properties
+     * may be null. Whether null values come first or last in a sorted list
+     * depends on the database, so the position of a row in such a list can
+     * only be expressed as a condition on the sort key values with explicit
+     * null checks, see
+     * {@link #createSiblingFilter(EntityContainer, List, Object[], boolean)}.
+     * Nested properties are reached through outer joins and are nullable
+     * unless every reference on the way is mandatory.
+     * 
+     * @see PropertyMetadata#isNullable()
+     * @param sortBy
+     *            the ordering information (must not be null).
+     */
+    protected boolean hasNullableSortProperty(List<SortBy> sortBy) {
+        for (SortBy sb : sortBy) {
+            if (isNullableSortProperty(sb)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNullableSortProperty(SortBy sb) {
+        return isNullableSortProperty(sb, false);
+    }
+
+    /**
+     * Returns true if any of the <code>sortBy</code> properties is reached
+     * through a reference that may be null. Filters navigate references with
+     * inner joins, which exclude the entities without a referenced entity,
+     * whereas the list is sorted with outer joins that keep them.
+     * 
+     * @param sortBy
+     *            the ordering information (must not be null).
+     */
+    protected boolean hasOptionalReferenceSortProperty(List<SortBy> sortBy) {
+        for (SortBy sb : sortBy) {
+            if (isNullableSortProperty(sb, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the value of the sort property <code>sb</code> may be
+     * null, or if <code>referencesOnly</code> is true, if it is reached
+     * through a reference that may be null.
+     */
+    private boolean isNullableSortProperty(SortBy sb, boolean referencesOnly) {
+        PropertyPath path = sb.getPropertyPath();
+        if (path.getFirst().equals(
+                getEntityClassMetadata().getIdentifierProperty().getName())) {
+            return false;
+        }
+        ResolvedPropertyPath resolved = getEntityClassMetadata().resolve(path);
+        if (!resolved.isValid()) {
+            return true;
+        }
+        int length = referencesOnly ? path.getLength() - 1 : path.getLength();
+        for (int i = 0; i < length; i++) {
+            PropertyMetadata pm = resolved.getPropertyMetadata(i);
+            if (pm == null || pm.isNullable() && !resolved.isEmbedded(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     protected Object doGetNextEntityIdentifier(EntityContainer<T> container,
             Object entityId, Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -797,6 +1667,73 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                 sortBy);
     }
 
+    protected int doGetEntityIdentifierIndex(EntityContainer<T> container,
+            Object entityId, Filter filter, List<SortBy> sortBy) {
+        assert entityId != null : "entityId must not be null";
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (!doContainsEntity(container, entityId, filter)) {
+            return -1;
+        }
+        return doGetEntityRank(container, loadSortKeys(container, entityId,
+                addPrimaryKeyToSortList(sortBy)), filter, sortBy, entityId);
+    }
+
+    /**
+     * Gets the position of an entity that is known to match
+     * <code>filter</code> by counting the entities that precede it in the list
+     * sorted by <code>sortBy</code>. Null sort key values are counted in the
+     * null ordering of the database, see
+     * {@link #createSiblingFilter(EntityContainer, List, Object[], boolean)}.
+     * If any of the sort properties is reached through a reference that may be
+     * null, the preceding entities cannot be counted with a filter, and the
+     * list is scanned for <code>entityId</code> instead.
+     * 
+     * @see #hasOptionalReferenceSortProperty(List)
+     * 
+     * @param sortKeys
+     *            the sort key values of the entity, as returned by
+     *            {@link #loadSortKeys(EntityContainer, Object, List)} (must
+     *            not be null).
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (must not be null).
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @return the position of the entity, or -1 if it was not found.
+     */
+    protected int doGetEntityRank(EntityContainer<T> container,
+            Object[] sortKeys, Filter filter, List<SortBy> sortBy,
+            Object entityId) {
+        assert sortKeys != null : "sortKeys must not be null";
+        assert sortBy != null : "sortBy must not be null";
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        if (hasOptionalReferenceSortProperty(sortBy)) {
+            for (int startIndex = 0;; startIndex += INDEX_SCAN_CHUNK_SIZE) {
+                List<Object> ids = doGetEntityIdentifiers(container, filter,
+                        sortBy, startIndex, INDEX_SCAN_CHUNK_SIZE);
+                int index = ids.indexOf(entityId);
+                if (index != -1) {
+                    return startIndex + index;
+                } else if (ids.size() < INDEX_SCAN_CHUNK_SIZE) {
+                    return -1;
+                }
+            }
+        }
+        Filter preceding = createSiblingFilter(container, sortBy, sortKeys,
+                true);
+        return doGetExactEntityCount(container, filter == null ? preceding
+                : new And(filter, preceding));
+    }
+
+    @Override
+    public int getEntityIdentifierIndex(EntityContainer<T> container,
+            Object entityId, Filter filter, List<SortBy> sortBy) {
+        return doGetEntityIdentifierIndex(container, entityId, filter, sortBy);
+    }
+
     /**
      * Detaches <code>entity</code> from the entity manager. If
      * <code>entity</code> is null, then null is returned. If
@@ -812,7 +1749,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             return null;
         }
         if (isEntitiesDetached()) {
-            getEntityManager().detach(entity);
+            doGetEntityManager().detach(entity);
         }
         return entity;
     }
@@ -828,6 +1765,219 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         this.entitiesDetached = detached;
     }
 
+    /**
+     * Specifies whether keyset (seek) pagination should be used when fetching
+     * identifiers by index. When enabled, the sort key values of the last row
+     * fetched for each container are remembered and a request of the same
+     * container for the following index is answered with a query that seeks
+     * past those values instead of using an offset, which keeps the cost of
+     * sequential access constant regardless of how deep into the result list
+     * it is. Random access still uses an offset.
+     * <p>
+     * Whether null values are sorted before or after other values depends on
+     * the database, so seeking is only used when none of the sort properties
+     * can be null, i.e. they are primitive, part of the identifier or mapped
+     * with <code>nullable = false</code> or <code>optional = false</code>.
+     * Other lists, and the lists of containers or providers that have a
+     * {@link QueryModifierDelegate}, are always fetched using an offset. By
+     * default, keyset pagination is disabled.
+     * 
+     * @param keysetPaginationEnabled
+     *            true to enable keyset pagination, false to disable it.
+     */
+    public void setKeysetPaginationEnabled(boolean keysetPaginationEnabled) {
+        this.keysetPaginationEnabled = keysetPaginationEnabled;
+        resetKeysetCursor();
+    }
+
+    /**
+     * Returns whether keyset (seek) pagination is used when fetching
+     * identifiers by index.
+     * 
+     * @see #setKeysetPaginationEnabled(boolean)
+     * @return true if keyset pagination is enabled, false otherwise.
+     */
+    public boolean isKeysetPaginationEnabled() {
+        return keysetPaginationEnabled;
+    }
+
+    /**
+     * Specifies whether the position of a row in a sorted list should be
+     * expressed as a row value comparison when fetching its siblings or
+     * seeking past it. By default, the condition is written as a disjunction
+     * with one case per sort property, <code>k0 &gt; v0 OR (k0 = v0 AND k1
+     * &gt; v1) OR ...</code>, which many databases cannot use to limit an
+     * index scan. When enabled, the condition is written as the nested
+     * expansion of <code>(k0, k1, ...) &gt; (v0, v1, ...)</code>,
+     * <code>k0 &gt;= v0 AND (k0 &gt; v0 OR (k1 &gt;= v1 AND ...))</code>,
+     * whose leading term is a plain range condition on the first sort
+     * property. JPA criteria queries cannot express row value constructors
+     * directly, so the expansion is used for all databases.
+     * 
+     * @param rowValueComparisonEnabled
+     *            true to use row value comparisons, false to use the
+     *            disjunction.
+     */
+    public void setRowValueComparisonEnabled(boolean rowValueComparisonEnabled) {
+        this.rowValueComparisonEnabled = rowValueComparisonEnabled;
+    }
+
+    /**
+     * Returns whether row value comparisons are used to express the position
+     * of a row in a sorted list.
+     * 
+     * @see #setRowValueComparisonEnabled(boolean)
+     * @return true if row value comparisons are used, false otherwise.
+     */
+    public boolean isRowValueComparisonEnabled() {
+        return rowValueComparisonEnabled;
+    }
+
+    /**
+     * Sets the maximum number of identifiers to put in the IN expression of a
+     * single query when loading several entities at once. Larger requests are
+     * split into several queries. The default is 500.
+     * 
+     * @see #getEntities(EntityContainer, Collection)
+     * @param maxEntityIdsPerQuery
+     *            the maximum number of identifiers (must be positive).
+     */
+    public void setMaxEntityIdsPerQuery(int maxEntityIdsPerQuery) {
+        assert maxEntityIdsPerQuery > 0 : "maxEntityIdsPerQuery must be positive";
+        this.maxEntityIdsPerQuery = maxEntityIdsPerQuery;
+    }
+
+    /**
+     * Returns the maximum number of identifiers to put in the IN expression of
+     * a single query when loading several entities at once.
+     * 
+     * @see #setMaxEntityIdsPerQuery(int)
+     * @return the maximum number of identifiers.
+     */
+    public int getMaxEntityIdsPerQuery() {
+        return maxEntityIdsPerQuery;
+    }
+
+    /**
+     * Sets the strategy for finding out the number of entities matching a
+     * filter. By default, an exact count query is run every time. The count
+     * estimator is not used if there is a {@link QueryModifierDelegate}.
+     * 
+     * @param countEstimator
+     *            the count estimator, or null to always run an exact count
+     *            query.
+     * @since 3.2.0
+     */
+    public void setCountEstimator(CountEstimator countEstimator) {
+        this.countEstimator = countEstimator;
+    }
+
+    /**
+     * Sets the executor that informs the listeners of entity counts computed
+     * in the background by the count estimator. Containers fire item set
+     * change events in response, and the listeners of those, e.g. Vaadin
+     * components, must not be called without holding the session lock. The
+     * executor must therefore run the tasks accordingly, e.g. by passing them
+     * to <code>UI.access(Runnable)</code>, and the tasks are never run in the
+     * background thread itself.
+     * <p>
+     * If no executor is set (default), no events are fired for counts
+     * computed in the background. They are cached by the count estimator and
+     * reported the next time the size of the container is requested. The
+     * executor is not serialized.
+     * 
+     * @see #setCountEstimator(CountEstimator)
+     * @param entityCountChangeExecutor
+     *            the executor, or null to fire no events for counts computed
+     *            in the background.
+     * @since 3.2.0
+     */
+    public void setEntityCountChangeExecutor(Executor entityCountChangeExecutor) {
+        this.entityCountChangeExecutor = entityCountChangeExecutor;
+    }
+
+    /**
+     * Gets the executor that informs the listeners of entity counts computed
+     * in the background.
+     * 
+     * @see #setEntityCountChangeExecutor(Executor)
+     * @return the executor, or null if no events are fired.
+     * @since 3.2.0
+     */
+    public Executor getEntityCountChangeExecutor() {
+        return entityCountChangeExecutor;
+    }
+
+    /**
+     * Gets the strategy for finding out the number of entities matching a
+     * filter.
+     * 
+     * @see #setCountEstimator(CountEstimator)
+     * @return the count estimator, or null if an exact count query is always
+     *         run.
+     * @since 3.2.0
+     */
+    public CountEstimator getCountEstimator() {
+        return countEstimator;
+    }
+
+    /**
+     * Sets the maximum number of criteria queries to keep in the query plan
+     * cache. The entity provider builds the criteria query for a given
+     * selection, filter shape and sort order only once and reuses it until it
+     * is evicted from the cache, which e.g. saves rebuilding the query for
+     * every chunk of identifiers. The filter values are bound as parameters,
+     * so filters that only differ by their values share the same query.
+     * Queries are not cached if there is a {@link QueryModifierDelegate}. The
+     * default is 64.
+     * 
+     * @param queryPlanCacheMaxSize
+     *            the maximum number of queries, 0 to disable the cache or -1
+     *            for no limit.
+     * @since 3.2.0
+     */
+    public void setQueryPlanCacheMaxSize(int queryPlanCacheMaxSize) {
+        assert queryPlanCacheMaxSize >= -1 : "queryPlanCacheMaxSize must not be less than -1";
+        this.queryPlanCacheMaxSize = queryPlanCacheMaxSize;
+        queryPlanCache = null;
+    }
+
+    /**
+     * Gets the maximum number of criteria queries to keep in the query plan
+     * cache.
+     * 
+     * @see #setQueryPlanCacheMaxSize(int)
+     * @return the maximum number of queries, 0 if the cache is disabled or -1
+     *         if there is no limit.
+     * @since 3.2.0
+     */
+    public int getQueryPlanCacheMaxSize() {
+        return queryPlanCacheMaxSize;
+    }
+
+    /**
+     * Gets the hit, miss and eviction statistics of the query plan cache. The
+     * statistics are reset when the cache size is changed.
+     * 
+     * @see #setQueryPlanCacheMaxSize(int)
+     * @return the statistics, or null if no query has been cached yet.
+     * @since 3.2.0
+     */
+    public CacheStatistics getQueryPlanCacheStatistics() {
+        QueryPlanCache planCache = queryPlanCache;
+        return planCache == null ? null : planCache.getStatistics();
+    }
+
+    /**
+     * Forgets the positions of the last rows fetched using keyset pagination.
+     * Must be called whenever the underlying data may have changed.
+     */
+    protected void resetKeysetCursor() {
+        synchronized (keysetCursors) {
+            keysetCursors.clear();
+        }
+    }
+
     protected List<Object> doGetAllEntityIdentifiers(
             EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -875,7 +2025,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             CriteriaBuilder cb, CriteriaQuery<?> query) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.queryWillBeBuilt(cb, query);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().queryWillBeBuilt(cb, query);
         }
     }
@@ -884,7 +2035,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             CriteriaBuilder cb, CriteriaQuery<?> query) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.queryHasBeenBuilt(cb, query);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().queryHasBeenBuilt(cb, query);
         }
     }
@@ -894,7 +2046,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             List<Predicate> predicates) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.filtersWillBeAdded(cb, query, predicates);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().filtersWillBeAdded(cb, query,
                     predicates);
         }
@@ -904,7 +2057,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             CriteriaBuilder cb, CriteriaQuery<?> query) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.filtersWereAdded(cb, query);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().filtersWereAdded(cb, query);
         }
     }
@@ -913,7 +2067,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             CriteriaBuilder cb, CriteriaQuery<?> query, List<Order> orderBy) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.orderByWillBeAdded(cb, query, orderBy);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().orderByWillBeAdded(cb, query,
                     orderBy);
         }
@@ -923,7 +2078,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             CriteriaBuilder cb, CriteriaQuery<?> query) {
         if (queryModifierDelegate != null) {
             queryModifierDelegate.orderByWasAdded(cb, query);
-        } else if (container.getQueryModifierDelegate() != null) {
+        } else if (container != null
+                && container.getQueryModifierDelegate() != null) {
             container.getQueryModifierDelegate().orderByWasAdded(cb, query);
         }
     }
@@ -999,7 +2155,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     @Override
     public void refresh() {
-        // Nothing to do in this implementation, since we don't keep any
-        // items/entities cached.
+        // We don't keep any items/entities cached, only the keyset position.
+        resetKeysetCursor();
     }
 }
@@ -17,16 +17,20 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier;
 import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.data.Container.Filter;
 
 /**
  * Extended version of {@link LocalEntityProvider} that provides editing
@@ -130,10 +134,104 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         }
     }
 
+    /*
+     * The batch that the changes are written to while runInBatch() is
+     * running, or null.
+     */
+    transient private PendingBatch pendingBatch;
+
+    /*
+     * Records the changes between startRecordingChanges() and
+     * stopRecordingChanges(), or null.
+     */
+    transient private BatchEntitiesChangedEvent.Recorder<T> changeRecorder;
+
+    /**
+     * Starts recording the entities that are added, updated and removed
+     * through this entity provider, so that the changes can be reported with
+     * a single {@link BatchEntitiesChangedEvent} once they have all been made.
+     */
+    void startRecordingChanges() {
+        changeRecorder = new BatchEntitiesChangedEvent.Recorder<T>(this);
+    }
+
+    /**
+     * Stops recording the changes.
+     * 
+     * @see #startRecordingChanges()
+     * @return the recorded changes (never null).
+     */
+    BatchEntitiesChangedEvent.Recorder<T> stopRecordingChanges() {
+        assert changeRecorder != null : "changes are not being recorded";
+        BatchEntitiesChangedEvent.Recorder<T> recorder = changeRecorder;
+        changeRecorder = null;
+        return recorder;
+    }
+
+    /**
+     * Returns whether the changes are being recorded to be reported with a
+     * single event.
+     * 
+     * @see #startRecordingChanges()
+     */
+    boolean isRecordingChanges() {
+        return changeRecorder != null;
+    }
+
+    /**
+     * Runs <code>operation</code> like {@link #runInTransaction(Runnable)},
+     * but in batch mode: the entities that are added, updated or removed by
+     * <code>operation</code> through this entity provider are not flushed one
+     * at a time. Instead, the persistence context is flushed and cleared after
+     * every <code>batchSize</code> changes, and consecutive removals are
+     * executed as bulk <code>DELETE</code> statements. This lets the
+     * persistence provider send the statements to the database in JDBC
+     * batches (e.g. with the <code>hibernate.jdbc.batch_size</code>
+     * property) and keeps the persistence context small.
+     * <p>
+     * Note, that while batch mode is on, the entities returned by
+     * {@link #addEntity(Object)} and {@link #updateEntity(Object)} are not
+     * detached, no {@link EntityProviderChangeEvent}s are fired for the
+     * individual changes, and the bulk deletes do not cascade or invoke the
+     * entity lifecycle callbacks. Entities with an embedded identifier are
+     * removed one by one.
+     * 
+     * @param operation
+     *            the operation to run (must not be null).
+     * @param batchSize
+     *            the number of changes after which the persistence context is
+     *            flushed and cleared (must be positive).
+     * @since 3.2.0
+     */
+    protected void runInBatch(final Runnable operation, final int batchSize) {
+        assert operation != null : "operation must not be null";
+        assert batchSize > 0 : "batchSize must be positive";
+        runInTransaction(new Runnable() {
+
+            @Override
+            public void run() {
+                pendingBatch = new PendingBatch(batchSize);
+                try {
+                    operation.run();
+                    pendingBatch.flush();
+                } finally {
+                    pendingBatch = null;
+                }
+            }
+        });
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public T addEntity(final T entity) {
         assert entity != null;
+        if (pendingBatch != null) {
+            T merged = pendingBatch.merge(entity);
+            if (changeRecorder != null) {
+                changeRecorder.entityAdded(merged);
+            }
+            return merged;
+        }
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -145,6 +243,9 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             }
         });
         T dEntity = detachEntity((T) entityA[0]);
+        if (changeRecorder != null) {
+            changeRecorder.entityAdded(dEntity);
+        }
         fireEntityProviderChangeEvent(new EntitiesAddedEvent<T>(this, dEntity));
         return dEntity;
     }
@@ -153,6 +254,13 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     @SuppressWarnings("unchecked")
     public void removeEntity(final Object entityId) {
         assert entityId != null;
+        if (pendingBatch != null) {
+            pendingBatch.remove(entityId);
+            if (changeRecorder != null) {
+                changeRecorder.entityRemoved(entityId);
+            }
+            return;
+        }
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -169,6 +277,9 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             }
         });
         if (entityA[0] != null) {
+            if (changeRecorder != null) {
+                changeRecorder.entityRemoved(entityId);
+            }
             fireEntityProviderChangeEvent(new EntitiesRemovedEvent<T>(this,
                     (T) entityA[0]));
         }
@@ -178,6 +289,13 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     @SuppressWarnings("unchecked")
     public T updateEntity(final T entity) {
         assert entity != null : "entity must not be null";
+        if (pendingBatch != null) {
+            T merged = pendingBatch.merge(entity);
+            if (changeRecorder != null) {
+                changeRecorder.entityUpdated(merged);
+            }
+            return merged;
+        }
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -188,6 +306,9 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             }
         });
         T dEntity = detachEntity((T) entityA[0]);
+        if (changeRecorder != null) {
+            changeRecorder.entityUpdated(dEntity);
+        }
         fireEntityProviderChangeEvent(new EntitiesUpdatedEvent<T>(this, dEntity));
         return dEntity;
     }
@@ -199,6 +320,10 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             throws IllegalArgumentException {
         assert entityId != null : "entityId must not be null";
         assert propertyName != null : "propertyName must not be null";
+        if (pendingBatch != null) {
+            // The entity is refreshed from the database below
+            pendingBatch.executeRemovals();
+        }
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -221,11 +346,101 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             }
         });
         if (entityA[0] != null) {
+            if (changeRecorder != null) {
+                changeRecorder.entityUpdated((T) entityA[0]);
+            }
             fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent(this,
                     propertyName, entityA));
         }
     }
 
+    /**
+     * The changes written in batch mode, see
+     * {@link MutableLocalEntityProvider#runInBatch(Runnable, int)}.
+     */
+    private class PendingBatch {
+
+        private final int batchSize;
+        private final List<Object> removedEntityIds = new ArrayList<Object>();
+        private int changeCount;
+
+        PendingBatch(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        T merge(T entity) {
+            // Keep the changes in the order they were made
+            executeRemovals();
+            T merged = getEntityManager().merge(entity);
+            changed();
+            return merged;
+        }
+
+        void remove(Object entityId) {
+            if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+                // Embedded identifiers cannot be used in an IN expression in a
+                // portable way
+                EntityManager em = getEntityManager();
+                T entity = em.find(getEntityClassMetadata().getMappedClass(),
+                        entityId);
+                if (entity != null) {
+                    em.remove(entity);
+                }
+            } else {
+                removedEntityIds.add(entityId);
+                if (removedEntityIds.size() >= getMaxEntityIdsPerQuery()) {
+                    executeRemovals();
+                }
+            }
+            changed();
+        }
+
+        private void changed() {
+            if (++changeCount >= batchSize) {
+                flush();
+            }
+        }
+
+        void executeRemovals() {
+            if (removedEntityIds.isEmpty()) {
+                return;
+            }
+            EntityManager em = getEntityManager();
+            // The bulk delete bypasses the persistence context
+            em.flush();
+            em.createQuery(
+                    "DELETE FROM "
+                            + getEntityClassMetadata().getEntityName()
+                            + " e WHERE e."
+                            + getEntityClassMetadata().getIdentifierProperty()
+                                    .getName() + " IN :ids")
+                    .setParameter("ids",
+                            new ArrayList<Object>(removedEntityIds))
+                    .executeUpdate();
+            removedEntityIds.clear();
+        }
+
+        void flush() {
+            executeRemovals();
+            EntityManager em = getEntityManager();
+            em.flush();
+            em.clear();
+            changeCount = 0;
+        }
+    }
+
+    /**
+     * Sends an
+     * {@link com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityCountChangedEvent}
+     * to all registered listeners, as the count may be shown by any of them.
+     */
+    @Override
+    protected void fireEntityCountChanged(EntityContainer<T> container,
+            Filter filter, int count) {
+        fireEntityProviderChangeEvent(new EntityCountChangedEvent<T>(this,
+                filter, count));
+    }
+
     /*
      * Transient note: Listeners (read: JPAContainers) should re attach themselves when deserialized 
      */
@@ -292,6 +507,11 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     @SuppressWarnings("unchecked")
     protected void fireEntityProviderChangeEvent(
             final EntityProviderChangeEvent<T> event) {
+        // Any change may shift the rows after the remembered keyset position
+        resetKeysetCursor();
+        if (!(event instanceof EntityProviderChangeEvent.EntityCountChangedEvent)) {
+            invalidateEntityCounts();
+        }
         LinkedList<WeakReference<EntityProviderChangeListener<T>>> list;
         synchronized (getListeners()) {
             assert event != null : "event must not be null";
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.metamodel.Metamodel;
+
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.util.JPAFilterConverterFactory;
+import com.vaadin.addon.jpacontainer.util.ConcurrentLruCache;
+
+/**
+ * A cache of the criteria queries built by {@link LocalEntityProvider}, so
+ * that the criteria tree (root, filter predicates, sort joins and selections)
+ * is only built once for every distinct query and e.g. every chunk of
+ * identifiers is fetched with the same query. The filter values are bound as
+ * parameters, so the queries are keyed by the shape of the filter (see
+ * {@link JPAFilterConverterFactory#getFilterShape(com.vaadin.data.Container.Filter, List)})
+ * and a query is reused for all filters that only differ by their values.
+ * As the query text stays the same, the JPA implementation and the database
+ * can also reuse their own query plans.
+ * <p>
+ * A criteria query is bound to the metamodel of the entity manager factory
+ * that created it, so the cache is cleared if it is used with an entity
+ * manager of another factory. The check and the lookup are made under the
+ * same lock, so that a query of the previous factory is never stored after
+ * the cache has been cleared.
+ * <p>
+ * This class is thread safe. The cached criteria queries themselves are
+ * mutable, e.g. the JPA implementation may assign aliases to them when they
+ * are compiled, so they are only turned into queries one thread at a time
+ * with {@link Plan#createQuery(EntityManager)}, and must not be touched
+ * otherwise once they have been stored.
+ * 
+ * @since 3.2.0
+ */
+final class QueryPlanCache {
+
+    private final Cache<Key, Plan> cache;
+    private final CacheStatistics statistics = new CacheStatistics();
+    private Metamodel metamodel;
+
+    /**
+     * Creates a new <code>QueryPlanCache</code> that keeps at most
+     * <code>maxSize</code> queries.
+     */
+    QueryPlanCache(int maxSize) {
+        cache = new ConcurrentLruCache<Key, Plan>(maxSize,
+                statistics, false);
+    }
+
+    /**
+     * Gets the plan stored with <code>key</code> for the entity manager
+     * factory of <code>metamodel</code>, or null if there is none.
+     */
+    synchronized Plan get(Metamodel metamodel, Key key) {
+        checkMetamodel(metamodel);
+        return cache.get(key);
+    }
+
+    /**
+     * Stores <code>plan</code>, which has been built with an entity manager
+     * of the factory of <code>metamodel</code>. The criteria query of the plan
+     * must not be used directly after this.
+     */
+    synchronized void put(Metamodel metamodel, Key key, Plan plan) {
+        checkMetamodel(metamodel);
+        cache.put(key, plan);
+    }
+
+    synchronized void clear() {
+        cache.clear();
+    }
+
+    CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private void checkMetamodel(Metamodel metamodel) {
+        if (this.metamodel != metamodel) {
+            cache.clear();
+            this.metamodel = metamodel;
+        }
+    }
+
+    /**
+     * A built criteria query and its filter parameters, in the order that
+     * matches the values of the filter shape.
+     */
+    static final class Plan {
+
+        private final CriteriaQuery<Object> query;
+        private final List<ParameterExpression<?>> parameters;
+
+        Plan(CriteriaQuery<Object> query,
+                List<ParameterExpression<?>> parameters) {
+            this.query = query;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Creates a query from the cached criteria query with
+         * <code>entityManager</code>. The parameters still have to be bound.
+         */
+        synchronized TypedQuery<Object> createQuery(EntityManager entityManager) {
+            return entityManager.createQuery(query);
+        }
+
+        List<ParameterExpression<?>> getParameters() {
+            return parameters;
+        }
+    }
+
+    /**
+     * Key of a cached query.
+     */
+    static final class Key {
+
+        private final boolean selectEntity;
+        private final List<String> fieldsToSelect;
+        private final Object filterShape;
+        private final List<SortBy> sortBy;
+        private final boolean swapSortOrder;
+        private final int hashCode;
+
+        Key(boolean selectEntity, List<String> fieldsToSelect,
+                Object filterShape, List<SortBy> sortBy, boolean swapSortOrder) {
+            this.selectEntity = selectEntity;
+            this.fieldsToSelect = new ArrayList<String>(fieldsToSelect);
+            this.filterShape = filterShape;
+            this.sortBy = sortBy == null ? null : new ArrayList<SortBy>(
+                    sortBy);
+            this.swapSortOrder = swapSortOrder;
+            int hash = selectEntity ? 1 : 0;
+            hash = hash * 31 + this.fieldsToSelect.hashCode();
+            hash = hash * 31 + (filterShape == null ? 0 : filterShape.hashCode());
+            hash = hash * 31 + (this.sortBy == null ? 0 : this.sortBy
+                    .hashCode());
+            hash = hash * 31 + (swapSortOrder ? 1 : 0);
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return selectEntity == o.selectEntity
+                    && swapSortOrder == o.swapSortOrder
+                    && fieldsToSelect.equals(o.fieldsToSelect)
+                    && (filterShape == null ? o.filterShape == null : filterShape
+                            .equals(o.filterShape))
+                    && (sortBy == null ? o.sortBy == null : sortBy
+                            .equals(o.sortBy));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityTransaction;
+
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheFactory;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.util.ConcurrentLruCache;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * An application wide cache of entity counts and identifier windows that can
+ * be shared by several {@link CachingLocalEntityProvider}s and
+ * {@link CachingMutableLocalEntityProvider}s, e.g. by the entity providers of
+ * all the sessions of an application. An entity provider consults the shared
+ * cache before running a count or identifier query, and stores the result in
+ * it afterwards, so that users looking at the same data share the queries.
+ * <p>
+ * The results are keyed by the entity class, the filter, the sort order and
+ * the requested window. When an entity provider that this cache listens to
+ * reports a change (see {@link #listenTo(EntityProviderChangeNotifier)}), all
+ * the results for the entity class of that provider are invalidated. Changes
+ * made to the database in any other way must be reported by calling
+ * {@link #invalidate(Class)} or {@link #invalidateAll()}.
+ * <p>
+ * A change is only visible to the other users of the cache once it has been
+ * committed. If an entity provider makes a change inside a transaction that
+ * it has not begun itself, the transaction is registered with
+ * {@link #invalidateOnCompletion(Class, EntityTransaction)}, and the results
+ * for the entity class are neither looked up nor stored until the
+ * transaction has completed. Entity providers whose transactions are
+ * handled outside of them (see
+ * {@link MutableLocalEntityProvider#setTransactionsHandledByProvider(boolean)})
+ * cannot tell when their changes are committed, and do not use the shared
+ * cache at all.
+ * <p>
+ * Only queries that do not depend on the container are shared, i.e. entity
+ * providers that use a filter modifying {@link com.vaadin.addon.jpacontainer.QueryModifierDelegate}
+ * never use this cache. All the entity providers sharing a cache must use the
+ * same persistence unit. The entity provider keeps its reference to the
+ * shared cache in a transient field, so it has to be set again after
+ * deserialization.
+ * <p>
+ * This class is thread safe.
+ * 
+ * @see CachingLocalEntityProvider#setSharedQueryCache(SharedQueryCache)
+ * @see CachingMutableLocalEntityProvider#setSharedQueryCache(SharedQueryCache)
+ * @since 3.2.0
+ */
+public class SharedQueryCache {
+
+    private final Cache<Key, Object> cache;
+    private final CacheStatistics statistics = new CacheStatistics();
+    private final ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+    private final AtomicLong globalGeneration = new AtomicLong();
+    /*
+     * The transactions with changes to each entity class that have not been
+     * seen to complete yet. Guarded by itself.
+     */
+    private final Map<Class<?>, List<EntityTransaction>> openTransactions = new HashMap<Class<?>, List<EntityTransaction>>();
+    /*
+     * Entity providers only keep weak references to their listeners, so the
+     * cache holds on to its own listener.
+     */
+    private final EntityProviderChangeListener<Object> listener = new EntityProviderChangeListener<Object>() {
+
+        @Override
+        public void entityProviderChange(EntityProviderChangeEvent<Object> event) {
+            if (event instanceof EntityProviderChangeEvent.EntityCountChangedEvent) {
+                // Nothing has changed in the database
+                return;
+            }
+            EntityProvider<Object> provider = event.getEntityProvider();
+            if (provider instanceof LocalEntityProvider) {
+                invalidate(((LocalEntityProvider<Object>) provider)
+                        .getEntityClassMetadata().getMappedClass());
+            } else {
+                invalidateAll();
+            }
+        }
+    };
+
+    /**
+     * Creates a new <code>SharedQueryCache</code> that keeps at most
+     * <code>maxSize</code> results in a least recently used cache.
+     * 
+     * @param maxSize
+     *            the maximum number of counts and identifier windows to keep,
+     *            or -1 for no limit.
+     */
+    public SharedQueryCache(int maxSize) {
+        this(maxSize, new ConcurrentLruCache.Factory(false));
+    }
+
+    /**
+     * Creates a new <code>SharedQueryCache</code> that keeps its results in a
+     * cache created by <code>cacheFactory</code>.
+     * 
+     * @param maxSize
+     *            the maximum number of counts and identifier windows to keep,
+     *            or -1 for no limit.
+     * @param cacheFactory
+     *            the factory to create the cache with (must not be null).
+     */
+    public SharedQueryCache(int maxSize, CacheFactory cacheFactory) {
+        assert cacheFactory != null : "cacheFactory must not be null";
+        cache = cacheFactory.createCache(maxSize, statistics);
+    }
+
+    /**
+     * Makes this cache invalidate the results for the entity class of
+     * <code>notifier</code> whenever it reports a change. Entity providers
+     * that this cache is set to with
+     * {@link CachingMutableLocalEntityProvider#setSharedQueryCache(SharedQueryCache)}
+     * are listened to automatically.
+     * 
+     * @param notifier
+     *            the entity provider to listen to (must not be null).
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void listenTo(EntityProviderChangeNotifier<?> notifier) {
+        assert notifier != null : "notifier must not be null";
+        notifier.addListener((EntityProviderChangeListener) listener);
+    }
+
+    /**
+     * Stops listening to changes reported by <code>notifier</code>.
+     * 
+     * @param notifier
+     *            the entity provider to stop listening to (must not be null).
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void stopListeningTo(EntityProviderChangeNotifier<?> notifier) {
+        assert notifier != null : "notifier must not be null";
+        notifier.removeListener((EntityProviderChangeListener) listener);
+    }
+
+    /**
+     * Invalidates all the results for <code>entityClass</code>.
+     * 
+     * @param entityClass
+     *            the entity class (must not be null).
+     */
+    public void invalidate(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        getGeneration(entityClass).incrementAndGet();
+    }
+
+    /**
+     * Invalidates all the results for <code>entityClass</code> once
+     * <code>transaction</code> has completed, i.e. when the changes made in
+     * it have been committed or rolled back. Until then, the results for the
+     * entity class are neither looked up nor stored, as the other users of
+     * the cache would otherwise store results that are stale as soon as the
+     * transaction is committed.
+     * 
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param transaction
+     *            the active transaction (must not be null).
+     */
+    public void invalidateOnCompletion(Class<?> entityClass,
+            EntityTransaction transaction) {
+        assert entityClass != null : "entityClass must not be null";
+        assert transaction != null : "transaction must not be null";
+        synchronized (openTransactions) {
+            List<EntityTransaction> transactions = openTransactions
+                    .get(entityClass);
+            if (transactions == null) {
+                transactions = new ArrayList<EntityTransaction>(1);
+                openTransactions.put(entityClass, transactions);
+            }
+            if (!transactions.contains(transaction)) {
+                transactions.add(transaction);
+            }
+        }
+    }
+
+    /**
+     * Returns true if changes to <code>entityClass</code> have been made in a
+     * transaction that is still active. The entity class is invalidated when
+     * its last such transaction is found to have completed.
+     */
+    private boolean hasOpenTransactions(Class<?> entityClass) {
+        synchronized (openTransactions) {
+            List<EntityTransaction> transactions = openTransactions
+                    .get(entityClass);
+            if (transactions == null) {
+                return false;
+            }
+            for (Iterator<EntityTransaction> it = transactions.iterator(); it
+                    .hasNext();) {
+                if (!it.next().isActive()) {
+                    it.remove();
+                }
+            }
+            if (!transactions.isEmpty()) {
+                return true;
+            }
+            openTransactions.remove(entityClass);
+            invalidate(entityClass);
+            return false;
+        }
+    }
+
+    /**
+     * Invalidates all the results in the cache.
+     */
+    public void invalidateAll() {
+        globalGeneration.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Gets the hit, miss and eviction statistics of this cache.
+     * 
+     * @return the statistics (never null).
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private AtomicLong getGeneration(Class<?> entityClass) {
+        AtomicLong generation = generations.get(entityClass);
+        if (generation == null) {
+            AtomicLong newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(entityClass, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Creates a key for the number of entities of <code>entityClass</code>
+     * that match <code>filter</code>. Results stored with the key after the
+     * entity class has been invalidated will never be found.
+     * 
+     * @return the key, or null if the result must not be looked up or stored
+     *         as the entity class is being changed in an open transaction.
+     */
+    Key createCountKey(Class<?> entityClass, Filter filter) {
+        if (hasOpenTransactions(entityClass)) {
+            return null;
+        }
+        return new Key(entityClass, globalGeneration.get(), getGeneration(
+                entityClass).get(), filter, null, -1, -1);
+    }
+
+    /**
+     * Creates a key for a window of identifiers. Results stored with the key
+     * after the entity class has been invalidated will never be found.
+     * 
+     * @return the key, or null if the result must not be looked up or stored
+     *         as the entity class is being changed in an open transaction.
+     */
+    Key createIdsKey(Class<?> entityClass, Filter filter,
+            List<SortBy> sortBy, int startFrom, int fetchMax) {
+        if (hasOpenTransactions(entityClass)) {
+            return null;
+        }
+        return new Key(entityClass, globalGeneration.get(), getGeneration(
+                entityClass).get(), filter, sortBy, startFrom, fetchMax);
+    }
+
+    Integer getEntityCount(Key key) {
+        return (Integer) cache.get(key);
+    }
+
+    void putEntityCount(Key key, int count) {
+        cache.put(key, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Object> getIds(Key key) {
+        List<Object> ids = (List<Object>) cache.get(key);
+        return ids == null ? null : new ArrayList<Object>(ids);
+    }
+
+    void putIds(Key key, List<Object> ids) {
+        cache.put(key, Collections.unmodifiableList(new ArrayList<Object>(ids)));
+    }
+
+    /**
+     * Key of a cached result. The key contains the generations of the entity
+     * class at the time it was created, which means that the invalidated
+     * results are never found again and are eventually evicted from the cache.
+     */
+    static final class Key {
+
+        private final Class<?> entityClass;
+        private final long globalGeneration;
+        private final long generation;
+        private final Filter filter;
+        private final List<SortBy> sortBy;
+        private final int startFrom;
+        private final int fetchMax;
+        private final int hashCode;
+
+        Key(Class<?> entityClass, long globalGeneration, long generation,
+                Filter filter, List<SortBy> sortBy, int startFrom,
+                int fetchMax) {
+            this.entityClass = entityClass;
+            this.globalGeneration = globalGeneration;
+            this.generation = generation;
+            this.filter = filter;
+            this.sortBy = sortBy == null ? null : new ArrayList<SortBy>(
+                    sortBy);
+            this.startFrom = startFrom;
+            this.fetchMax = fetchMax;
+            int hash = entityClass.hashCode();
+            hash = hash * 31 + (int) (generation ^ globalGeneration);
+            hash = hash * 31 + (filter == null ? 0 : filter.hashCode());
+            hash = hash * 31 + (this.sortBy == null ? 0 : this.sortBy
+                    .hashCode());
+            hash = hash * 31 + startFrom;
+            hash = hash * 31 + fetchMax;
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return entityClass == o.entityClass
+                    && globalGeneration == o.globalGeneration
+                    && generation == o.generation
+                    && startFrom == o.startFrom
+                    && fetchMax == o.fetchMax
+                    && (filter == null ? o.filter == null : filter
+                            .equals(o.filter))
+                    && (sortBy == null ? o.sortBy == null : sortBy
+                            .equals(o.sortBy));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
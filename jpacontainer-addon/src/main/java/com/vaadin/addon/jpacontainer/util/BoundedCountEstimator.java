@@ -0,0 +1,99 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.util;
+
+import java.util.concurrent.Executor;
+
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * A {@link CachedCountEstimator} that does not run an exact count query when
+ * no count has been cached. Instead, it counts the entities up to
+ * <code>maxCount</code>, which only has to read that many rows. If there are
+ * more entities than that, <code>maxCount</code> is reported ("maxCount or
+ * more") and, if a background entity manager provider and an executor have
+ * been given, the exact count is computed in the background and reported when
+ * it is ready.
+ * 
+ * @since 3.2.0
+ */
+public class BoundedCountEstimator extends CachedCountEstimator {
+
+    private static final long serialVersionUID = -1709245611963893561L;
+    private final int maxCount;
+
+    /**
+     * Creates a new <code>BoundedCountEstimator</code> that never computes
+     * exact counts larger than <code>maxCount</code>.
+     * 
+     * @param maxCount
+     *            the number of entities to count up to (must be greater than
+     *            zero).
+     * @param timeToLive
+     *            the number of milliseconds to cache an exact count for.
+     */
+    public BoundedCountEstimator(int maxCount, long timeToLive) {
+        this(maxCount, timeToLive, null, null);
+    }
+
+    /**
+     * Creates a new <code>BoundedCountEstimator</code> that computes exact
+     * counts larger than <code>maxCount</code> in the background.
+     * 
+     * @param maxCount
+     *            the number of entities to count up to (must be greater than
+     *            zero).
+     * @param timeToLive
+     *            the number of milliseconds to cache an exact count for.
+     * @param backgroundEntityManagerProvider
+     *            the provider of the entity managers to count with in the
+     *            background (see
+     *            {@link CachedCountEstimator#CachedCountEstimator(long, EntityManagerProvider, Executor)}
+     *            ).
+     * @param executor
+     *            the executor to count in the background with.
+     */
+    public BoundedCountEstimator(int maxCount, long timeToLive,
+            EntityManagerProvider backgroundEntityManagerProvider,
+            Executor executor) {
+        super(timeToLive, backgroundEntityManagerProvider, executor);
+        assert maxCount > 0 : "maxCount must be greater than zero";
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Gets the number of entities to count up to.
+     * 
+     * @return the maximum count.
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    @Override
+    protected int countMissing(Counter counter, Filter filter) {
+        int count = counter.countEntities(filter, maxCount + 1);
+        if (count <= maxCount) {
+            // This is the exact count
+            cacheCount(counter, filter, count);
+            return count;
+        }
+        countInBackground(counter, filter, maxCount);
+        return maxCount;
+    }
+}
@@ -0,0 +1,354 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.util;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+import com.vaadin.addon.jpacontainer.CountEstimator;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * A {@link CountEstimator} that caches exact entity counts for a limited time.
+ * When a cached count has expired, it is reported once more while the exact
+ * count is computed in the background, if a background entity manager
+ * provider and an executor have been given, and computed right away
+ * otherwise.
+ * <p>
+ * The cached counts of an entity class are discarded when an entity provider
+ * using the estimator adds, updates or removes entities of that class. Changes
+ * made by other means, e.g. by other applications, are not noticed, so the
+ * counts may be off by those changes within the time to live. Call
+ * {@link #invalidate()} to get rid of them.
+ * <p>
+ * The background thread only counts and caches the result. How the entity
+ * provider reports a changed count to its listeners is up to the provider,
+ * see
+ * {@link com.vaadin.addon.jpacontainer.provider.LocalEntityProvider#setEntityCountChangeExecutor(Executor)}
+ * .
+ * 
+ * @since 3.2.0
+ */
+public class CachedCountEstimator implements CountEstimator {
+
+    private static final long serialVersionUID = 2315474018712358470L;
+    private static final Logger logger = Logger
+            .getLogger(CachedCountEstimator.class.getName());
+
+    /**
+     * The maximum number of different entity class and filter combinations
+     * to cache the count for.
+     */
+    private static final int MAX_CACHED_COUNTS = 100;
+
+    private final long timeToLive;
+    private final EntityManagerProvider backgroundEntityManagerProvider;
+    private final transient Executor executor;
+    private final Cache<Key, CachedCount> counts = new ConcurrentLruCache<Key, CachedCount>(
+            MAX_CACHED_COUNTS, new CacheStatistics(), false);
+    private final ConcurrentMap<Key, Boolean> pending = new ConcurrentHashMap<Key, Boolean>();
+    /*
+     * Incremented when the entities of a class change. Counts cached or
+     * computed under an older generation are outdated.
+     */
+    private final ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    /**
+     * Creates a new <code>CachedCountEstimator</code> that computes expired
+     * counts right away.
+     * 
+     * @param timeToLive
+     *            the number of milliseconds to cache a count for.
+     */
+    public CachedCountEstimator(long timeToLive) {
+        this(timeToLive, null, null);
+    }
+
+    /**
+     * Creates a new <code>CachedCountEstimator</code> that computes expired
+     * counts in the background.
+     * 
+     * @param timeToLive
+     *            the number of milliseconds to cache a count for.
+     * @param backgroundEntityManagerProvider
+     *            the provider of the entity managers to count with in the
+     *            background. It is called in the background thread and must
+     *            return a new entity manager every time, as entity managers
+     *            are not thread safe. The entity manager is closed when the
+     *            count is done.
+     * @param executor
+     *            the executor to count in the background with. The executor
+     *            is not serialized, i.e. a deserialized estimator computes
+     *            expired counts right away.
+     */
+    public CachedCountEstimator(long timeToLive,
+            EntityManagerProvider backgroundEntityManagerProvider,
+            Executor executor) {
+        assert timeToLive >= 0 : "timeToLive must not be negative";
+        this.timeToLive = timeToLive;
+        this.backgroundEntityManagerProvider = backgroundEntityManagerProvider;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the number of milliseconds a count is cached for.
+     * 
+     * @return the time to live.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Removes all the cached counts.
+     */
+    public void invalidate() {
+        counts.clear();
+    }
+
+    /**
+     * Removes the cached counts of <code>entityClass</code>. Counts of the
+     * class that are being computed in the background are not cached nor
+     * reported.
+     * 
+     * @param entityClass
+     *            the entity class (must not be null).
+     */
+    public void invalidate(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        getGeneration(entityClass).incrementAndGet();
+    }
+
+    @Override
+    public void entitiesChanged(Class<?> entityClass) {
+        invalidate(entityClass);
+    }
+
+    private AtomicLong getGeneration(Class<?> entityClass) {
+        AtomicLong generation = generations.get(entityClass);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong existing = generations.putIfAbsent(entityClass,
+                    generation);
+            if (existing != null) {
+                generation = existing;
+            }
+        }
+        return generation;
+    }
+
+    @Override
+    public int getEntityCount(Counter counter, Filter filter) {
+        CachedCount cached = counts.get(new Key(counter.getEntityClass(),
+                filter));
+        if (cached == null
+                || cached.generation != getGeneration(
+                        counter.getEntityClass()).get()) {
+            return countMissing(counter, filter);
+        }
+        if (System.currentTimeMillis() - cached.timestamp > timeToLive
+                && !countInBackground(counter, filter, cached.count)) {
+            return countNow(counter, filter);
+        }
+        return cached.count;
+    }
+
+    /**
+     * Gets the number of entities to report when no count has been cached for
+     * <code>filter</code>. This implementation calls
+     * {@link #countNow(Counter, Filter)}.
+     * 
+     * @param counter
+     *            the counter to count the entities with (never null).
+     * @param filter
+     *            the filter, or null to count all the entities.
+     * @return the number of entities.
+     */
+    protected int countMissing(Counter counter, Filter filter) {
+        return countNow(counter, filter);
+    }
+
+    /**
+     * Counts the entities matching <code>filter</code> exactly and caches the
+     * count.
+     * 
+     * @param counter
+     *            the counter to count the entities with (never null).
+     * @param filter
+     *            the filter, or null to count all the entities.
+     * @return the number of entities.
+     */
+    protected int countNow(Counter counter, Filter filter) {
+        long generation = getGeneration(counter.getEntityClass()).get();
+        int count = counter.countEntities(filter);
+        cacheCount(counter, filter, count, generation);
+        return count;
+    }
+
+    /**
+     * Caches <code>count</code> as the exact number of entities matching
+     * <code>filter</code>.
+     * 
+     * @param counter
+     *            the counter the entities were counted with (never null).
+     * @param filter
+     *            the filter, or null if all the entities were counted.
+     * @param count
+     *            the number of entities.
+     */
+    protected void cacheCount(Counter counter, Filter filter, int count) {
+        cacheCount(counter, filter, count,
+                getGeneration(counter.getEntityClass()).get());
+    }
+
+    /**
+     * Caches <code>count</code> unless the entities have changed since the
+     * counting started in <code>generation</code>.
+     * 
+     * @return true if the count was cached, false if it is outdated.
+     */
+    private boolean cacheCount(Counter counter, Filter filter, int count,
+            long generation) {
+        if (generation != getGeneration(counter.getEntityClass()).get()) {
+            return false;
+        }
+        counts.put(new Key(counter.getEntityClass(), filter), new CachedCount(
+                count, System.currentTimeMillis(), generation));
+        return true;
+    }
+
+    /**
+     * Starts counting the entities matching <code>filter</code> exactly in
+     * the background, unless they are already being counted. The count is
+     * cached when it is ready and reported with
+     * {@link Counter#entityCountChanged(Filter, int)} if it differs from
+     * <code>reported</code>.
+     * 
+     * @param counter
+     *            the counter to count the entities with (never null).
+     * @param filter
+     *            the filter, or null to count all the entities.
+     * @param reported
+     *            the number of entities that has been reported.
+     * @return true if the entities are being counted in the background, false
+     *         if that is not possible.
+     */
+    protected boolean countInBackground(final Counter counter,
+            final Filter filter, final int reported) {
+        if (backgroundEntityManagerProvider == null || executor == null) {
+            return false;
+        }
+        final Key key = new Key(counter.getEntityClass(), filter);
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            return true;
+        }
+        final long generation = getGeneration(key.entityClass).get();
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        EntityManager em = backgroundEntityManagerProvider
+                                .getEntityManager();
+                        if (em == null) {
+                            throw new IllegalStateException(
+                                    "No entity manager specified for counting");
+                        }
+                        int count;
+                        try {
+                            count = counter.countEntities(filter, em);
+                        } finally {
+                            em.close();
+                        }
+                        if (cacheCount(counter, filter, count, generation)
+                                && count != reported) {
+                            counter.entityCountChanged(filter, count);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING,
+                                "Could not count the entities of "
+                                        + key.entityClass.getName(), e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static final class CachedCount implements Serializable {
+
+        private static final long serialVersionUID = -6271364104616931706L;
+        final int count;
+        final long timestamp;
+        final long generation;
+
+        CachedCount(int count, long timestamp, long generation) {
+            this.count = count;
+            this.timestamp = timestamp;
+            this.generation = generation;
+        }
+    }
+
+    private static final class Key implements Serializable {
+
+        private static final long serialVersionUID = 3958412917716512085L;
+        final Class<?> entityClass;
+        final Filter filter;
+
+        Key(Class<?> entityClass, Filter filter) {
+            this.entityClass = entityClass;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return entityClass == o.entityClass
+                    && (filter == null ? o.filter == null : filter
+                            .equals(o.filter));
+        }
+
+        @Override
+        public int hashCode() {
+            return entityClass.hashCode() * 31
+                    + (filter == null ? 0 : filter.hashCode());
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheFactory;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+
+/**
+ * A {@link Cache} that evicts the least recently used entry when it is full.
+ * The entries are spread over several independently locked segments, so that
+ * concurrent threads seldom wait for each other, and all operations run in
+ * constant time.
+ * <p>
+ * Optionally, the cache can use frequency-aware admission: the access
+ * frequencies of keys are estimated with a small count-min sketch, and a new
+ * entry is only stored in a full segment if its key has been used at least as
+ * often as the key of the entry it would evict. This keeps entries that are
+ * used over and over from being pushed out by entries that are used only once,
+ * e.g. while scrolling through a long list.
+ * 
+ * @since 3.2.0
+ */
+public class ConcurrentLruCache<K, V> implements Cache<K, V> {
+
+    private static final long serialVersionUID = -4300874611426542004L;
+
+    /**
+     * The number of entries per segment below which no more segments are
+     * created.
+     */
+    private static final int MIN_SEGMENT_SIZE = 32;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final CacheStatistics statistics;
+    private final FrequencySketch sketch;
+
+    /**
+     * Creates a new <code>ConcurrentLruCache</code>.
+     * 
+     * @param maxSize
+     *            the maximum number of entries, or -1 for no limit.
+     * @param statistics
+     *            the statistics to record hits, misses and evictions to (must
+     *            not be null).
+     * @param frequencyAware
+     *            true to use frequency-aware admission, false to always store
+     *            new entries.
+     */
+    public ConcurrentLruCache(int maxSize, CacheStatistics statistics,
+            boolean frequencyAware) {
+        assert statistics != null : "statistics must not be null";
+        this.statistics = statistics;
+        int segmentCount = maxSize < 0 ? MAX_SEGMENTS : Math.max(1,
+                Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        this.segments = segments;
+        for (int i = 0; i < segmentCount; i++) {
+            int capacity = -1;
+            if (maxSize >= 0) {
+                // Distribute the remainder so that the capacities add up to
+                // maxSize
+                capacity = maxSize / segmentCount
+                        + (i < maxSize % segmentCount ? 1 : 0);
+            }
+            segments[i] = new Segment<K, V>(capacity);
+        }
+        sketch = frequencyAware && maxSize > 0 ? new FrequencySketch(maxSize)
+                : null;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public V get(K key) {
+        assert key != null : "key must not be null";
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        V value = segmentFor(key).get(key);
+        if (value == null) {
+            statistics.recordMiss();
+        } else {
+            statistics.recordHit();
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        assert key != null : "key must not be null";
+        return segmentFor(key).containsKey(key);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        assert key != null : "key must not be null";
+        assert value != null : "value must not be null";
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        if (!segmentFor(key).put(key, value, sketch)) {
+            statistics.recordEviction();
+        }
+    }
+
+    @Override
+    public V remove(K key) {
+        assert key != null : "key must not be null";
+        return segmentFor(key).remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Collection<V> values() {
+        List<V> values = new ArrayList<V>(size());
+        for (Segment<K, V> segment : segments) {
+            segment.copyValuesTo(values);
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * A part of the cache with its own lock and its own LRU order.
+     */
+    private static final class Segment<K, V> implements Serializable {
+
+        private static final long serialVersionUID = 5309154713562689102L;
+        private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16,
+                0.75f, true);
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized V get(K key) {
+            return map.get(key);
+        }
+
+        synchronized boolean containsKey(K key) {
+            return map.containsKey(key);
+        }
+
+        /**
+         * Stores the entry, evicting the least recently used entry if the
+         * segment is full.
+         * 
+         * @return false if an entry was evicted or the new entry was not
+         *         admitted, true otherwise.
+         */
+        synchronized boolean put(K key, V value, FrequencySketch sketch) {
+            if (capacity == 0) {
+                return false;
+            }
+            if (map.containsKey(key) || capacity < 0 || map.size() < capacity) {
+                map.put(key, value);
+                return true;
+            }
+            Iterator<K> it = map.keySet().iterator();
+            K victim = it.next();
+            if (sketch != null
+                    && sketch.frequency(key) < sketch.frequency(victim)) {
+                // The victim is used more often, keep it
+                return false;
+            }
+            it.remove();
+            map.put(key, value);
+            return false;
+        }
+
+        synchronized V remove(K key) {
+            return map.remove(key);
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized void copyValuesTo(List<V> values) {
+            values.addAll(map.values());
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of saturating counters that estimates
+     * how often keys have been used. All counters are halved periodically so
+     * that the estimates follow changes in the access pattern.
+     */
+    private static final class FrequencySketch implements Serializable {
+
+        private static final long serialVersionUID = -1180216124787049037L;
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B,
+                0xC2B2AE35, 0x27D4EB2F };
+
+        private final AtomicIntegerArray counters;
+        private final int width;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int maxSize) {
+            int w = 64;
+            while (w < maxSize && w < (1 << 24)) {
+                w <<= 1;
+            }
+            width = w;
+            counters = new AtomicIntegerArray(ROWS * width);
+            sampleSize = 10 * Math.max(maxSize, 16);
+        }
+
+        private int indexOf(Object key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            h ^= (h >>> 17);
+            return row * width + (h & (width - 1));
+        }
+
+        void increment(Object key) {
+            for (int row = 0; row < ROWS; row++) {
+                int i = indexOf(key, row);
+                int count;
+                do {
+                    count = counters.get(i);
+                } while (count < MAX_COUNT
+                        && !counters.compareAndSet(i, count, count + 1));
+            }
+            if (additions.incrementAndGet() >= sampleSize) {
+                age();
+            }
+        }
+
+        int frequency(Object key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, counters.get(indexOf(key, row)));
+            }
+            return min;
+        }
+
+        private synchronized void age() {
+            if (additions.get() < sampleSize) {
+                // Another thread already did it
+                return;
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, counters.get(i) >>> 1);
+            }
+            additions.set(0);
+        }
+    }
+
+    /**
+     * {@link CacheFactory} that creates {@link ConcurrentLruCache}s.
+     */
+    public static class Factory implements CacheFactory {
+
+        private static final long serialVersionUID = 8713839066931386409L;
+        private final boolean frequencyAware;
+
+        /**
+         * Creates a new factory.
+         * 
+         * @param frequencyAware
+         *            true to create caches that use frequency-aware admission,
+         *            false to create plain LRU caches.
+         */
+        public Factory(boolean frequencyAware) {
+            this.frequencyAware = frequencyAware;
+        }
+
+        @Override
+        public <K, V> Cache<K, V> createCache(int maxSize,
+                CacheStatistics statistics) {
+            return new ConcurrentLruCache<K, V>(maxSize, statistics,
+                    frequencyAware);
+        }
+    }
+}
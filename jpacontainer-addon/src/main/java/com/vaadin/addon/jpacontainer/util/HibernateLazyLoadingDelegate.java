@@ -32,6 +32,7 @@ import org.hibernate.Hibernate;
 
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 
 /**
  * HibernateLazyLoadingDelegate is the default implementation of the
@@ -107,8 +108,8 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
 			// collections), so we're safe to just grab the first element
 			// of the list currently in 'value'.
 			Object subEntity = ((List<?>) value).get(0);
-			String subProperty = propertyName.substring(propertyName
-					.indexOf('.') + 1);
+			String subProperty = PropertyPath.of(propertyName).getRest()
+					.getName();
 			value = ensureLazyPropertyLoaded(subEntity, subProperty);
 		}
 		return value;
@@ -119,10 +120,7 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
 	 *		 denoting a nested property.
 	 */
 	private String getRootPropertyName(String propertyName) {
-		if (isNestedProperty(propertyName)) {
-			return propertyName.substring(0, propertyName.indexOf('.'));
-		}
-		return propertyName;
+		return PropertyPath.of(propertyName).getFirst();
 	}
 
 	/**
@@ -1,21 +1,29 @@
 package com.vaadin.data.util.filter;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
 
+/**
+ * Filter that passes the items whose property value is one of the given
+ * values. The filter is immutable, so it can be used as a cache key: the
+ * values are copied when the filter is created.
+ */
 public class In implements Filter {
 
 	private final Object propertyId;
-	private Collection<?> collection;
+	private final Set<Object> collection;
 	
 	public In(Object propertyId, Collection<?> collection) {
 		assert propertyId != null;
 		assert collection != null;
 		this.propertyId = propertyId;
-		this.collection = collection;
+		this.collection = Collections.unmodifiableSet(new LinkedHashSet<Object>(collection));
 	}
 	
 	@Override
@@ -34,16 +42,39 @@ public class In implements Filter {
 		return getPropertyId().equals(propertyId);
 	}
 
+	/**
+	 * Gets the values, without duplicates, in the order they were given in.
+	 * 
+	 * @return an unmodifiable collection of the values.
+	 */
 	public Collection<?> getCollection() {
 		return collection;
 	}
 
-	public void setCollection(Collection<?> collection) {
-		this.collection = collection;
-	}
-
 	public Object getPropertyId() {
 		return propertyId;
 	}
 
+	/**
+	 * Two <code>In</code> filters are equal if they restrict the same property
+	 * to the same values, regardless of the order of the values.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (obj == null || obj.getClass() != getClass()) {
+			return false;
+		}
+		In o = (In) obj;
+		return propertyId.equals(o.propertyId)
+				&& collection.equals(o.collection);
+	}
+
+	@Override
+	public int hashCode() {
+		return propertyId.hashCode() + collection.hashCode();
+	}
+
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.BufferedContainerDelegate.SortedIndexes;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Test case for {@link BufferedContainerDelegate}.
+ * 
+ * @since 3.2.0
+ */
+public class BufferedContainerDelegateTest {
+
+    @Test
+    public void testAddedItemIds() {
+        BufferedContainerDelegate<Person> delegate = new BufferedContainerDelegate<Person>(
+                new JPAContainer<Person>(Person.class));
+        Object id1 = delegate.addEntity(new Person());
+        Object id2 = delegate.addEntity(new Person());
+        Object id3 = delegate.addEntity(new Person());
+        assertEquals(3, delegate.getAddedItemIds().size());
+        assertEquals(0, delegate.indexOfAddedItemId(id1));
+        assertEquals(2, delegate.indexOfAddedItemId(id3));
+        assertEquals(-1, delegate.indexOfAddedItemId("unknown"));
+
+        delegate.deleteItem(id2);
+        assertEquals(2, delegate.getAddedItemIds().size());
+        assertEquals(id3, delegate.getAddedItemIds().get(1));
+        assertEquals(1, delegate.indexOfAddedItemId(id3));
+        assertEquals(-1, delegate.indexOfAddedItemId(id2));
+
+        Object id4 = delegate.addEntity(new Person());
+        assertEquals(2, delegate.indexOfAddedItemId(id4));
+        assertEquals(id4, delegate.getAddedItemIds().get(2));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDeletedItemIndexesAreResolvedLazily() {
+        JPAContainer<Person> container = new JPAContainer<Person>(Person.class);
+        IndexedEntityProvider<Person> providerMock = createMock(IndexedEntityProvider.class);
+        container.setEntityProvider(providerMock);
+        BufferedContainerDelegate<Person> delegate = new BufferedContainerDelegate<Person>(
+                container);
+        expect(
+                providerMock.getEntityIdentifierIndex(eq(container),
+                        eq((Object) "id3"), (Filter) isNull(),
+                        (List<SortBy>) eq(container.getSortByList())))
+                .andReturn(3);
+        expect(
+                providerMock.getEntityIdentifierIndex(eq(container),
+                        eq((Object) "id1"), (Filter) isNull(),
+                        (List<SortBy>) eq(container.getSortByList())))
+                .andReturn(1);
+        replay(providerMock);
+
+        // Deleting items does not query the provider
+        delegate.deleteItem("id3");
+        delegate.deleteItem("id1");
+        assertTrue(delegate.isDeleted("id3"));
+
+        assertEquals(0, delegate.fixDbIndexWithDeletedItems(0));
+        assertEquals(2, delegate.fixDbIndexWithDeletedItems(1));
+        assertEquals(4, delegate.fixDbIndexWithDeletedItems(2));
+        assertEquals(2, delegate.fixIndexWithDeletedItems(4));
+        verify(providerMock);
+    }
+
+    @Test
+    public void testSortedIndexes() {
+        Random random = new Random(42);
+        SortedIndexes indexes = new SortedIndexes();
+        TreeSet<Integer> deleted = new TreeSet<Integer>();
+        for (int i = 0; i < 200; i++) {
+            int value = random.nextInt(1000);
+            indexes.add(value);
+            deleted.add(value);
+            if (i % 3 == 0) {
+                int removed = deleted.first();
+                indexes.remove(removed);
+                deleted.remove(removed);
+            }
+        }
+        indexes.add(-1);
+        for (int index = 0; index < 1200; index++) {
+            // The original linear translation, with the values in ascending
+            // order
+            int dbIndex = index;
+            for (int value : deleted) {
+                if (value <= dbIndex) {
+                    dbIndex++;
+                }
+            }
+            assertEquals(dbIndex, index + indexes.countShifts(index));
+            assertEquals(index, dbIndex - indexes.countLessThan(dbIndex));
+        }
+    }
+}
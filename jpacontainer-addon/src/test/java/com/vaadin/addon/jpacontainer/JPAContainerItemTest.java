@@ -29,8 +29,12 @@ import static org.junit.Assert.fail;
 
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -881,5 +885,179 @@ public class JPAContainerItemTest {
 		assertEquals("foo", item.getEntity().getFirstName());
 	}
 
+	@Test
+	public void testLightweightItem_ReadValues() {
+		entity.setFirstName("Joe");
+		entity.getAddress().setStreet("Street");
+		JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+				container, entity, 125l, true, true);
+
+		assertTrue(lightweightItem.isLightweight());
+		assertFalse(container.getItemRegistry().containsKey(125l));
+		assertEquals("Joe", lightweightItem.getItemProperty("firstName")
+				.getValue());
+		assertEquals("Street",
+				lightweightItem.getItemProperty("address.street").getValue());
+		assertFalse(lightweightItem.getItemProperty("firstName").isReadOnly());
+		assertFalse(lightweightItem.isModified());
+
+		entity.setFirstName("Max");
+		assertEquals("Max", lightweightItem.getItemProperty("firstName")
+				.getValue());
+		assertTrue(lightweightItem.isLightweight());
+	}
+
+	@Test
+	public void testLightweightItem_InflatedWhenBuffered() {
+		JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+				container, entity, 125l, true, true);
+		EntityItemProperty prop = lightweightItem.getItemProperty("firstName");
+
+		lightweightItem.setBuffered(true);
+		assertFalse(lightweightItem.isLightweight());
+		assertTrue(container.getItemRegistry().containsKey(125l));
+
+		// the property obtained before inflation uses the buffered property
+		prop.setValue("foo");
+		assertEquals("foo", prop.getValue());
+		assertFalse("foo".equals(entity.getFirstName()));
+		assertTrue(lightweightItem.isModified());
+
+		lightweightItem.commit();
+		assertEquals("foo", entity.getFirstName());
+	}
+
+	@Test
+	public void testLightweightItem_InflatedWhenValueSet() {
+		JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+				container, entity, 125l, true, true);
+
+		lightweightItem.getItemProperty("firstName").setValue("foo");
+		assertFalse(lightweightItem.isLightweight());
+		assertEquals("foo", entity.getFirstName());
+		assertSame(lightweightItem, modifiedItem);
+		assertEquals("firstName", modifiedPropertyId);
+	}
+
+	@Test
+	public void testLightweightItem_PropertyListenerKeptByContainer() {
+		JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+				container, entity, 125l, true, true);
+		final Property prop = lightweightItem.getItemProperty("firstName");
+		final boolean[] listenerCalled = new boolean[1];
+		Property.ValueChangeListener listener = new Property.ValueChangeListener() {
+
+			public void valueChange(ValueChangeEvent event) {
+				listenerCalled[0] = true;
+			}
+		};
+		((Property.ValueChangeNotifier) prop).addValueChangeListener(listener);
+		assertTrue(lightweightItem.isLightweight());
+		assertFalse(container.getItemRegistry().containsKey(125l));
+		assertEquals(1, container.getLightweightListeners(125l, "firstName").length);
+
+		prop.setValue("foo");
+		assertTrue(listenerCalled[0]);
+
+		((Property.ValueChangeNotifier) prop).removeValueChangeListener(listener);
+		assertTrue(container.getLightweightListeners().isEmpty());
+	}
+
+	@Test
+	public void testLightweightItems_StayLightweightWhenRenderedInTable() {
+		// Like a table, listen to the visible cells of every rendered item
+		final List<Property.ValueChangeEvent> events = new ArrayList<Property.ValueChangeEvent>();
+		Property.ValueChangeListener table = new Property.ValueChangeListener() {
+
+			public void valueChange(ValueChangeEvent event) {
+				events.add(event);
+			}
+		};
+		List<JPAContainerItem<Person>> renderedItems = new ArrayList<JPAContainerItem<Person>>();
+		List<Property.ValueChangeNotifier> cells = new ArrayList<Property.ValueChangeNotifier>();
+		final Person updated = new Person();
+		for (long id = 200; id < 210; id++) {
+			Person p = new Person();
+			p.setId(id);
+			p.setFirstName("Joe");
+			JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+					container, p, id, true, true);
+			renderedItems.add(lightweightItem);
+			for (String propertyId : new String[] { "firstName", "lastName" }) {
+				Property.ValueChangeNotifier cell = (Property.ValueChangeNotifier) lightweightItem
+						.getItemProperty(propertyId);
+				cell.addValueChangeListener(table);
+				cells.add(cell);
+			}
+			if (id == 205) {
+				updated.setId(id);
+				updated.setFirstName("Max");
+			}
+		}
+		for (JPAContainerItem<Person> lightweightItem : renderedItems) {
+			assertTrue(lightweightItem.isLightweight());
+			assertFalse(container.getItemRegistry().containsKey(lightweightItem.getItemId()));
+		}
+
+		// The cells of the updated item are notified
+		container.entityProviderChange(new EntityProviderChangeEvent.EntitiesChangedEvent<Person>() {
+
+			public EntityProvider<Person> getEntityProvider() {
+				return container.getEntityProvider();
+			}
+
+			public Collection<Person> getAffectedEntities() {
+				return Collections.singletonList(updated);
+			}
+
+			public Set<Object> getAddedEntityIds() {
+				return Collections.emptySet();
+			}
+
+			public Set<Object> getUpdatedEntityIds() {
+				return Collections.<Object> singleton(205l);
+			}
+
+			public Set<Object> getRemovedEntityIds() {
+				return Collections.emptySet();
+			}
+		});
+		assertEquals(2, events.size());
+		for (Property.ValueChangeEvent event : events) {
+			EntityItemProperty prop = (EntityItemProperty) event.getProperty();
+			assertEquals(205l, prop.getItem().getItemId());
+			if ("firstName".equals(prop.getPropertyId())) {
+				assertEquals("Max", prop.getValue());
+			}
+		}
+		for (JPAContainerItem<Person> lightweightItem : renderedItems) {
+			assertTrue(lightweightItem.isLightweight());
+		}
+
+		// Like a table, stop listening when the cells are no longer visible
+		for (Property.ValueChangeNotifier cell : cells) {
+			cell.removeValueChangeListener(table);
+		}
+		assertTrue(container.getLightweightListeners().isEmpty());
+	}
+
+	@Test
+	public void testLightweightItem_ItemListenerKeptByContainer() {
+		JPAContainerItem<Person> lightweightItem = new JPAContainerItem<Person>(
+				container, entity, 125l, true, true);
+		Property.ValueChangeListener listener = new Property.ValueChangeListener() {
+
+			public void valueChange(ValueChangeEvent event) {
+			}
+		};
+		lightweightItem.addValueChangeListener(listener);
+		assertTrue(lightweightItem.isLightweight());
+		assertEquals(1, container.getLightweightListeners(125l, "lastName").length);
+
+		lightweightItem.removeValueChangeListener(listener);
+		assertTrue(lightweightItem.isLightweight());
+		assertTrue(container.getLightweightListeners().isEmpty());
+	}
+
 	// TODO Test registering property listeners through item
 }
@@ -40,8 +40,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -376,6 +378,29 @@ public class JPAContainerTest {
         verify(entityProviderMock);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testIndexOfId_IndexedEntityProvider() {
+        IndexedEntityProvider<Person> indexedEntityProviderMock = createMock(IndexedEntityProvider.class);
+        expect(indexedEntityProviderMock.getLazyLoadingDelegate())
+                .andStubReturn(null);
+        expect(
+                indexedEntityProviderMock.getEntityIdentifierIndex(container,
+                        "id4", null, new LinkedList<SortBy>())).andReturn(3);
+        expect(
+                indexedEntityProviderMock.getEntityIdentifierIndex(container,
+                        "id5", null, new LinkedList<SortBy>())).andReturn(-1);
+        replay(indexedEntityProviderMock);
+
+        container.setEntityProvider(indexedEntityProviderMock);
+
+        // No identifiers are fetched one by one
+        assertEquals(3, container.indexOfId("id4"));
+        assertEquals(-1, container.indexOfId("id5"));
+
+        verify(indexedEntityProviderMock);
+    }
+
     @Test
     public void testIndexOfId_Buffered() {
         LinkedList<SortBy> sortby = new LinkedList<SortBy>();
@@ -590,6 +615,69 @@ public class JPAContainerTest {
         verify(batchableEntityProviderMock);
     }
 
+    @Test
+    public void testGetItemIdsRange_WriteThrough() {
+        IndexedEntityProvider<Person> indexedEntityProviderMock = createMock(IndexedEntityProvider.class);
+        expect(
+                indexedEntityProviderMock.getEntityIdentifiers(container, null,
+                        new LinkedList<SortBy>(), 1, 2)).andReturn(
+                Arrays.asList(new Object[] { "id2", "id3" }));
+        replay(indexedEntityProviderMock);
+
+        container.setEntityProvider(indexedEntityProviderMock);
+        container.setWriteThrough(true);
+
+        assertEquals(Arrays.asList("id2", "id3"), container.getItemIds(1, 2));
+
+        verify(indexedEntityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_NotIndexedEntityProvider() {
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 1)).andReturn("id2");
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 2)).andReturn(null);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setWriteThrough(true);
+
+        assertEquals(Arrays.asList("id2"), container.getItemIds(1, 3));
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_Buffered() {
+        List<Object> idList = Arrays.asList(new Object[] { "id1", "id2",
+                "id3", "id4" });
+        expect(
+                batchableEntityProviderMock.getAllEntityIdentifiers(container, null,
+                        new LinkedList<SortBy>())).andStubReturn(idList);
+        expect(batchableEntityProviderMock.containsEntity(container, "id2", null))
+                .andStubReturn(true);
+        for (int i = 0; i < 3; i++) {
+            expect(
+                    batchableEntityProviderMock.getEntityIdentifierAt(
+                            container, null, new LinkedList<SortBy>(), i))
+                    .andReturn(idList.get(i));
+        }
+        replay(batchableEntityProviderMock);
+
+        container.setEntityProvider(batchableEntityProviderMock);
+        container.setWriteThrough(false);
+
+        Object id = container.addEntity(new Person());
+        container.removeItem("id2");
+
+        assertEquals(Arrays.asList(id, "id1", "id3"), container.getItemIds(0, 3));
+
+        verify(batchableEntityProviderMock);
+    }
+
     @Test
     public void testGetItem_Null() {
         assertNull(container.getItem(null));
@@ -641,10 +729,7 @@ public class JPAContainerTest {
                 .andStubReturn(true);
         expect(batchableEntityProviderMock.getEntity(container, "nonExistent"))
                 .andStubReturn(null);
-        expect(
-                batchableEntityProviderMock.getAllEntityIdentifiers(container, null,
-                        Collections.EMPTY_LIST)).andReturn(
-                Collections.EMPTY_LIST);
+        // Deleting an item does not look up its index until it is needed
         replay(batchableEntityProviderMock);
 
         container.setEntityProvider(batchableEntityProviderMock);
@@ -1708,4 +1793,96 @@ public class JPAContainerTest {
         container.refresh();
         assertEquals("Joe", item.getItemProperty("firstName").getValue());
     }
+
+    @Test
+    public void testEntityProviderChange_EntitiesChanged() {
+        final LinkedList<ItemSetChangeEvent> events = new LinkedList<ItemSetChangeEvent>();
+        container.addListener(new ItemSetChangeListener() {
+
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                events.add(event);
+            }
+        });
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+
+        Person p1 = new Person();
+        p1.setId(1l);
+        Person p2 = new Person();
+        p2.setId(2l);
+
+        // Updates do not change the items of an unsorted, unfiltered container
+        container.entityProviderChange(createEntitiesChangedEvent(
+                Collections.<Person> emptyList(),
+                Collections.<Person> singletonList(p1),
+                Collections.emptyList()));
+        assertTrue(events.isEmpty());
+
+        container.entityProviderChange(createEntitiesChangedEvent(
+                Collections.<Person> emptyList(),
+                Collections.<Person> emptyList(),
+                Collections.<Object> singletonList(2l)));
+        assertEquals(1, events.size());
+        assertTrue(events.getFirst() instanceof JPAContainer.ItemRemovedEvent);
+        assertEquals(2l,
+                ((JPAContainer<Person>.ItemRemovedEvent) events.getFirst())
+                        .getItemId());
+
+        events.clear();
+        container.entityProviderChange(createEntitiesChangedEvent(
+                Arrays.asList(p1, p2), Collections.<Person> emptyList(),
+                Collections.emptyList()));
+        assertEquals(1, events.size());
+        assertTrue(events.getFirst() instanceof JPAContainer.ProviderChangedEvent);
+
+        // Updates may move the items of a sorted container
+        events.clear();
+        container.sort(new Object[] { "firstName" }, new boolean[] { true });
+        events.clear();
+        container.entityProviderChange(createEntitiesChangedEvent(
+                Collections.<Person> emptyList(),
+                Collections.<Person> singletonList(p1),
+                Collections.emptyList()));
+        assertEquals(1, events.size());
+        assertTrue(events.getFirst() instanceof JPAContainer.ItemUpdatedEvent);
+
+        verify(entityProviderMock);
+    }
+
+    private EntityProviderChangeEvent.EntitiesChangedEvent<Person> createEntitiesChangedEvent(
+            final List<Person> added, final List<Person> updated,
+            final List<Object> removedIds) {
+        return new EntityProviderChangeEvent.EntitiesChangedEvent<Person>() {
+
+            public EntityProvider<Person> getEntityProvider() {
+                return entityProviderMock;
+            }
+
+            public Collection<Person> getAffectedEntities() {
+                List<Person> entities = new LinkedList<Person>(added);
+                entities.addAll(updated);
+                return entities;
+            }
+
+            public Set<Object> getAddedEntityIds() {
+                return getIds(added);
+            }
+
+            public Set<Object> getUpdatedEntityIds() {
+                return getIds(updated);
+            }
+
+            public Set<Object> getRemovedEntityIds() {
+                return new HashSet<Object>(removedIds);
+            }
+
+            private Set<Object> getIds(List<Person> entities) {
+                Set<Object> ids = new HashSet<Object>();
+                for (Person entity : entities) {
+                    ids.add(entity.getId());
+                }
+                return ids;
+            }
+        };
+    }
 }
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import com.vaadin.data.util.filter.Compare.Equal;
+
+/**
+ * Test case for {@link JoinFilter}.
+ * 
+ * @since 3.2.0
+ */
+public class JoinFilterTest {
+
+    @Test
+    public void testEquals() {
+        JoinFilter filter = new JoinFilter("skills", new Equal("skill", "a"));
+        assertEquals(filter, new JoinFilter("skills", new Equal("skill", "a")));
+        assertEquals(filter.hashCode(), new JoinFilter("skills", new Equal(
+                "skill", "a")).hashCode());
+        assertFalse(filter.equals(new JoinFilter("skills", new Equal("skill",
+                "b"))));
+        assertFalse(filter.equals(new JoinFilter("address", new Equal(
+                "skill", "a"))));
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Compare.Greater;
+import com.vaadin.data.util.filter.Compare.GreaterOrEqual;
+import com.vaadin.data.util.filter.Compare.Less;
+import com.vaadin.data.util.filter.Compare.LessOrEqual;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+
+/**
+ * Test case for {@link FilterOptimizer}.
+ * 
+ * @since 3.2.0
+ */
+public class FilterOptimizerTest {
+
+    private final Filter a = new Equal("firstName", "Joe");
+    private final Filter b = new IsNull("lastName");
+    private final Filter c = new Greater("age", 20);
+
+    @Test
+    public void testOptimize_null() {
+        assertNull(FilterOptimizer.optimize(null));
+        assertNull(FilterOptimizer.canonicalize(null));
+    }
+
+    @Test
+    public void testOptimize_unchangedFilterIsReturned() {
+        Filter filter = new And(a, new Or(b, c));
+        assertSame(filter, FilterOptimizer.optimize(filter));
+        assertSame(a, FilterOptimizer.optimize(a));
+    }
+
+    @Test
+    public void testOptimize_flattensAndRemovesDuplicates() {
+        assertEquals(new And(a, b, c), FilterOptimizer.optimize(new And(a,
+                new And(b, a), new And(c))));
+        assertEquals(new Or(a, b, c), FilterOptimizer.optimize(new Or(
+                new Or(a, b), new Or(b, c))));
+        assertSame(a, FilterOptimizer.optimize(new And(new Or(a), a)));
+    }
+
+    @Test
+    public void testOptimize_removesDoubleNegation() {
+        assertSame(a, FilterOptimizer.optimize(new Not(new Not(a))));
+        assertEquals(new Not(a),
+                FilterOptimizer.optimize(new Not(new Not(new Not(a)))));
+    }
+
+    @Test
+    public void testOptimize_removesTautologies() {
+        assertNull(FilterOptimizer.optimize(new And()));
+        assertNull(FilterOptimizer.optimize(new And(new And(), new And())));
+        assertSame(a, FilterOptimizer.optimize(new And(a, new And())));
+        assertNull(FilterOptimizer.optimize(new Or(a, new And())));
+    }
+
+    @Test
+    public void testOptimize_mergesBounds() {
+        assertEquals(new And(new Between("age", 20, 30), a),
+                FilterOptimizer.optimize(new And(new GreaterOrEqual("age",
+                        20), a, new LessOrEqual("age", 30))));
+        assertEquals(new Greater("age", 25), FilterOptimizer.optimize(new And(
+                new Greater("age", 20), new Greater("age", 25))));
+        assertEquals(new Greater("age", 20), FilterOptimizer.optimize(new And(
+                new GreaterOrEqual("age", 20), new Greater("age", 20))));
+        assertEquals(new And(new Greater("age", 20), new Less("age", 30)),
+                FilterOptimizer.optimize(new And(new Greater("age", 20),
+                        new LessOrEqual("age", 30), new Less("age", 30))));
+        // Values of different types are not compared
+        assertEquals(new And(new Greater("age", 20), new Greater("age", 25L)),
+                FilterOptimizer.optimize(new And(new Greater("age", 20),
+                        new Greater("age", 25L))));
+    }
+
+    @Test
+    public void testOptimize_keepsStringBounds() {
+        // The database collation may order strings differently than Java
+        Filter filter = new And(new Greater("name", "a"), new Greater("name",
+                "B"));
+        assertSame(filter, FilterOptimizer.optimize(filter));
+        filter = new And(new GreaterOrEqual("name", "a"), new LessOrEqual(
+                "name", "B"));
+        assertSame(filter, FilterOptimizer.optimize(filter));
+    }
+
+    @Test
+    public void testOptimize_mergesDateBounds() {
+        Date early = new Date(1000);
+        Date late = new Date(2000);
+        assertEquals(new Less("born", early), FilterOptimizer.optimize(new And(
+                new Less("born", late), new Less("born", early))));
+    }
+
+    @Test
+    public void testOptimize_mergesEqualsIntoIn() {
+        assertEquals(new Or(new In("age", Arrays.asList(1, 2, 3)), a),
+                FilterOptimizer.optimize(new Or(new Equal("age", 1), a,
+                        new In("age", Arrays.asList(2, 3)), new Equal("age",
+                                1))));
+        // Equality to null means IS NULL
+        Filter filter = new Or(new Equal("age", 1), new Equal("age", null));
+        assertSame(filter, FilterOptimizer.optimize(filter));
+    }
+
+    @Test
+    public void testOptimize_joinFilter() {
+        assertEquals(new And(a, new JoinFilter("skills", b, c)),
+                FilterOptimizer.optimize(new And(a, new JoinFilter("skills",
+                        new And(b, c)))));
+    }
+
+    @Test
+    public void testCanonicalize_ordersJunctions() {
+        Filter f1 = FilterOptimizer.canonicalize(new And(a, new Or(b, c)));
+        Filter f2 = FilterOptimizer.canonicalize(new And(new Or(c, b), a));
+        assertEquals(f1, f2);
+        assertEquals(f1.hashCode(), f2.hashCode());
+        assertEquals(f1, FilterOptimizer.canonicalize(f1));
+        assertEquals(new In("age", Arrays.asList(1, 2)), new In("age",
+                Arrays.asList(2, 1)));
+    }
+
+    @Test
+    public void testCanonicalize_ordersFiltersWithSameHashCode() {
+        // "Aa" and "BB" have the same hash code
+        Filter aa = new Like("lastName", "Aa%");
+        Filter bb = new Like("lastName", "BB%");
+        assertEquals(aa.hashCode(), bb.hashCode());
+        assertEquals(FilterOptimizer.canonicalize(new Or(aa, bb)),
+                FilterOptimizer.canonicalize(new Or(bb, aa)));
+        assertEquals(FilterOptimizer.canonicalize(new And(new Not(aa),
+                new Not(bb))), FilterOptimizer.canonicalize(new And(
+                new Not(bb), new Not(aa))));
+    }
+
+    @Test
+    public void testIn_copiesValues() {
+        List<Integer> values = new ArrayList<Integer>(Arrays.asList(1, 2));
+        In in = new In("age", values);
+        values.add(3);
+        assertEquals(new In("age", Arrays.asList(1, 2)), in);
+        assertEquals(2, in.getCollection().size());
+        try {
+            in.getCollection().clear();
+            fail("The values must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+}
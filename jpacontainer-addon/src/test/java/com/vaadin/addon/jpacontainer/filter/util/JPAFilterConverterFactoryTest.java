@@ -0,0 +1,186 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Predicate;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.filter.util.JPAFilterConverterFactory.JPAFilterConverter;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Item;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Compare.Greater;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link JPAFilterConverterFactory}.
+ * 
+ * @since 3.2.0
+ */
+public class JPAFilterConverterFactoryTest {
+
+    private static class FullTextFilter implements Filter {
+
+        @Override
+        public boolean passesFilter(Object itemId, Item item) {
+            return true;
+        }
+
+        @Override
+        public boolean appliesToProperty(Object propertyId) {
+            return false;
+        }
+    }
+
+    private static class PhraseFilter extends FullTextFilter {
+    }
+
+    private static class FullTextConverter implements JPAFilterConverter {
+
+        private final Predicate predicate = createMock(Predicate.class);
+
+        @Override
+        public boolean canConvert(Filter filter) {
+            return filter instanceof FullTextFilter;
+        }
+
+        @Override
+        public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
+                From<X, Y> root) {
+            return predicate;
+        }
+    }
+
+    @Test
+    public void testRegisterConverter() {
+        FullTextConverter converter = new FullTextConverter();
+        JPAFilterConverterFactory.registerConverter(FullTextFilter.class,
+                converter);
+        try {
+            assertSame(converter,
+                    JPAFilterConverterFactory.getConverter(new PhraseFilter()));
+            assertSame(converter.predicate,
+                    JPAFilterConverterFactory.convertFilter(
+                            new FullTextFilter(), null, null));
+            // The values of custom filters are not known, so the filter is
+            // its own shape
+            FullTextFilter filter = new FullTextFilter();
+            List<Object> values = new ArrayList<Object>();
+            assertEquals(Arrays.asList(filter),
+                    JPAFilterConverterFactory.getFilterShape(filter, values));
+            assertEquals(0, values.size());
+        } finally {
+            JPAFilterConverterFactory.unregisterConverter(FullTextFilter.class);
+        }
+        assertNull(JPAFilterConverterFactory.getConverter(new PhraseFilter()));
+        try {
+            JPAFilterConverterFactory.convertFilter(new PhraseFilter(), null,
+                    null);
+            fail("No exception thrown");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testGetConverter_subclassesUseSuperclassConverter() {
+        assertNotNull(JPAFilterConverterFactory.getConverter(new Equal("a",
+                "b")));
+        assertSame(
+                JPAFilterConverterFactory.getConverter(new Equal("a", "b")),
+                JPAFilterConverterFactory.getConverter(new Greater("a", "b")));
+    }
+
+    @Test
+    public void testGetFilterShape_sameShapeDifferentValues() {
+        List<Object> values1 = new ArrayList<Object>();
+        List<Object> values2 = new ArrayList<Object>();
+        Object shape1 = JPAFilterConverterFactory.getFilterShape(new And(
+                new Equal("firstName", "Joe"), new Greater("age", 20),
+                new Not(new Between("salary", 10, 20))), values1);
+        Object shape2 = JPAFilterConverterFactory.getFilterShape(new And(
+                new Equal("firstName", "Bob"), new Greater("age", 30),
+                new Not(new Between("salary", 30, 40))), values2);
+        assertEquals(shape1, shape2);
+        assertEquals(shape1.hashCode(), shape2.hashCode());
+        assertEquals(Arrays.asList((Object) "Joe", 20, 10, 20), values1);
+        assertEquals(Arrays.asList((Object) "Bob", 30, 30, 40), values2);
+    }
+
+    @Test
+    public void testGetFilterShape_simpleStringFilterValueIsPattern() {
+        List<Object> values = new ArrayList<Object>();
+        JPAFilterConverterFactory.getFilterShape(new SimpleStringFilter(
+                "lastName", "sm", true, true), values);
+        assertEquals(Arrays.asList((Object) "sm%"), values);
+        values.clear();
+        JPAFilterConverterFactory.getFilterShape(new SimpleStringFilter(
+                "lastName", "sm", true, false), values);
+        assertEquals(Arrays.asList((Object) "%sm%"), values);
+    }
+
+    @Test
+    public void testGetFilterShape_differentShapes() {
+        List<Object> values = new ArrayList<Object>();
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new Equal("firstName", "Joe"), values).equals(
+                JPAFilterConverterFactory.getFilterShape(new Equal(
+                        "lastName", "Joe"), values)));
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new Equal("age", 1), values).equals(
+                JPAFilterConverterFactory.getFilterShape(new Equal("age",
+                        1L), values)));
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new Equal("age", 1), values).equals(
+                JPAFilterConverterFactory.getFilterShape(new Equal("age",
+                        null), values)));
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new SimpleStringFilter("lastName", "a", true, true), values)
+                .equals(JPAFilterConverterFactory.getFilterShape(
+                        new SimpleStringFilter("lastName", "a", false, true),
+                        values)));
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new In("age", Arrays.asList(1, 2)), values).equals(
+                JPAFilterConverterFactory.getFilterShape(new In("age",
+                        Arrays.asList(1, 2, 3)), values)));
+        assertFalse(JPAFilterConverterFactory.getFilterShape(
+                new JoinFilter("skills", new Equal("skill", "a")), values)
+                .equals(JPAFilterConverterFactory.getFilterShape(
+                        new JoinFilter("manager", new Equal("skill", "a")),
+                        values)));
+    }
+}
@@ -299,6 +299,98 @@ public class ClassMetadataTest {
 		assertEquals("Hello", person.getAddress().getStreet());
 	}
 
+	@Test
+	public void testCachedNestedPropertyAccessors() throws Exception {
+		ClassMetadata<Address_M> addressMetadata = new ClassMetadata<Address_M>(
+				Address_M.class);
+		addressMetadata.addProperties(new PersistentPropertyMetadata("street",
+				String.class, PropertyKind.SIMPLE,
+				Address_M.class.getDeclaredMethod("getStreet"), Address_M.class
+						.getDeclaredMethod("setStreet", String.class)));
+
+		ClassMetadata<Person_M> metadata = new ClassMetadata<Person_M>(
+				Person_M.class);
+		metadata.addProperties(new PersistentPropertyMetadata("address",
+				addressMetadata,
+				PropertyKind.EMBEDDED,
+				Person_M.class.getDeclaredMethod("getAddress"), Person_M.class
+						.getDeclaredMethod("setAddress", Address_M.class)));
+
+		Person_M person = new Person_M();
+		// A null value in the middle of the path gives null
+		assertNull(metadata.getPropertyValue(person, "address.street"));
+		try {
+			metadata.setPropertyValue(person, "address.street", "Hello");
+			fail("No exception thrown");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+
+		person.setAddress(new Address_M());
+		for (int i = 0; i < 3; i++) {
+			String street = "Street " + i;
+			metadata.setPropertyValue(person, "address.street", street);
+			assertEquals(street, person.getAddress().getStreet());
+			assertEquals(street, metadata.getPropertyValue(person,
+					"address.street"));
+		}
+
+		try {
+			metadata.getPropertyValue(person, "address.nonexistent");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testResolvePropertyPath() throws Exception {
+		ClassMetadata<Address_M> addressMetadata = new ClassMetadata<Address_M>(
+				Address_M.class);
+		addressMetadata.addProperties(new PersistentPropertyMetadata("street",
+				String.class, PropertyKind.SIMPLE,
+				Address_M.class.getDeclaredMethod("getStreet"), Address_M.class
+						.getDeclaredMethod("setStreet", String.class)));
+
+		ClassMetadata<Person_M> metadata = new ClassMetadata<Person_M>(
+				Person_M.class);
+		PersistentPropertyMetadata address = new PersistentPropertyMetadata(
+				"address", addressMetadata, PropertyKind.EMBEDDED,
+				Person_M.class.getDeclaredMethod("getAddress"), Person_M.class
+						.getDeclaredMethod("setAddress", Address_M.class));
+		metadata.addProperties(address, new PropertyMetadata(
+				"transientField2", String.class, Person_M.class
+						.getDeclaredMethod("getTransientField2"),
+				Person_M.class.getDeclaredMethod("setTransientField2",
+						String.class)));
+
+		PropertyPath path = PropertyPath.of("address.street");
+		ResolvedPropertyPath resolved = metadata.resolve(path);
+		assertSame(resolved, metadata.resolve(path));
+		assertSame(path, resolved.getPath());
+		assertTrue(resolved.isValid());
+		assertEquals(String.class, resolved.getType());
+		assertSame(address, resolved.getPropertyMetadata(0));
+		assertTrue(resolved.isEmbedded(0));
+		assertFalse(resolved.isEmbedded(1));
+		assertFalse(resolved.isJoinRequired());
+
+		// Plain JavaBean properties of a transient property
+		resolved = metadata.resolve(PropertyPath.of("transientField2.bytes"));
+		assertTrue(resolved.isValid());
+		assertEquals(byte[].class, resolved.getType());
+		assertNull(resolved.getPropertyMetadata(1));
+
+		resolved = metadata.resolve(PropertyPath.of("address.nonexistent"));
+		assertFalse(resolved.isValid());
+		assertNull(resolved.getType());
+
+		Person_M person = new Person_M();
+		person.setAddress(new Address_M());
+		metadata.setPropertyValue(person, path, "Street");
+		assertEquals("Street", metadata.getPropertyValue(person, path));
+	}
+
 	// TODO Add test for equals() and hashCode()
 	@Test
 	public void testEqualsAndHashCode() throws Exception {
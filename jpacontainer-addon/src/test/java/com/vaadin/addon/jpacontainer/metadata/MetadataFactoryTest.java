@@ -16,6 +16,10 @@
 
 package com.vaadin.addon.jpacontainer.metadata;
 
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -23,11 +27,20 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.Id;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -362,4 +375,58 @@ public class MetadataFactoryTest {
         Class<?> type = metadata.getProperty("manyToMany").getType();
         assertEquals(Set.class, type);
     }
+
+    @Test
+    public void testConcurrentFirstRequestsGetSameMetadata() throws Exception {
+        final MetadataFactory newFactory = new MetadataFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EntityClassMetadata<Person_M>>> results = new ArrayList<Future<EntityClassMetadata<Person_M>>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor
+                        .submit(new Callable<EntityClassMetadata<Person_M>>() {
+                            @Override
+                            public EntityClassMetadata<Person_M> call() {
+                                return newFactory
+                                        .getEntityClassMetadata(Person_M.class);
+                            }
+                        }));
+            }
+            EntityClassMetadata<Person_M> metadata = results.get(0).get();
+            for (Future<EntityClassMetadata<Person_M>> result : results) {
+                assertSame(metadata, result.get());
+            }
+            // Referenced classes are published together with the entity
+            assertSame(newFactory.getClassMetadata(Address_M.class,
+                    PersistentPropertyMetadata.AccessType.METHOD),
+                    ((PersistentPropertyMetadata) metadata
+                            .getProperty("address")).getTypeMetadata());
+            assertTrue(metadata.hasIdentifierProperty());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testWarmUp() {
+        MetadataFactory newFactory = new MetadataFactory();
+        EntityType personType = createMock(EntityType.class);
+        expect(personType.getJavaType()).andStubReturn(Person_F.class);
+        EntityType notAnnotatedType = createMock(EntityType.class);
+        expect(notAnnotatedType.getJavaType()).andStubReturn(String.class);
+        Set<EntityType<?>> entities = new HashSet<EntityType<?>>();
+        entities.add(personType);
+        entities.add(notAnnotatedType);
+        Metamodel metamodel = createMock(Metamodel.class);
+        expect(metamodel.getEntities()).andReturn(entities);
+        replay(personType, notAnnotatedType, metamodel);
+
+        assertEquals(1, newFactory.warmUp(metamodel));
+        EntityClassMetadata<Person_F> metadata = newFactory
+                .getEntityClassMetadata(Person_F.class);
+        assertSame(metadata, newFactory.getEntityClassMetadata(Person_F.class));
+        assertEquals("Person_F", metadata.getEntityName());
+        verify(metamodel);
+    }
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+
+import org.hibernate.ejb.Ejb3Configuration;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
+import com.vaadin.addon.jpacontainer.testdata.Name;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Test case for {@link MetamodelMetadataFactory}.
+ * 
+ * @since 3.2.0
+ */
+public class MetamodelMetadataFactoryTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        Ejb3Configuration cfg = new Ejb3Configuration()
+                .setProperty("hibernate.dialect",
+                        "org.hibernate.dialect.HSQLDialect")
+                .setProperty("hibernate.connection.driver_class",
+                        "org.hsqldb.jdbcDriver")
+                .setProperty("hibernate.connection.url",
+                        "jdbc:hsqldb:mem:metamodelmetadata")
+                .setProperty("hibernate.connection.username", "sa")
+                .setProperty("hibernate.connection.password", "")
+                .setProperty("hibernate.hbm2ddl.auto", "create")
+                .addAnnotatedClass(Person.class)
+                .addAnnotatedClass(Address.class)
+                .addAnnotatedClass(EmbeddedIdPerson.class)
+                .addAnnotatedClass(Name.class)
+                .addAnnotatedClass(PersonSkill.class)
+                .addAnnotatedClass(Skill.class);
+        emf = cfg.buildEntityManagerFactory();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        emf.close();
+    }
+
+    private static Map<String, PropertyKind> getPropertyKinds(
+            ClassMetadata<?> metadata) {
+        Map<String, PropertyKind> kinds = new HashMap<String, PropertyKind>();
+        for (PropertyMetadata pm : metadata.getProperties()) {
+            kinds.put(pm.getName(), pm.getPropertyKind());
+        }
+        return kinds;
+    }
+
+    @Test
+    public void testSameMetadataAsAnnotationBasedFactory() {
+        MetadataFactory annotationFactory = new MetadataFactory();
+        MetamodelMetadataFactory factory = new MetamodelMetadataFactory(emf);
+        for (Class<?> entityClass : new Class<?>[] { Person.class,
+                EmbeddedIdPerson.class, PersonSkill.class, Skill.class }) {
+            EntityClassMetadata<?> expected = annotationFactory
+                    .getEntityClassMetadata(entityClass);
+            EntityClassMetadata<?> actual = factory
+                    .getEntityClassMetadata(entityClass);
+            assertEquals(expected.getEntityName(), actual.getEntityName());
+            assertEquals(getPropertyKinds(expected), getPropertyKinds(actual));
+            assertEquals(expected.getPersistentPropertyNames().size(), actual
+                    .getPersistentPropertyNames().size());
+            assertEquals(expected.getIdentifierProperty().getName(), actual
+                    .getIdentifierProperty().getName());
+            assertEquals(expected.hasVersionProperty(),
+                    actual.hasVersionProperty());
+            assertEquals(expected.hasEmbeddedIdentifier(),
+                    actual.hasEmbeddedIdentifier());
+            for (PropertyMetadata pm : expected.getProperties()) {
+                assertEquals(pm.getName(), pm.getType(),
+                        actual.getProperty(pm.getName()).getType());
+            }
+        }
+        EntityClassMetadata<Person> person = factory
+                .getEntityClassMetadata(Person.class);
+        assertEquals("version", person.getVersionProperty().getName());
+        assertSame(factory.getClassMetadata(Address.class,
+                PersistentPropertyMetadata.AccessType.FIELD),
+                ((PersistentPropertyMetadata) person.getProperty("address"))
+                        .getTypeMetadata());
+    }
+
+    @Test
+    public void testReadWriteIndex() throws Exception {
+        MetamodelMetadataFactory factory = new MetamodelMetadataFactory(emf);
+        assertEquals(4, factory.warmUp(emf.getMetamodel()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        factory.writeIndex(out);
+
+        MetamodelMetadataFactory restarted = new MetamodelMetadataFactory(emf);
+        assertTrue(restarted.readIndex(new ByteArrayInputStream(out
+                .toByteArray())));
+        EntityClassMetadata<Person> original = factory
+                .getEntityClassMetadata(Person.class);
+        EntityClassMetadata<Person> restored = restarted
+                .getEntityClassMetadata(Person.class);
+        assertNotSame(original, restored);
+        assertEquals(original, restored);
+
+        Person p = new Person();
+        restored.setPropertyValue(p, "firstName", "Joe");
+        assertEquals("Joe", restored.getPropertyValue(p, "firstName"));
+    }
+
+    @Test
+    public void testIndexOfDifferentPersistenceUnitIsIgnored()
+            throws Exception {
+        MetamodelMetadataFactory factory = new MetamodelMetadataFactory(emf);
+        factory.getEntityClassMetadata(Person.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        factory.writeIndex(out);
+
+        Metamodel metamodel = createMock(Metamodel.class);
+        expect(metamodel.getManagedTypes()).andReturn(
+                Collections.<ManagedType<?>> emptySet());
+        replay(metamodel);
+        MetamodelMetadataFactory other = new MetamodelMetadataFactory(
+                metamodel);
+        assertFalse(other.readIndex(new ByteArrayInputStream(out
+                .toByteArray())));
+    }
+}
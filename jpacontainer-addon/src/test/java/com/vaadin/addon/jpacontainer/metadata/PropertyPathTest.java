@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link PropertyPath}.
+ * 
+ * @since 3.2.0
+ */
+public class PropertyPathTest {
+
+    @Test
+    public void testSimplePath() {
+        PropertyPath path = PropertyPath.of("firstName");
+        assertEquals("firstName", path.getName());
+        assertEquals(1, path.getLength());
+        assertEquals("firstName", path.getFirst());
+        assertEquals("firstName", path.getLast());
+        assertFalse(path.isNested());
+        assertNull(path.getParent());
+        assertNull(path.getRest());
+    }
+
+    @Test
+    public void testNestedPath() {
+        PropertyPath path = PropertyPath.of("address.city.name");
+        assertEquals(3, path.getLength());
+        assertEquals(Arrays.asList("address", "city", "name"),
+                path.getParts());
+        assertEquals("city", path.getPart(1));
+        assertTrue(path.isNested());
+        assertSame(PropertyPath.of("address.city"), path.getParent());
+        assertSame(PropertyPath.of("city.name"), path.getRest());
+        assertEquals("address.city.name", path.toString());
+    }
+
+    @Test
+    public void testPathsAreInterned() {
+        PropertyPath path = PropertyPath.of("address.street");
+        assertSame(path, PropertyPath.of(new StringBuilder("address.")
+                .append("street")));
+        assertSame(path, PropertyPath.of(path));
+        assertEquals(path.hashCode(), "address.street".hashCode());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        PropertyPath path = PropertyPath.of("address.street");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(path);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bos.toByteArray()));
+        assertSame(path, ois.readObject());
+    }
+}
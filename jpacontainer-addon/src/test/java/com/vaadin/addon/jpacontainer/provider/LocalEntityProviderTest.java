@@ -16,15 +16,19 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
 
 public class LocalEntityProviderTest {
 
@@ -67,4 +71,37 @@ public class LocalEntityProviderTest {
         assertEquals(4, newSortBys.size());
     }
 
+    @Test
+    public void testEntityCountChangedIsOnlyFiredThroughExecutor() {
+        final List<Integer> firedCounts = new ArrayList<Integer>();
+        LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(
+                Person.class) {
+
+            @Override
+            protected void fireEntityCountChanged(
+                    EntityContainer<Person> container, Filter filter,
+                    int count) {
+                firedCounts.add(count);
+            }
+        };
+        // Without an executor, the count is only picked up later
+        provider.entityCountChanged(null, null, 5);
+        assertTrue(firedCounts.isEmpty());
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        provider.setEntityCountChangeExecutor(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        provider.entityCountChanged(null, null, 6);
+        assertTrue(firedCounts.isEmpty());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(1, firedCounts.size());
+        assertEquals(6, firedCounts.get(0).intValue());
+    }
+
 }
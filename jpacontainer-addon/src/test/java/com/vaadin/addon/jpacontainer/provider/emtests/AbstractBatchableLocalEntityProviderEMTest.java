@@ -16,8 +16,20 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.BatchableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
 
@@ -44,5 +56,78 @@ public abstract class AbstractBatchableLocalEntityProviderEMTest extends Abstrac
 		provider.setTransactionsHandledByProvider(true);
 		return provider;
 	}
-	
+
+	@Test
+	public void testBatchUpdate_BatchMode() {
+		final Person updatedPerson = DataGenerator.getTestDataSortedByName().get(1).clone();
+		updatedPerson.setFirstName("Another changed first name");
+		final Person removedPerson = DataGenerator.getTestDataSortedByName().get(2).clone();
+		final Object[] addedPersonIds = new Object[3];
+
+		BatchableLocalEntityProvider<Person> provider = (BatchableLocalEntityProvider<Person>) entityProvider;
+		provider.setBatchSize(2);
+		provider.batchUpdate(new BatchableEntityProvider.BatchUpdateCallback<Person>() {
+
+			public void batchUpdate(MutableEntityProvider<Person> batchEnabledEntityProvider) {
+				for (int i = 0; i < addedPersonIds.length; i++) {
+					Person person = new Person();
+					person.setFirstName("Batch");
+					person.setLastName("Person " + i);
+					addedPersonIds[i] = batchEnabledEntityProvider.addEntity(person).getId();
+				}
+				batchEnabledEntityProvider.removeEntity(addedPersonIds[1]);
+				batchEnabledEntityProvider.removeEntity(removedPerson.getId());
+				batchEnabledEntityProvider.updateEntity(updatedPerson);
+			}
+		});
+
+		assertEquals(updatedPerson, entityProvider.getEntity(container, updatedPerson.getId()));
+		assertFalse(entityProvider.containsEntity(container, removedPerson.getId(), null));
+		assertTrue(entityProvider.containsEntity(container, addedPersonIds[0], null));
+		assertFalse(entityProvider.containsEntity(container, addedPersonIds[1], null));
+		assertEquals("Person 2", entityProvider.getEntity(container, addedPersonIds[2]).getLastName());
+	}
+
+	@Test
+	public void testBatchUpdate_EntitiesChangedEvent() {
+		final Person updatedPerson = DataGenerator.getTestDataSortedByName().get(1).clone();
+		updatedPerson.setFirstName("Another changed first name");
+		final Person removedPerson = DataGenerator.getTestDataSortedByName().get(2).clone();
+		final Object[] addedPersonIds = new Object[2];
+		final EntityProviderChangeEvent.EntitiesChangedEvent<?>[] events = new EntityProviderChangeEvent.EntitiesChangedEvent<?>[1];
+
+		BatchableLocalEntityProvider<Person> provider = (BatchableLocalEntityProvider<Person>) entityProvider;
+		EntityProviderChangeListener<Person> listener = new EntityProviderChangeListener<Person>() {
+
+			public void entityProviderChange(EntityProviderChangeEvent<Person> event) {
+				events[0] = (EntityProviderChangeEvent.EntitiesChangedEvent<Person>) event;
+			}
+		};
+		provider.addListener(listener);
+		provider.batchUpdate(new BatchableEntityProvider.BatchUpdateCallback<Person>() {
+
+			public void batchUpdate(MutableEntityProvider<Person> batchEnabledEntityProvider) {
+				for (int i = 0; i < addedPersonIds.length; i++) {
+					Person person = new Person();
+					person.setFirstName("Batch");
+					person.setLastName("Person " + i);
+					addedPersonIds[i] = batchEnabledEntityProvider.addEntity(person).getId();
+				}
+				batchEnabledEntityProvider.updateEntity(updatedPerson);
+				batchEnabledEntityProvider.updateEntity(updatedPerson);
+				batchEnabledEntityProvider.removeEntity(addedPersonIds[1]);
+				batchEnabledEntityProvider.removeEntity(removedPerson.getId());
+			}
+		});
+		provider.removeListener(listener);
+
+		assertNotNull(events[0]);
+		assertEquals(1, events[0].getAddedEntityIds().size());
+		assertTrue(events[0].getAddedEntityIds().contains(addedPersonIds[0]));
+		assertEquals(1, events[0].getUpdatedEntityIds().size());
+		assertTrue(events[0].getUpdatedEntityIds().contains(updatedPerson.getId()));
+		assertEquals(1, events[0].getRemovedEntityIds().size());
+		assertTrue(events[0].getRemovedEntityIds().contains(removedPerson.getId()));
+		assertEquals(2, events[0].getAffectedEntities().size());
+	}
 }
@@ -16,10 +16,33 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+import com.vaadin.addon.jpacontainer.CachingEntityProvider;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.SharedQueryCache;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.ConcurrentLruCache;
 
 /**
  * Base class for the {@link CachingLocalEntityProvider} Entity Manager tests.
@@ -49,5 +72,243 @@ public abstract class AbstractCachingLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@Test
+	public void testGetEntityIdentifierAt_FullRowLoading() {
+		System.out.println("testGetEntityIdentifierAt_FullRowLoading");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		provider.setFullRowLoadingEnabled(true);
+		// Entities loaded by the page queries have uninitialized lazy
+		// collections, which cannot be cloned once detached
+		provider.setCloneCachedEntities(false);
+		doTestGetEntityIdentifierAt(DataGenerator.getTestDataSortedByName(), null, DataGenerator.getSortByName());
+		doTestGetEntityIdentifierAtBackwards(DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+				DataGenerator.getSortByLastNameAndStreet());
+		for (Person p : DataGenerator.getTestDataSortedByLastNameAndStreet().subList(0, 100)) {
+			assertEquals(p, provider.getEntity(null, p.getId()));
+		}
+	}
+
+	@Test
+	public void testCacheStatistics() {
+		System.out.println("testCacheStatistics");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		provider.setCacheFactory(new ConcurrentLruCache.Factory(true));
+		provider.setCloneCachedEntities(false);
+		CacheStatistics statistics = provider.getEntityCacheStatistics();
+		statistics.reset();
+		Person p = DataGenerator.getTestDataSortedByPrimaryKey().get(0);
+		assertEquals(p, provider.getEntity(null, p.getId()));
+		assertEquals(p, provider.getEntity(null, p.getId()));
+		assertEquals(1, statistics.getMissCount());
+		assertEquals(1, statistics.getHitCount());
+		provider.flush();
+		assertEquals(p, provider.getEntity(null, p.getId()));
+		assertEquals(2, statistics.getMissCount());
+	}
+
+	@Test
+	public void testSharedQueryCache() throws Exception {
+		System.out.println("testSharedQueryCache");
+		SharedQueryCache shared = new SharedQueryCache(100);
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		CachingLocalEntityProvider<Person> other = new CachingLocalEntityProvider<Person>(Person.class,
+				getEntityManager());
+		provider.setSharedQueryCache(shared);
+		other.setSharedQueryCache(shared);
+		List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+
+		assertEquals(testData.size(), provider.getEntityCount(container, DataGenerator.getTestFilter()));
+		assertEquals(testData.get(0).getId(), provider.getEntityIdentifierAt(container,
+				DataGenerator.getTestFilter(), DataGenerator.getSortByName(), 0));
+		assertEquals(0, shared.getStatistics().getHitCount());
+		assertEquals(2, shared.getStatistics().getMissCount());
+
+		// The other provider does not need to run any queries
+		assertEquals(testData.size(), other.getEntityCount(container, DataGenerator.getTestFilter()));
+		for (int i = 0; i < testData.size(); i++) {
+			assertEquals(testData.get(i).getId(), other.getEntityIdentifierAt(container,
+					DataGenerator.getTestFilter(), DataGenerator.getSortByName(), i));
+		}
+		assertEquals(2, shared.getStatistics().getHitCount());
+		assertEquals(2, shared.getStatistics().getMissCount());
+
+		shared.invalidate(Person.class);
+		other.flush();
+		assertEquals(testData.size(), other.getEntityCount(container, DataGenerator.getTestFilter()));
+		assertEquals(2, shared.getStatistics().getHitCount());
+		assertEquals(3, shared.getStatistics().getMissCount());
+	}
+
+	@Test
+	public void testAdaptiveChunking() {
+		System.out.println("testAdaptiveChunking");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setChunkSize(5);
+		provider.setMaxChunkSize(40);
+		provider.setAdaptiveChunkingEnabled(true);
+		provider.setMaxSortByCacheSize(1);
+		provider.setEntityCacheMaxSize(60);
+		List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+
+		// Scroll forwards, backwards and jump around
+		for (int i = 0; i < testData.size(); i++) {
+			assertEquals(testData.get(i).getId(), provider.getEntityIdentifierAt(container,
+					DataGenerator.getTestFilter(), DataGenerator.getSortByName(), i));
+		}
+		for (int i = testData.size() - 1; i >= 0; i--) {
+			assertEquals(testData.get(i).getId(), provider.getEntityIdentifierAt(container,
+					DataGenerator.getTestFilter(), DataGenerator.getSortByName(), i));
+		}
+		for (int i = 0; i < testData.size(); i += 7) {
+			int index = (i * 31) % testData.size();
+			assertEquals(testData.get(index).getId(), provider.getEntityIdentifierAt(container,
+					DataGenerator.getTestFilter(), DataGenerator.getSortByName(), index));
+		}
+
+		// Walk through the list with next and previous
+		Object id = provider.getFirstEntityIdentifier(container, DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName());
+		for (int i = 0; i < testData.size(); i++) {
+			assertEquals(testData.get(i).getId(), id);
+			id = provider.getNextEntityIdentifier(container, id, DataGenerator.getTestFilter(),
+					DataGenerator.getSortByName());
+		}
+		assertNull(id);
+		id = testData.get(testData.size() - 1).getId();
+		for (int i = testData.size() - 1; i >= 0; i--) {
+			assertEquals(testData.get(i).getId(), id);
+			id = provider.getPreviousEntityIdentifier(container, id, DataGenerator.getTestFilter(),
+					DataGenerator.getSortByName());
+		}
+		assertNull(id);
+	}
+
+	@Test
+	public void testGetNextAndPreviousEntity_CachedSortKeys() {
+		System.out.println("testGetNextAndPreviousEntity_CachedSortKeys");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setChunkSize(5);
+		List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+		CacheStatistics statistics = provider.getEntityCacheStatistics();
+		statistics.reset();
+
+		// Only the entity the walk starts from is loaded, the following
+		// chunks are fetched using the sort keys of the previous chunk
+		Object id = testData.get(0).getId();
+		for (int i = 0; i < testData.size(); i++) {
+			assertEquals(testData.get(i).getId(), id);
+			id = provider.getNextEntityIdentifier(container, id, DataGenerator.getTestFilter(),
+					DataGenerator.getSortByName());
+		}
+		assertNull(id);
+		assertEquals(0, statistics.getHitCount());
+		assertEquals(2, statistics.getMissCount());
+
+		provider.flush();
+		statistics.reset();
+		id = testData.get(testData.size() - 1).getId();
+		for (int i = testData.size() - 1; i >= 0; i--) {
+			assertEquals(testData.get(i).getId(), id);
+			id = provider.getPreviousEntityIdentifier(container, id, DataGenerator.getTestFilter(),
+					DataGenerator.getSortByName());
+		}
+		assertNull(id);
+		assertEquals(0, statistics.getHitCount());
+		assertEquals(2, statistics.getMissCount());
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		System.out.println("testPrefetch");
+		final List<EntityManager> prefetchEntityManagers = new ArrayList<EntityManager>();
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setCloneCachedEntities(false);
+		provider.setChunkSize(10);
+		provider.setPrefetchThreshold(3);
+		// Run the prefetches right away to make the test deterministic
+		provider.setPrefetchExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		provider.setPrefetchEntityManagerProvider(new EntityManagerProvider() {
+
+			@Override
+			public EntityManager getEntityManager() {
+				try {
+					EntityManager em = AbstractCachingLocalEntityProviderEMTest.this.getEntityManager()
+							.getEntityManagerFactory().createEntityManager();
+					prefetchEntityManagers.add(em);
+					return em;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+		assertEquals(testData.size(), provider.getEntityCount(container, DataGenerator.getTestFilter()));
+		doTestGetEntityIdentifierAt(testData, DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+
+		// The entities of the prefetched chunks are already in the cache
+		provider.getEntityCacheStatistics().reset();
+		for (int i = 10; i < testData.size(); i++) {
+			assertEquals(testData.get(i).getId(), provider.getEntity(container, testData.get(i).getId()).getId());
+		}
+		assertEquals(0, provider.getEntityCacheStatistics().getMissCount());
+
+		// Every prefetch closes its entity manager
+		assertFalse(prefetchEntityManagers.isEmpty());
+		for (EntityManager em : prefetchEntityManagers) {
+			assertFalse(em.isOpen());
+		}
+	}
+
+	@Test
+	public void testPrefetch_DefaultExecutorShutDownWhenTurnedOff() throws Exception {
+		System.out.println("testPrefetch_DefaultExecutorShutDownWhenTurnedOff");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setPrefetchEntityManagerProvider(new EntityManagerProvider() {
+
+			@Override
+			public EntityManager getEntityManager() {
+				throw new UnsupportedOperationException();
+			}
+		});
+		ExecutorService executor = (ExecutorService) provider.getPrefetchExecutor();
+		assertSame(executor, provider.getPrefetchExecutor());
+		assertFalse(executor.isShutdown());
+
+		provider.setPrefetchEntityManagerProvider(null);
+		assertTrue(executor.isShutdown());
+		assertNotSame(executor, provider.getPrefetchExecutor());
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_FullRowLoading_KeysetPagination() {
+		System.out.println("testGetEntityIdentifierAt_FullRowLoading_KeysetPagination");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		provider.setFullRowLoadingEnabled(true);
+		provider.setCloneCachedEntities(false);
+		((LocalEntityProvider<Person>) entityProvider).setKeysetPaginationEnabled(true);
+		doTestGetEntityIdentifierAt(DataGenerator.getFilteredTestDataSortedByName(), DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName());
+		for (Person p : DataGenerator.getFilteredTestDataSortedByName()) {
+			assertEquals(p, provider.getEntity(null, p.getId()));
+		}
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_FullRowLoading_EmbeddedId() {
+		System.out.println("testGetEntityIdentifierAt_FullRowLoading_EmbeddedId");
+		CachingEntityProvider<EmbeddedIdPerson> provider = (CachingEntityProvider<EmbeddedIdPerson>) entityProvider_EmbeddedId;
+		provider.setFullRowLoadingEnabled(true);
+		doTestGetEntityIdentifierAt_EmbeddedId(DataGenerator.getTestDataEmbeddedIdSortedByName(), null, null);
+		for (EmbeddedIdPerson p : DataGenerator.getTestDataEmbeddedIdSortedByName()) {
+			assertEquals(p, provider.getEntity(null, p.getName()));
+		}
+	}
+
 	// TODO Add some test cases that try out the caching features as well
 }
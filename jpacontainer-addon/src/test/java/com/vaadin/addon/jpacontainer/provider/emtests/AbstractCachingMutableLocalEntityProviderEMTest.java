@@ -16,10 +16,27 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CacheStatistics;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.SharedQueryCache;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Compare.Greater;
 
 /**
  * Base class for the {@link CachingMutableLocalEntityProvider} Entity Manager tests.
@@ -51,5 +68,257 @@ public abstract class AbstractCachingMutableLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	/**
+	 * Loads the identifiers at positions <code>from</code> to <code>to</code>
+	 * (exclusive) into the cache, using full row loading so that the entity
+	 * cache contains the sort keys needed to update the cached lists in
+	 * memory. The persistence context is cleared first, so that the cached
+	 * entities are not the instances of the test data.
+	 */
+	private CachingMutableLocalEntityProvider<Person> loadIdentifiers(Filter filter, List<SortBy> sortBy, int from,
+			int to) throws Exception {
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setFullRowLoadingEnabled(true);
+		getEntityManager().clear();
+		provider.getEntityCount(container, filter);
+		for (int i = from; i < to; i++) {
+			provider.getEntityIdentifierAt(container, filter, sortBy, i);
+		}
+		return provider;
+	}
+
+	/**
+	 * Checks that the cached identifiers and count match the database, and
+	 * whether they were served from the cache.
+	 */
+	private void assertCacheMatchesDatabase(CachingMutableLocalEntityProvider<Person> provider, Filter filter,
+			List<SortBy> sortBy, int from, int to, boolean fromCache) throws Exception {
+		LocalEntityProvider<Person> uncached = new LocalEntityProvider<Person>(Person.class, getEntityManager());
+		CacheStatistics statistics = provider.getIdentifierCacheStatistics();
+		statistics.reset();
+		int count = uncached.getEntityCount(container, filter);
+		assertEquals(count, provider.getEntityCount(container, filter));
+		for (int i = from; i < Math.min(to, count); i++) {
+			assertEquals(uncached.getEntityIdentifierAt(container, filter, sortBy, i),
+					provider.getEntityIdentifierAt(container, filter, sortBy, i));
+		}
+		if (fromCache) {
+			assertEquals(0, statistics.getMissCount());
+		} else {
+			assertTrue(statistics.getMissCount() > 0);
+		}
+	}
+
+	/**
+	 * Gets the test data instance of the person at position <code>index</code>
+	 * in the database.
+	 */
+	private Person getTestPersonAt(Filter filter, List<SortBy> sortBy, int index) throws Exception {
+		Object id = new LocalEntityProvider<Person>(Person.class, getEntityManager()).getEntityIdentifierAt(container,
+				filter, sortBy, index);
+		for (Person p : DataGenerator.getTestDataSortedByPrimaryKey()) {
+			if (p.getId().equals(id)) {
+				return p;
+			}
+		}
+		throw new IllegalArgumentException("No person at " + index);
+	}
+
+	/**
+	 * Sets the <code>primitiveDouble</code> property of every person to its
+	 * identifier, to have a numeric property to sort and filter by.
+	 */
+	private void setPrimitiveDoublesToIdentifiers() throws Exception {
+		getEntityManager().getTransaction().begin();
+		getEntityManager().createQuery("UPDATE Person p SET p.primitiveDouble = p.id").executeUpdate();
+		getEntityManager().getTransaction().commit();
+	}
+
+	/**
+	 * Gets the <code>primitiveDouble</code> property of the person at
+	 * position <code>index</code>, as set by
+	 * {@link #setPrimitiveDoublesToIdentifiers()}.
+	 */
+	private double getPrimitiveDoubleAt(List<SortBy> sortBy, int index) throws Exception {
+		return ((Long) getTestPersonAt(null, sortBy, index).getId()).doubleValue();
+	}
+
+	private static List<SortBy> getSortByPrimitiveDouble() {
+		return Arrays.asList(new SortBy("primitiveDouble", true));
+	}
+
+	@Test
+	public void testUpdateEntity_MaintainsCachedIdentifiers() throws Exception {
+		System.out.println("testUpdateEntity_MaintainsCachedIdentifiers");
+		setPrimitiveDoublesToIdentifiers();
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(null, sortBy, 0, 300);
+		// Move a person from the beginning to the middle of the cached list
+		Person p = getTestPersonAt(null, sortBy, 10);
+		p.setPrimitiveDouble(getPrimitiveDoubleAt(sortBy, 200) + 0.5);
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, null, sortBy, 0, 300, true);
+	}
+
+	@Test
+	public void testUpdateEntity_MaintainsCachedIdentifiersAfterOffset() throws Exception {
+		System.out.println("testUpdateEntity_MaintainsCachedIdentifiersAfterOffset");
+		setPrimitiveDoublesToIdentifiers();
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		// The old state of the person must be in the entity cache
+		loadIdentifiers(null, sortBy, 0, 20);
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(null, sortBy, 350, 500);
+		// Move a person from before the cached list into it
+		Person p = getTestPersonAt(null, sortBy, 10);
+		p.setPrimitiveDouble(getPrimitiveDoubleAt(sortBy, 450) + 0.5);
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, null, sortBy, 350, 500, true);
+	}
+
+	@Test
+	public void testUpdateEntity_MaintainsFilteredCount() throws Exception {
+		System.out.println("testUpdateEntity_MaintainsFilteredCount");
+		setPrimitiveDoublesToIdentifiers();
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		int count = entityProvider.getEntityCount(container, null);
+		Filter filter = new Greater("primitiveDouble", getPrimitiveDoubleAt(sortBy, count / 2));
+		// The old state of the persons must be in the entity cache
+		loadIdentifiers(null, sortBy, 0, 20);
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(filter, sortBy, 0, 100);
+		// Move a person out of the filter
+		Person p = getTestPersonAt(filter, sortBy, 5);
+		p.setPrimitiveDouble(0.5);
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, filter, sortBy, 0, 100, true);
+		// ... and another one into it
+		p = getTestPersonAt(null, sortBy, 1);
+		p.setPrimitiveDouble(getPrimitiveDoubleAt(sortBy, count - 1) + 0.5);
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, filter, sortBy, 0, 100, true);
+	}
+
+	@Test
+	public void testUpdateEntity_DiscardsIdentifiersSortedByStrings() throws Exception {
+		System.out.println("testUpdateEntity_DiscardsIdentifiersSortedByStrings");
+		// The database collation may order strings differently than Java
+		List<SortBy> sortBy = DataGenerator.getSortByLastNameAndStreet();
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(null, sortBy, 0, 300);
+		Person p = DataGenerator.getTestDataSortedByLastNameAndStreet().get(10);
+		p.setLastName(DataGenerator.getTestDataSortedByLastNameAndStreet().get(200).getLastName());
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, null, sortBy, 0, 300, false);
+	}
+
+	@Test
+	public void testUpdateEntity_DiscardsStringFilteredCount() throws Exception {
+		System.out.println("testUpdateEntity_DiscardsStringFilteredCount");
+		// Like filters may be case insensitive in the database
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		loadIdentifiers(null, sortBy, 0, 20);
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(filter, sortBy, 0, 100);
+		Person p = getTestPersonAt(filter, sortBy, 5);
+		p.setLastName("Anderson");
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, filter, sortBy, 0, 100, false);
+	}
+
+	@Test
+	public void testUpdateEntity_DiscardsEntityReferenceFilteredCount() throws Exception {
+		System.out.println("testUpdateEntity_DiscardsEntityReferenceFilteredCount");
+		// Referenced entities are compared by identity in memory
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		Person manager = getTestPersonAt(null, sortBy, 0);
+		Filter filter = new Equal("manager", manager);
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(filter, sortBy, 0, 100);
+		loadIdentifiers(null, sortBy, 0, 20);
+		Person p = getTestPersonAt(null, sortBy, 5);
+		p.setManager(manager);
+		provider.updateEntity(p);
+		assertCacheMatchesDatabase(provider, filter, sortBy, 0, 100, false);
+	}
+
+	@Test
+	public void testSharedQueryCache_InvalidatedByChanges() throws Exception {
+		System.out.println("testSharedQueryCache_InvalidatedByChanges");
+		SharedQueryCache shared = new SharedQueryCache(100);
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setSharedQueryCache(shared);
+		int count = provider.getEntityCount(container, null);
+
+		provider.removeEntity(DataGenerator.getTestDataSortedByName().get(0).getId());
+		CachingMutableLocalEntityProvider<Person> other = new CachingMutableLocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		other.setSharedQueryCache(shared);
+		assertEquals(count - 1, other.getEntityCount(container, null));
+		assertEquals(0, shared.getStatistics().getHitCount());
+	}
+
+	@Test
+	public void testSharedQueryCache_NotUsedUntilOuterTransactionCompletes() throws Exception {
+		System.out.println("testSharedQueryCache_NotUsedUntilOuterTransactionCompletes");
+		SharedQueryCache shared = new SharedQueryCache(100);
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setSharedQueryCache(shared);
+		int count = provider.getEntityCount(container, null);
+
+		getEntityManager().getTransaction().begin();
+		try {
+			provider.removeEntity(DataGenerator.getTestDataSortedByName().get(0).getId());
+			CachingMutableLocalEntityProvider<Person> other = new CachingMutableLocalEntityProvider<Person>(
+					Person.class, getEntityManager());
+			other.setSharedQueryCache(shared);
+			// The uncommitted count must not be stored in the shared cache
+			assertEquals(count - 1, other.getEntityCount(container, null));
+		} finally {
+			getEntityManager().getTransaction().rollback();
+		}
+		getEntityManager().clear();
+
+		CachingMutableLocalEntityProvider<Person> third = new CachingMutableLocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		third.setSharedQueryCache(shared);
+		assertEquals(count, third.getEntityCount(container, null));
+		assertEquals(0, shared.getStatistics().getHitCount());
+		assertEquals(count, third.getEntityCount(container, null));
+		third.flush();
+		assertEquals(count, third.getEntityCount(container, null));
+		assertEquals(1, shared.getStatistics().getHitCount());
+	}
+
+	@Test
+	public void testSharedQueryCache_NotUsedWithExternalTransactions() throws Exception {
+		System.out.println("testSharedQueryCache_NotUsedWithExternalTransactions");
+		SharedQueryCache shared = new SharedQueryCache(100);
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setSharedQueryCache(shared);
+		provider.setTransactionsHandledByProvider(false);
+		provider.getEntityCount(container, null);
+		provider.flush();
+		provider.getEntityCount(container, null);
+		assertEquals(0, shared.getStatistics().getHitCount());
+		assertEquals(0, shared.getStatistics().getMissCount());
+	}
+
+	@Test
+	public void testAddAndRemoveEntity_MaintainsCachedIdentifiers() throws Exception {
+		System.out.println("testAddAndRemoveEntity_MaintainsCachedIdentifiers");
+		setPrimitiveDoublesToIdentifiers();
+		List<SortBy> sortBy = getSortByPrimitiveDouble();
+		CachingMutableLocalEntityProvider<Person> provider = loadIdentifiers(null, sortBy, 0, 300);
+		Person p = new Person();
+		p.setFirstName("Hello");
+		p.setLastName("World");
+		p.setDateOfBirth(java.sql.Date.valueOf("2000-06-02"));
+		p.setPrimitiveDouble(getPrimitiveDoubleAt(sortBy, 100) + 0.5);
+		p.setAddress(new Address());
+		p.getAddress().setStreet("Street");
+		p.getAddress().setPostalCode("Postal Code");
+		p.getAddress().setPostOffice("Post Office");
+		provider.addEntity(p);
+		assertCacheMatchesDatabase(provider, null, sortBy, 0, 300, true);
+
+		provider.removeEntity(getTestPersonAt(null, sortBy, 50).getId());
+		assertCacheMatchesDatabase(provider, null, sortBy, 0, 300, true);
+	}
 }
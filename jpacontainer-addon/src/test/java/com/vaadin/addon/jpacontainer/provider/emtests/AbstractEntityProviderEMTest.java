@@ -23,6 +23,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,10 +46,13 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.IndexedEntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
@@ -145,6 +150,27 @@ public abstract class AbstractEntityProviderEMTest {
         }
     }
 
+    protected void doTestGetEntities(final List<Person> testData) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Person p : testData) {
+            ids.add(p.getId());
+        }
+        ids.add(-1L);
+        Map<Object, Person> returned = entityProvider.getEntities(null, ids);
+        assertEquals(testData.size(), returned.size());
+        int i = 0;
+        for (Map.Entry<Object, Person> entry : returned.entrySet()) {
+            assertEquals(testData.get(i).getId(), entry.getKey());
+            assertEquals(testData.get(i), entry.getValue());
+            i++;
+        }
+        // Make sure the entities are detached
+        Person p = returned.get(testData.get(0).getId());
+        p.setFirstName("Different firstname");
+        assertFalse(p.getFirstName().equals(
+                entityProvider.getEntity(null, p.getId()).getFirstName()));
+    }
+
     protected void doTestGetEntity_EmbeddedId(
             final List<EmbeddedIdPerson> testData) {
         for (EmbeddedIdPerson p : testData) {
@@ -293,6 +319,21 @@ public abstract class AbstractEntityProviderEMTest {
         }
     }
 
+    protected void doTestGetEntityIdentifiers(final List<Person> testData,
+            final Filter filter, final List<SortBy> sortBy, final int count) {
+        IndexedEntityProvider<Person> provider = (IndexedEntityProvider<Person>) entityProvider;
+        for (int i = 0; i < testData.size(); i += count) {
+            List<Object> ids = provider.getEntityIdentifiers(container,
+                    filter, sortBy, i, count);
+            assertEquals(Math.min(count, testData.size() - i), ids.size());
+            for (int j = 0; j < ids.size(); j++) {
+                assertEquals(testData.get(i + j).getId(), ids.get(j));
+            }
+        }
+        assertTrue(provider.getEntityIdentifiers(container, filter, sortBy,
+                testData.size(), count).isEmpty());
+    }
+
     protected void doTestGetEntityIdentifierAt_EmbeddedId(
             final List<EmbeddedIdPerson> testData, final Filter filter,
             final List<SortBy> sortBy) {
@@ -305,6 +346,28 @@ public abstract class AbstractEntityProviderEMTest {
                 sortBy, testData.size()));
     }
 
+    protected void doTestGetEntityIdentifierIndex(final List<Person> testData,
+            final Filter filter, final List<SortBy> sortBy) {
+        IndexedEntityProvider<Person> provider = (IndexedEntityProvider<Person>) entityProvider;
+        for (int i = 0; i < testData.size(); i += 7) {
+            assertEquals(i, provider.getEntityIdentifierIndex(container,
+                    testData.get(i).getId(), filter, sortBy));
+        }
+        for (Person p : DataGenerator.getTestDataSortedByPrimaryKey()) {
+            if (!testData.contains(p)) {
+                assertEquals(-1, provider.getEntityIdentifierIndex(container,
+                        p.getId(), filter, sortBy));
+                break;
+            }
+        }
+        // Now from the identifiers that have been fetched, if cached
+        doTestGetEntityIdentifierAt(testData, filter, sortBy);
+        for (int i = 0; i < testData.size(); i += 7) {
+            assertEquals(i, provider.getEntityIdentifierIndex(container,
+                    testData.get(i).getId(), filter, sortBy));
+        }
+    }
+
     protected void doTestGetEntityIdentifierAtBackwards_EmbeddedId(
             final List<EmbeddedIdPerson> testData, final Filter filter,
             final List<SortBy> sortBy) {
@@ -323,6 +386,15 @@ public abstract class AbstractEntityProviderEMTest {
         doTestGetEntity(DataGenerator.getTestDataSortedByName());
     }
 
+    @Test
+    public void testGetEntities() {
+        System.out.println("testGetEntities");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setMaxEntityIdsPerQuery(40);
+        doTestGetEntities(DataGenerator.getTestDataSortedByName().subList(0,
+                150));
+    }
+
     @Test
     public void testGetEntity_EmbeddedId() {
         System.out.println("testGetEntity_EmbeddedId");
@@ -493,6 +565,196 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getSortByLastNameAndStreet());
     }
 
+    @Test
+    public void testGetEntityIdentifiers() {
+        System.out.println("testGetEntityIdentifiers");
+        doTestGetEntityIdentifiers(DataGenerator.getTestDataSortedByName(),
+                null, DataGenerator.getSortByName(), 100);
+        doTestGetEntityIdentifiers(DataGenerator.getTestDataSortedByName(),
+                null, DataGenerator.getSortByName(), 333);
+        doTestGetEntityIdentifiers(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName(),
+                30);
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_KeysetPagination() {
+        System.out.println("testGetEntityIdentifierAt_KeysetPagination");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setKeysetPaginationEnabled(true);
+        doTestGetEntityIdentifierAt(DataGenerator.getTestDataSortedByName(),
+                null, DataGenerator.getSortByName());
+        doTestGetEntityIdentifierAt(
+                DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+                DataGenerator.getSortByLastNameAndStreet());
+        doTestGetEntityIdentifierAt(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+        doTestGetEntityIdentifierAtBackwards(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    /**
+     * Clears the last name of every fifth person, so that lists sorted by
+     * last name contain null sort key values.
+     */
+    protected void clearSomeLastNames() throws Exception {
+        EntityManager em = getEntityManager();
+        em.getTransaction().begin();
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        for (int i = 0; i < testData.size(); i += 5) {
+            em.find(Person.class, testData.get(i).getId()).setLastName(null);
+        }
+        em.flush();
+        em.getTransaction().commit();
+    }
+
+    /**
+     * Specifies whether the (HSQLDB) database sorts null values before or
+     * after all other values, regardless of the sort direction.
+     */
+    protected void setNullsSortedFirst(boolean nullsFirst) throws Exception {
+        EntityManager em = getEntityManager();
+        em.getTransaction().begin();
+        em.createNativeQuery(
+                "SET DATABASE SQL NULLS FIRST " + (nullsFirst ? "TRUE" : "FALSE"))
+                .executeUpdate();
+        em.getTransaction().commit();
+        entityProvider.refresh();
+    }
+
+    /**
+     * Gets the identifiers sorted by <code>sortBy</code>, as returned by a
+     * provider that fetches them all at once.
+     */
+    protected List<Object> getAllIdentifiers(List<SortBy> sortBy)
+            throws Exception {
+        return new LocalEntityProvider<Person>(Person.class,
+                getEntityManager()).getAllEntityIdentifiers(container, null,
+                sortBy);
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_KeysetPagination_NullSortKeys()
+            throws Exception {
+        System.out
+                .println("testGetEntityIdentifierAt_KeysetPagination_NullSortKeys");
+        clearSomeLastNames();
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setKeysetPaginationEnabled(true);
+        for (boolean nullsFirst : new boolean[] { true, false }) {
+            setNullsSortedFirst(nullsFirst);
+            for (boolean ascending : new boolean[] { true, false }) {
+                List<SortBy> sortBy = Arrays.asList(new SortBy("lastName",
+                        ascending), new SortBy("firstName", true));
+                List<Object> expected = getAllIdentifiers(sortBy);
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i), entityProvider
+                            .getEntityIdentifierAt(container, null, sortBy, i));
+                }
+                assertNull(entityProvider.getEntityIdentifierAt(container,
+                        null, sortBy, expected.size()));
+            }
+        }
+    }
+
+    @Test
+    public void testGetEntityIdentifierIndex_NullSortKeys() throws Exception {
+        System.out.println("testGetEntityIdentifierIndex_NullSortKeys");
+        clearSomeLastNames();
+        if (entityProvider instanceof CachingEntityProvider) {
+            // The changed entities have uninitialized lazy collections, which
+            // cannot be cloned once detached
+            ((CachingEntityProvider<Person>) entityProvider)
+                    .setCloneCachedEntities(false);
+        }
+        IndexedEntityProvider<Person> provider = (IndexedEntityProvider<Person>) entityProvider;
+        for (boolean nullsFirst : new boolean[] { true, false }) {
+            setNullsSortedFirst(nullsFirst);
+            for (boolean ascending : new boolean[] { true, false }) {
+                List<SortBy> sortBy = Arrays.asList(new SortBy("lastName",
+                        ascending), new SortBy("firstName", true));
+                List<Object> expected = getAllIdentifiers(sortBy);
+                for (int i = 0; i < expected.size(); i += 3) {
+                    assertEquals(i, provider.getEntityIdentifierIndex(
+                            container, expected.get(i), null, sortBy));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetNextAndPreviousEntityIdentifier_NullSortKeys()
+            throws Exception {
+        System.out
+                .println("testGetNextAndPreviousEntityIdentifier_NullSortKeys");
+        clearSomeLastNames();
+        for (boolean nullsFirst : new boolean[] { true, false }) {
+            setNullsSortedFirst(nullsFirst);
+            for (boolean ascending : new boolean[] { true, false }) {
+                List<SortBy> sortBy = Arrays.asList(new SortBy("lastName",
+                        ascending), new SortBy("firstName", true));
+                List<Object> expected = getAllIdentifiers(sortBy);
+                for (int i = 0; i < expected.size(); i += 3) {
+                    assertEquals(i + 1 < expected.size() ? expected.get(i + 1)
+                            : null, entityProvider.getNextEntityIdentifier(
+                            container, expected.get(i), null, sortBy));
+                    assertEquals(i > 0 ? expected.get(i - 1) : null,
+                            entityProvider.getPreviousEntityIdentifier(
+                                    container, expected.get(i), null, sortBy));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_KeysetPagination_SeveralContainers() {
+        System.out
+                .println("testGetEntityIdentifierAt_KeysetPagination_SeveralContainers");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setKeysetPaginationEnabled(true);
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        final Long minId = testData.get(testData.size() / 2).getId();
+        List<Person> delegateData = testData.subList(testData.size() / 2 + 1,
+                testData.size());
+        EntityContainer delegateContainer = EasyMock
+                .createNiceMock(EntityContainer.class);
+        EasyMock.expect(delegateContainer.getQueryModifierDelegate())
+                .andStubReturn(new DefaultQueryModifierDelegate() {
+
+                    @Override
+                    public void filtersWillBeAdded(
+                            CriteriaBuilder criteriaBuilder,
+                            CriteriaQuery<?> query, List<Predicate> predicates) {
+                        Root<?> root = query.getRoots().iterator().next();
+                        predicates.add(criteriaBuilder.greaterThan(
+                                root.<Long> get("id"), minId));
+                    }
+                });
+        EasyMock.replay(delegateContainer);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(testData.get(i).getId(), entityProvider
+                    .getEntityIdentifierAt(container, null, null, i));
+            // Must not seek from the position of the other container
+            assertEquals(delegateData.get(i + 1).getId(), entityProvider
+                    .getEntityIdentifierAt(delegateContainer, null, null,
+                            i + 1));
+        }
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_KeysetPagination_EmbeddedId() {
+        System.out
+                .println("testGetEntityIdentifierAt_KeysetPagination_EmbeddedId");
+        ((LocalEntityProvider<EmbeddedIdPerson>) entityProvider_EmbeddedId)
+                .setKeysetPaginationEnabled(true);
+        doTestGetEntityIdentifierAt_EmbeddedId(
+                DataGenerator.getTestDataEmbeddedIdSortedByName(), null, null);
+    }
+
     @Test
     public void testGetFirstEntity_SortedByPrimaryKey() {
         System.out.println("testGetFirstEntity_SortedByPrimaryKey");
@@ -595,6 +857,32 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getTestFilter(), DataGenerator.getSortByName());
     }
 
+    @Test
+    public void testGetEntityIdentifierIndex_Filtered() {
+        System.out.println("testGetEntityIdentifierIndex_Filtered");
+        doTestGetEntityIdentifierIndex(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityIdentifierIndex_SortedByLastNameAndStreet() {
+        System.out
+                .println("testGetEntityIdentifierIndex_SortedByLastNameAndStreet");
+        doTestGetEntityIdentifierIndex(
+                DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+                DataGenerator.getSortByLastNameAndStreet());
+    }
+
+    @Test
+    public void testGetEntityIdentifierIndex_Filtered_SortedByPrimaryKey() {
+        System.out
+                .println("testGetEntityIdentifierIndex_Filtered_SortedByPrimaryKey");
+        doTestGetEntityIdentifierIndex(
+                DataGenerator.getFilteredTestDataSortedByPrimaryKey(),
+                DataGenerator.getTestFilter(), null);
+    }
+
     @Test
     public void testGetFirstEntity_Filtered_SortedByPrimaryKey() {
         System.out.println("testGetFirstEntity_Filtered_SortedByPrimaryKey");
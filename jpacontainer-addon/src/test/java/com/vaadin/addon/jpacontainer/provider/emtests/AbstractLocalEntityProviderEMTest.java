@@ -16,10 +16,29 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.BoundedCountEstimator;
+import com.vaadin.data.util.filter.Like;
 
 /**
  * Base class for the {@link LocalEntityProvider} Entity Manager tests.
@@ -44,5 +63,139 @@ public abstract class AbstractLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@Test
+	public void testGetEntityCount_BoundedCountEstimator() throws Exception {
+		System.out.println("testGetEntityCount_BoundedCountEstimator");
+		final EntityManagerFactory emf = getEntityManager().getEntityManagerFactory();
+		final List<EntityManager> backgroundEntityManagers = new ArrayList<EntityManager>();
+		// Count in the background right away to make the test deterministic
+		((LocalEntityProvider<Person>) entityProvider).setCountEstimator(new BoundedCountEstimator(10, 60000,
+				new EntityManagerProvider() {
+
+					@Override
+					public EntityManager getEntityManager() {
+						EntityManager em = emf.createEntityManager();
+						backgroundEntityManagers.add(em);
+						return em;
+					}
+				}, new Executor() {
+
+					@Override
+					public void execute(Runnable command) {
+						command.run();
+					}
+				}));
+		// The bound is reported first, then the exact count computed in the
+		// background
+		assertEquals(10, entityProvider.getEntityCount(container, DataGenerator.getTestFilter()));
+		assertEquals(DataGenerator.getFilteredTestDataSortedByName().size(),
+				entityProvider.getEntityCount(container, DataGenerator.getTestFilter()));
+		assertEquals(10, entityProvider.getEntityCount(container, null));
+		assertEquals(DataGenerator.getTestDataSortedByName().size(), entityProvider.getEntityCount(container, null));
+		assertEquals(2, backgroundEntityManagers.size());
+		for (EntityManager em : backgroundEntityManagers) {
+			assertFalse(em.isOpen());
+		}
+	}
+
+	@Test
+	public void testQueryPlanCache() throws Exception {
+		System.out.println("testQueryPlanCache");
+		LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+		assertNull(provider.getQueryPlanCacheStatistics());
+		// Every chunk is fetched with the same query
+		doTestGetEntityIdentifiers(DataGenerator.getFilteredTestDataSortedByName(), DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName(), 10);
+		assertEquals(1, provider.getQueryPlanCacheStatistics().getMissCount());
+		long hits = provider.getQueryPlanCacheStatistics().getHitCount();
+		assertEquals(DataGenerator.getFilteredTestDataSortedByName().size() / 10, hits);
+
+		// Another filter needs another query
+		doTestGetEntityIdentifiers(DataGenerator.getTestDataSortedByName(), null, DataGenerator.getSortByName(), 10);
+		assertEquals(2, provider.getQueryPlanCacheStatistics().getMissCount());
+
+		// A filter of the same shape reuses the query with other parameter
+		// values
+		List<Person> expected = new ArrayList<Person>();
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			if (p.getLastName().startsWith("J")) {
+				expected.add(p);
+			}
+		}
+		doTestGetEntityIdentifiers(expected, new Like("lastName", "J%", true), DataGenerator.getSortByName(), 10);
+		assertEquals(2, provider.getQueryPlanCacheStatistics().getMissCount());
+
+		provider.setQueryPlanCacheMaxSize(0);
+		assertEquals(0, provider.getQueryPlanCacheMaxSize());
+		doTestGetEntityIdentifiers(DataGenerator.getFilteredTestDataSortedByName(), DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName(), 10);
+		assertNull(provider.getQueryPlanCacheStatistics());
+	}
+
+	@Test
+	public void testQueryPlanCache_SharedBetweenThreads() throws Exception {
+		System.out.println("testQueryPlanCache_SharedBetweenThreads");
+		final EntityManagerFactory emf = getEntityManager().getEntityManagerFactory();
+		final ThreadLocal<EntityManager> entityManagers = new ThreadLocal<EntityManager>() {
+
+			@Override
+			protected EntityManager initialValue() {
+				return emf.createEntityManager();
+			}
+		};
+		final LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(Person.class,
+				new EntityManagerProvider() {
 
+					@Override
+					public EntityManager getEntityManager() {
+						return entityManagers.get();
+					}
+				});
+		final List<Object> expected = new ArrayList<Object>();
+		for (Person p : DataGenerator.getFilteredTestDataSortedByName()) {
+			expected.add(p.getId());
+		}
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 20; j++) {
+							assertEquals(expected, provider.getAllEntityIdentifiers(null,
+									DataGenerator.getTestFilter(), DataGenerator.getSortByName()));
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					} finally {
+						entityManagers.get().close();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertTrue(provider.getQueryPlanCacheStatistics().getHitCount() > 0);
+	}
+
+	@Test
+	public void testGetNextAndPreviousEntity_RowValueComparison() {
+		System.out.println("testGetNextAndPreviousEntity_RowValueComparison");
+		LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+		provider.setRowValueComparisonEnabled(true);
+		assertTrue(provider.isRowValueComparisonEnabled());
+		doTestGetNextEntity(DataGenerator.getFilteredTestDataSortedByName(), DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName());
+		doTestGetPreviousEntity(DataGenerator.getFilteredTestDataSortedByName(), DataGenerator.getTestFilter(),
+				DataGenerator.getSortByName());
+		doTestGetNextEntity(DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+				DataGenerator.getSortByLastNameAndStreet());
+		doTestGetPreviousEntity(DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+				DataGenerator.getSortByLastNameAndStreet());
+	}
 }
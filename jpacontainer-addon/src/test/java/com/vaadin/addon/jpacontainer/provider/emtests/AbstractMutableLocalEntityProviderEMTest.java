@@ -16,10 +16,15 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.CachedCountEstimator;
 
 /**
  * Base class for the {@link MutableLocalEntityProvider} Entity Manager tests.
@@ -45,5 +50,22 @@ public abstract class AbstractMutableLocalEntityProviderEMTest extends
 		provider.setTransactionsHandledByProvider(true);
 		return provider;
 	}
-	
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testGetEntityCountAfterChanges_CachedCountEstimator() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		provider.setCountEstimator(new CachedCountEstimator(60000));
+		int entityCount = provider.getEntityCount(container, null);
+
+		Person p = new Person();
+		p.setFirstName("Hello");
+		p.setLastName("World");
+		Person returned = provider.addEntity(p);
+		assertEquals(entityCount + 1, provider.getEntityCount(container, null));
+
+		provider.removeEntity(returned.getId());
+		assertEquals(entityCount, provider.getEntityCount(container, null));
+	}
+
 }
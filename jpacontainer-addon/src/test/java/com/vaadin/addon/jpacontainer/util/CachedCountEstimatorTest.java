@@ -0,0 +1,250 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.persistence.EntityManager;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CountEstimator;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare;
+
+/**
+ * Test case for {@link CachedCountEstimator} and {@link BoundedCountEstimator}.
+ * 
+ * @since 3.2.0
+ */
+public class CachedCountEstimatorTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final EntityManager backgroundEntityManager = EasyMock
+            .createNiceMock(EntityManager.class);
+
+    private final EntityManagerProvider backgroundEntityManagerProvider = new EntityManagerProvider() {
+
+        @Override
+        public EntityManager getEntityManager() {
+            return backgroundEntityManager;
+        }
+    };
+
+    /**
+     * Counter that returns a configurable number of entities and records how
+     * it has been used.
+     */
+    private static class TestCounter implements CountEstimator.Counter {
+
+        int count;
+        int exactCounts = 0;
+        int boundedCounts = 0;
+        int backgroundCounts = 0;
+        Integer reportedCount;
+
+        TestCounter(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Class<?> getEntityClass() {
+            return Person.class;
+        }
+
+        @Override
+        public int countEntities(Filter filter) {
+            exactCounts++;
+            return count;
+        }
+
+        @Override
+        public int countEntities(Filter filter, int max) {
+            boundedCounts++;
+            return Math.min(count, max);
+        }
+
+        @Override
+        public int countEntities(Filter filter, EntityManager entityManager) {
+            backgroundCounts++;
+            return count;
+        }
+
+        @Override
+        public void entityCountChanged(Filter filter, int count) {
+            reportedCount = count;
+        }
+    }
+
+    @Test
+    public void testCachesCountsPerFilter() {
+        CachedCountEstimator estimator = new CachedCountEstimator(60000);
+        TestCounter counter = new TestCounter(42);
+        Filter filter = new Compare.Equal("firstName", "Joe");
+
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        counter.count = 43;
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        assertEquals(43, estimator.getEntityCount(counter, filter));
+        assertEquals(43, estimator.getEntityCount(counter,
+                new Compare.Equal("firstName", "Joe")));
+        assertEquals(2, counter.exactCounts);
+
+        estimator.invalidate();
+        assertEquals(43, estimator.getEntityCount(counter, null));
+        assertEquals(3, counter.exactCounts);
+        assertNull(counter.reportedCount);
+    }
+
+    @Test
+    public void testEntitiesChangedDiscardsCachedCounts() {
+        CachedCountEstimator estimator = new CachedCountEstimator(60000);
+        TestCounter counter = new TestCounter(42);
+
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        counter.count = 43;
+        estimator.entitiesChanged(String.class);
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        estimator.entitiesChanged(Person.class);
+        assertEquals(43, estimator.getEntityCount(counter, null));
+        assertEquals(43, estimator.getEntityCount(counter, null));
+        assertEquals(2, counter.exactCounts);
+    }
+
+    @Test
+    public void testBackgroundCountIsDiscardedIfEntitiesChanged() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        BoundedCountEstimator estimator = new BoundedCountEstimator(100,
+                60000, backgroundEntityManagerProvider, new Executor() {
+
+                    @Override
+                    public void execute(Runnable command) {
+                        tasks.add(command);
+                    }
+                });
+        TestCounter counter = new TestCounter(100000);
+
+        assertEquals(100, estimator.getEntityCount(counter, null));
+        estimator.entitiesChanged(Person.class);
+        tasks.get(0).run();
+        assertEquals(1, counter.backgroundCounts);
+        assertNull(counter.reportedCount);
+        // Counted again, as the outdated count was not cached
+        assertEquals(100, estimator.getEntityCount(counter, null));
+        assertEquals(2, counter.boundedCounts);
+    }
+
+    @Test
+    public void testExpiredCountIsRecomputed() throws Exception {
+        CachedCountEstimator estimator = new CachedCountEstimator(0);
+        TestCounter counter = new TestCounter(42);
+
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        Thread.sleep(5);
+        counter.count = 43;
+        assertEquals(43, estimator.getEntityCount(counter, null));
+        assertEquals(2, counter.exactCounts);
+    }
+
+    @Test
+    public void testExpiredCountIsRecomputedInBackground() throws Exception {
+        CachedCountEstimator estimator = new CachedCountEstimator(0,
+                backgroundEntityManagerProvider, DIRECT_EXECUTOR);
+        TestCounter counter = new TestCounter(42);
+
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        Thread.sleep(5);
+        counter.count = 43;
+        // The old count is reported while the new one is being computed
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        assertEquals(1, counter.exactCounts);
+        assertEquals(1, counter.backgroundCounts);
+        assertEquals(Integer.valueOf(43), counter.reportedCount);
+    }
+
+    @Test
+    public void testBackgroundEntityManagerIsClosed() throws Exception {
+        final EntityManager em = EasyMock.createMock(EntityManager.class);
+        em.close();
+        EasyMock.replay(em);
+        CachedCountEstimator estimator = new CachedCountEstimator(0,
+                new EntityManagerProvider() {
+
+                    @Override
+                    public EntityManager getEntityManager() {
+                        return em;
+                    }
+                }, DIRECT_EXECUTOR);
+        TestCounter counter = new TestCounter(42);
+
+        estimator.getEntityCount(counter, null);
+        Thread.sleep(5);
+        estimator.getEntityCount(counter, null);
+        assertEquals(1, counter.backgroundCounts);
+        EasyMock.verify(em);
+    }
+
+    @Test
+    public void testBoundedCountBelowMax() {
+        BoundedCountEstimator estimator = new BoundedCountEstimator(100, 60000);
+        TestCounter counter = new TestCounter(42);
+
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        assertEquals(42, estimator.getEntityCount(counter, null));
+        assertEquals(1, counter.boundedCounts);
+        assertEquals(0, counter.exactCounts);
+    }
+
+    @Test
+    public void testBoundedCountAboveMax() {
+        BoundedCountEstimator estimator = new BoundedCountEstimator(100, 60000);
+        TestCounter counter = new TestCounter(100000);
+
+        assertEquals(100, estimator.getEntityCount(counter, null));
+        assertEquals(0, counter.exactCounts);
+        assertNull(counter.reportedCount);
+    }
+
+    @Test
+    public void testBoundedCountAboveMaxIsComputedInBackground() {
+        BoundedCountEstimator estimator = new BoundedCountEstimator(100,
+                60000, backgroundEntityManagerProvider, DIRECT_EXECUTOR);
+        TestCounter counter = new TestCounter(100000);
+
+        assertEquals(100, estimator.getEntityCount(counter, null));
+        assertEquals(1, counter.backgroundCounts);
+        assertEquals(Integer.valueOf(100000), counter.reportedCount);
+        assertEquals(100000, estimator.getEntityCount(counter, null));
+        assertEquals(1, counter.boundedCounts);
+        assertEquals(0, counter.exactCounts);
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.Cache;
+import com.vaadin.addon.jpacontainer.CacheStatistics;
+
+/**
+ * Test case for {@link ConcurrentLruCache}.
+ * 
+ * @since 3.2.0
+ */
+public class ConcurrentLruCacheTest {
+
+    private CacheStatistics statistics = new CacheStatistics();
+
+    @Test
+    public void testPutAndGet() {
+        Cache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                10, statistics, false);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertNull(cache.get(3));
+        assertTrue(cache.containsKey(1));
+        assertFalse(cache.containsKey(3));
+        assertEquals(2, cache.size());
+        assertEquals(2, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(0, statistics.getEvictionCount());
+        assertEquals(0.6667, statistics.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    public void testContainsKeyHasNoSideEffects() {
+        Cache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                2, statistics, true);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.containsKey(1));
+            assertFalse(cache.containsKey(3));
+        }
+        assertEquals(0, statistics.getHitCount());
+        assertEquals(0, statistics.getMissCount());
+        // Checking for 1 neither made it recently used nor frequent
+        cache.put(3, "three");
+        assertFalse(cache.containsKey(1));
+        assertTrue(cache.containsKey(2));
+        assertTrue(cache.containsKey(3));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        Cache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                10, statistics, false);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.remove(1));
+        assertNull(cache.remove(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.values().size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(cache.values().isEmpty());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Less than 64 entries gives a single segment, i.e. exact LRU order
+        Cache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                3, statistics, false);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        cache.get(1);
+        cache.put(4, "four");
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey(1));
+        assertFalse(cache.containsKey(2));
+        assertTrue(cache.containsKey(3));
+        assertTrue(cache.containsKey(4));
+        assertEquals(1, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testReplaceDoesNotEvict() {
+        Cache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(
+                2, statistics, false);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(2, "TWO");
+        assertEquals(2, cache.size());
+        assertEquals("TWO", cache.get(2));
+        assertEquals(0, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testMaxSizeIsRespectedWithSegments() {
+        Cache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(
+                1000, statistics, false);
+        for (int i = 0; i < 5000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(1000, cache.size());
+        assertEquals(4000, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testUnboundedAndZeroSize() {
+        Cache<Integer, Integer> unbounded = new ConcurrentLruCache<Integer, Integer>(
+                -1, statistics, false);
+        Cache<Integer, Integer> empty = new ConcurrentLruCache<Integer, Integer>(
+                0, statistics, false);
+        for (int i = 0; i < 5000; i++) {
+            unbounded.put(i, i);
+            empty.put(i, i);
+        }
+        assertEquals(5000, unbounded.size());
+        assertEquals(0, empty.size());
+    }
+
+    @Test
+    public void testFrequencyAwareAdmissionKeepsFrequentEntries() {
+        Cache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(
+                10, statistics, true);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+            for (int j = 0; j < 5; j++) {
+                cache.get(i);
+            }
+        }
+        // Scan through entries that are only used once
+        for (int i = 100; i < 200; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.containsKey(i));
+        }
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testFrequencyAwareAdmissionAcceptsNewEntriesWhenCold() {
+        Cache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(
+                10, statistics, true);
+        for (int i = 0; i < 30; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(10, cache.size());
+        assertTrue(cache.containsKey(29));
+    }
+
+    @Test
+    public void testFactory() {
+        Cache<String, String> cache = new ConcurrentLruCache.Factory(false)
+                .createCache(5, statistics);
+        cache.put("a", "b");
+        assertEquals("b", cache.get("a"));
+        assertEquals(1, statistics.getHitCount());
+        statistics.reset();
+        assertEquals(0, statistics.getHitCount());
+    }
+}